@@ -0,0 +1,85 @@
+package server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import volume.GradientVolume;
+import volume.SyntheticVolumes;
+import volume.Volume;
+import volvis.RaycastMode;
+import volvis.RaycastRenderer;
+import volvis.ViewMatrices;
+
+/**
+ * Compares {@link FrameEncoder} with plain PNG on a rendered sequence: a
+ * trackball drag (interactive frames with small view changes) followed by
+ * idle frames. Every delta frame is decoded again and checked against the
+ * rendered image.
+ */
+public class FrameEncoderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int nrFrames = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+
+        Volume volume = SyntheticVolumes.shells(size, size, size, 1);
+        RaycastRenderer renderer = new RaycastRenderer();
+        renderer.setVolumeData(volume, new GradientVolume(volume));
+        renderer.setRaycastModeFront(RaycastMode.COMPOSITING);
+
+        FrameEncoder encoder = new FrameEncoder();
+        FrameDecoder decoder = new FrameDecoder();
+        long pngBytes = 0, pngNanos = 0, deltaBytes = 0, deltaNanos = 0;
+
+        System.out.println("frame\tinteractive\tpng bytes\tpng ms\tdelta bytes\tdelta ms\ttiles");
+        for (int f = 0; f < nrFrames; f++) {
+            // the first 3/4 of the frames rotate, the rest repeat the final view
+            boolean interactive = f < nrFrames * 3 / 4;
+            double angle = Math.min(f, nrFrames * 3 / 4) * 2.0;
+            renderer.setInteractiveMode(interactive);
+            encoder.setInteractive(interactive);
+            BufferedImage image = renderer.renderImage(ViewMatrices.rotation(angle, 0));
+
+            long start = System.nanoTime();
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", png);
+            long pngTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            FrameEncoder.EncodedFrame frame = encoder.encode(image);
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            frame.writeTo(new DataOutputStream(delta));
+            long deltaTime = System.nanoTime() - start;
+
+            int nr = decoder.read(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())));
+            encoder.acknowledge(nr);
+            verify(image, decoder.getPixels(nr), frame.mask);
+
+            pngBytes += png.size();
+            pngNanos += pngTime;
+            deltaBytes += delta.size();
+            deltaNanos += deltaTime;
+            System.out.printf("%d\t%b\t%d\t%.2f\t%d\t%.2f\t%d%n", f, interactive, png.size(), pngTime / 1e6,
+                    delta.size(), deltaTime / 1e6, frame.tileIndices.size());
+        }
+
+        System.out.printf("total PNG:   %d bytes, %.1f ms%n", pngBytes, pngNanos / 1e6);
+        System.out.printf("total delta: %d bytes, %.1f ms (%.1f%% of PNG size)%n", deltaBytes, deltaNanos / 1e6,
+                100.0 * deltaBytes / pngBytes);
+    }
+
+    private static void verify(BufferedImage image, int[] decoded, int mask) {
+        int[] expected = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] &= mask;
+        }
+        if (!Arrays.equals(expected, decoded)) {
+            throw new IllegalStateException("Decoded frame differs from the rendered image");
+        }
+    }
+}
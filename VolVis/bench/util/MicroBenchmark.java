@@ -0,0 +1,157 @@
+package util;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Small benchmark harness in the spirit of JMH.
+ *
+ * Every benchmark runs a number of warmup iterations, whose results are
+ * discarded, followed by measurement iterations. An iteration calls the
+ * operation repeatedly for a fixed time. Results of the operation are folded
+ * into a volatile sink, so the JIT cannot remove the work as dead code.
+ */
+public class MicroBenchmark {
+
+    /**
+     * Code to measure. The return value is consumed by the harness.
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Measurement of one benchmark.
+     */
+    public static class Result {
+
+        public final String name;
+        public final String params;
+        public final String unit;
+        public final double mean;
+        public final double error;
+        public final long invocations;
+
+        Result(String name, String params, String unit, double mean, double error, long invocations) {
+            this.name = name;
+            this.params = params;
+            this.unit = unit;
+            this.mean = mean;
+            this.error = error;
+            this.invocations = invocations;
+        }
+    }
+
+    private static volatile int sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+    private final ArrayList<Result> results = new ArrayList<Result>();
+
+    /**
+     * @param warmupIterations Iterations run before measuring.
+     * @param measurementIterations Iterations measured.
+     * @param iterationMillis Duration of one iteration.
+     */
+    public MicroBenchmark(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1000000L;
+    }
+
+    /**
+     * Creates a harness configured by the system properties bench.warmup,
+     * bench.iterations and bench.time (milliseconds per iteration).
+     */
+    public static MicroBenchmark fromSystemProperties() {
+        return new MicroBenchmark(Integer.getInteger("bench.warmup", 3), Integer.getInteger("bench.iterations", 5),
+                Long.getLong("bench.time", 500L));
+    }
+
+    /**
+     * Measures an operation.
+     *
+     * @param name Benchmark name.
+     * @param params Parameters of this run, e.g. the volume size.
+     * @param opsPerInvocation Number of operations done by one call, used to
+     * report the time of a single operation (e.g. one sample out of a batch).
+     * @param op Operation.
+     * @return The result, also kept for {@link #writeCsv(String)}.
+     */
+    public Result measure(String name, String params, int opsPerInvocation, Operation op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+        double[] nsPerOp = new double[measurementIterations];
+        long total = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] timing = iteration(op);
+            nsPerOp[i] = (double) timing[0] / (timing[1] * (double) opsPerInvocation);
+            total += timing[1];
+        }
+
+        double mean = 0;
+        for (double v : nsPerOp) {
+            mean += v;
+        }
+        mean /= nsPerOp.length;
+        double var = 0;
+        for (double v : nsPerOp) {
+            var += (v - mean) * (v - mean);
+        }
+        double error = nsPerOp.length > 1 ? Math.sqrt(var / (nsPerOp.length - 1)) : 0;
+
+        // large timings are easier to read in milliseconds
+        String unit = "ns/op";
+        if (mean > 1e6) {
+            mean /= 1e6;
+            error /= 1e6;
+            unit = "ms/op";
+        }
+        Result result = new Result(name, params, unit, mean, error, total);
+        results.add(result);
+        System.out.println(String.format(Locale.ROOT, "%-32s %-20s %12.3f +- %9.3f %s", name, params, mean, error, unit));
+        return result;
+    }
+
+    /**
+     * Writes all results measured so far as CSV.
+     *
+     * @param file Output file.
+     * @throws IOException On write errors.
+     */
+    public void writeCsv(String file) throws IOException {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try {
+            out.println("benchmark,params,mean,error,unit,invocations");
+            for (Result r : results) {
+                out.println(String.format(Locale.ROOT, "%s,%s,%.6f,%.6f,%s,%d", r.name, r.params, r.mean, r.error,
+                        r.unit, r.invocations));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return {elapsed nanoseconds, invocations}
+     */
+    private long[] iteration(Operation op) throws Exception {
+        long invocations = 0;
+        int acc = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Object value = op.run();
+            acc ^= value == null ? 0 : value.hashCode();
+            invocations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        sink ^= acc;
+        return new long[]{elapsed, invocations};
+    }
+}
@@ -0,0 +1,151 @@
+package volume;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic volumes for benchmarks, so measurements do not depend on data
+ * sets that are not part of the repository.
+ */
+public class SyntheticVolumes {
+
+    /**
+     * Builds a volume that looks like a scanned object: a few nested shells
+     * with smooth transitions, an empty background and a little noise.
+     *
+     * @param dimX Size along x.
+     * @param dimY Size along y.
+     * @param dimZ Size along z.
+     * @param seed Seed of the noise, so volumes are reproducible.
+     * @return The volume.
+     */
+    public static Volume shells(int dimX, int dimY, int dimZ, long seed) {
+        Volume vol = new Volume(dimX, dimY, dimZ);
+        Random random = new Random(seed);
+        double cx = dimX / 2.0, cy = dimY / 2.0, cz = dimZ / 2.0;
+        double maxRadius = Math.min(cx, Math.min(cy, cz));
+        for (int z = 0; z < dimZ; z++) {
+            for (int y = 0; y < dimY; y++) {
+                for (int x = 0; x < dimX; x++) {
+                    double dx = (x - cx) / maxRadius;
+                    double dy = (y - cy) / maxRadius;
+                    double dz = (z - cz) / maxRadius;
+                    double r = Math.sqrt(dx * dx + 1.3 * dy * dy + dz * dz);
+                    double value = 0;
+                    if (r < 0.9) {
+                        // outer skin, soft tissue and a dense core
+                        value = 60 + 40 * smoothStep(0.75, 0.7, r) + 100 * smoothStep(0.35, 0.3, r);
+                        value += 8 * Math.sin(12 * dx) * Math.cos(9 * dz);
+                        value += random.nextGaussian() * 3;
+                    }
+                    vol.setVoxel(x, y, z, (short) Math.max(0, Math.min(255, value)));
+                }
+            }
+        }
+        return vol;
+    }
+
+    /**
+     * Writes a volume as an AVS field file of shorts, the format read by
+     * {@link VolumeIO}.
+     *
+     * @param vol Volume to write.
+     * @param file Output file.
+     * @throws IOException On write errors.
+     */
+    public static void writeAVS(Volume vol, File file) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            writeAVS(vol, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Writes a volume as a gzip compressed AVS field file of shorts, in one
+     * gzip member or in BGZF members of at most 64 KB as written by bgzip.
+     *
+     * @param vol Volume to write.
+     * @param file Output file.
+     * @param bgzf True for BGZF members, which {@link VolumeIO} inflates in
+     * parallel.
+     * @throws IOException On write errors.
+     */
+    public static void writeGzipAVS(Volume vol, File file, boolean bgzf) throws IOException {
+        ByteArrayOutputStream field = new ByteArrayOutputStream();
+        writeAVS(vol, field);
+        byte[] bytes = field.toByteArray();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        try {
+            if (!bgzf) {
+                GZIPOutputStream gzip = new GZIPOutputStream(out, 1 << 16);
+                gzip.write(bytes);
+                gzip.finish();
+                return;
+            }
+            // bgzip keeps the compressed member below 64 KB
+            int memberSize = 0xFF00;
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            byte[] deflated = new byte[1 << 17];
+            CRC32 crc = new CRC32();
+            for (int start = 0; start < bytes.length; start += memberSize) {
+                int length = Math.min(memberSize, bytes.length - start);
+                deflater.reset();
+                deflater.setInput(bytes, start, length);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished()) {
+                    n += deflater.deflate(deflated, n, deflated.length - n);
+                }
+                crc.reset();
+                crc.update(bytes, start, length);
+                ByteBuffer member = ByteBuffer.allocate(18 + n + 8).order(ByteOrder.LITTLE_ENDIAN);
+                member.put((byte) 0x1F).put((byte) 0x8B).put((byte) 8).put((byte) 4).putInt(0);
+                member.put((byte) 0).put((byte) 0xFF).putShort((short) 6).put((byte) 'B').put((byte) 'C');
+                member.putShort((short) 2).putShort((short) (member.capacity() - 1));
+                member.put(deflated, 0, n).putInt((int) crc.getValue()).putInt(length);
+                out.write(member.array());
+            }
+            deflater.end();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeAVS(Volume vol, OutputStream out) throws IOException {
+        String header = "# AVS field file\n"
+                + "ndim=3\n"
+                + "dim1=" + vol.getDimX() + "\n"
+                + "dim2=" + vol.getDimY() + "\n"
+                + "dim3=" + vol.getDimZ() + "\n"
+                + "nspace=3\n"
+                + "veclen=1\n"
+                + "data=short\n"
+                + "field=uniform\n";
+        out.write(header.getBytes("US-ASCII"));
+        out.write('\f');
+        out.write('\f');
+        int count = vol.getDimX() * vol.getDimY() * vol.getDimZ();
+        for (int i = 0; i < count; i++) {
+            int value = vol.getVoxel(i);
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+        }
+    }
+
+    private static double smoothStep(double edge0, double edge1, double x) {
+        double t = Math.max(0, Math.min(1, (x - edge0) / (edge1 - edge0)));
+        return t * t * (3 - 2 * t);
+    }
+}
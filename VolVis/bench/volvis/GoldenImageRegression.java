@@ -0,0 +1,369 @@
+package volvis;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import volume.GradientVolume;
+import volume.SyntheticVolumes;
+import volume.Volume;
+
+/**
+ * Renders a fixed matrix of cases (data set, view, mode, transfer function,
+ * shading, cutting plane) through the headless path and compares every image
+ * with a stored golden image, so a speed-up can be checked to leave the
+ * picture unchanged.
+ *
+ * A pixel differs when one of its channels differs by more than
+ * golden.pixel.tolerance (0..255). A case fails when the fraction of
+ * differing pixels exceeds golden.max.error, or when its median frame time
+ * exceeds golden.max.slowdown times the time in the baseline file plus
+ * golden.time.slack milliseconds, which keeps very short frames from failing
+ * on timer noise. Times are
+ * machine dependent, so the baseline is kept in the build directory: the
+ * first run on a machine records the time of every case, and
+ * golden.update=true records them again together with new golden images.
+ *
+ * Wall time, samples per second and allocation rate of every case are written
+ * to the golden.csv file. The program exits with status 1 if a case fails.
+ */
+public class GoldenImageRegression {
+
+    private final File goldenDir;
+    private final File outputDir;
+    private final File baselineFile;
+    private final boolean update;
+    private final int pixelTolerance;
+    private final double maxError;
+    private final double maxSlowdown;
+    private final double timeSlack;
+    private final int repeat;
+
+    GoldenImageRegression() {
+        goldenDir = new File(System.getProperty("golden.dir", "bench/golden"));
+        outputDir = new File(System.getProperty("golden.output", "build/golden"));
+        baselineFile = new File(System.getProperty("golden.baseline", new File(outputDir, "timings.csv").getPath()));
+        update = Boolean.getBoolean("golden.update");
+        pixelTolerance = Integer.getInteger("golden.pixel.tolerance", 2);
+        maxError = Double.parseDouble(System.getProperty("golden.max.error", "0.001"));
+        maxSlowdown = Double.parseDouble(System.getProperty("golden.max.slowdown", "1.5"));
+        timeSlack = Double.parseDouble(System.getProperty("golden.time.slack", "2"));
+        repeat = Integer.getInteger("golden.repeat", 5);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        GoldenImageRegression regression = new GoldenImageRegression();
+        ArrayList<String> failures = regression.run(filter);
+        if (!failures.isEmpty()) {
+            System.out.println(failures.size() + " case(s) failed:");
+            for (String failure : failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
+        }
+        System.out.println("All cases passed");
+    }
+
+    /**
+     * One rendering setup of the matrix.
+     */
+    static class Case {
+
+        final String dataset;
+        final String view;
+        final RaycastMode mode;
+        final String tf;
+        final boolean shading;
+        final boolean cutting;
+
+        Case(String dataset, String view, RaycastMode mode, String tf, boolean shading, boolean cutting) {
+            this.dataset = dataset;
+            this.view = view;
+            this.mode = mode;
+            this.tf = tf;
+            this.shading = shading;
+            this.cutting = cutting;
+        }
+
+        String getName() {
+            return dataset + "-" + view + "-" + mode + "-" + tf + (shading ? "-shaded" : "") + (cutting ? "-cut" : "");
+        }
+    }
+
+    /**
+     * @return The data sets of the matrix by name. They are synthetic, so the
+     * golden images do not depend on files outside the repository.
+     */
+    static Map<String, Volume> datasets() {
+        LinkedHashMap<String, Volume> datasets = new LinkedHashMap<String, Volume>();
+        datasets.put("shells64", SyntheticVolumes.shells(64, 64, 64, 42));
+        datasets.put("shells40x56x48", SyntheticVolumes.shells(40, 56, 48, 7));
+        return datasets;
+    }
+
+    /**
+     * @return The view matrices of the matrix by name.
+     */
+    static Map<String, double[]> views() {
+        LinkedHashMap<String, double[]> views = new LinkedHashMap<String, double[]>();
+        views.put("front", ViewMatrices.rotation(0, 0));
+        views.put("oblique", ViewMatrices.rotation(35, 25));
+        return views;
+    }
+
+    /**
+     * Every mode without shading, the shaded variants of the modes that use
+     * it, a second transfer function and the cutting plane, for every data
+     * set and view.
+     */
+    static ArrayList<Case> cases() {
+        ArrayList<Case> cases = new ArrayList<Case>();
+        for (String dataset : datasets().keySet()) {
+            for (String view : views().keySet()) {
+                for (RaycastMode mode : RaycastMode.values()) {
+                    if (mode != RaycastMode.INVISIBLE) {
+                        cases.add(new Case(dataset, view, mode, "test", false, false));
+                    }
+                }
+                cases.add(new Case(dataset, view, RaycastMode.COMPOSITING, "test", true, false));
+                cases.add(new Case(dataset, view, RaycastMode.TRANSFER2D, "test", true, false));
+                cases.add(new Case(dataset, view, RaycastMode.ISO_SURFACE, "test", true, false));
+                cases.add(new Case(dataset, view, RaycastMode.COMPOSITING, "core", false, false));
+                cases.add(new Case(dataset, view, RaycastMode.COMPOSITING, "test", false, true));
+            }
+        }
+        return cases;
+    }
+
+    /**
+     * Sets the transfer function of a case.
+     *
+     * @param tf Transfer function to change.
+     * @param name "test" keeps the default test function, "core" only shows
+     * the dense core of the synthetic data sets.
+     */
+    static void applyTransferFunction(TransferFunction tf, String name) {
+        if (name.equals("core")) {
+            tf.addControlPoint(40, 0.0, 0.0, 0.0, 0.0);
+            tf.addControlPoint(75, 0.0, 0.0, 0.0, 0.0);
+            tf.addControlPoint(103, 0.0, 0.0, 0.0, 0.0);
+            tf.addControlPoint(150, 0.9, 0.9, 0.8, 0.6);
+            tf.addControlPoint(205, 1.0, 1.0, 1.0, 0.9);
+        }
+    }
+
+    ArrayList<String> run(Pattern filter) throws IOException {
+        Map<String, Volume> datasets = datasets();
+        Map<String, double[]> views = views();
+        HashMap<String, GradientVolume> gradients = new HashMap<String, GradientVolume>();
+        Map<String, Double> baseline = readBaseline();
+        boolean baselineChanged = false;
+
+        goldenDir.mkdirs();
+        outputDir.mkdirs();
+        ArrayList<String> failures = new ArrayList<String>();
+        PrintWriter csv = new PrintWriter(new File(System.getProperty("golden.csv",
+                new File(outputDir, "results.csv").getPath())));
+        csv.println("case,width,height,ms,samples,samples_per_s,alloc_mb_per_s,differing_pixels,max_difference");
+        try {
+            for (Case c : cases()) {
+                String name = c.getName();
+                if (!filter.matcher(name).find()) {
+                    continue;
+                }
+                Volume volume = datasets.get(c.dataset);
+                if (!gradients.containsKey(c.dataset)) {
+                    gradients.put(c.dataset, new GradientVolume(volume));
+                }
+
+                // a fresh set of transfer functions and image for every case
+                RaycastRenderer renderer = new RaycastRenderer();
+                renderer.setVolumeData(volume, gradients.get(c.dataset));
+                applyTransferFunction(renderer.getTransferFunctionFront(), c.tf);
+                renderer.setRaycastModeFront(c.mode);
+                renderer.setRaycastModeBack(RaycastMode.MIP);
+                renderer.setShadingMode(c.shading);
+                renderer.setCuttingPlaneMode(c.cutting);
+                renderer.updateCuttingPlaneVectors(ViewMatrices.rotation(45, 0));
+
+                double[] view = views.get(c.view);
+                Measurement m = measure(renderer, view);
+                BufferedImage image = renderer.renderImage(view);
+
+                File golden = new File(goldenDir, name + ".png");
+                long differing = 0;
+                int maxDifference = 0;
+                String failure = null;
+                if (update) {
+                    ImageIO.write(image, "png", golden);
+                } else if (!golden.exists()) {
+                    failure = name + ": no golden image, run with golden.update=true";
+                } else {
+                    BufferedImage expected = ImageIO.read(golden);
+                    if (expected.getWidth() != image.getWidth() || expected.getHeight() != image.getHeight()) {
+                        failure = name + ": size " + image.getWidth() + "x" + image.getHeight()
+                                + " differs from golden " + expected.getWidth() + "x" + expected.getHeight();
+                    } else {
+                        int[] difference = compare(expected, image);
+                        differing = difference[0];
+                        maxDifference = difference[1];
+                        double error = (double) differing / (image.getWidth() * image.getHeight());
+                        if (error > maxError) {
+                            failure = String.format(Locale.ROOT,
+                                    "%s: %d pixels (%.3f%%) differ, max channel difference %d",
+                                    name, differing, 100 * error, maxDifference);
+                        }
+                    }
+                }
+
+                Double reference = baseline.get(name);
+                if (update || reference == null) {
+                    baseline.put(name, m.millis);
+                    baselineChanged = true;
+                } else if (failure == null && m.millis > reference * maxSlowdown + timeSlack) {
+                    failure = String.format(Locale.ROOT, "%s: %.2f ms, baseline %.2f ms", name, m.millis, reference);
+                }
+                if (failure != null) {
+                    failures.add(failure);
+                    ImageIO.write(image, "png", new File(outputDir, name + ".png"));
+                }
+
+                double seconds = m.millis / 1000;
+                csv.printf(Locale.ROOT, "%s,%d,%d,%.3f,%d,%.0f,%.1f,%d,%d%n", name, image.getWidth(),
+                        image.getHeight(), m.millis, m.samples, m.samples / seconds,
+                        m.allocatedBytes / seconds / (1 << 20), differing, maxDifference);
+                System.out.printf(Locale.ROOT, "%-50s %9.2f ms %12.0f samples/s %s%n", name, m.millis,
+                        m.samples / seconds, failure == null ? "ok" : "FAILED");
+            }
+        } finally {
+            csv.close();
+        }
+
+        if (baselineChanged) {
+            writeBaseline(baseline);
+            System.out.println("Recorded timing baseline in " + baselineFile);
+        }
+        return failures;
+    }
+
+    /**
+     * Timing of one case.
+     */
+    static class Measurement {
+
+        double millis;
+        long samples;
+        long allocatedBytes;
+    }
+
+    /**
+     * Renders a case twice to warm up and then {@link #repeat} times.
+     *
+     * @return The median wall time, and the samples and allocated bytes per
+     * frame.
+     */
+    private Measurement measure(RaycastRenderer renderer, double[] view) {
+        renderer.renderImage(view);
+        renderer.renderImage(view);
+        double[] times = new double[repeat];
+        long allocated = 0;
+        for (int i = 0; i < repeat; i++) {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            renderer.renderImage(view);
+            times[i] = (System.nanoTime() - start) / 1e6;
+            allocated += allocatedBytes() - bytes;
+        }
+        Arrays.sort(times);
+        Measurement m = new Measurement();
+        m.millis = times[repeat / 2];
+        m.samples = renderer.getStatistics().samplesTaken;
+        m.allocatedBytes = allocated / repeat;
+        return m;
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far, or 0 if the JVM
+     * does not report it.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /**
+     * Compares two images of the same size.
+     *
+     * @return The number of pixels with a channel difference above
+     * {@link #pixelTolerance}, and the largest channel difference.
+     */
+    private int[] compare(BufferedImage expected, BufferedImage actual) {
+        int width = expected.getWidth();
+        int height = expected.getHeight();
+        int[] a = expected.getRGB(0, 0, width, height, null, 0, width);
+        int[] b = actual.getRGB(0, 0, width, height, null, 0, width);
+        int differing = 0;
+        int max = 0;
+        for (int i = 0; i < a.length; i++) {
+            int difference = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                difference = Math.max(difference, Math.abs(((a[i] >>> shift) & 0xFF) - ((b[i] >>> shift) & 0xFF)));
+            }
+            if (difference > pixelTolerance) {
+                differing++;
+            }
+            max = Math.max(max, difference);
+        }
+        return new int[]{differing, max};
+    }
+
+    private Map<String, Double> readBaseline() throws IOException {
+        TreeMap<String, Double> baseline = new TreeMap<String, Double>();
+        if (!baselineFile.exists()) {
+            return baseline;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(baselineFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length == 2 && !fields[0].equals("case")) {
+                    baseline.put(fields[0], Double.parseDouble(fields[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return baseline;
+    }
+
+    private void writeBaseline(Map<String, Double> timings) throws IOException {
+        File parent = baselineFile.getAbsoluteFile().getParentFile();
+        parent.mkdirs();
+        PrintWriter out = new PrintWriter(baselineFile);
+        try {
+            out.println("case,ms");
+            for (Map.Entry<String, Double> entry : timings.entrySet()) {
+                out.printf(Locale.ROOT, "%s,%.3f%n", entry.getKey(), entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package volvis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.regex.Pattern;
+import util.MicroBenchmark;
+import volume.CompressedVolume;
+import volume.GradientVolume;
+import volume.Histogram2D;
+import volume.OffHeapVolume;
+import volume.SyntheticVolumes;
+import volume.TimeSeries;
+import volume.Volume;
+import volume.VoxelGradient;
+import volume.VoxelType;
+
+/**
+ * Benchmarks of the rendering hot paths on synthetic volumes of several
+ * sizes: the samplers, Phong shading, the transfer function lookup, gradient
+ * and 2D histogram computation, loading, and full frames for every {@link RaycastMode}. The
+ * compressed.* benchmarks repeat the sampler and a compositing frame on a
+ * {@link CompressedVolume}, to compare its throughput with the raw volume.
+ * The crop.* benchmarks render and extract the central box of half the
+ * size, to compare with the full frames of that size.
+ * The lighting.* benchmarks compute the ambient occlusion of the test
+ * transfer function from scratch, and render with it.
+ * The clip.* benchmarks clip the volume with three orthogonal planes through
+ * the center, keeping one octant.
+ * The cut.* benchmarks render with the cutting plane through the center,
+ * compositing in front of it and nothing behind it.
+ * The tf2d.* benchmarks render with, and rebuild the table of, a 2D transfer
+ * function of eight widgets, to compare with the single widget of
+ * raycast.TRANSFER2D.
+ * The timestep.* benchmarks step through a {@link TimeSeries} of two
+ * timesteps that differ in one brick, which re-renders part of the frame.
+ *
+ * Usage: RenderingBenchmarks [sizes] [filter]. Sizes are comma separated
+ * (default 64,128,256) and the filter is a regular expression on benchmark
+ * names. The harness is configured with the system properties described in
+ * {@link MicroBenchmark#fromSystemProperties()}; bench.csv names an optional
+ * CSV output file.
+ */
+public class RenderingBenchmarks {
+
+    /**
+     * Number of samples per invocation of the per-sample benchmarks.
+     */
+    private static final int BATCH = 4096;
+
+    private final MicroBenchmark harness;
+    private final Pattern filter;
+
+    RenderingBenchmarks(MicroBenchmark harness, Pattern filter) {
+        this.harness = harness;
+        this.filter = filter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String sizes = args.length > 0 ? args[0] : "64,128,256";
+        Pattern filter = Pattern.compile(args.length > 1 ? args[1] : ".*");
+        MicroBenchmark harness = MicroBenchmark.fromSystemProperties();
+        RenderingBenchmarks benchmarks = new RenderingBenchmarks(harness, filter);
+
+        for (String size : sizes.split(",")) {
+            int n = Integer.parseInt(size.trim());
+            benchmarks.run(n);
+        }
+
+        String csv = System.getProperty("bench.csv");
+        if (csv != null) {
+            harness.writeCsv(csv);
+        }
+    }
+
+    private boolean enabled(String name) {
+        return filter.matcher(name).find();
+    }
+
+    void run(int size) throws Exception {
+        final String params = "size=" + size;
+        final Volume volume = SyntheticVolumes.shells(size, size, size, 42);
+        final GradientVolume gradients = new GradientVolume(volume);
+        final RaycastRenderer renderer = new RaycastRenderer();
+        renderer.setVolumeData(volume, gradients);
+
+        // random sample positions inside the volume, the same for every run
+        final double[][] coords = new double[BATCH][3];
+        Random random = new Random(7);
+        for (double[] c : coords) {
+            c[0] = random.nextDouble() * (size - 1);
+            c[1] = random.nextDouble() * (size - 1);
+            c[2] = random.nextDouble() * (size - 1);
+        }
+
+        if (enabled("getVoxelTrilinear")) {
+            harness.measure("getVoxelTrilinear", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    int acc = 0;
+                    for (double[] c : coords) {
+                        acc += renderer.getVoxelTrilinear(c);
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("uint8.getVoxelTrilinear")) {
+            // the shells fit in bytes, so this samples the same values from half the memory
+            final Volume bytes = Volume.create(VoxelType.UINT8, size, size, size);
+            for (int i = 0; i < size * size * size; i++) {
+                bytes.setVoxel(i, volume.getVoxel(i));
+            }
+            final RaycastRenderer byteRenderer = new RaycastRenderer();
+            byteRenderer.setVolumeData(bytes, gradients);
+            harness.measure("uint8.getVoxelTrilinear", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    int acc = 0;
+                    for (double[] c : coords) {
+                        acc += byteRenderer.getVoxelTrilinear(c);
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("offheap.getVoxelTrilinear")) {
+            final Volume offHeap = new OffHeapVolume(VoxelType.INT16, size, size, size);
+            for (int i = 0; i < size * size * size; i++) {
+                offHeap.setVoxel(i, volume.getVoxel(i));
+            }
+            final RaycastRenderer offHeapRenderer = new RaycastRenderer();
+            offHeapRenderer.setVolumeData(offHeap, gradients);
+            harness.measure("offheap.getVoxelTrilinear", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    int acc = 0;
+                    for (double[] c : coords) {
+                        acc += offHeapRenderer.getVoxelTrilinear(c);
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("getGradientTrilinear")) {
+            harness.measure("getGradientTrilinear", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    float acc = 0;
+                    for (double[] c : coords) {
+                        acc += renderer.getGradientTrilinear(c).mag;
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("computePhongShading")) {
+            final VoxelGradient[] grads = new VoxelGradient[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                grads[i] = new VoxelGradient((float) random.nextGaussian(), (float) random.nextGaussian(),
+                        (float) random.nextGaussian());
+            }
+            final TFColor color = new TFColor(1.0, 0.666, 0.0, 0.5);
+            final double[] rayVector = new double[]{0.3, -0.2, -0.93};
+            harness.measure("computePhongShading", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    double acc = 0;
+                    for (VoxelGradient g : grads) {
+                        acc += renderer.computePhongShading(color, g, rayVector, rayVector).r;
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("TransferFunction.getColor")) {
+            final TransferFunction tf = renderer.getTransferFunctionFront();
+            final int[] values = new int[BATCH];
+            for (int i = 0; i < BATCH; i++) {
+                values[i] = tf.getMinimum() + random.nextInt(tf.getMaximum() - tf.getMinimum() + 1);
+            }
+            harness.measure("TransferFunction.getColor", params, BATCH, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    double acc = 0;
+                    for (int v : values) {
+                        acc += tf.getColor(v).a;
+                    }
+                    return acc;
+                }
+            });
+        }
+
+        if (enabled("GradientVolume")) {
+            harness.measure("GradientVolume", params, 1, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    return new GradientVolume(volume);
+                }
+            });
+        }
+
+        if (enabled("Histogram2D")) {
+            harness.measure("Histogram2D", params, 1, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() {
+                    return Histogram2D.compute(volume, gradients);
+                }
+            });
+        }
+
+        if (enabled("VolumeIO")) {
+            final File file = File.createTempFile("volvis-bench", ".fld");
+            file.deleteOnExit();
+            SyntheticVolumes.writeAVS(volume, file);
+            harness.measure("VolumeIO", params, 1, new MicroBenchmark.Operation() {
+                @Override
+                public Object run() throws IOException {
+                    return Volume.load(file);
+                }
+            });
+            file.delete();
+        }
+        for (final String format : new String[]{"gzip", "bgzf"}) {
+            if (enabled("VolumeIO." + format)) {
+                final File file = File.createTempFile("volvis-bench", ".fld.gz");
+                file.deleteOnExit();
+                SyntheticVolumes.writeGzipAVS(volume, file, format.equals("bgzf"));
+                harness.measure("VolumeIO." + format, params, 1, new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() throws IOException {
+                        return Volume.load(file);
+                    }
+                });
+                file.delete();
+            }
+        }
+
+        final double[] view = ViewMatrices.rotation(30, 20);
+        if (enabled("compressed.")) {
+            final CompressedVolume compressed = new CompressedVolume(volume);
+            System.out.println(String.format("compressed %s: %.2f : 1", params, compressed.getCompressionRatio()));
+            // the gradients are the same, and a second copy would crowd the heap
+            final RaycastRenderer compressedRenderer = createRenderer(compressed, gradients, RaycastMode.COMPOSITING,
+                    false);
+            if (enabled("compressed.getVoxelTrilinear")) {
+                harness.measure("compressed.getVoxelTrilinear", params, BATCH, new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        int acc = 0;
+                        for (double[] c : coords) {
+                            acc += compressedRenderer.getVoxelTrilinear(c);
+                        }
+                        return acc;
+                    }
+                });
+            }
+            if (enabled("compressed.raycast")) {
+                measureFrame("compressed.raycast.COMPOSITING", params + " shading=false", compressedRenderer, view);
+            }
+            compressed.close();
+        }
+
+        if (enabled("crop.")) {
+            final int lo = size / 4, hi = size - size / 4;
+            if (enabled("crop.raycast")) {
+                RaycastRenderer cropRenderer = createRenderer(volume, gradients, RaycastMode.COMPOSITING, false);
+                cropRenderer.setCropBox(new double[]{lo, lo, lo}, new double[]{hi, hi, hi});
+                measureFrame("crop.raycast.COMPOSITING", params + " shading=false", cropRenderer, view);
+            }
+            if (enabled("crop.Volume")) {
+                harness.measure("crop.Volume", params, 1, new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return volume.crop(lo, lo, lo, hi, hi, hi);
+                    }
+                });
+            }
+        }
+
+        if (enabled("lighting.")) {
+            final TransferFunction tf = new TransferFunction(volume.getMinimum(), volume.getMaximum());
+            tf.setTestFunc();
+            if (enabled("lighting.LightingVolume")) {
+                harness.measure("lighting.LightingVolume", params + " downsample=" + LightingVolume.DOWNSAMPLE, 1,
+                        new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        LightingVolume lighting = new LightingVolume(volume);
+                        lighting.update(tf);
+                        return lighting;
+                    }
+                });
+            }
+            if (enabled("lighting.raycast")) {
+                RaycastRenderer lightingRenderer = createRenderer(volume, gradients, RaycastMode.COMPOSITING, true);
+                lightingRenderer.setAmbientOcclusion(true);
+                // the first frame computes the occlusion
+                lightingRenderer.renderImage(view);
+                measureFrame("lighting.raycast.COMPOSITING", params + " shading=true occlusion=true", lightingRenderer,
+                        view);
+            }
+        }
+
+        if (enabled("clip.raycast")) {
+            RaycastRenderer clipRenderer = createRenderer(volume, gradients, RaycastMode.COMPOSITING, false);
+            double[] center = new double[]{size / 2, size / 2, size / 2};
+            clipRenderer.addClipPlane(center, new double[]{1, 0, 0});
+            clipRenderer.addClipPlane(center, new double[]{0, 1, 0});
+            clipRenderer.addClipPlane(center, new double[]{0, 0, 1});
+            measureFrame("clip.raycast.COMPOSITING", params + " shading=false planes=3", clipRenderer, view);
+        }
+
+        if (enabled("cut.raycast")) {
+            RaycastRenderer cutRenderer = createRenderer(volume, gradients, RaycastMode.COMPOSITING, false);
+            cutRenderer.setRaycastModeBack(RaycastMode.INVISIBLE);
+            cutRenderer.setCuttingPlaneMode(true);
+            cutRenderer.updateCuttingPlaneVectors(ViewMatrices.rotation(45, 0));
+            measureFrame("cut.raycast.COMPOSITING", params + " shading=false back=INVISIBLE", cutRenderer, view);
+        }
+
+        if (enabled("tf2d.")) {
+            RaycastRenderer tf2DRenderer = createRenderer(volume, gradients, RaycastMode.TRANSFER2D, false);
+            final TransferFunction2D tf2D = tf2DRenderer.getTransferFunction2DFront();
+            int max = volume.getMaximum();
+            for (int w = 1; w < 8; w++) {
+                tf2D.addWidget(max * w / 8, 0.1 * max).color = new TFColor(w / 8.0, 1 - w / 8.0, 0.5, 0.2);
+            }
+            if (enabled("tf2d.raycast")) {
+                measureFrame("tf2d.raycast.TRANSFER2D", params + " shading=false widgets=8", tf2DRenderer, view);
+            }
+            if (enabled("tf2d.table")) {
+                harness.measure("tf2d.table", params + " widgets=8", 1, new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        // a changed widget builds the table again
+                        tf2D.getSelectedWidget().color.a = 0.5 - tf2D.getSelectedWidget().color.a;
+                        return tf2D.getTable(volume.getMinimum(), volume.getMaximum());
+                    }
+                });
+            }
+        }
+
+        if (enabled("timestep.") || enabled("TimeSeries.decode")) {
+            // the second timestep differs from the first inside one brick next to the center
+            final TimeSeries series = new TimeSeries(size, size, size, volume.getType());
+            series.add(volume);
+            Volume changed = Volume.create(volume.getType(), size, size, size);
+            for (int i = 0; i < size * size * size; i++) {
+                changed.setVoxel(i, volume.getVoxel(i));
+            }
+            int lo = size / 2 - 28, hi = size / 2 - 4;
+            for (int z = lo; z < hi; z++) {
+                for (int y = lo; y < hi; y++) {
+                    for (int x = lo; x < hi; x++) {
+                        changed.setVoxel(x, y, z, volume.getVoxel(x, y, z) / 2);
+                    }
+                }
+            }
+            series.add(changed);
+            if (enabled("TimeSeries.decode")) {
+                harness.measure("TimeSeries.decode", params, 1, new MicroBenchmark.Operation() {
+                    @Override
+                    public Object run() {
+                        return series.decode(1);
+                    }
+                });
+            }
+            if (enabled("timestep.raycast")) {
+                final Volume[] steps = new Volume[]{series.decode(0), series.decode(1)};
+                final GradientVolume[] stepGradients = new GradientVolume[]{new GradientVolume(steps[0]),
+                    new GradientVolume(steps[1])};
+                final BitSet delta = series.getChangedBricks(0, 1);
+                final RaycastRenderer timestepRenderer = new RaycastRenderer();
+                timestepRenderer.setVolumeData(steps[0], stepGradients[0], series.getMinimum(), series.getMaximum());
+                timestepRenderer.setRaycastModeFront(RaycastMode.COMPOSITING);
+                timestepRenderer.setShadingMode(true);
+                timestepRenderer.renderImage(view);
+                harness.measure("timestep.raycast.COMPOSITING", params + " shading=true", 1,
+                        new MicroBenchmark.Operation() {
+                    private int t = 0;
+
+                    @Override
+                    public Object run() {
+                        t = 1 - t;
+                        timestepRenderer.setTimestep(steps[t], stepGradients[t], delta, TimeSeries.BRICK_SIZE);
+                        return timestepRenderer.renderImage(view);
+                    }
+                });
+            }
+        }
+
+        for (final RaycastMode mode : RaycastMode.values()) {
+            String name = "raycast." + mode;
+            if (!enabled(name)) {
+                continue;
+            }
+            // shading only affects the modes that classify samples
+            boolean shaded = mode == RaycastMode.COMPOSITING || mode == RaycastMode.TRANSFER2D
+                    || mode == RaycastMode.ISO_SURFACE;
+            boolean[] shadings = shaded ? new boolean[]{false, true} : new boolean[]{false};
+            for (final boolean shading : shadings) {
+                renderer.setRaycastModeFront(mode);
+                renderer.setShadingMode(shading);
+                measureFrame(name, params + " shading=" + shading, renderer, view);
+            }
+        }
+    }
+
+    /**
+     * Creates a renderer of a volume for a frame benchmark, which adds the
+     * settings it measures.
+     */
+    private static RaycastRenderer createRenderer(Volume volume, GradientVolume gradients, RaycastMode mode,
+            boolean shading) {
+        RaycastRenderer renderer = new RaycastRenderer();
+        renderer.setVolumeData(volume, gradients);
+        renderer.setRaycastModeFront(mode);
+        renderer.setShadingMode(shading);
+        return renderer;
+    }
+
+    /**
+     * Measures rendering a frame of a view.
+     */
+    private void measureFrame(String name, String params, final RaycastRenderer renderer, final double[] view)
+            throws Exception {
+        harness.measure(name, params, 1, new MicroBenchmark.Operation() {
+            @Override
+            public Object run() {
+                return renderer.renderImage(view);
+            }
+        });
+    }
+}
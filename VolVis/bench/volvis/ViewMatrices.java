@@ -0,0 +1,24 @@
+package volvis;
+
+/**
+ * View matrices for headless rendering, in the OpenGL (column-major) layout
+ * that {@link RaycastRenderer#renderImage(double[])} expects.
+ */
+public class ViewMatrices {
+
+    /**
+     * @param yaw Rotation around the y axis in degrees.
+     * @param pitch Rotation around the x axis in degrees, applied after yaw.
+     * @return The view matrix.
+     */
+    public static double[] rotation(double yaw, double pitch) {
+        double cy = Math.cos(Math.toRadians(yaw)), sy = Math.sin(Math.toRadians(yaw));
+        double cp = Math.cos(Math.toRadians(pitch)), sp = Math.sin(Math.toRadians(pitch));
+        // R = Rx(pitch) * Ry(yaw), stored column by column
+        return new double[]{
+            cy, sp * sy, -cp * sy, 0,
+            0, cp, sp, 0,
+            sy, -sp * cy, cp * cy, 0,
+            0, 0, 0, 1};
+    }
+}
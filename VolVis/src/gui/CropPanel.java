@@ -0,0 +1,175 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import volume.Volume;
+import volvis.RaycastRenderer;
+
+/**
+ * Edits the region of interest of a {@link RaycastRenderer}: an axis-aligned
+ * box with a lower and upper slider per axis. While cropping is on, rays are
+ * clipped to the box. The box can also be extracted as a volume of its own,
+ * with its own gradients, which renders faster and frees the rest of a large
+ * volume.
+ *
+ * Below the box, a clip plane per axis cuts away the voxels below its slider,
+ * or above it when flipped. The planes combine with each other and with the
+ * box.
+ */
+public class CropPanel extends JPanel {
+
+    private static final String[] AXES = {"x", "y", "z"};
+
+    private final RaycastRenderer renderer;
+    private final JSlider[] lower = new JSlider[3];
+    private final JSlider[] upper = new JSlider[3];
+    private final JCheckBox cropCheckbox = new JCheckBox("Clip rays to the box");
+    private final JButton extractButton = new JButton("Extract box as volume");
+    private final JCheckBox[] planeCheckboxes = new JCheckBox[3];
+    private final JCheckBox[] flipCheckboxes = new JCheckBox[3];
+    private final JSlider[] planeSliders = new JSlider[3];
+
+    /**
+     * @param renderer The renderer.
+     * @param volume The volume it shows.
+     * @param extractAction Called when the box is to be extracted, see
+     * {@link #getBox()}.
+     */
+    public CropPanel(RaycastRenderer renderer, Volume volume, ActionListener extractAction) {
+        this.renderer = renderer;
+        int[] dims = new int[]{volume.getDimX(), volume.getDimY(), volume.getDimZ()};
+
+        ChangeListener boxChanged = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                keepOrdered((JSlider) e.getSource());
+                apply();
+            }
+        };
+        JPanel grid = new JPanel(new GridLayout(0, 2, 12, 4));
+        for (int axis = 0; axis < 3; axis++) {
+            lower[axis] = new JSlider(0, dims[axis], 0);
+            upper[axis] = new JSlider(0, dims[axis], dims[axis]);
+            lower[axis].addChangeListener(boxChanged);
+            upper[axis].addChangeListener(boxChanged);
+            grid.add(new JLabel("Lower " + AXES[axis] + ":"));
+            grid.add(lower[axis]);
+            grid.add(new JLabel("Upper " + AXES[axis] + ":"));
+            grid.add(upper[axis]);
+        }
+
+        cropCheckbox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                apply();
+            }
+        });
+        extractButton.addActionListener(extractAction);
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(cropCheckbox);
+        buttons.add(extractButton);
+
+        ActionListener planeToggled = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                applyPlanes();
+            }
+        };
+        ChangeListener planeMoved = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                applyPlanes();
+            }
+        };
+        JPanel planes = new JPanel(new GridLayout(0, 3, 12, 4));
+        planes.setBorder(BorderFactory.createTitledBorder("Clip planes"));
+        for (int axis = 0; axis < 3; axis++) {
+            planeCheckboxes[axis] = new JCheckBox("Cut " + AXES[axis] + " below");
+            flipCheckboxes[axis] = new JCheckBox("Flip");
+            planeSliders[axis] = new JSlider(0, dims[axis], dims[axis] / 2);
+            planeCheckboxes[axis].addActionListener(planeToggled);
+            flipCheckboxes[axis].addActionListener(planeToggled);
+            planeSliders[axis].addChangeListener(planeMoved);
+            planes.add(planeCheckboxes[axis]);
+            planes.add(planeSliders[axis]);
+            planes.add(flipCheckboxes[axis]);
+        }
+
+        JPanel content = new JPanel(new BorderLayout(0, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        content.add(grid, BorderLayout.NORTH);
+        content.add(buttons, BorderLayout.CENTER);
+        content.add(planes, BorderLayout.SOUTH);
+        setLayout(new BorderLayout());
+        add(content, BorderLayout.NORTH);
+    }
+
+    /**
+     * Keeps every lower bound below its upper bound by moving the slider
+     * that was not dragged.
+     */
+    private void keepOrdered(JSlider moved) {
+        for (int axis = 0; axis < 3; axis++) {
+            if (lower[axis].getValue() < upper[axis].getValue()) {
+                continue;
+            }
+            if (moved == lower[axis]) {
+                if (lower[axis].getValue() == lower[axis].getMaximum()) {
+                    lower[axis].setValue(lower[axis].getMaximum() - 1);
+                }
+                upper[axis].setValue(lower[axis].getValue() + 1);
+            } else {
+                if (upper[axis].getValue() == 0) {
+                    upper[axis].setValue(1);
+                }
+                lower[axis].setValue(upper[axis].getValue() - 1);
+            }
+        }
+    }
+
+    private void apply() {
+        if (cropCheckbox.isSelected()) {
+            int[] box = getBox();
+            renderer.setCropBox(new double[]{box[0], box[1], box[2]}, new double[]{box[3], box[4], box[5]});
+        } else {
+            renderer.clearCropBox();
+        }
+        renderer.changed();
+    }
+
+    private void applyPlanes() {
+        renderer.clearClipRegion();
+        for (int axis = 0; axis < 3; axis++) {
+            boolean flip = flipCheckboxes[axis].isSelected();
+            planeCheckboxes[axis].setText("Cut " + AXES[axis] + (flip ? " above" : " below"));
+            if (planeCheckboxes[axis].isSelected()) {
+                double[] point = new double[3];
+                double[] normal = new double[3];
+                point[axis] = planeSliders[axis].getValue();
+                normal[axis] = flip ? -1 : 1;
+                renderer.addClipPlane(point, normal);
+            }
+        }
+        renderer.changed();
+    }
+
+    /**
+     * @return The box in voxels: the first voxel along x, y and z, and the
+     * voxel after the last one along x, y and z.
+     */
+    public int[] getBox() {
+        return new int[]{lower[0].getValue(), lower[1].getValue(), lower[2].getValue(), upper[0].getValue(),
+            upper[1].getValue(), upper[2].getValue()};
+    }
+}
@@ -0,0 +1,45 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import volvis.LightingVolume;
+import volvis.RaycastRenderer;
+
+/**
+ * Turns the ambient occlusion of a {@link RaycastRenderer} on and off. It
+ * darkens compositing with the 1D transfer functions by the light that
+ * reaches every sample through the voxels around it, see
+ * {@link LightingVolume}.
+ */
+public class LightingPanel extends JPanel {
+
+    private final JCheckBox occlusionCheckbox = new JCheckBox("Ambient occlusion");
+
+    /**
+     * @param renderer The renderer.
+     */
+    public LightingPanel(final RaycastRenderer renderer) {
+        occlusionCheckbox.setSelected(renderer.isAmbientOcclusion());
+        occlusionCheckbox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                renderer.setAmbientOcclusion(occlusionCheckbox.isSelected());
+                renderer.changed();
+            }
+        });
+        JLabel info = new JLabel(String.format("Compositing only, one cell per %d^3 voxels, reaching %d cells",
+                LightingVolume.DOWNSAMPLE, LightingVolume.RADIUS));
+
+        JPanel content = new JPanel(new BorderLayout(0, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        content.add(occlusionCheckbox, BorderLayout.NORTH);
+        content.add(info, BorderLayout.CENTER);
+        setLayout(new BorderLayout());
+        add(content, BorderLayout.NORTH);
+    }
+}
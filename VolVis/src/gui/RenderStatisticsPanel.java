@@ -0,0 +1,141 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import volvis.RaycastRenderer;
+import volvis.RenderStatistics;
+import volvis.RenderStatisticsListener;
+import volvis.RenderStatisticsLog;
+
+/**
+ * Shows the {@link RenderStatistics} of the last frame of a
+ * {@link RaycastRenderer}, so it is visible where the frame time goes, and
+ * can log the statistics of every frame to a CSV file.
+ */
+public class RenderStatisticsPanel extends JPanel implements RenderStatisticsListener {
+
+    private final RaycastRenderer renderer;
+    private final JLabel frameLabel = new JLabel("-");
+    private final JLabel modeLabel = new JLabel("-");
+    private final JLabel sizeLabel = new JLabel("-");
+    private final JLabel levelLabel = new JLabel("-");
+    private final JLabel raysLabel = new JLabel("-");
+    private final JLabel samplesLabel = new JLabel("-");
+    private final JLabel skippedLabel = new JLabel("-");
+    private final JLabel terminatedLabel = new JLabel("-");
+    private final JLabel setupLabel = new JLabel("-");
+    private final JLabel marchLabel = new JLabel("-");
+    private final JLabel shadingLabel = new JLabel("-");
+    private final JLabel uploadLabel = new JLabel("-");
+    private final JLabel totalLabel = new JLabel("-");
+    private final JLabel rateLabel = new JLabel("-");
+    private final JCheckBox logCheckbox = new JCheckBox("Log every frame to a CSV file");
+    private RenderStatisticsLog log = null;
+
+    public RenderStatisticsPanel(RaycastRenderer renderer) {
+        this.renderer = renderer;
+
+        JPanel grid = new JPanel(new GridLayout(0, 2, 12, 4));
+        grid.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        addRow(grid, "Frame:", frameLabel);
+        addRow(grid, "Mode:", modeLabel);
+        addRow(grid, "Image size:", sizeLabel);
+        addRow(grid, "Level of detail:", levelLabel);
+        addRow(grid, "Rays cast:", raysLabel);
+        addRow(grid, "Samples taken:", samplesLabel);
+        addRow(grid, "Samples skipped:", skippedLabel);
+        addRow(grid, "Early terminated rays:", terminatedLabel);
+        addRow(grid, "Setup (ms):", setupLabel);
+        addRow(grid, "Ray marching (ms):", marchLabel);
+        addRow(grid, "Shading (ms):", shadingLabel);
+        addRow(grid, "Texture upload (ms):", uploadLabel);
+        addRow(grid, "Total (ms):", totalLabel);
+        addRow(grid, "Samples per second:", rateLabel);
+
+        logCheckbox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                logCheckboxActionPerformed();
+            }
+        });
+        JPanel logPanel = new JPanel(new BorderLayout());
+        logPanel.setBorder(BorderFactory.createEmptyBorder(0, 12, 12, 12));
+        logPanel.add(logCheckbox, BorderLayout.NORTH);
+
+        setLayout(new BorderLayout());
+        add(grid, BorderLayout.NORTH);
+        add(logPanel, BorderLayout.CENTER);
+
+        renderer.addStatisticsListener(this);
+    }
+
+    private static void addRow(JPanel grid, String name, JLabel value) {
+        grid.add(new JLabel(name));
+        grid.add(value);
+    }
+
+    @Override
+    public void frameRendered(final RenderStatistics stats) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                frameLabel.setText(Long.toString(stats.frameNr));
+                modeLabel.setText(stats.mode + (stats.interactive ? " (interactive)" : ""));
+                sizeLabel.setText(stats.width + " x " + stats.height);
+                levelLabel.setText(stats.levelOfDetail == 0 ? "full" : "1/" + (1 << stats.levelOfDetail));
+                raysLabel.setText(Long.toString(stats.raysCast));
+                samplesLabel.setText(Long.toString(stats.samplesTaken));
+                skippedLabel.setText(Long.toString(stats.samplesSkipped));
+                terminatedLabel.setText(Long.toString(stats.earlyTerminatedRays));
+                setupLabel.setText(millis(stats.setupNanos));
+                marchLabel.setText(millis(stats.marchNanos));
+                shadingLabel.setText(millis(stats.shadingNanos));
+                uploadLabel.setText(millis(stats.uploadNanos));
+                totalLabel.setText(millis(stats.getTotalNanos()));
+                rateLabel.setText(String.format(Locale.ROOT, "%.3g", stats.getSamplesPerSecond()));
+            }
+        });
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+    }
+
+    private void logCheckboxActionPerformed() {
+        if (!logCheckbox.isSelected()) {
+            if (log != null) {
+                renderer.removeStatisticsListener(log);
+                log.close();
+                log = null;
+            }
+            return;
+        }
+
+        JFileChooser fc = new JFileChooser();
+        fc.setSelectedFile(new File("render-statistics.csv"));
+        if (fc.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            logCheckbox.setSelected(false);
+            return;
+        }
+        try {
+            log = new RenderStatisticsLog(fc.getSelectedFile());
+            renderer.addStatisticsListener(log);
+        } catch (IOException ex) {
+            logCheckbox.setSelected(false);
+            JOptionPane.showMessageDialog(this, "Cannot open " + fc.getSelectedFile() + ": " + ex.getMessage(),
+                    "Statistics log", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
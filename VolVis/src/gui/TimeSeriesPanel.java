@@ -0,0 +1,145 @@
+package gui;
+
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import volume.TimeSeries;
+import volume.TimeSeriesPlayer;
+import volvis.RaycastRenderer;
+import volvis.Visualization;
+
+/**
+ * Plays a {@link TimeSeries} in a {@link RaycastRenderer}: a play button
+ * that loops through the timesteps and a slider to pick one. A timestep is
+ * shown once its {@link TimeSeriesPlayer} has decoded it, so playback waits
+ * for slow timesteps instead of blocking the event dispatch thread.
+ *
+ * The playback rate is set with the system property volvis.timeseries.fps
+ * (default 10).
+ */
+public class TimeSeriesPanel extends JPanel {
+
+    private static final int FRAMES_PER_SECOND = Math.max(1, Integer.getInteger("volvis.timeseries.fps", 10));
+
+    private final TimeSeriesPlayer player;
+    private final RaycastRenderer renderer;
+    private final Visualization visualization;
+    private final JButton playButton = new JButton("Play");
+    private final JSlider slider;
+    private final JLabel timestepLabel = new JLabel();
+    private final Timer timer;
+    private boolean playing = false;
+    /**
+     * Timestep the renderer shows, and the one to show next.
+     */
+    private int shown = 0, requested = 0;
+
+    /**
+     * @param player Player of the series, at the timestep the renderer
+     * shows.
+     * @param renderer The renderer.
+     * @param visualization Repaints the renderer.
+     */
+    public TimeSeriesPanel(TimeSeriesPlayer player, RaycastRenderer renderer, Visualization visualization) {
+        this.player = player;
+        this.renderer = renderer;
+        this.visualization = visualization;
+        shown = requested = player.getTimestep();
+        int count = player.getSeries().getTimestepCount();
+
+        timer = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                tick();
+            }
+        });
+        playButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setPlaying(!playing);
+            }
+        });
+        slider = new JSlider(0, count - 1, shown);
+        slider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (!playing && slider.getValue() != requested) {
+                    request(slider.getValue());
+                }
+            }
+        });
+        updateLabel();
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(playButton);
+        controls.add(timestepLabel);
+        TimeSeries series = player.getSeries();
+        JLabel info = new JLabel(String.format("%d timesteps, %d bricks shared, %.1f MB", count,
+                series.getSharedBrickCount(), series.getStoredBytes() / 1048576.0));
+
+        JPanel content = new JPanel(new BorderLayout(0, 8));
+        content.setBorder(BorderFactory.createEmptyBorder(12, 12, 12, 12));
+        content.add(controls, BorderLayout.NORTH);
+        content.add(slider, BorderLayout.CENTER);
+        content.add(info, BorderLayout.SOUTH);
+        setLayout(new BorderLayout());
+        add(content, BorderLayout.NORTH);
+    }
+
+    private void setPlaying(boolean play) {
+        playing = play;
+        playButton.setText(play ? "Pause" : "Play");
+        if (play) {
+            request(player.getNextTimestep());
+        }
+    }
+
+    /**
+     * Asks the player for a timestep and polls until it is decoded.
+     */
+    private void request(int t) {
+        requested = t;
+        player.setTimestep(t);
+        timer.start();
+    }
+
+    private void tick() {
+        TimeSeriesPlayer.Timestep timestep = player.poll(requested);
+        if (timestep == null) {
+            return;
+        }
+        renderer.setTimestep(timestep.getVolume(), timestep.getGradients(),
+                player.getSeries().getChangedBricks(shown, requested), TimeSeries.BRICK_SIZE);
+        shown = requested;
+        slider.setValue(shown);
+        updateLabel();
+        visualization.update();
+        if (playing) {
+            request(player.getNextTimestep());
+        } else {
+            timer.stop();
+        }
+    }
+
+    private void updateLabel() {
+        timestepLabel.setText("Timestep " + (shown + 1) + " of " + player.getSeries().getTimestepCount());
+    }
+
+    /**
+     * Stops playback and drops the decoded timesteps.
+     */
+    public void close() {
+        timer.stop();
+        playing = false;
+        player.close();
+    }
+}
@@ -13,8 +13,8 @@ import java.util.ArrayList;
 import javax.swing.JColorChooser;
 import util.TFChangeListener;
 import volume.GradientVolume;
+import volume.Histogram2D;
 import volume.Volume;
-import volume.VoxelGradient;
 import volvis.TFColor;
 import volvis.TransferFunction2D;
 
@@ -31,8 +31,8 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
     public TransferFunction2D tf2D;
     private TransferFunction2DView tfView;
     public int xbins, ybins;
-    public double[] histogram;
-    private short maxIntensity;
+    public Histogram2D histogram;
+    private int maxIntensity;
     public double maxGradientMagnitude;
     private ArrayList<TFChangeListener> listeners = new ArrayList<TFChangeListener>();
 
@@ -54,7 +54,7 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
 
         // The initialization of the widget is at the center of the histogram and 20% of the intensity range
         this.tf2D = tf2D;
-        tf2D.SetBaseRadius((short) (maxIntensity / 2), 0.2*maxIntensity);
+        tf2D.SetBaseRadius(maxIntensity / 2, 0.2*maxIntensity);
         
         setSelectedInfo();
     }
@@ -79,17 +79,10 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
         System.out.println("maxIntensity = " + maxIntensity);
         System.out.println("max gradient = " + maxGradientMagnitude);
 
-        xbins = maxIntensity + 1;
-        ybins = 300;
-
-        histogram = new double[xbins * ybins];
-        int volumeSize = vol.getDimX() * vol.getDimY() * vol.getDimZ();
-        for (int i = 0; i < volumeSize; i++) {
-            short voxelVal = vol.getVoxel(i);
-            VoxelGradient grad = gradvol.getVoxel(i);
-            int yPos = (int) Math.floor(((ybins - 1) * grad.mag) / maxGradientMagnitude);
-            histogram[yPos * xbins + voxelVal] += 1;
-        }
+        // shared by the editors of a volume
+        histogram = gradvol.get2DHistogram();
+        xbins = histogram.getValueBins();
+        ybins = histogram.getMagnitudeBins();
     }
 
     public void setSelectedInfo() {
@@ -97,10 +90,11 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
         radiusLabel.setText(String.format("%.3f", triangleWidget.radius));
         opacityLabel.setText(String.format("%.1f", triangleWidget.color.a));
         colorButton.setBackground(new Color((float) triangleWidget.color.r, (float) triangleWidget.color.g, (float) triangleWidget.color.b));*/
-        intensityLabel.setText(Integer.toString(tf2D.baseIntensity));
-        radiusLabel.setText(String.format("%.3f", tf2D.radius));
-        opacityLabel.setText(String.format("%.1f", tf2D.color.a));
-        colorButton.setBackground(new Color((float) tf2D.color.r, (float) tf2D.color.g, (float) tf2D.color.b));
+        TransferFunction2D.TriangleWidget widget = tf2D.getSelectedWidget();
+        intensityLabel.setText(Integer.toString(widget.baseIntensity));
+        radiusLabel.setText(String.format("%.3f", widget.radius));
+        opacityLabel.setText(String.format("%.1f", widget.color.a));
+        colorButton.setBackground(new Color((float) widget.color.r, (float) widget.color.g, (float) widget.color.b));
     }
 
     /**
@@ -274,16 +268,18 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
         Color newColor = JColorChooser.showDialog(this, "Choose color", colorButton.getBackground());
         if (newColor != null) {
             colorButton.setBackground(newColor);
-            tf2D.color.r = newColor.getRed() / 255.0;
-            tf2D.color.g = newColor.getGreen() / 255.0;
-            tf2D.color.b = newColor.getBlue() / 255.0;
+            TFColor color = tf2D.getSelectedWidget().color;
+            color.r = newColor.getRed() / 255.0;
+            color.g = newColor.getGreen() / 255.0;
+            color.b = newColor.getBlue() / 255.0;
             
             changed();
         }
     }//GEN-LAST:event_colorButtonActionPerformed
 
     private void opacityLabelActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_opacityLabelActionPerformed
-       try {
+        TFColor color = tf2D.getSelectedWidget().color;
+        try {
             double value = Double.parseDouble(opacityLabel.getText());
             if (value < 0) {
                 value = 0;
@@ -291,28 +287,14 @@ public class TransferFunction2DEditor extends javax.swing.JPanel {
             if (value > 1.0) {
                 value = 1.0;
             }
-            tf2D.color.a = value;
+            color.a = value;
         } catch (NumberFormatException e) {
-            tf2D.color.a = 0.2;
+            color.a = 0.2;
         }
         setSelectedInfo();
         changed();
     }//GEN-LAST:event_opacityLabelActionPerformed
 
-    public class TriangleWidget {
-
-        public short baseIntensity;
-        public double radius;
-        public TFColor color;
-        
-
-        public TriangleWidget(short base, double r) {
-            this.baseIntensity = base;
-            this.radius = r;
-            this.color = new TFColor(0.0, 204.0/255.0, 153.0/255.0, 0.3);
-        }
-    }
-
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JButton colorButton;
     private javax.swing.JTextField intensityLabel;
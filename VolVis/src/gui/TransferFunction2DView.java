@@ -17,6 +17,8 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Rectangle2D;
+import java.util.List;
+import javax.swing.SwingUtilities;
 import volvis.TransferFunction2D;
 
 /**
@@ -32,6 +34,11 @@ public class TransferFunction2DView extends javax.swing.JPanel {
     TransferFunction2DEditor ed;
     private final int DOTSIZE = 8;
     public Ellipse2D.Double baseControlPoint, radiusControlPoint;
+    /**
+     * Base control points of all widgets, in the order of the transfer
+     * function.
+     */
+    private Ellipse2D.Double[] baseControlPoints = new Ellipse2D.Double[0];
     boolean selectedBaseControlPoint, selectedRadiusControlPoint;
     
     
@@ -47,6 +54,7 @@ public class TransferFunction2DView extends javax.swing.JPanel {
         selectedRadiusControlPoint = false;
         addMouseMotionListener(new TriangleWidgetHandler());
         addMouseListener(new SelectionHandler());
+        setToolTipText("Double-click to add a widget, right-click its base to remove it");
     }
     
     @Override
@@ -59,10 +67,7 @@ public class TransferFunction2DView extends javax.swing.JPanel {
         g2.setColor(Color.white);
         g2.fillRect(0, 0, w, h);
         
-        double maxHistoMagnitude = ed.histogram[0];
-        for (int i = 0; i < ed.histogram.length; i++) {
-            maxHistoMagnitude = ed.histogram[i] > maxHistoMagnitude ? ed.histogram[i] : maxHistoMagnitude;
-        }
+        double maxHistoMagnitude = ed.histogram.getMaxCount();
         
         double binWidth = (double) w / (double) ed.xbins;
         double binHeight = (double) h / (double) ed.ybins;
@@ -71,31 +76,73 @@ public class TransferFunction2DView extends javax.swing.JPanel {
         
         for (int y = 0; y < ed.ybins; y++) {
             for (int x = 0; x < ed.xbins; x++) {
-                if (ed.histogram[y * ed.xbins + x] > 0) {
-                    int intensity = (int) Math.floor(255 * (1.0 - Math.log(ed.histogram[y * ed.xbins + x]) / maxHistoMagnitude));
+                int count = ed.histogram.getCount(x, y);
+                if (count > 0) {
+                    int intensity = (int) Math.floor(255 * (1.0 - Math.log(count) / maxHistoMagnitude));
                     g2.setColor(new Color(intensity, intensity, intensity));
                     g2.fill(new Rectangle2D.Double(x * binWidth, h - (y * binHeight), binWidth, binHeight));
                 }
             }
         }
         
-        int ypos = h;
-        int xpos = (int) (ed.tf2D.baseIntensity * binWidth);
+        // the widgets are in voxel values, which need not be one per bin;
+        // the selected one is drawn last, in black, with its control points
+        double valueWidth = valueWidth();
+        List<TransferFunction2D.TriangleWidget> widgets = ed.tf2D.getWidgets();
+        int selected = ed.tf2D.getSelectedIndex();
+        baseControlPoints = new Ellipse2D.Double[widgets.size()];
+        for (int k = 0; k < widgets.size(); k++) {
+            TransferFunction2D.TriangleWidget widget = widgets.get(k);
+            int xpos = (int) (widget.baseIntensity * valueWidth);
+            baseControlPoints[k] = new Ellipse2D.Double(xpos - DOTSIZE / 2, h - DOTSIZE, DOTSIZE, DOTSIZE);
+            if (k != selected) {
+                g2.setColor(new Color((float) widget.color.r, (float) widget.color.g, (float) widget.color.b));
+                drawWidget(g2, widget, valueWidth, h);
+                g2.fill(baseControlPoints[k]);
+            }
+        }
+        TransferFunction2D.TriangleWidget widget = widgets.get(selected);
         g2.setColor(Color.black);
-        baseControlPoint = new Ellipse2D.Double(xpos - DOTSIZE / 2, ypos - DOTSIZE, DOTSIZE, DOTSIZE);
+        drawWidget(g2, widget, valueWidth, h);
+        baseControlPoint = baseControlPoints[selected];
         g2.fill(baseControlPoint);
-        g2.drawLine(xpos, ypos, xpos - (int) (ed.tf2D.radius * binWidth ), 0);
-        g2.drawLine(xpos, ypos, xpos + (int) (ed.tf2D.radius * binWidth ), 0);
-        radiusControlPoint = new Ellipse2D.Double(xpos + (ed.tf2D.radius * binWidth ) - DOTSIZE / 2,  0, DOTSIZE, DOTSIZE);
+        int xpos = (int) (widget.baseIntensity * valueWidth);
+        radiusControlPoint = new Ellipse2D.Double(xpos + (widget.radius * valueWidth ) - DOTSIZE / 2,  0, DOTSIZE, DOTSIZE);
         g2.fill(radiusControlPoint);
     }
+
+    private void drawWidget(Graphics2D g2, TransferFunction2D.TriangleWidget widget, double valueWidth, int h) {
+        int xpos = (int) (widget.baseIntensity * valueWidth);
+        g2.drawLine(xpos, h, xpos - (int) (widget.radius * valueWidth ), 0);
+        g2.drawLine(xpos, h, xpos + (int) (widget.radius * valueWidth ), 0);
+    }
+
+    /**
+     * @return Index of the widget whose base control point is at a point,
+     * or -1.
+     */
+    private int widgetAt(Point p) {
+        for (int w = baseControlPoints.length - 1; w >= 0; w--) {
+            if (baseControlPoints[w].contains(p)) {
+                return w;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Width of one voxel value in pixels.
+     */
+    private double valueWidth() {
+        return (double) getWidth() / (ed.histogram.getMaxValue() + 1);
+    }
     
     
     private class TriangleWidgetHandler extends MouseMotionAdapter {
 
         @Override
         public void mouseMoved(MouseEvent e) {
-            if (baseControlPoint.contains(e.getPoint()) || radiusControlPoint.contains(e.getPoint())) {
+            if (widgetAt(e.getPoint()) >= 0 || radiusControlPoint.contains(e.getPoint())) {
                 setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
             } else {
                 setCursor(Cursor.getDefaultCursor());
@@ -123,13 +170,12 @@ public class TransferFunction2DView extends javax.swing.JPanel {
                 if (dragEnd.x >= getWidth()) {
                     dragEnd.x = getWidth() - 1;
                 }
-                double w = getWidth();
-                double h = getHeight();
-                double binWidth = (double) w / (double) ed.xbins;
+                double valueWidth = valueWidth();
+                TransferFunction2D.TriangleWidget widget = ed.tf2D.getSelectedWidget();
                 if (selectedBaseControlPoint) {
-                    ed.tf2D.baseIntensity = (short) (dragEnd.x / binWidth);
+                    widget.baseIntensity = (int) (dragEnd.x / valueWidth);
                 } else if (selectedRadiusControlPoint) {
-                    ed.tf2D.radius = (dragEnd.x - (ed.tf2D.baseIntensity * binWidth))/binWidth;
+                    widget.radius = (dragEnd.x - (widget.baseIntensity * valueWidth))/valueWidth;
                 }
                 ed.setSelectedInfo();
                 
@@ -143,14 +189,26 @@ public class TransferFunction2DView extends javax.swing.JPanel {
     private class SelectionHandler extends MouseAdapter {
         @Override
         public void mousePressed(MouseEvent e) {
-            if (baseControlPoint.contains(e.getPoint())) {
-                selectedBaseControlPoint = true;
+            selectedRadiusControlPoint = false;
+            selectedBaseControlPoint = false;
+            int widget = widgetAt(e.getPoint());
+            if (SwingUtilities.isRightMouseButton(e)) {
+                if (widget >= 0 && ed.tf2D.removeWidget(widget)) {
+                    ed.setSelectedInfo();
+                }
             } else if (radiusControlPoint.contains(e.getPoint())) {
                 selectedRadiusControlPoint = true;
-            } else {
-                selectedRadiusControlPoint = false;
-                selectedBaseControlPoint = false;
+            } else if (widget >= 0) {
+                // picks another widget, or drags the selected one
+                ed.tf2D.setSelectedIndex(widget);
+                ed.setSelectedInfo();
+                selectedBaseControlPoint = true;
+            } else if (e.getClickCount() == 2) {
+                // a new widget as wide as the selected one
+                ed.tf2D.addWidget((int) (e.getX() / valueWidth()), ed.tf2D.getSelectedWidget().radius);
+                ed.setSelectedInfo();
             }
+            repaint();
         }
         
         @Override
@@ -7,10 +7,30 @@ package gui;
 
 import com.jogamp.opengl.awt.GLJPanel;
 import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileFilter;
+import volume.BrickedVolume;
+import volume.CompressedVolume;
+import volume.Float32Volume;
+import volume.GradientVolume;
+import volume.TimeSeries;
+import volume.TimeSeriesPlayer;
 import volume.Volume;
+import volume.VolumeIO;
+import volume.VolumeLoader;
+import volume.VolumePyramid;
+import volume.VolumeStatistics;
 import volvis.RaycastMode;
 import volvis.RaycastRenderer;
 import volvis.Visualization;
@@ -24,6 +44,8 @@ public class VolVisApplication extends javax.swing.JFrame {
     Visualization visualization;
     Volume volume;
     RaycastRenderer raycastRenderer;
+    TimeSeriesPanel timeSeriesPanel;
+    CropPanel cropPanel;
 
     /**
      * Creates new form VolVisApplication
@@ -44,6 +66,8 @@ public class VolVisApplication extends javax.swing.JFrame {
         visualization.addRenderer(raycastRenderer);
         raycastRenderer.addTFChangeListener(visualization);
         tabbedPanel.addTab("Raycaster", raycastRenderer.getPanel());
+        tabbedPanel.addTab("Statistics", new RenderStatisticsPanel(raycastRenderer));
+        tabbedPanel.addTab("Lighting", new LightingPanel(raycastRenderer));
     }
 
     /**
@@ -136,12 +160,16 @@ public class VolVisApplication extends javax.swing.JFrame {
 
     private void loadButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_loadButtonActionPerformed
         JFileChooser fc = new JFileChooser();
+        // a directory of DICOM slices is opened as a volume
+        fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        // several files are opened as the timesteps of a series
+        fc.setMultiSelectionEnabled(true);
         fc.setFileFilter(new FileFilter() {
 
             @Override
             public boolean accept(File f) {
                 if (f.isFile()) {
-                    if (f.getName().toLowerCase().endsWith(".fld")) {
+                    if (VolumeIO.isVolumeFile(f) || BrickedVolume.isBrickFile(f)) {
                         return true;
                     }
                 }
@@ -153,33 +181,253 @@ public class VolVisApplication extends javax.swing.JFrame {
 
             @Override
             public String getDescription() {
-                return "AVS files";
+                return "AVS, MetaImage, NRRD and brick files, DICOM directories";
             }
         });
         int returnVal = fc.showOpenDialog(this);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            File file = fc.getSelectedFile();
-            volume = new Volume(file);
-
-            String infoText = new String("Volume data info:\n");
-            infoText = infoText.concat(file.getName() + "\n");
-            infoText = infoText.concat("dimensions:\t\t" + volume.getDimX() + " x " + volume.getDimY() + " x " + volume.getDimZ() + "\n");
-            infoText = infoText.concat("voxel value range:\t" + volume.getMinimum() + " - " + volume.getMaximum());
-            infoTextPane.setText(infoText);
-            tabbedPanel.remove(raycastRenderer.getTFPanel());
-            tabbedPanel.remove(raycastRenderer.getTF2DPanel());
-            tabbedPanel.remove(raycastRenderer.getTFPanelBack());
-            tabbedPanel.remove(raycastRenderer.getTF2DPanelBack());
-            raycastRenderer.setVolume(volume);
-            tabbedPanel.addTab("Front Transfer Function", raycastRenderer.getTFPanel());
-            tabbedPanel.addTab("Front 2D Transfer Function", raycastRenderer.getTF2DPanel());
-            tabbedPanel.addTab("Back Transfer Function", raycastRenderer.getTFPanelBack());
-            tabbedPanel.addTab("Back 2D Transfer Function", raycastRenderer.getTF2DPanelBack());
-            
-            visualization.update();
+            File[] files = fc.getSelectedFiles();
+            if (files.length == 0) {
+                files = new File[]{fc.getSelectedFile()};
+            }
+            // timesteps are played in the order of their names
+            Arrays.sort(files);
+            startLoading(Arrays.asList(files));
         }
     }//GEN-LAST:event_loadButtonActionPerformed
 
+    /**
+     * Loads a volume on a background thread. A progress dialog allows to
+     * cancel, and the render view shows the slabs that are already loaded.
+     *
+     * @param files The volume file to load, or the files of the timesteps
+     * of a series.
+     */
+    private void startLoading(List<File> files) {
+        File file = files.get(0);
+        loadButton.setEnabled(false);
+        infoTextPane.setText("Loading " + file.getName() + "...");
+
+        final ProgressMonitor monitor = new ProgressMonitor(this, "Loading " + file.getName(), "", 0, 100);
+        monitor.setMillisToDecideToPopup(200);
+        final LoadWorker worker = new LoadWorker(files, monitor);
+
+        // the monitor has no cancel event, so it is polled
+        final Timer cancelPoll = new Timer(100, null);
+        cancelPoll.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (worker.isDone()) {
+                    cancelPoll.stop();
+                } else if (monitor.isCanceled()) {
+                    worker.loader.cancel();
+                    cancelPoll.stop();
+                }
+            }
+        });
+        cancelPoll.start();
+        worker.execute();
+    }
+
+    /**
+     * Shows a loaded volume and the editors of its transfer functions, and
+     * the playback controls if it is the first timestep of a series.
+     */
+    private void showVolume(File file, Volume vol, GradientVolume gradients, VolumePyramid pyramid,
+            TimeSeries series) {
+        if (volume instanceof BrickedVolume && volume != vol) {
+            ((BrickedVolume) volume).close();
+        } else if (volume instanceof CompressedVolume && volume != vol) {
+            ((CompressedVolume) volume).close();
+        }
+        volume = vol;
+        String infoText = new String("Volume data info:\n");
+        infoText = infoText.concat(file.getName() + "\n");
+        infoText = infoText.concat("dimensions:\t\t" + volume.getDimX() + " x " + volume.getDimY() + " x " + volume.getDimZ() + "\n");
+        VolumeStatistics statistics = volume.getStatistics();
+        infoText = infoText.concat("voxel type:\t\t" + volume.getType() + "\n");
+        infoText = infoText.concat("voxel value range:\t" + statistics.getMinimum() + " - " + statistics.getMaximum() + "\n");
+        if (volume instanceof Float32Volume) {
+            Float32Volume floats = (Float32Volume) volume;
+            infoText = infoText.concat(String.format("float range:\t\t%g - %g\n",
+                    floats.toValue(statistics.getMinimum()), floats.toValue(statistics.getMaximum())));
+        }
+        infoText = infoText.concat(String.format("mean, std. dev.:\t%.1f, %.1f", statistics.getMean(),
+                statistics.getStandardDeviation()));
+        if (series != null) {
+            infoText = infoText.concat("\ntimesteps:\t\t" + series.getTimestepCount());
+        }
+        infoTextPane.setText(infoText);
+        if (cropPanel != null) {
+            tabbedPanel.remove(cropPanel);
+        }
+        if (timeSeriesPanel != null) {
+            timeSeriesPanel.close();
+            tabbedPanel.remove(timeSeriesPanel);
+            timeSeriesPanel = null;
+        }
+        tabbedPanel.remove(raycastRenderer.getTFPanel());
+        tabbedPanel.remove(raycastRenderer.getTF2DPanel());
+        tabbedPanel.remove(raycastRenderer.getTFPanelBack());
+        tabbedPanel.remove(raycastRenderer.getTF2DPanelBack());
+        if (series != null) {
+            // the transfer functions cover the values of every timestep
+            raycastRenderer.setVolume(volume, gradients, series.getMinimum(), series.getMaximum());
+        } else {
+            raycastRenderer.setVolume(volume, gradients);
+        }
+        raycastRenderer.setPyramid(pyramid);
+        tabbedPanel.addTab("Front Transfer Function", raycastRenderer.getTFPanel());
+        tabbedPanel.addTab("Front 2D Transfer Function", raycastRenderer.getTF2DPanel());
+        tabbedPanel.addTab("Back Transfer Function", raycastRenderer.getTFPanelBack());
+        tabbedPanel.addTab("Back 2D Transfer Function", raycastRenderer.getTF2DPanelBack());
+        cropPanel = new CropPanel(raycastRenderer, volume, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                extractBox(file, cropPanel.getBox());
+            }
+        });
+        tabbedPanel.addTab("Crop", cropPanel);
+        if (series != null) {
+            timeSeriesPanel = new TimeSeriesPanel(new TimeSeriesPlayer(series), raycastRenderer, visualization);
+            tabbedPanel.addTab("Time Series", timeSeriesPanel);
+        }
+
+        visualization.update();
+    }
+
+    /**
+     * Copies a box of the volume into a volume of its own on a background
+     * thread, computes its gradients and levels of detail and shows it in
+     * place of the volume.
+     *
+     * @param file File the volume was loaded from.
+     * @param box First voxel and the voxel after the last one along x, y and
+     * z.
+     */
+    private void extractBox(final File file, final int[] box) {
+        final Volume source = volume;
+        loadButton.setEnabled(false);
+        infoTextPane.setText("Extracting " + (box[3] - box[0]) + " x " + (box[4] - box[1]) + " x "
+                + (box[5] - box[2]) + " voxels of " + file.getName() + "...");
+        new SwingWorker<Object[], Void>() {
+            @Override
+            protected Object[] doInBackground() {
+                Volume cropped = source.crop(box[0], box[1], box[2], box[3], box[4], box[5]);
+                GradientVolume gradients = GradientVolume.create(cropped);
+                return new Object[]{cropped, gradients, new VolumePyramid(cropped, gradients)};
+            }
+
+            @Override
+            protected void done() {
+                loadButton.setEnabled(true);
+                try {
+                    Object[] result = get();
+                    showVolume(file, (Volume) result[0], (GradientVolume) result[1], (VolumePyramid) result[2],
+                            null);
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.out.println("Cannot extract the box: " + ex.getMessage());
+                    infoTextPane.setText("Extracting the box of " + file.getName() + " failed");
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Runs a {@link VolumeLoader}. The partially loaded volume is published
+     * once for the preview; after that every progress update repaints it.
+     */
+    private class LoadWorker extends SwingWorker<Void, Volume> {
+
+        /**
+         * Minimum time between two repaints of the preview in ms.
+         */
+        private static final long PREVIEW_INTERVAL = 250;
+
+        final VolumeLoader loader;
+        private final File file;
+        private final ProgressMonitor monitor;
+        private volatile String stage = "";
+        private long lastRepaint = 0;
+
+        LoadWorker(List<File> files, ProgressMonitor monitor) {
+            this.file = files.get(0);
+            this.monitor = monitor;
+            loader = new VolumeLoader(files);
+            addPropertyChangeListener(new java.beans.PropertyChangeListener() {
+                @Override
+                public void propertyChange(java.beans.PropertyChangeEvent evt) {
+                    if ("progress".equals(evt.getPropertyName())) {
+                        LoadWorker.this.monitor.setProgress((Integer) evt.getNewValue());
+                        LoadWorker.this.monitor.setNote(stage);
+                        // the preview is rendered on this thread, so not too often
+                        long now = System.currentTimeMillis();
+                        if (getState() != StateValue.DONE && now - lastRepaint >= PREVIEW_INTERVAL) {
+                            lastRepaint = now;
+                            visualization.update();
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected Void doInBackground() throws Exception {
+            loader.load(new VolumeLoader.Listener() {
+                @Override
+                public void volumeAvailable(Volume volume) {
+                    publish(volume);
+                }
+
+                @Override
+                public void progress(String description, double fraction) {
+                    stage = description;
+                    setProgress((int) Math.round(100 * Math.min(1, fraction)));
+                }
+            });
+            return null;
+        }
+
+        @Override
+        protected void process(List<Volume> chunks) {
+            // chunks may arrive after the load finished, when done() shows the volume
+            if (!isDone()) {
+                raycastRenderer.setPreviewVolume(chunks.get(chunks.size() - 1));
+                visualization.update();
+            }
+        }
+
+        @Override
+        protected void done() {
+            monitor.close();
+            loadButton.setEnabled(true);
+            try {
+                get();
+                showVolume(file, loader.getVolume(), loader.getGradients(), loader.getPyramid(),
+                        loader.getTimeSeries());
+            } catch (InterruptedException ex) {
+                cancelled();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof InterruptedIOException) {
+                    cancelled();
+                    return;
+                }
+                raycastRenderer.endPreview();
+                visualization.update();
+                infoTextPane.setText("Loading " + file.getName() + " failed");
+                System.out.println("IO exception: " + ex.getCause().getMessage());
+                JOptionPane.showMessageDialog(VolVisApplication.this, "Cannot load " + file.getName() + ":\n"
+                        + ex.getCause().getMessage(), "Load volume", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+
+        private void cancelled() {
+            raycastRenderer.endPreview();
+            visualization.update();
+            infoTextPane.setText("Loading " + file.getName() + " cancelled");
+        }
+    }
+
     /**
      * @param args the command line arguments
      */
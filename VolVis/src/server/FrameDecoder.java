@@ -0,0 +1,130 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Client side of {@link FrameEncoder}. Rebuilds the frames from their tiles
+ * and keeps the last few decoded frames, since the server may use any frame
+ * that was acknowledged as reference.
+ */
+public class FrameDecoder {
+
+    /**
+     * Number of decoded frames kept as possible references.
+     */
+    private static final int HISTORY = 8;
+
+    private final LinkedHashMap<Integer, int[]> frames = new LinkedHashMap<Integer, int[]>();
+    private int width, height;
+
+    /**
+     * Reads and decodes one frame written by
+     * {@link FrameEncoder.EncodedFrame#writeTo(java.io.DataOutputStream)}.
+     *
+     * @param in Input stream.
+     * @return Number of the decoded frame. The client should acknowledge it.
+     * @throws IOException On read errors or if the reference frame is unknown.
+     */
+    public int read(DataInputStream in) throws IOException {
+        int frameNr = in.readInt();
+        int referenceNr = in.readInt();
+        width = in.readInt();
+        height = in.readInt();
+        int tileSize = in.readInt();
+        in.readInt(); // mask, only informative
+        int nrTiles = in.readInt();
+
+        int[] pixels;
+        if (referenceNr < 0) {
+            pixels = new int[width * height];
+        } else {
+            int[] ref = frames.get(referenceNr);
+            if (ref == null || ref.length != width * height) {
+                throw new IOException("Unknown reference frame " + referenceNr);
+            }
+            pixels = ref.clone();
+        }
+
+        int tilesX = (width + tileSize - 1) / tileSize;
+        Inflater inflater = new Inflater();
+        try {
+            for (int t = 0; t < nrTiles; t++) {
+                int index = in.readInt();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                decodeTile(inflater, data, pixels, (index % tilesX) * tileSize, (index / tilesX) * tileSize, tileSize);
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt tile data", ex);
+        } finally {
+            inflater.end();
+        }
+
+        frames.put(frameNr, pixels);
+        if (frames.size() > HISTORY) {
+            frames.remove(frames.keySet().iterator().next());
+        }
+        return frameNr;
+    }
+
+    /**
+     * @param frameNr A decoded frame.
+     * @return Its ARGB pixels, row by row, or null if it is not kept anymore.
+     */
+    public int[] getPixels(int frameNr) {
+        return frames.get(frameNr);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private void decodeTile(Inflater inflater, byte[] data, int[] pixels, int x0, int y0, int tileSize)
+            throws DataFormatException {
+        int x1 = Math.min(x0 + tileSize, width);
+        int y1 = Math.min(y0 + tileSize, height);
+        int tileWidth = x1 - x0;
+        int count = tileWidth * (y1 - y0);
+
+        // at most 5 bytes of run length and 4 bytes of value per pixel
+        byte[] raw = new byte[count * 9];
+        inflater.reset();
+        inflater.setInput(data);
+        int length = 0;
+        while (!inflater.finished() && length < raw.length) {
+            int n = inflater.inflate(raw, length, raw.length - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Truncated tile");
+            }
+            length += n;
+        }
+
+        int pos = 0;
+        int n = 0;
+        while (pos < length && n < count) {
+            int run = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = raw[pos++] & 0xFF;
+                run |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            int value = ((raw[pos] & 0xFF) << 24) | ((raw[pos + 1] & 0xFF) << 16)
+                    | ((raw[pos + 2] & 0xFF) << 8) | (raw[pos + 3] & 0xFF);
+            pos += 4;
+            for (int k = 0; k < run && n < count; k++, n++) {
+                int i = (x0 + n % tileWidth) + (y0 + n / tileWidth) * width;
+                pixels[i] ^= value;
+            }
+        }
+    }
+}
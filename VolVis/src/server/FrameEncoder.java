@@ -0,0 +1,284 @@
+package server;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes the frames of one session as tile deltas.
+ *
+ * The image is split into square tiles. Only tiles that differ from the last
+ * frame the client acknowledged are sent. A sent tile holds the XOR of its
+ * pixels with the reference pixels, which is zero wherever nothing changed,
+ * run-length encoded and then deflated. While the user interacts the color
+ * channels are quantized to fewer bits, which makes runs longer; once the
+ * view is idle the next frame restores full quality. Tiles are encoded in
+ * parallel.
+ *
+ * Frames are decoded with {@link FrameDecoder}.
+ */
+public class FrameEncoder {
+
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    /**
+     * Pixel mask used while interacting: alpha is kept, every color channel
+     * keeps its 4 most significant bits.
+     */
+    public static final int INTERACTIVE_MASK = 0xFFF0F0F0;
+
+    /**
+     * Pixel mask for lossless frames.
+     */
+    public static final int LOSSLESS_MASK = 0xFFFFFFFF;
+
+    /**
+     * Maximum number of frames kept while waiting for their acknowledgment.
+     */
+    private static final int MAX_UNACKED = 4;
+
+    private final int tileSize;
+    private boolean interactive = false;
+    private int frameNr = 0;
+
+    /**
+     * Frames sent but not acknowledged yet, oldest first. The pixels are
+     * stored as the client reconstructs them, i.e. already quantized.
+     */
+    private final LinkedHashMap<Integer, int[]> unacked = new LinkedHashMap<Integer, int[]>();
+
+    /**
+     * Last acknowledged frame and its number, -1 if there is none.
+     */
+    private int[] reference = null;
+    private int referenceNr = -1;
+
+    public FrameEncoder() {
+        this(DEFAULT_TILE_SIZE);
+    }
+
+    public FrameEncoder(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Lowers the quality during interaction and restores it afterwards.
+     *
+     * @param flag True while the user interacts.
+     */
+    public synchronized void setInteractive(boolean flag) {
+        interactive = flag;
+    }
+
+    /**
+     * Marks a frame as received by the client, so it can be used as the
+     * reference of the following frames. Older frames are dropped.
+     *
+     * @param nr Number of the received frame.
+     */
+    public synchronized void acknowledge(int nr) {
+        int[] pixels = unacked.get(nr);
+        if (pixels == null) {
+            return;
+        }
+        Iterator<Map.Entry<Integer, int[]>> it = unacked.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, int[]> entry = it.next();
+            it.remove();
+            if (entry.getKey() == nr) {
+                break;
+            }
+        }
+        reference = pixels;
+        referenceNr = nr;
+    }
+
+    /**
+     * Encodes an image as a delta to the last acknowledged frame. The image is
+     * not kept, so the caller may reuse it.
+     *
+     * @param image Rendered image of type TYPE_INT_ARGB.
+     * @return The encoded frame.
+     */
+    public synchronized EncodedFrame encode(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int mask = interactive ? INTERACTIVE_MASK : LOSSLESS_MASK;
+
+        final int[] pixels = new int[width * height];
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            int[] source = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            System.arraycopy(source, 0, pixels, 0, pixels.length);
+        } else {
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= mask;
+        }
+
+        final int[] ref;
+        final int refNr;
+        if (reference != null && reference.length == pixels.length) {
+            ref = reference;
+            refNr = referenceNr;
+        } else {
+            ref = null;
+            refNr = -1;
+        }
+
+        final int tilesX = (width + tileSize - 1) / tileSize;
+        final int tilesY = (height + tileSize - 1) / tileSize;
+        final byte[][] tiles = new byte[tilesX * tilesY][];
+        IntStream.range(0, tiles.length).parallel().forEach(t -> {
+            tiles[t] = encodeTile(pixels, ref, width, height, (t % tilesX) * tileSize, (t / tilesX) * tileSize);
+        });
+
+        ArrayList<Integer> indices = new ArrayList<Integer>();
+        ArrayList<byte[]> data = new ArrayList<byte[]>();
+        for (int t = 0; t < tiles.length; t++) {
+            if (tiles[t] != null) {
+                indices.add(t);
+                data.add(tiles[t]);
+            }
+        }
+
+        frameNr++;
+        unacked.put(frameNr, pixels);
+        if (unacked.size() > MAX_UNACKED) {
+            unacked.remove(unacked.keySet().iterator().next());
+        }
+
+        return new EncodedFrame(frameNr, refNr, width, height, tileSize, mask, indices, data);
+    }
+
+    /**
+     * Encodes one tile.
+     *
+     * @return The deflated run-length encoded XOR residuals, or null if the
+     * tile equals the reference (or is all zero when there is none).
+     */
+    private byte[] encodeTile(int[] pixels, int[] ref, int width, int height, int x0, int y0) {
+        int x1 = Math.min(x0 + tileSize, width);
+        int y1 = Math.min(y0 + tileSize, height);
+        int[] residual = new int[(x1 - x0) * (y1 - y0)];
+        boolean changed = false;
+        int n = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int i = x + y * width;
+                int r = ref == null ? pixels[i] : pixels[i] ^ ref[i];
+                changed |= r != 0;
+                residual[n++] = r;
+            }
+        }
+        if (!changed) {
+            return null;
+        }
+
+        // run-length encoding: (run length as varint, value as 4 bytes)
+        ByteArrayOutputStream rle = new ByteArrayOutputStream(residual.length);
+        int i = 0;
+        while (i < residual.length) {
+            int value = residual[i];
+            int run = 1;
+            while (i + run < residual.length && residual[i + run] == value) {
+                run++;
+            }
+            writeVarInt(rle, run);
+            rle.write(value >>> 24);
+            rle.write(value >>> 16);
+            rle.write(value >>> 8);
+            rle.write(value);
+            i += run;
+        }
+
+        byte[] raw = rle.toByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(raw.length / 2 + 16);
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            packed.write(buffer, 0, count);
+        }
+        deflater.end();
+        return packed.toByteArray();
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * A frame encoded by {@link FrameEncoder}.
+     */
+    public static class EncodedFrame {
+
+        public final int frameNr;
+        /**
+         * Number of the frame the tiles are relative to, -1 for a key frame
+         * that only contains changed tiles relative to an all zero image.
+         */
+        public final int referenceNr;
+        public final int width, height, tileSize, mask;
+        public final ArrayList<Integer> tileIndices;
+        public final ArrayList<byte[]> tileData;
+
+        EncodedFrame(int frameNr, int referenceNr, int width, int height, int tileSize, int mask,
+                ArrayList<Integer> tileIndices, ArrayList<byte[]> tileData) {
+            this.frameNr = frameNr;
+            this.referenceNr = referenceNr;
+            this.width = width;
+            this.height = height;
+            this.tileSize = tileSize;
+            this.mask = mask;
+            this.tileIndices = tileIndices;
+            this.tileData = tileData;
+        }
+
+        /**
+         * @return Number of bytes written by {@link #writeTo(DataOutputStream)}.
+         */
+        public int getByteCount() {
+            int count = 6 * 4 + 4;
+            for (byte[] tile : tileData) {
+                count += 8 + tile.length;
+            }
+            return count;
+        }
+
+        /**
+         * Writes the frame without the leading message type.
+         *
+         * @param out Output stream.
+         * @throws IOException On write errors.
+         */
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(frameNr);
+            out.writeInt(referenceNr);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(tileSize);
+            out.writeInt(mask);
+            out.writeInt(tileIndices.size());
+            for (int t = 0; t < tileIndices.size(); t++) {
+                out.writeInt(tileIndices.get(t));
+                out.writeInt(tileData.get(t).length);
+                out.write(tileData.get(t));
+            }
+        }
+    }
+}
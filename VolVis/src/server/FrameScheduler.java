@@ -0,0 +1,100 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules frame renders of all sessions on a fixed pool of render threads.
+ *
+ * A session that wants a frame is put at the tail of a single FIFO queue, and
+ * it is in the queue at most once. A render thread takes the session at the
+ * head, renders exactly one frame for it and, if the session asked for
+ * another frame in the meantime, puts it back at the tail. Sessions are
+ * therefore served round-robin: a client that keeps requesting frames gets
+ * one frame per turn and cannot starve the others.
+ */
+public class FrameScheduler {
+
+    /**
+     * Sessions waiting for a render thread.
+     */
+    private final LinkedBlockingQueue<RenderSession> queue = new LinkedBlockingQueue<RenderSession>();
+
+    /**
+     * Render threads.
+     */
+    private final ExecutorService workers;
+
+    private volatile boolean running = true;
+
+    /**
+     * Creates the scheduler and starts the render threads.
+     *
+     * @param nrThreads Number of frames rendered concurrently.
+     */
+    public FrameScheduler(int nrThreads) {
+        workers = Executors.newFixedThreadPool(nrThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "render-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (int i = 0; i < nrThreads; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Asks for a frame for the given session. Requests made while the session
+     * is already waiting or rendering are merged into a single frame.
+     *
+     * @param session Session that wants a frame.
+     */
+    public void requestFrame(RenderSession session) {
+        if (session.markPending()) {
+            queue.add(session);
+        }
+    }
+
+    /**
+     * Stops the render threads. Frames being rendered are finished first.
+     */
+    public void shutdown() {
+        running = false;
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void work() {
+        while (running) {
+            RenderSession session;
+            try {
+                session = queue.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            // a session that requested a new frame while rendering goes
+            // back to the end of the queue, behind every other session
+            if (session.renderPendingFrame()) {
+                queue.add(session);
+            }
+        }
+    }
+}
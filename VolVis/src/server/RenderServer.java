@@ -0,0 +1,130 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import volume.BrickedVolume;
+import volume.GradientVolume;
+import volume.Volume;
+import volume.VolumePyramid;
+
+/**
+ * Long-lived render service on a local TCP port.
+ *
+ * The volume is loaded and its gradients and levels of detail are computed
+ * once; every connected
+ * viewer gets its own {@link RenderSession} that shares them. Connections are
+ * served by their own thread, while rendering happens on the fixed pool of
+ * the {@link FrameScheduler}, which hands out frames fairly across sessions.
+ */
+public class RenderServer {
+
+    private final Volume volume;
+    private final GradientVolume gradients;
+    private final VolumePyramid pyramid;
+    private final FrameScheduler scheduler;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final ConcurrentHashMap<Integer, RenderSession> sessions = new ConcurrentHashMap<Integer, RenderSession>();
+    private ServerSocket serverSocket;
+    private int nextId = 1;
+
+    /**
+     * Creates a server for the given volume.
+     *
+     * @param volume Volume shared by all sessions.
+     * @param nrRenderThreads Number of frames rendered concurrently.
+     */
+    public RenderServer(Volume volume, int nrRenderThreads) {
+        this.volume = volume;
+        System.out.println("Computing gradients");
+        this.gradients = GradientVolume.create(volume);
+        System.out.println("Building levels of detail");
+        this.pyramid = new VolumePyramid(volume, gradients);
+        this.scheduler = new FrameScheduler(nrRenderThreads);
+    }
+
+    /**
+     * Accepts connections on the loopback interface until {@link #stop()} is
+     * called.
+     *
+     * @param port Port to listen on.
+     * @throws IOException If the port cannot be opened.
+     */
+    public void serve(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.println("Render server listening on port " + serverSocket.getLocalPort());
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final RenderSession session = new RenderSession(nextId++, socket, volume, gradients, pyramid,
+                        scheduler);
+                sessions.put(session.getId(), session);
+                System.out.println("Session " + session.getId() + " opened");
+                connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            session.run();
+                        } finally {
+                            sessions.remove(session.getId());
+                        }
+                    }
+                });
+            }
+        } catch (IOException ex) {
+            if (!serverSocket.isClosed()) {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Closes the server socket and all sessions.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ex) {
+            System.out.println("Error closing server socket: " + ex.getMessage());
+        }
+        for (RenderSession session : sessions.values()) {
+            session.close();
+        }
+        connections.shutdownNow();
+        scheduler.shutdown();
+    }
+
+    /**
+     * Starts a render server.
+     *
+     * @param args volume file, port (default 7070) and number of render
+     * threads (default number of cores).
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: RenderServer <file.fld|file.bricks> [port] [render threads]");
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7070;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        File file = new File(args[0]);
+        Volume volume = BrickedVolume.isBrickFile(file) ? new BrickedVolume(file) : Volume.load(file);
+        final RenderServer server = new RenderServer(volume, threads);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop();
+            }
+        });
+        server.serve(port);
+    }
+}
@@ -0,0 +1,358 @@
+package server;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.ImageIO;
+import volume.GradientVolume;
+import volume.Volume;
+import volume.VolumePyramid;
+import volvis.RaycastMode;
+import volvis.RaycastRenderer;
+import volvis.TFColor;
+import volvis.TransferFunction;
+import volvis.TransferFunction2D;
+
+/**
+ * One viewer connected to the {@link RenderServer}.
+ *
+ * Every session owns a headless {@link RaycastRenderer} with its own transfer
+ * functions and settings, while the volume and its gradients are shared with
+ * all other sessions. Commands arrive as text lines, one per line:
+ *
+ * <pre>
+ * VIEW m0 .. m15                     view matrix (OpenGL, column-major)
+ * PLANE m0 .. m15                    cutting plane matrix
+ * MODE front [back]                  a {@link RaycastMode} name
+ * SHADING true|false
+ * OCCLUSION true|false               ambient occlusion of compositing
+ * CUTTING true|false
+ * INTERACTIVE true|false
+ * ISO front [back]                   iso values
+ * TF FRONT|BACK value r g b a        adds a control point
+ * TF2D FRONT|BACK base radius r g b a    sets the selected 2D widget
+ * TF2DADD FRONT|BACK base radius r g b a adds a 2D widget and selects it
+ * CLIP PLANE px py pz nx ny nz       keeps the side the normal points to
+ * CLIP BOX x0 y0 z0 x1 y1 z1         keeps the inside of the box
+ * CLIP NONE                          removes the clip planes and boxes
+ * ENCODING DELTA|PNG                 frame encoding, DELTA by default
+ * ACK frame                          a delta frame was decoded
+ * RENDER                             asks for a frame
+ * QUIT
+ * </pre>
+ *
+ * Commands are only queued by the connection thread. They are applied by the
+ * render thread right before it renders the next frame, so the renderer is
+ * never touched by two threads at once.
+ *
+ * Delta frames are answered as a byte 'D' followed by a
+ * {@link FrameEncoder.EncodedFrame}; the client decodes them with a
+ * {@link FrameDecoder} and acknowledges them, so later frames only carry the
+ * tiles that changed since. PNG frames are answered as a byte 'F' followed by
+ * the frame number, width, height, byte count and the PNG data. Errors are a
+ * byte 'E' followed by a UTF message.
+ */
+public class RenderSession implements Runnable {
+
+    private final int id;
+    private final Socket socket;
+    private final FrameScheduler scheduler;
+    private final RaycastRenderer renderer;
+    private final DataOutputStream out;
+    private final FrameEncoder encoder = new FrameEncoder();
+    private boolean deltaEncoding = true;
+
+    /**
+     * Commands received but not applied yet.
+     */
+    private final ConcurrentLinkedQueue<String> commands = new ConcurrentLinkedQueue<String>();
+
+    private final double[] viewMatrix = new double[16];
+    private final double[] planeMatrix = new double[16];
+    private int frameNr = 0;
+
+    // Scheduling state, guarded by this
+    private boolean scheduled = false;
+    private boolean requested = false;
+    private boolean closed = false;
+
+    public RenderSession(int id, Socket socket, Volume volume, GradientVolume gradients, VolumePyramid pyramid,
+            FrameScheduler scheduler) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        this.scheduler = scheduler;
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        renderer = new RaycastRenderer();
+        renderer.setVolumeData(volume, gradients);
+        renderer.setPyramid(pyramid);
+        renderer.setRaycastModeFront(RaycastMode.COMPOSITING);
+        renderer.setRaycastModeBack(RaycastMode.INVISIBLE);
+
+        // identity view until the client sends one
+        viewMatrix[0] = viewMatrix[5] = viewMatrix[10] = viewMatrix[15] = 1.0;
+        planeMatrix[0] = planeMatrix[5] = planeMatrix[10] = planeMatrix[15] = 1.0;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Reads commands until the client disconnects.
+     */
+    @Override
+    public void run() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equalsIgnoreCase("QUIT")) {
+                    break;
+                }
+                if (line.equalsIgnoreCase("RENDER")) {
+                    scheduler.requestFrame(this);
+                } else {
+                    commands.add(line);
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Session " + id + ": " + ex.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Marks that the session wants a frame.
+     *
+     * @return True if the session has to be queued, false if it is already
+     * queued or being rendered.
+     */
+    synchronized boolean markPending() {
+        if (closed) {
+            return false;
+        }
+        requested = true;
+        if (scheduled) {
+            return false;
+        }
+        scheduled = true;
+        return true;
+    }
+
+    /**
+     * Applies the pending commands, renders one frame and sends it. Called by
+     * a render thread of the {@link FrameScheduler}.
+     *
+     * @return True if another frame was requested meanwhile and the session
+     * has to stay scheduled.
+     */
+    boolean renderPendingFrame() {
+        synchronized (this) {
+            requested = false;
+            if (closed) {
+                scheduled = false;
+                return false;
+            }
+        }
+
+        String command;
+        while ((command = commands.poll()) != null) {
+            try {
+                apply(command);
+            } catch (RuntimeException ex) {
+                sendError("Invalid command '" + command + "': " + ex.getMessage());
+            }
+        }
+
+        try {
+            renderer.updateCuttingPlaneVectors(planeMatrix);
+            BufferedImage image = renderer.renderImage(viewMatrix);
+            sendFrame(image);
+        } catch (IOException ex) {
+            // a client that quit while its frame was rendered is not an error
+            if (!isClosed()) {
+                System.out.println("Session " + id + ": " + ex.getMessage());
+                close();
+            }
+        }
+
+        synchronized (this) {
+            if (requested && !closed) {
+                return true;
+            }
+            scheduled = false;
+            return false;
+        }
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection. Pending frames are dropped.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // nothing left to do with this connection
+        }
+        System.out.println("Session " + id + " closed");
+    }
+
+    private void apply(String command) {
+        String[] tokens = command.split("\\s+");
+        String key = tokens[0].toUpperCase();
+        if (key.equals("VIEW")) {
+            parseMatrix(tokens, viewMatrix);
+        } else if (key.equals("PLANE")) {
+            parseMatrix(tokens, planeMatrix);
+        } else if (key.equals("MODE")) {
+            renderer.setRaycastModeFront(RaycastMode.valueOf(tokens[1].toUpperCase()));
+            if (tokens.length > 2) {
+                renderer.setRaycastModeBack(RaycastMode.valueOf(tokens[2].toUpperCase()));
+            }
+        } else if (key.equals("SHADING")) {
+            renderer.setShadingMode(Boolean.parseBoolean(tokens[1]));
+        } else if (key.equals("OCCLUSION")) {
+            renderer.setAmbientOcclusion(Boolean.parseBoolean(tokens[1]));
+        } else if (key.equals("CUTTING")) {
+            renderer.setCuttingPlaneMode(Boolean.parseBoolean(tokens[1]));
+        } else if (key.equals("INTERACTIVE")) {
+            boolean interactive = Boolean.parseBoolean(tokens[1]);
+            renderer.setInteractiveMode(interactive);
+            encoder.setInteractive(interactive);
+        } else if (key.equals("ENCODING")) {
+            if (tokens[1].equalsIgnoreCase("DELTA")) {
+                deltaEncoding = true;
+            } else if (tokens[1].equalsIgnoreCase("PNG")) {
+                deltaEncoding = false;
+            } else {
+                throw new IllegalArgumentException("expected DELTA or PNG");
+            }
+        } else if (key.equals("ACK")) {
+            encoder.acknowledge(Integer.parseInt(tokens[1]));
+        } else if (key.equals("ISO")) {
+            renderer.setIsoValueFront(Float.parseFloat(tokens[1]));
+            if (tokens.length > 2) {
+                renderer.setIsoValueBack(Float.parseFloat(tokens[2]));
+            }
+        } else if (key.equals("TF")) {
+            boolean front = isFront(tokens[1]);
+            TransferFunction tf = front ? renderer.getTransferFunctionFront() : renderer.getTransferFunctionBack();
+            tf.addControlPoint(Integer.parseInt(tokens[2]), Double.parseDouble(tokens[3]),
+                    Double.parseDouble(tokens[4]), Double.parseDouble(tokens[5]), Double.parseDouble(tokens[6]));
+        } else if (key.equals("TF2D") || key.equals("TF2DADD")) {
+            boolean front = isFront(tokens[1]);
+            TransferFunction2D tf2D = front ? renderer.getTransferFunction2DFront() : renderer.getTransferFunction2DBack();
+            if (key.equals("TF2DADD")) {
+                tf2D.addWidget(Integer.parseInt(tokens[2]), Double.parseDouble(tokens[3]));
+            } else {
+                tf2D.SetBaseRadius(Integer.parseInt(tokens[2]), Double.parseDouble(tokens[3]));
+            }
+            tf2D.getSelectedWidget().color = new TFColor(Double.parseDouble(tokens[4]), Double.parseDouble(tokens[5]),
+                    Double.parseDouble(tokens[6]), Double.parseDouble(tokens[7]));
+        } else if (key.equals("CLIP")) {
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("expected NONE, PLANE or BOX");
+            }
+            if (tokens[1].equalsIgnoreCase("NONE")) {
+                renderer.clearClipRegion();
+            } else {
+                boolean plane = tokens[1].equalsIgnoreCase("PLANE");
+                if (!plane && !tokens[1].equalsIgnoreCase("BOX")) {
+                    throw new IllegalArgumentException("unknown clip " + tokens[1]);
+                }
+                if (tokens.length != 8) {
+                    throw new IllegalArgumentException("expected 6 values");
+                }
+                double[] a = new double[]{Double.parseDouble(tokens[2]), Double.parseDouble(tokens[3]),
+                    Double.parseDouble(tokens[4])};
+                double[] b = new double[]{Double.parseDouble(tokens[5]), Double.parseDouble(tokens[6]),
+                    Double.parseDouble(tokens[7])};
+                if (plane) {
+                    renderer.addClipPlane(a, b);
+                } else {
+                    renderer.addClipBox(a, b);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("unknown command");
+        }
+    }
+
+    private static boolean isFront(String side) {
+        if (side.equalsIgnoreCase("FRONT")) {
+            return true;
+        }
+        if (side.equalsIgnoreCase("BACK")) {
+            return false;
+        }
+        throw new IllegalArgumentException("expected FRONT or BACK");
+    }
+
+    private static void parseMatrix(String[] tokens, double[] matrix) {
+        if (tokens.length != 17) {
+            throw new IllegalArgumentException("expected 16 values");
+        }
+        for (int i = 0; i < 16; i++) {
+            matrix[i] = Double.parseDouble(tokens[i + 1]);
+        }
+    }
+
+    private void sendFrame(BufferedImage image) throws IOException {
+        if (deltaEncoding) {
+            FrameEncoder.EncodedFrame frame = encoder.encode(image);
+            synchronized (out) {
+                out.writeByte('D');
+                frame.writeTo(out);
+                out.flush();
+            }
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        frameNr++;
+        synchronized (out) {
+            out.writeByte('F');
+            out.writeInt(frameNr);
+            out.writeInt(image.getWidth());
+            out.writeInt(image.getHeight());
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private void sendError(String message) {
+        try {
+            synchronized (out) {
+                out.writeByte('E');
+                out.writeUTF(message);
+                out.flush();
+            }
+        } catch (IOException ex) {
+            close();
+        }
+    }
+}
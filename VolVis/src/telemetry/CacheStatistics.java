@@ -0,0 +1,12 @@
+package telemetry;
+
+/**
+ * Hit and miss counters of a cache, reported by the {@link RendererMonitor}
+ * after {@link Telemetry#registerCache(String, CacheStatistics)}.
+ */
+public interface CacheStatistics {
+
+    public long getHitCount();
+
+    public long getMissCount();
+}
@@ -0,0 +1,57 @@
+package telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("volvis.FrameRender")
+@Label("Frame Render")
+@Category("VolVis")
+@Description("A frame rendered by a RaycastRenderer")
+class FrameRenderEvent extends jdk.jfr.Event {
+
+    @Label("Frame")
+    long frameNr;
+
+    @Label("Mode")
+    String mode;
+
+    @Label("Interactive")
+    boolean interactive;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Rays Cast")
+    long raysCast;
+
+    @Label("Samples Taken")
+    long samplesTaken;
+
+    @Label("Samples Skipped")
+    long samplesSkipped;
+
+    @Label("Early Terminated Rays")
+    long earlyTerminatedRays;
+
+    @Label("Setup Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long setupTime;
+
+    @Label("March Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long marchTime;
+
+    @Label("Shading Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long shadingTime;
+
+    @Label("Upload Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long uploadTime;
+}
@@ -0,0 +1,22 @@
+package telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("volvis.GradientComputation")
+@Label("Gradient Computation")
+@Category("VolVis")
+@Description("Gradients computed for a volume")
+class GradientComputationEvent extends jdk.jfr.Event {
+
+    @Label("Dimension X")
+    int dimX;
+
+    @Label("Dimension Y")
+    int dimY;
+
+    @Label("Dimension Z")
+    int dimZ;
+}
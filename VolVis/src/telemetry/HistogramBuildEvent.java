@@ -0,0 +1,22 @@
+package telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("volvis.HistogramBuild")
+@Label("Histogram Build")
+@Category("VolVis")
+@Description("A histogram built over all voxels of a volume")
+class HistogramBuildEvent extends jdk.jfr.Event {
+
+    @Label("Kind")
+    String kind;
+
+    @Label("Bins")
+    int bins;
+
+    @Label("Voxels")
+    long voxels;
+}
@@ -0,0 +1,91 @@
+package telemetry;
+
+import volvis.RenderStatistics;
+
+/**
+ * The only class that refers to the JFR event classes. {@link Telemetry}
+ * calls it only if the JVM has JDK Flight Recorder, so the other classes
+ * still load on JVMs without it.
+ */
+class JfrEvents {
+
+    static Object beginFrame() {
+        FrameRenderEvent event = new FrameRenderEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endFrame(Object token, RenderStatistics stats) {
+        FrameRenderEvent event = (FrameRenderEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.frameNr = stats.frameNr;
+            event.mode = String.valueOf(stats.mode);
+            event.interactive = stats.interactive;
+            event.width = stats.width;
+            event.height = stats.height;
+            event.raysCast = stats.raysCast;
+            event.samplesTaken = stats.samplesTaken;
+            event.samplesSkipped = stats.samplesSkipped;
+            event.earlyTerminatedRays = stats.earlyTerminatedRays;
+            event.setupTime = stats.setupNanos;
+            event.marchTime = stats.marchNanos;
+            event.shadingTime = stats.shadingNanos;
+            event.uploadTime = stats.uploadNanos;
+            event.commit();
+        }
+    }
+
+    static Object beginVolumeLoad() {
+        VolumeLoadEvent event = new VolumeLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endVolumeLoad(Object token, String file, int dimX, int dimY, int dimZ, long bytes) {
+        VolumeLoadEvent event = (VolumeLoadEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.dimX = dimX;
+            event.dimY = dimY;
+            event.dimZ = dimZ;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginGradients() {
+        GradientComputationEvent event = new GradientComputationEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endGradients(Object token, int dimX, int dimY, int dimZ) {
+        GradientComputationEvent event = (GradientComputationEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.dimX = dimX;
+            event.dimY = dimY;
+            event.dimZ = dimZ;
+            event.commit();
+        }
+    }
+
+    static Object beginHistogram() {
+        HistogramBuildEvent event = new HistogramBuildEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endHistogram(Object token, String kind, int bins, long voxels) {
+        HistogramBuildEvent event = (HistogramBuildEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.bins = bins;
+            event.voxels = voxels;
+            event.commit();
+        }
+    }
+}
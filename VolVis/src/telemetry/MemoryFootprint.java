@@ -0,0 +1,13 @@
+package telemetry;
+
+/**
+ * An object that holds a large amount of memory and reports it to the
+ * {@link RendererMonitor} after {@link Telemetry#track(MemoryFootprint)}.
+ */
+public interface MemoryFootprint {
+
+    /**
+     * @return Estimate of the bytes held by the object.
+     */
+    public long getByteSize();
+}
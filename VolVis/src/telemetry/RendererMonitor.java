@@ -0,0 +1,145 @@
+package telemetry;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import volvis.RenderStatistics;
+
+/**
+ * Collects the frame times of all renderers, the registered caches and the
+ * objects with a large memory footprint, and exposes them as an MXBean.
+ */
+public class RendererMonitor implements RendererMonitorMXBean {
+
+    /**
+     * Number of most recent frames the percentiles are computed over.
+     */
+    public static final int WINDOW = 1024;
+
+    private final long[] frameNanos = new long[WINDOW];
+    private final long[] frameSamples = new long[WINDOW];
+    private long frameCount = 0;
+    private int windowSize = 0;
+
+    private final ConcurrentHashMap<String, CacheStatistics> caches = new ConcurrentHashMap<String, CacheStatistics>();
+    private final ArrayList<WeakReference<MemoryFootprint>> tracked = new ArrayList<WeakReference<MemoryFootprint>>();
+
+    synchronized void frameRendered(RenderStatistics stats) {
+        int i = (int) (frameCount % WINDOW);
+        frameNanos[i] = stats.getTotalNanos();
+        frameSamples[i] = stats.samplesTaken;
+        frameCount++;
+        windowSize = Math.min(windowSize + 1, WINDOW);
+    }
+
+    void registerCache(String name, CacheStatistics cache) {
+        caches.put(name, cache);
+    }
+
+    void unregisterCache(String name) {
+        caches.remove(name);
+    }
+
+    void track(MemoryFootprint object) {
+        synchronized (tracked) {
+            tracked.add(new WeakReference<MemoryFootprint>(object));
+        }
+    }
+
+    @Override
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    @Override
+    public double getFrameTimeMedian() {
+        return percentile(0.5);
+    }
+
+    @Override
+    public double getFrameTime90thPercentile() {
+        return percentile(0.9);
+    }
+
+    @Override
+    public double getFrameTime99thPercentile() {
+        return percentile(0.99);
+    }
+
+    @Override
+    public double getFrameTimeMax() {
+        return percentile(1.0);
+    }
+
+    private double percentile(double p) {
+        long[] times;
+        synchronized (this) {
+            times = Arrays.copyOf(frameNanos, windowSize);
+        }
+        if (times.length == 0) {
+            return 0;
+        }
+        Arrays.sort(times);
+        int index = (int) Math.ceil(p * times.length) - 1;
+        return times[Math.max(0, Math.min(times.length - 1, index))] / 1e6;
+    }
+
+    @Override
+    public synchronized double getSamplesPerSecond() {
+        long nanos = 0, samples = 0;
+        for (int i = 0; i < windowSize; i++) {
+            nanos += frameNanos[i];
+            samples += frameSamples[i];
+        }
+        return nanos > 0 ? samples * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public Map<String, Double> getCacheHitRates() {
+        TreeMap<String, Double> rates = new TreeMap<String, Double>();
+        for (Map.Entry<String, CacheStatistics> entry : caches.entrySet()) {
+            long hits = entry.getValue().getHitCount();
+            long total = hits + entry.getValue().getMissCount();
+            rates.put(entry.getKey(), total > 0 ? (double) hits / total : 0.0);
+        }
+        return rates;
+    }
+
+    @Override
+    public Map<String, Long> getMemoryByOwner() {
+        TreeMap<String, Long> memory = new TreeMap<String, Long>();
+        synchronized (tracked) {
+            Iterator<WeakReference<MemoryFootprint>> it = tracked.iterator();
+            while (it.hasNext()) {
+                MemoryFootprint object = it.next().get();
+                if (object == null) {
+                    it.remove();
+                    continue;
+                }
+                String owner = object.getClass().getSimpleName();
+                Long bytes = memory.get(owner);
+                memory.put(owner, (bytes == null ? 0 : bytes) + object.getByteSize());
+            }
+        }
+        return memory;
+    }
+
+    @Override
+    public long getTrackedBytes() {
+        long total = 0;
+        for (long bytes : getMemoryByOwner().values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized void resetFrameTimes() {
+        frameCount = 0;
+        windowSize = 0;
+    }
+}
@@ -0,0 +1,40 @@
+package telemetry;
+
+import java.util.Map;
+
+/**
+ * Renderer health as exposed over JMX by {@link RendererMonitor}. Frame
+ * times are in milliseconds over the last {@link RendererMonitor#WINDOW}
+ * frames.
+ */
+public interface RendererMonitorMXBean {
+
+    public long getFrameCount();
+
+    public double getFrameTimeMedian();
+
+    public double getFrameTime90thPercentile();
+
+    public double getFrameTime99thPercentile();
+
+    public double getFrameTimeMax();
+
+    /**
+     * @return Volume samples per second over the frames of the window.
+     */
+    public double getSamplesPerSecond();
+
+    /**
+     * @return Hit rate between 0 and 1 of every registered cache by name.
+     */
+    public Map<String, Double> getCacheHitRates();
+
+    /**
+     * @return Bytes held by the tracked objects, summed by class.
+     */
+    public Map<String, Long> getMemoryByOwner();
+
+    public long getTrackedBytes();
+
+    public void resetFrameTimes();
+}
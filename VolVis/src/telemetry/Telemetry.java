@@ -0,0 +1,128 @@
+package telemetry;
+
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import volvis.RenderStatistics;
+
+/**
+ * Entry point of the renderer and loader telemetry. It emits JDK Flight
+ * Recorder events (category "VolVis") for frames, volume loads, gradient
+ * computations and histogram builds, and registers a {@link RendererMonitor}
+ * under {@link #MONITOR_NAME} with the platform MBean server.
+ *
+ * Operations are timed with a begin/end pair. begin returns a token, which is
+ * null if the JVM has no Flight Recorder; the end methods accept a null token
+ * and then only update the monitor.
+ */
+public final class Telemetry {
+
+    public static final String MONITOR_NAME = "volvis:type=RendererMonitor";
+
+    private static final RendererMonitor monitor = new RendererMonitor();
+    private static final boolean jfr = isJfrAvailable();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, new ObjectName(MONITOR_NAME));
+        } catch (Exception ex) {
+            System.out.println("Cannot register " + MONITOR_NAME + ": " + ex);
+        }
+    }
+
+    private Telemetry() {
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        } catch (LinkageError ex) {
+            return false;
+        }
+    }
+
+    public static RendererMonitor getMonitor() {
+        return monitor;
+    }
+
+    public static Object beginFrame() {
+        return jfr ? JfrEvents.beginFrame() : null;
+    }
+
+    /**
+     * Ends the frame event started by {@link #beginFrame()} and adds the frame
+     * to the monitor.
+     *
+     * @param token Token returned by {@link #beginFrame()}.
+     * @param stats Statistics of the frame.
+     */
+    public static void endFrame(Object token, RenderStatistics stats) {
+        monitor.frameRendered(stats);
+        if (token != null) {
+            JfrEvents.endFrame(token, stats);
+        }
+    }
+
+    public static Object beginVolumeLoad() {
+        return jfr ? JfrEvents.beginVolumeLoad() : null;
+    }
+
+    public static void endVolumeLoad(Object token, String file, int dimX, int dimY, int dimZ, long bytes) {
+        if (token != null) {
+            JfrEvents.endVolumeLoad(token, file, dimX, dimY, dimZ, bytes);
+        }
+    }
+
+    public static Object beginGradients() {
+        return jfr ? JfrEvents.beginGradients() : null;
+    }
+
+    public static void endGradients(Object token, int dimX, int dimY, int dimZ) {
+        if (token != null) {
+            JfrEvents.endGradients(token, dimX, dimY, dimZ);
+        }
+    }
+
+    public static Object beginHistogram() {
+        return jfr ? JfrEvents.beginHistogram() : null;
+    }
+
+    /**
+     * @param token Token returned by {@link #beginHistogram()}.
+     * @param kind Which histogram, e.g. "1D" or "2D".
+     * @param bins Number of bins.
+     * @param voxels Number of voxels counted.
+     */
+    public static void endHistogram(Object token, String kind, int bins, long voxels) {
+        if (token != null) {
+            JfrEvents.endHistogram(token, kind, bins, voxels);
+        }
+    }
+
+    /**
+     * Reports the memory of an object in the monitor for as long as the object
+     * is reachable.
+     *
+     * @param object Object to track.
+     */
+    public static void track(MemoryFootprint object) {
+        monitor.track(object);
+    }
+
+    /**
+     * Reports the hit rate of a cache in the monitor.
+     *
+     * @param name Name of the cache. A cache registered under the same name
+     * is replaced.
+     * @param cache Counters of the cache.
+     */
+    public static void registerCache(String name, CacheStatistics cache) {
+        monitor.registerCache(name, cache);
+    }
+
+    public static void unregisterCache(String name) {
+        monitor.unregisterCache(name);
+    }
+}
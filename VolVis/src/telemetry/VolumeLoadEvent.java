@@ -0,0 +1,30 @@
+package telemetry;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("volvis.VolumeLoad")
+@Label("Volume Load")
+@Category("VolVis")
+@Description("A volume read from a file")
+class VolumeLoadEvent extends jdk.jfr.Event {
+
+    @Label("File")
+    String file;
+
+    @Label("Dimension X")
+    int dimX;
+
+    @Label("Dimension Y")
+    int dimY;
+
+    @Label("Dimension Z")
+    int dimZ;
+
+    @Label("Data Size")
+    @DataAmount
+    long bytes;
+}
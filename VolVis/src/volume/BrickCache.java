@@ -0,0 +1,258 @@
+package volume;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import telemetry.CacheStatistics;
+
+/**
+ * Bounded least recently used cache of the bricks of a
+ * {@link BrickedVolume}. Bricks are read from the brick file on demand and
+ * the least recently used ones are dropped when the memory budget is
+ * exceeded, so the memory use stays bounded whatever the size of the volume.
+ * Bricks are kept on the Java heap or, to keep them out of the heap budget,
+ * in direct buffers. A brick is read once even if several threads ask for it
+ * at the same time; the others wait for the read, which lets a
+ * {@link BrickPrefetcher} read ahead of the render threads.
+ */
+public class BrickCache implements CacheStatistics {
+
+    /**
+     * Minimum number of bricks kept, whatever the budget, so a trilinear
+     * sample never evicts the bricks it is reading from.
+     */
+    private static final int MIN_BRICKS = 8;
+
+    /**
+     * Where the bricks come from.
+     */
+    interface Source {
+
+        /**
+         * Reads a brick. It may be called by several threads at once.
+         *
+         * @param index Index of the brick.
+         * @param brick Receives the voxels of the brick as little-endian
+         * shorts, from position 0 to its limit.
+         * @throws IOException If the brick cannot be read.
+         */
+        void read(int index, ByteBuffer brick) throws IOException;
+    }
+
+    /**
+     * Uncompressed bricks stored one after the other in a file.
+     */
+    static class FileSource implements Source {
+
+        private final FileChannel channel;
+        private final long dataOffset;
+
+        /**
+         * @param channel Channel of the brick file.
+         * @param dataOffset Offset of the first brick in the file.
+         */
+        FileSource(FileChannel channel, long dataOffset) {
+            this.channel = channel;
+            this.dataOffset = dataOffset;
+        }
+
+        @Override
+        public void read(int index, ByteBuffer brick) throws IOException {
+            long position = dataOffset + (long) index * brick.capacity();
+            while (brick.hasRemaining()) {
+                if (channel.read(brick, position + brick.position()) < 0) {
+                    throw new IOException("Unexpected end of brick file");
+                }
+            }
+        }
+    }
+
+    private final Source source;
+    private final int brickBytes;
+    private final boolean offHeap;
+    private final int maxBricks;
+
+    private final LinkedHashMap<Integer, ShortBuffer> bricks
+            = new LinkedHashMap<Integer, ShortBuffer>(16, 0.75f, true);
+    private final HashSet<Integer> reading = new HashSet<Integer>();
+    private long hits = 0, misses = 0, evictions = 0, prefetches = 0, readErrors = 0;
+
+    /**
+     * @param source Source of the bricks.
+     * @param brickVoxels Number of voxels of a brick.
+     * @param budget Memory budget in bytes.
+     * @param offHeap True to keep the bricks in direct buffers.
+     */
+    BrickCache(Source source, int brickVoxels, long budget, boolean offHeap) {
+        this.source = source;
+        this.brickBytes = 2 * brickVoxels;
+        this.offHeap = offHeap;
+        this.maxBricks = (int) Math.max(MIN_BRICKS, Math.min(Integer.MAX_VALUE, budget / brickBytes));
+    }
+
+    /**
+     * Returns a brick, reading it from the source if it is not cached. Read
+     * errors are reported once and not thrown, so rendering goes on.
+     *
+     * @param index Index of the brick.
+     * @return The voxels of the brick, which must not be changed, or null if
+     * it cannot be read.
+     */
+    public ShortBuffer getBrick(int index) {
+        synchronized (this) {
+            ShortBuffer brick = bricks.get(index);
+            if (brick != null) {
+                hits++;
+                return brick;
+            }
+            misses++;
+            if (!waitForRead(index)) {
+                return bricks.get(index);
+            }
+        }
+        return readAndCache(index);
+    }
+
+    /**
+     * Reads a brick into the cache, unless it is cached or being read. It
+     * does not count as a hit or miss.
+     *
+     * @param index Index of the brick.
+     * @return True if the brick was read.
+     */
+    public boolean prefetch(int index) {
+        synchronized (this) {
+            if (bricks.containsKey(index) || reading.contains(index)) {
+                return false;
+            }
+            reading.add(index);
+            prefetches++;
+        }
+        return readAndCache(index) != null;
+    }
+
+    /**
+     * @return True if a brick is cached, without counting it as an access.
+     */
+    public synchronized boolean contains(int index) {
+        return bricks.containsKey(index);
+    }
+
+    /**
+     * Waits while another thread reads a brick. Must hold the lock.
+     *
+     * @return True if the caller must read the brick itself, which is then
+     * marked as being read.
+     */
+    private boolean waitForRead(int index) {
+        boolean interrupted = false;
+        while (reading.contains(index)) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (bricks.containsKey(index)) {
+            return false;
+        }
+        reading.add(index);
+        return true;
+    }
+
+    /**
+     * Reads a brick marked as being read and adds it to the cache.
+     */
+    private ShortBuffer readAndCache(int index) {
+        // read outside the lock, so other threads can use cached bricks
+        ShortBuffer brick = null;
+        try {
+            brick = read(index);
+        } catch (IOException ex) {
+            synchronized (this) {
+                if (readErrors++ == 0) {
+                    System.out.println("Cannot read brick " + index + ": " + ex.getMessage());
+                }
+            }
+        }
+
+        synchronized (this) {
+            reading.remove(index);
+            notifyAll();
+            if (brick != null) {
+                bricks.put(index, brick);
+                Iterator<Map.Entry<Integer, ShortBuffer>> it = bricks.entrySet().iterator();
+                while (bricks.size() > maxBricks && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                    evictions++;
+                }
+            }
+        }
+        return brick;
+    }
+
+    private ShortBuffer read(int index) throws IOException {
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(brickBytes) : ByteBuffer.allocate(brickBytes);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        source.read(index, buffer);
+        buffer.clear();
+        return buffer.asShortBuffer();
+    }
+
+    /**
+     * Drops all cached bricks.
+     */
+    public synchronized void clear() {
+        bricks.clear();
+    }
+
+    @Override
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * @return Number of bricks read by {@link #prefetch(int)}.
+     */
+    public synchronized long getPrefetchCount() {
+        return prefetches;
+    }
+
+    public synchronized int getBrickCount() {
+        return bricks.size();
+    }
+
+    public int getMaxBricks() {
+        return maxBricks;
+    }
+
+    /**
+     * @return Bytes held by the cached bricks.
+     */
+    public synchronized long getResidentBytes() {
+        return (long) bricks.size() * brickBytes;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+}
@@ -0,0 +1,144 @@
+package volume;
+
+/**
+ * Lossless codec for the voxels of a brick. Every voxel is predicted from
+ * its decoded neighbours, left + up - up-left inside a slice and the
+ * neighbour along the first axis that has one on the slice edges, and the
+ * residuals are zigzag coded and bit-packed in groups of {@link #GROUP}
+ * with one bit width per group. Uniform regions take one byte per group and
+ * smooth data a few bits per voxel. A brick that does not get smaller is
+ * stored raw.
+ */
+final class BrickCodec {
+
+    /**
+     * Number of residuals sharing a bit width.
+     */
+    static final int GROUP = 32;
+
+    private static final byte RAW = 0;
+    private static final byte PACKED = 1;
+
+    private BrickCodec() {
+    }
+
+    /**
+     * Encodes a brick.
+     *
+     * @param voxels Voxels of the brick, x fastest.
+     * @param brickSize Edge length of the brick.
+     * @return The encoded brick.
+     */
+    static byte[] encode(short[] voxels, int brickSize) {
+        int count = voxels.length;
+        // a group takes at most one width byte and GROUP 19-bit residuals
+        byte[] out = new byte[1 + (count + GROUP - 1) / GROUP * (1 + (GROUP * 19 + 7) / 8)];
+        int[] residuals = new int[GROUP];
+        out[0] = PACKED;
+        int pos = 1;
+        int x = 0, y = 0;
+        for (int first = 0; first < count; first += GROUP) {
+            int n = Math.min(GROUP, count - first);
+            int bits = 0;
+            for (int g = 0; g < n; g++) {
+                int residual = voxels[first + g] - predict(voxels, first + g, x, y, brickSize);
+                residuals[g] = (residual << 1) ^ (residual >> 31);
+                bits |= residuals[g];
+                if (++x == brickSize) {
+                    x = 0;
+                    y = y + 1 == brickSize ? 0 : y + 1;
+                }
+            }
+            int width = 32 - Integer.numberOfLeadingZeros(bits);
+            out[pos++] = (byte) width;
+            long acc = 0;
+            int filled = 0;
+            for (int g = 0; g < n && width > 0; g++) {
+                acc |= (long) residuals[g] << filled;
+                filled += width;
+                while (filled >= 8) {
+                    out[pos++] = (byte) acc;
+                    acc >>>= 8;
+                    filled -= 8;
+                }
+            }
+            if (filled > 0) {
+                out[pos++] = (byte) acc;
+            }
+            if (pos >= 1 + 2 * count) {
+                return encodeRaw(voxels);
+            }
+        }
+        byte[] encoded = new byte[pos];
+        System.arraycopy(out, 0, encoded, 0, pos);
+        return encoded;
+    }
+
+    private static byte[] encodeRaw(short[] voxels) {
+        byte[] out = new byte[1 + 2 * voxels.length];
+        out[0] = RAW;
+        for (int i = 0; i < voxels.length; i++) {
+            out[1 + 2 * i] = (byte) voxels[i];
+            out[2 + 2 * i] = (byte) (voxels[i] >> 8);
+        }
+        return out;
+    }
+
+    /**
+     * Decodes a brick.
+     *
+     * @param data Encoded brick.
+     * @param offset Offset of the encoded brick in data.
+     * @param voxels Receives the voxels of the brick, x fastest.
+     * @param brickSize Edge length of the brick.
+     */
+    static void decode(byte[] data, int offset, short[] voxels, int brickSize) {
+        int count = voxels.length;
+        int pos = offset + 1;
+        if (data[offset] == RAW) {
+            for (int i = 0; i < count; i++, pos += 2) {
+                voxels[i] = (short) ((data[pos] & 0xFF) | (data[pos + 1] << 8));
+            }
+            return;
+        }
+        int x = 0, y = 0;
+        for (int first = 0; first < count; first += GROUP) {
+            int n = Math.min(GROUP, count - first);
+            int width = data[pos++];
+            int mask = (1 << width) - 1;
+            long acc = 0;
+            int filled = 0;
+            // a uniform group of width zero reads no bytes
+            for (int i = first; i < first + n; i++) {
+                while (filled < width) {
+                    acc |= (long) (data[pos++] & 0xFF) << filled;
+                    filled += 8;
+                }
+                int zigzag = (int) acc & mask;
+                acc >>>= width;
+                filled -= width;
+                voxels[i] = (short) (predict(voxels, i, x, y, brickSize) + ((zigzag >>> 1) ^ -(zigzag & 1)));
+                if (++x == brickSize) {
+                    x = 0;
+                    y = y + 1 == brickSize ? 0 : y + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Predicts voxel i, at x and y in its slice, from the voxels before it.
+     */
+    private static int predict(short[] voxels, int i, int x, int y, int brickSize) {
+        if (x > 0 && y > 0) {
+            return voxels[i - 1] + voxels[i - brickSize] - voxels[i - brickSize - 1];
+        }
+        if (x > 0) {
+            return voxels[i - 1];
+        }
+        if (y > 0) {
+            return voxels[i - brickSize];
+        }
+        return i > 0 ? voxels[i - brickSize * brickSize] : 0;
+    }
+}
@@ -0,0 +1,178 @@
+package volume;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the bricks of a {@link BrickedVolume} ahead of the ray marcher. For
+ * every frame it predicts the view from the current view and the rotation
+ * since the previous frame, and queues the bricks of the current and the
+ * predicted view on background threads in the order the ray marcher first
+ * touches them: by image row band, front to back within a band. Bricks that
+ * are cached already are skipped, and at most half the cache is prefetched,
+ * so prefetching does not evict the bricks the frame is using.
+ *
+ * Every renderer has its own prefetcher, since it follows the motion of one
+ * view. The read threads are shared. Prefetching is switched off with the
+ * system property volvis.brick.prefetch=false.
+ */
+public class BrickPrefetcher {
+
+    public static final boolean ENABLED = !"false".equals(System.getProperty("volvis.brick.prefetch"));
+
+    /**
+     * Number of threads reading bricks, shared by all prefetchers.
+     */
+    private static final int READ_THREADS = 2;
+
+    /**
+     * Prefetches are queued on daemon threads that are never interrupted,
+     * since an interrupt closes the channel of the brick file.
+     */
+    private static final ExecutorService readers = Executors.newFixedThreadPool(READ_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "brick-prefetch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final BrickedVolume volume;
+    private final AtomicInteger generation = new AtomicInteger();
+    private double[] previousView = null;
+
+    public BrickPrefetcher(BrickedVolume volume) {
+        this.volume = volume;
+    }
+
+    /**
+     * Queues the bricks of a new view and drops the bricks queued for the
+     * previous one.
+     *
+     * @param viewMatrix OpenGL view matrix of the frame about to be
+     * rendered.
+     */
+    public void viewChanged(double[] viewMatrix) {
+        // the u, v and view vectors, as used by the ray marcher
+        double[] view = new double[]{
+            viewMatrix[0], viewMatrix[4], viewMatrix[8],
+            viewMatrix[1], viewMatrix[5], viewMatrix[9],
+            viewMatrix[2], viewMatrix[6], viewMatrix[10]};
+        double[] predicted = view;
+        if (previousView != null && !Arrays.equals(view, previousView)) {
+            predicted = new double[9];
+            for (int i = 0; i < 9; i++) {
+                predicted[i] = 2 * view[i] - previousView[i];
+            }
+            for (int i = 0; i < 9; i += 3) {
+                normalize(predicted, i);
+            }
+        }
+        previousView = view;
+
+        int limit = volume.getCache().getMaxBricks() / 2;
+        LinkedHashSet<Integer> bricks = new LinkedHashSet<Integer>();
+        addBricks(bricks, view, limit);
+        if (predicted != view) {
+            addBricks(bricks, predicted, limit);
+        }
+        schedule(bricks.toArray(new Integer[bricks.size()]));
+    }
+
+    /**
+     * Stops prefetching for this view. Reads in progress complete.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    private static void normalize(double[] v, int offset) {
+        double length = Math.sqrt(v[offset] * v[offset] + v[offset + 1] * v[offset + 1] + v[offset + 2] * v[offset + 2]);
+        if (length > 0) {
+            for (int i = offset; i < offset + 3; i++) {
+                v[i] /= length;
+            }
+        }
+    }
+
+    /**
+     * Adds the uncached bricks of a view in the order the ray marcher first
+     * touches them, up to a total of limit bricks.
+     *
+     * @param bricks Bricks to add to, in order.
+     * @param view The u, v and view vectors.
+     * @param limit Maximum number of bricks.
+     */
+    private void addBricks(LinkedHashSet<Integer> bricks, double[] view, int limit) {
+        final int brickSize = volume.getBrickSize();
+        final int bricksX = volume.getBricksX(), bricksY = volume.getBricksY(), bricksZ = volume.getBricksZ();
+        final double cx = volume.getDimX() / 2.0, cy = volume.getDimY() / 2.0, cz = volume.getDimZ() / 2.0;
+        // radius of the sphere around a brick
+        final double radius = brickSize * Math.sqrt(3) / 2;
+
+        int count = bricksX * bricksY * bricksZ;
+        final double[] band = new double[count];
+        final double[] depth = new double[count];
+        Integer[] order = new Integer[count];
+        for (int bz = 0; bz < bricksZ; bz++) {
+            for (int by = 0; by < bricksY; by++) {
+                for (int bx = 0; bx < bricksX; bx++) {
+                    int index = bx + bricksX * (by + bricksY * bz);
+                    double x = (bx + 0.5) * brickSize - cx;
+                    double y = (by + 0.5) * brickSize - cy;
+                    double z = (bz + 0.5) * brickSize - cz;
+                    // image rows increase along v; rays start on the side of the view vector
+                    double v = x * view[3] + y * view[4] + z * view[5];
+                    band[index] = Math.floor((v - radius) / brickSize);
+                    depth[index] = -(x * view[6] + y * view[7] + z * view[8]);
+                    order[index] = index;
+                }
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                int c = Double.compare(band[a], band[b]);
+                return c != 0 ? c : Double.compare(depth[a], depth[b]);
+            }
+        });
+
+        BrickCache cache = volume.getCache();
+        for (int i = 0; i < count && bricks.size() < limit; i++) {
+            if (!cache.contains(order[i])) {
+                bricks.add(order[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads the bricks in order on the read threads until the next view.
+     */
+    private void schedule(final Integer[] bricks) {
+        final int current = generation.incrementAndGet();
+        if (bricks.length == 0) {
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final BrickCache cache = volume.getCache();
+        for (int t = 0; t < READ_THREADS; t++) {
+            readers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while (generation.get() == current && (i = next.getAndIncrement()) < bricks.length) {
+                        cache.prefetch(bricks[i]);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package volume;
+
+import java.util.stream.IntStream;
+
+/**
+ * Gradients of a {@link BrickedVolume} or an {@link OffHeapVolume}, computed
+ * from the voxels on every access with the same central differences as
+ * {@link GradientVolume}, so they take no memory beyond the voxels.
+ */
+class BrickedGradientVolume extends GradientVolume {
+
+    private static final VoxelGradient ZERO = new VoxelGradient();
+
+    BrickedGradientVolume(BrickedVolume vol) {
+        super(vol, vol.getMaxGradientMagnitude());
+    }
+
+    /**
+     * Creates the gradients of any volume, finding their maximum magnitude
+     * in a parallel pass over the slices.
+     */
+    BrickedGradientVolume(Volume vol) {
+        super(vol, computeMaxMagnitude(vol));
+    }
+
+    private static double computeMaxMagnitude(final Volume vol) {
+        final int dimX = vol.getDimX(), dimY = vol.getDimY();
+        return IntStream.range(1, vol.getDimZ() - 1).parallel().mapToDouble(z -> {
+            float max = 0;
+            for (int y = 1; y < dimY - 1; y++) {
+                for (int x = 1; x < dimX - 1; x++) {
+                    float dx = (float) 0.5 * (vol.getVoxel(x + 1, y, z) - vol.getVoxel(x - 1, y, z));
+                    float dy = (float) 0.5 * (vol.getVoxel(x, y + 1, z) - vol.getVoxel(x, y - 1, z));
+                    float dz = (float) 0.5 * (vol.getVoxel(x, y, z + 1) - vol.getVoxel(x, y, z - 1));
+                    max = Math.max(max, (float) Math.sqrt(dx * dx + dy * dy + dz * dz));
+                }
+            }
+            return max;
+        }).max().orElse(0);
+    }
+
+    @Override
+    public VoxelGradient getGradient(int x, int y, int z) {
+        if (x < 1 || x >= getDimX() - 1 || y < 1 || y >= getDimY() - 1 || z < 1 || z >= getDimZ() - 1) {
+            return ZERO;
+        }
+        float dx = (float) 0.5 * (volume.getVoxel(x + 1, y, z) - volume.getVoxel(x - 1, y, z));
+        float dy = (float) 0.5 * (volume.getVoxel(x, y + 1, z) - volume.getVoxel(x, y - 1, z));
+        float dz = (float) 0.5 * (volume.getVoxel(x, y, z + 1) - volume.getVoxel(x, y, z - 1));
+        return new VoxelGradient(dx, dy, dz);
+    }
+
+    @Override
+    public float[] getGradientVec(int x, int y, int z) {
+        VoxelGradient gradient = getGradient(x, y, z);
+        return new float[]{gradient.x, gradient.y, gradient.z};
+    }
+
+    @Override
+    public VoxelGradient getVoxel(int i) {
+        int x = i % getDimX();
+        int y = (i / getDimX()) % getDimY();
+        int z = i / (getDimX() * getDimY());
+        return getGradient(x, y, z);
+    }
+
+    @Override
+    public void setGradient(int x, int y, int z, VoxelGradient value) {
+        throw new UnsupportedOperationException("Computed gradients are read-only");
+    }
+
+    @Override
+    public void setVoxel(int i, VoxelGradient value) {
+        throw new UnsupportedOperationException("Computed gradients are read-only");
+    }
+
+    @Override
+    public double getMaxGradientMagnitude() {
+        return maxmag;
+    }
+
+    /**
+     * @return The size of the 2D histogram; the gradients are not stored.
+     */
+    @Override
+    public synchronized long getByteSize() {
+        return histogram2D == null ? 0 : 4L * histogram2D.getCounts().length;
+    }
+}
@@ -0,0 +1,368 @@
+package volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import telemetry.Telemetry;
+
+/**
+ * A volume that stays on disk. Its voxels are stored in cubic bricks in a
+ * brick file written by {@link BrickedVolumeWriter}, and bricks are read on
+ * demand into a {@link BrickCache} with a bounded memory budget, so volumes
+ * larger than the heap can be rendered. When the working set of a frame does
+ * not fit in the budget, bricks are read again and the frame gets slower,
+ * but memory stays bounded.
+ *
+ * The budget is set with the system property volvis.brick.cache.mb
+ * (default 256), and volvis.brick.cache.offheap=true keeps the bricks in
+ * direct buffers outside the heap. The volume is read-only.
+ *
+ * The bricks of a compressed brick file are encoded with
+ * {@link BrickCodec} and found through a table of their offsets, which
+ * follows the header. They are decoded when read into the cache.
+ */
+public class BrickedVolume extends Volume {
+
+    /**
+     * File name extension of brick files.
+     */
+    public static final String EXTENSION = ".bricks";
+
+    static final byte[] MAGIC = {'V', 'V', 'B', 'R', 'I', 'C', 'K', '1'};
+
+    /**
+     * Magic of a compressed brick file. Only the last byte differs from
+     * {@link #MAGIC}.
+     */
+    static final byte[] COMPRESSED_MAGIC = {'V', 'V', 'B', 'R', 'I', 'C', 'K', 'Z'};
+
+    /**
+     * Number of histogram bins stored in the header, one per non-negative
+     * short value.
+     */
+    static final int HISTOGRAM_BINS = 1 << 15;
+
+    /**
+     * Header size: magic, dimensions, brick size, minimum, maximum, maximum
+     * gradient magnitude and the histogram.
+     */
+    static final int HEADER_SIZE = 8 + 4 * 4 + 2 * 4 + 8 + 4 * HISTOGRAM_BINS;
+
+    /**
+     * Offset of the first brick, the header rounded up to a page.
+     */
+    static final long DATA_OFFSET = (HEADER_SIZE + 4095) / 4096 * 4096;
+
+    /**
+     * Default memory budget of the brick cache in MB.
+     */
+    private static final long DEFAULT_BUDGET_MB = 256;
+
+    /**
+     * Last brick used by a thread. Consecutive samples mostly fall in the
+     * same brick, so most lookups do not need the cache.
+     */
+    private static class LastBrick {
+
+        int index = -1;
+        ShortBuffer voxels;
+    }
+
+    /**
+     * Compressed bricks of a brick file.
+     */
+    private static class CompressedFileSource implements BrickCache.Source {
+
+        private final FileChannel channel;
+        private final int brickSize;
+        private final long[] offsets;
+        private final ThreadLocal<short[]> voxels;
+
+        CompressedFileSource(FileChannel channel, int brickSize, long[] offsets) {
+            this.channel = channel;
+            this.brickSize = brickSize;
+            this.offsets = offsets;
+            final int brickVoxels = brickSize * brickSize * brickSize;
+            voxels = new ThreadLocal<short[]>() {
+                @Override
+                protected short[] initialValue() {
+                    return new short[brickVoxels];
+                }
+            };
+        }
+
+        @Override
+        public void read(int index, ByteBuffer brick) throws IOException {
+            ByteBuffer encoded = ByteBuffer.allocate((int) (offsets[index + 1] - offsets[index]));
+            while (encoded.hasRemaining()) {
+                if (channel.read(encoded, offsets[index] + encoded.position()) < 0) {
+                    throw new IOException("Unexpected end of brick file");
+                }
+            }
+            short[] decoded = voxels.get();
+            BrickCodec.decode(encoded.array(), 0, decoded, brickSize);
+            brick.asShortBuffer().put(decoded);
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final BrickCache cache;
+    private final String cacheName;
+    private final int brickSize, shift, mask;
+    private final int bricksX, bricksY, bricksZ;
+    private final double maxGradientMagnitude;
+    private final boolean compressed;
+    private final ThreadLocal<LastBrick> lastBrick = new ThreadLocal<LastBrick>() {
+        @Override
+        protected LastBrick initialValue() {
+            return new LastBrick();
+        }
+    };
+
+    /**
+     * Opens a brick file with the memory budget of the system properties.
+     *
+     * @param file Brick file.
+     * @throws IOException If the file cannot be read or is no brick file.
+     */
+    public BrickedVolume(File file) throws IOException {
+        this(file, Long.getLong("volvis.brick.cache.mb", DEFAULT_BUDGET_MB) << 20,
+                Boolean.getBoolean("volvis.brick.cache.offheap"));
+    }
+
+    /**
+     * Opens a brick file.
+     *
+     * @param file Brick file.
+     * @param budget Memory budget of the brick cache in bytes. An on-heap
+     * budget is limited to half the maximum heap.
+     * @param offHeap True to keep the bricks in direct buffers.
+     * @throws IOException If the file cannot be read or is no brick file.
+     */
+    public BrickedVolume(File file, long budget, boolean offHeap) throws IOException {
+        this(file, new RandomAccessFile(file, "r"), budget, offHeap);
+    }
+
+    private BrickedVolume(File file, RandomAccessFile raf, long budget, boolean offHeap) throws IOException {
+        this(file, raf, readHeader(raf), budget, offHeap);
+    }
+
+    private BrickedVolume(File file, RandomAccessFile raf, ByteBuffer header, long budget, boolean offHeap)
+            throws IOException {
+        super(header.getInt(8), header.getInt(12), header.getInt(16), null);
+        this.file = file;
+        this.raf = raf;
+        brickSize = header.getInt(20);
+        shift = Integer.numberOfTrailingZeros(brickSize);
+        mask = brickSize - 1;
+        bricksX = (getDimX() + mask) >> shift;
+        bricksY = (getDimY() + mask) >> shift;
+        bricksZ = (getDimZ() + mask) >> shift;
+        int maximum = header.getInt(28);
+        maxGradientMagnitude = header.getDouble(32);
+        int[] histogram = new int[Math.max(0, maximum) + 1];
+        header.position(40);
+        header.asIntBuffer().get(histogram);
+        // the voxels are never scanned for statistics
+        setStatistics(VolumeStatistics.fromHistogram(header.getInt(24), maximum, histogram));
+        compressed = header.get(MAGIC.length - 1) == COMPRESSED_MAGIC[MAGIC.length - 1];
+
+        long maxHeapBudget = Runtime.getRuntime().maxMemory() / 2;
+        if (!offHeap && budget > maxHeapBudget) {
+            System.out.println("Brick cache budget of " + (budget >> 20) + " MB limited to "
+                    + (maxHeapBudget >> 20) + " MB by the heap size");
+            budget = maxHeapBudget;
+        }
+        BrickCache.Source source = compressed
+                ? new CompressedFileSource(raf.getChannel(), brickSize, readOffsets(raf, bricksX * bricksY * bricksZ))
+                : new BrickCache.FileSource(raf.getChannel(), DATA_OFFSET);
+        cache = new BrickCache(source, brickSize * brickSize * brickSize, budget, offHeap);
+        cacheName = "bricks:" + file.getName();
+        Telemetry.registerCache(cacheName, cache);
+    }
+
+    /**
+     * Reads and checks the header. The file is closed if it is invalid.
+     */
+    private static ByteBuffer readHeader(RandomAccessFile raf) throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = raf.getChannel();
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Brick file header is truncated");
+                }
+            }
+            byte last = header.get(MAGIC.length - 1);
+            boolean compressed = last == COMPRESSED_MAGIC[MAGIC.length - 1];
+            for (int i = 0; i < MAGIC.length - 1; i++) {
+                if (header.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a brick file");
+                }
+            }
+            if (last != MAGIC[MAGIC.length - 1] && !compressed) {
+                throw new IOException("Unsupported brick file version");
+            }
+            int dimX = header.getInt(8), dimY = header.getInt(12), dimZ = header.getInt(16);
+            int brickSize = header.getInt(20);
+            if (dimX <= 0 || dimY <= 0 || dimZ <= 0 || (long) dimX * dimY > Integer.MAX_VALUE) {
+                throw new IOException("Unsupported volume size " + dimX + " x " + dimY + " x " + dimZ);
+            }
+            if (brickSize <= 0 || Integer.bitCount(brickSize) != 1 || brickSize > 256) {
+                throw new IOException("Unsupported brick size " + brickSize);
+            }
+            long bricks = (long) ((dimX + brickSize - 1) / brickSize) * ((dimY + brickSize - 1) / brickSize)
+                    * ((dimZ + brickSize - 1) / brickSize);
+            // a compressed file is checked against its offset table later
+            long expected = DATA_OFFSET
+                    + (compressed ? 8 * (bricks + 1) : bricks * 2 * brickSize * brickSize * brickSize);
+            if (channel.size() < expected) {
+                throw new IOException("Brick file is truncated: expected " + expected + " bytes, found "
+                        + channel.size());
+            }
+            return header;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the offset table of a compressed brick file, which has an
+     * offset per brick and the end of the last brick. The file is closed if
+     * the table is invalid.
+     */
+    private static long[] readOffsets(RandomAccessFile raf, int bricks) throws IOException {
+        try {
+            ByteBuffer table = ByteBuffer.allocate(8 * (bricks + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = raf.getChannel();
+            while (table.hasRemaining()) {
+                if (channel.read(table, DATA_OFFSET + table.position()) < 0) {
+                    throw new IOException("Brick offset table is truncated");
+                }
+            }
+            table.flip();
+            long[] offsets = new long[bricks + 1];
+            table.asLongBuffer().get(offsets);
+            for (int i = 0; i < bricks; i++) {
+                if (offsets[i + 1] <= offsets[i]) {
+                    throw new IOException("Brick offset table is corrupt");
+                }
+            }
+            if (offsets[0] < DATA_OFFSET + table.capacity() || offsets[bricks] > channel.size()) {
+                throw new IOException("Brick file is truncated: expected " + offsets[bricks] + " bytes, found "
+                        + channel.size());
+            }
+            return offsets;
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @param file A file.
+     * @return True if the file has the brick file extension.
+     */
+    public static boolean isBrickFile(File file) {
+        return file.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        int index = (x >> shift) + bricksX * ((y >> shift) + bricksY * (z >> shift));
+        LastBrick last = lastBrick.get();
+        if (last.index != index) {
+            last.voxels = cache.getBrick(index);
+            last.index = index;
+        }
+        if (last.voxels == null) {
+            return 0;
+        }
+        return last.voxels.get((x & mask) + brickSize * ((y & mask) + brickSize * (z & mask)));
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        int x = i % getDimX();
+        int y = (i / getDimX()) % getDimY();
+        int z = i / (getDimX() * getDimY());
+        return getVoxel(x, y, z);
+    }
+
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        throw new UnsupportedOperationException("A bricked volume is read-only");
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        throw new UnsupportedOperationException("A bricked volume is read-only");
+    }
+
+    /**
+     * @return Maximum gradient magnitude, computed when the file was
+     * written.
+     */
+    public double getMaxGradientMagnitude() {
+        return maxGradientMagnitude;
+    }
+
+    /**
+     * @return True if the bricks are stored compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    public int getBrickSize() {
+        return brickSize;
+    }
+
+    int getBricksX() {
+        return bricksX;
+    }
+
+    int getBricksY() {
+        return bricksY;
+    }
+
+    int getBricksZ() {
+        return bricksZ;
+    }
+
+    public BrickCache getCache() {
+        return cache;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Bytes held by the cached bricks and the histogram.
+     */
+    @Override
+    public long getByteSize() {
+        // called from the monitor, possibly before the constructor is done
+        return cache == null ? 0 : cache.getResidentBytes() + 4L * getHistogram().length;
+    }
+
+    /**
+     * Closes the brick file and drops the cache.
+     */
+    public void close() {
+        Telemetry.unregisterCache(cacheName);
+        cache.clear();
+        try {
+            raf.close();
+        } catch (IOException ex) {
+            System.out.println("IO exception: " + ex.getMessage());
+        }
+    }
+}
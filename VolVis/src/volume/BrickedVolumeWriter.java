@@ -0,0 +1,229 @@
+package volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Converts a volume file with a raw data section, an AVS field file or a raw
+ * MetaImage or NRRD file of 8-bit or signed 16-bit voxels, into a brick file
+ * for {@link BrickedVolume}. The data section is memory-mapped rather than
+ * loaded, so volumes larger than the heap can be converted. The header holds the statistics the renderer
+ * needs up front, the minimum, maximum, histogram and maximum gradient
+ * magnitude, so they need not be computed from the bricks when the file is
+ * opened. With -compress the bricks are encoded with {@link BrickCodec}.
+ *
+ * Usage: BrickedVolumeWriter input.fld|.mhd|.nrrd output.bricks [brick size] [-compress]
+ */
+public class BrickedVolumeWriter {
+
+    public static final int DEFAULT_BRICK_SIZE = 32;
+
+    /**
+     * Bytes of the data section mapped per buffer. It is even, so a voxel
+     * never straddles two buffers.
+     */
+    private static final long MAP_SIZE = 1L << 30;
+
+    private final int dimX, dimY, dimZ, bytesPerVoxel;
+    private final MappedByteBuffer[] maps;
+
+    private BrickedVolumeWriter(VolumeIO reader, FileChannel channel) throws IOException {
+        dimX = reader.getXDim();
+        dimY = reader.getYDim();
+        dimZ = reader.getZDim();
+        bytesPerVoxel = reader.getBytesPerVoxel();
+        long byteCount = (long) dimX * dimY * dimZ * bytesPerVoxel;
+        maps = new MappedByteBuffer[(int) ((byteCount + MAP_SIZE - 1) / MAP_SIZE)];
+        for (int m = 0; m < maps.length; m++) {
+            long start = m * MAP_SIZE;
+            maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, reader.getDataOffset() + start,
+                    Math.min(MAP_SIZE, byteCount - start));
+            maps[m].order(reader.getByteOrder());
+        }
+    }
+
+    private short getVoxel(int x, int y, int z) {
+        long position = (x + dimX * (y + (long) dimY * z)) * bytesPerVoxel;
+        MappedByteBuffer map = maps[(int) (position / MAP_SIZE)];
+        int offset = (int) (position % MAP_SIZE);
+        if (bytesPerVoxel == 2) {
+            return map.getShort(offset);
+        }
+        return (short) (map.get(offset) & 0xFF);
+    }
+
+    /**
+     * Converts a volume file into an uncompressed brick file.
+     *
+     * @param input Volume file with a raw data section.
+     * @param output Brick file, which is overwritten.
+     * @param brickSize Edge length of the bricks, a power of two up to 256.
+     * @throws IOException On read or write errors.
+     */
+    public static void write(File input, File output, int brickSize) throws IOException {
+        write(input, output, brickSize, false);
+    }
+
+    /**
+     * Converts a volume file into a brick file.
+     *
+     * @param input Volume file with a raw data section.
+     * @param output Brick file, which is overwritten.
+     * @param brickSize Edge length of the bricks, a power of two up to 256.
+     * @param compressed True to compress the bricks.
+     * @throws IOException On read or write errors.
+     */
+    public static void write(File input, File output, int brickSize, boolean compressed) throws IOException {
+        if (brickSize <= 0 || Integer.bitCount(brickSize) != 1 || brickSize > 256) {
+            throw new IllegalArgumentException("Brick size must be a power of two up to 256: " + brickSize);
+        }
+        VolumeIO reader = new VolumeIO(input, null, false);
+        if (reader.getType() == VoxelType.FLOAT32) {
+            throw new IOException("Brick files hold 16-bit voxels, " + input + " holds floats");
+        }
+        if (reader.getType() == VoxelType.UINT16) {
+            // the bricks, histogram and statistics hold signed shorts
+            throw new IOException("Brick files hold signed 16-bit voxels, " + input + " holds unsigned ones");
+        }
+        if (reader.getDataFile() == null) {
+            throw new IOException("Brick files are made from raw data sections, " + input + " is compressed"
+                    + " or a series");
+        }
+        RandomAccessFile in = new RandomAccessFile(reader.getDataFile(), "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(output, "rw");
+            try {
+                out.setLength(0);
+                new BrickedVolumeWriter(reader, in.getChannel()).writeBricks(out.getChannel(), brickSize, compressed);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the bricks, then the offset table of compressed bricks and the
+     * header with the statistics gathered on the way.
+     */
+    private void writeBricks(FileChannel channel, int brickSize, boolean compressed) throws IOException {
+        int bricksX = (dimX + brickSize - 1) / brickSize;
+        int bricksY = (dimY + brickSize - 1) / brickSize;
+        int bricksZ = (dimZ + brickSize - 1) / brickSize;
+        ByteBuffer brick = ByteBuffer.allocate(2 * brickSize * brickSize * brickSize).order(ByteOrder.LITTLE_ENDIAN);
+        ShortBuffer voxels = brick.asShortBuffer();
+        short[] values = new short[brickSize * brickSize * brickSize];
+
+        int[] histogram = new int[BrickedVolume.HISTOGRAM_BINS];
+        short minimum = Short.MAX_VALUE, maximum = Short.MIN_VALUE;
+        double maxMagnitude = 0;
+        long position = BrickedVolume.DATA_OFFSET;
+        int bricks = bricksX * bricksY * bricksZ;
+        ByteBuffer offsets = null;
+        if (compressed) {
+            offsets = ByteBuffer.allocate(8 * (bricks + 1)).order(ByteOrder.LITTLE_ENDIAN);
+            position += offsets.capacity();
+        }
+        long compressedBytes = 0;
+
+        for (int bz = 0; bz < bricksZ; bz++) {
+            for (int by = 0; by < bricksY; by++) {
+                for (int bx = 0; bx < bricksX; bx++) {
+                    int v = 0;
+                    for (int k = 0; k < brickSize; k++) {
+                        for (int j = 0; j < brickSize; j++) {
+                            for (int i = 0; i < brickSize; i++, v++) {
+                                int x = bx * brickSize + i, y = by * brickSize + j, z = bz * brickSize + k;
+                                if (x >= dimX || y >= dimY || z >= dimZ) {
+                                    values[v] = 0;
+                                    continue;
+                                }
+                                short value = getVoxel(x, y, z);
+                                values[v] = value;
+                                minimum = value < minimum ? value : minimum;
+                                maximum = value > maximum ? value : maximum;
+                                if (value >= 0) {
+                                    histogram[value]++;
+                                }
+                                maxMagnitude = Math.max(maxMagnitude, gradientMagnitude(x, y, z));
+                            }
+                        }
+                    }
+                    ByteBuffer data;
+                    if (compressed) {
+                        offsets.putLong(position);
+                        data = ByteBuffer.wrap(BrickCodec.encode(values, brickSize));
+                        compressedBytes += data.capacity();
+                    } else {
+                        voxels.clear();
+                        voxels.put(values);
+                        brick.clear();
+                        data = brick;
+                    }
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+                }
+            }
+            System.out.println("Bricked slab " + (bz + 1) + " of " + bricksZ);
+        }
+
+        if (compressed) {
+            offsets.putLong(position);
+            offsets.clear();
+            while (offsets.hasRemaining()) {
+                channel.write(offsets, BrickedVolume.DATA_OFFSET + offsets.position());
+            }
+            System.out.println("Compressed bricks to " + compressedBytes * 100 / (2L * bricks * values.length)
+                    + "% of their size");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(BrickedVolume.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(compressed ? BrickedVolume.COMPRESSED_MAGIC : BrickedVolume.MAGIC);
+        header.putInt(dimX).putInt(dimY).putInt(dimZ).putInt(brickSize);
+        header.putInt(minimum).putInt(maximum);
+        header.putDouble(maxMagnitude);
+        header.asIntBuffer().put(histogram);
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+    }
+
+    /**
+     * Gradient magnitude of a voxel, the same as in {@link GradientVolume}:
+     * central differences inside the volume and zero on its boundary.
+     */
+    private double gradientMagnitude(int x, int y, int z) {
+        if (x < 1 || x >= dimX - 1 || y < 1 || y >= dimY - 1 || z < 1 || z >= dimZ - 1) {
+            return 0;
+        }
+        float dx = (float) 0.5 * (getVoxel(x + 1, y, z) - getVoxel(x - 1, y, z));
+        float dy = (float) 0.5 * (getVoxel(x, y + 1, z) - getVoxel(x, y - 1, z));
+        float dz = (float) 0.5 * (getVoxel(x, y, z + 1) - getVoxel(x, y, z - 1));
+        return (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: BrickedVolumeWriter <input.fld> <output" + BrickedVolume.EXTENSION
+                    + "> [brick size] [-compress]");
+            return;
+        }
+        try {
+            int brickSize = args.length > 2 && !args[2].startsWith("-") ? Integer.parseInt(args[2])
+                    : DEFAULT_BRICK_SIZE;
+            boolean compressed = "-compress".equals(args[args.length - 1]);
+            write(new File(args[0]), new File(args[1]), brickSize, compressed);
+        } catch (IOException ex) {
+            System.out.println("IO exception: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package volume;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reading of gzip and zlib compressed data for {@link VolumeIO}, without
+ * decompressing to disk first.
+ *
+ * A {@link Pipeline} inflates a stream on a thread of its own into a few
+ * rotating slab buffers, so inflating the next slab overlaps decoding the
+ * previous one into the volume. A gzip file of many members that each
+ * record their compressed size in a BGZF extra field, as written by bgzip,
+ * is indexed by {@link #indexMembers(File, long)} instead, and its members
+ * are inflated in parallel, each into its own part of the volume: their
+ * uncompressed sizes are in their trailers, so no member waits for the one
+ * before it. Other multi-member files are read as a stream.
+ */
+final class CompressedInput {
+
+    /**
+     * Slab buffers of a pipeline: one being decoded, one being filled and
+     * one ready.
+     */
+    private static final int BUFFERS = 3;
+
+    private static final int GZIP_TRAILER_SIZE = 8;
+    /**
+     * Header flag of an extra field.
+     */
+    private static final int FEXTRA = 4;
+
+    private CompressedInput() {
+    }
+
+    /**
+     * @return True if the file starts with the gzip magic.
+     */
+    static boolean isGzip(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.length() >= 2 && raf.read() == 0x1F && raf.read() == 0x8B;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return A stream of the file, inflated if it is gzip compressed.
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        return isGzip(file) ? new GZIPInputStream(in, 1 << 16) : in;
+    }
+
+    static void skipFully(InputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long n = in.skip(bytes);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Unexpected end of file");
+                }
+                n = 1;
+            }
+            bytes -= n;
+        }
+    }
+
+    /**
+     * A member of a gzip file.
+     */
+    static final class Member {
+
+        /**
+         * Offset of the member in the file, and of its deflated data.
+         */
+        final long start, data;
+        /**
+         * Bytes of the member in the file.
+         */
+        final int length;
+        /**
+         * Uncompressed bytes of the member, and their offset in the
+         * uncompressed stream.
+         */
+        final long size, offset;
+
+        Member(long start, long data, int length, long size, long offset) {
+            this.start = start;
+            this.data = data;
+            this.length = length;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Indexes the members of a gzip file from their headers and trailers,
+     * without inflating them.
+     *
+     * @param file The file.
+     * @param start Offset of the first member.
+     * @return The members, or null if one of them has no BGZF block size, so
+     * the file can only be read as a stream.
+     */
+    static List<Member> indexMembers(File file, long start) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = raf.length();
+            List<Member> members = new ArrayList<Member>();
+            ByteBuffer header = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = 0;
+            while (start < fileLength) {
+                header.clear();
+                if (raf.getChannel().read(header, start) < header.capacity()) {
+                    return null;
+                }
+                // a member with only the BGZF extra field: magic, deflate,
+                // FEXTRA, XLEN 6, subfield BC of length 2 with the block size
+                if ((header.get(0) & 0xFF) != 0x1F || (header.get(1) & 0xFF) != 0x8B || header.get(2) != 8
+                        || header.get(3) != FEXTRA || header.getShort(10) != 6 || header.get(12) != 'B'
+                        || header.get(13) != 'C' || header.getShort(14) != 2) {
+                    return null;
+                }
+                int length = (header.getShort(16) & 0xFFFF) + 1;
+                if (start + length > fileLength) {
+                    throw new EOFException("Truncated gzip member in " + file);
+                }
+                trailer.clear();
+                raf.getChannel().read(trailer, start + length - 4);
+                long size = trailer.getInt(0) & 0xFFFFFFFFL;
+                members.add(new Member(start, start + header.capacity(), length, size, offset));
+                offset += size;
+                start += length;
+            }
+            // a single member gains nothing from the index
+            return members.size() > 1 ? members : null;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Inflates consecutive members into one buffer, and checks their
+     * checksums and sizes.
+     *
+     * @param file The gzip file.
+     * @param members The members.
+     * @param first First member.
+     * @param end Member after the last one.
+     * @return The uncompressed bytes.
+     */
+    static byte[] inflate(RandomAccessFile file, List<Member> members, int first, int end) throws IOException {
+        long size = members.get(end - 1).offset + members.get(end - 1).size - members.get(first).offset;
+        byte[] out = new byte[(int) size];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int position = 0;
+            for (int m = first; m < end; m++) {
+                Member member = members.get(m);
+                ByteBuffer in = ByteBuffer.allocate(member.length);
+                while (in.hasRemaining() && file.getChannel().read(in, member.start + in.position()) > 0) {
+                    // a positional read may return fewer bytes
+                }
+                inflater.reset();
+                int dataOffset = (int) (member.data - member.start);
+                inflater.setInput(in.array(), dataOffset, member.length - dataOffset - GZIP_TRAILER_SIZE);
+                int n = 0;
+                while (n < member.size && !inflater.finished()) {
+                    int inflated = inflater.inflate(out, position + n, (int) member.size - n);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new EOFException("Truncated gzip member");
+                    }
+                    n += inflated;
+                }
+                crc.reset();
+                crc.update(out, position, n);
+                in.order(ByteOrder.LITTLE_ENDIAN);
+                if (n != member.size || (int) crc.getValue() != in.getInt(member.length - GZIP_TRAILER_SIZE)) {
+                    throw new IOException("Corrupt gzip member at " + member.start);
+                }
+                position += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt gzip data: " + ex.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return out;
+    }
+
+    /**
+     * Inflates a stream ahead of its reader on a thread of its own, in slabs
+     * of a fixed size.
+     */
+    static final class Pipeline {
+
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(BUFFERS);
+        private final BlockingQueue<byte[]> full = new ArrayBlockingQueue<byte[]>(BUFFERS + 1);
+        private final Thread thread;
+        private volatile IOException failure;
+
+        /**
+         * Starts inflating.
+         *
+         * @param in The stream, which is closed when it is read or the
+         * pipeline is closed.
+         * @param slabBytes Bytes per slab.
+         * @param total Bytes to read, the last slab holds the rest.
+         */
+        Pipeline(final InputStream in, final int slabBytes, final long total) {
+            for (int i = 0; i < BUFFERS; i++) {
+                free.add(new byte[(int) Math.min(slabBytes, total)]);
+            }
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (long done = 0; done < total;) {
+                            byte[] slab = free.take();
+                            int length = (int) Math.min(slabBytes, total - done);
+                            for (int n = 0; n < length;) {
+                                int read = in.read(slab, n, length - n);
+                                if (read < 0) {
+                                    throw new EOFException("File is truncated: expected " + total
+                                            + " bytes of data");
+                                }
+                                n += read;
+                            }
+                            full.put(slab);
+                            done += length;
+                        }
+                        // read to the end, so the checksums in the trailers
+                        // are checked
+                        byte[] rest = new byte[4096];
+                        while (in.read(rest) >= 0) {
+                            if (Thread.interrupted()) {
+                                return;
+                            }
+                        }
+                        full.put(END);
+                    } catch (IOException ex) {
+                        failure = ex;
+                        full.offer(END);
+                    } catch (InterruptedException ex) {
+                        // closed
+                    } finally {
+                        try {
+                            in.close();
+                        } catch (IOException ex) {
+                            System.out.println("Cannot close compressed input: " + ex.getMessage());
+                        }
+                    }
+                }
+            }, "volume-inflate");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Waits for the next slab.
+         *
+         * @return The slab, to be handed back with {@link #release(byte[])}.
+         * @throws IOException If the stream could not be read.
+         */
+        byte[] next() throws IOException {
+            byte[] slab;
+            try {
+                slab = full.take();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Loading interrupted");
+            }
+            if (slab == END) {
+                throw failure != null ? failure : new EOFException("No more slabs");
+            }
+            return slab;
+        }
+
+        /**
+         * Waits until the stream was read to its end.
+         *
+         * @throws IOException If the rest of the stream could not be read,
+         * or its checksum does not match.
+         */
+        void finish() throws IOException {
+            try {
+                full.take();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Loading interrupted");
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        /**
+         * Hands a slab back to be filled again.
+         */
+        void release(byte[] slab) {
+            free.offer(slab);
+        }
+
+        /**
+         * Stops inflating, if it has not ended already.
+         */
+        void close() {
+            thread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package volume;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * A volume kept in memory as bricks compressed with {@link BrickCodec}.
+ * Bricks are decoded on demand and a bounded number of decoded bricks is
+ * kept, enough for the working set of a frame, so the volume takes the
+ * compressed size plus the budget instead of the full voxels. Decoded
+ * bricks are found without a lock; only decoding a brick takes one, and the
+ * oldest decoded brick is dropped first. Voxel values are stored as shorts;
+ * a {@link Float32Volume} keeps only its voxel values, not its floats.
+ *
+ * The loader compresses field files when the system property
+ * volvis.compress is true. The budget is set with
+ * volvis.compress.cache.mb (default 32). The volume is read-only.
+ */
+public class CompressedVolume extends Volume {
+
+    public static final boolean ENABLED = Boolean.getBoolean("volvis.compress");
+
+    public static final int BRICK_SIZE = 32;
+
+    /**
+     * Default memory budget of the decoded bricks in MB.
+     */
+    private static final long DEFAULT_BUDGET_MB = 32;
+
+    /**
+     * Minimum number of decoded bricks kept, whatever the budget, so a
+     * trilinear sample never drops the bricks it is reading from.
+     */
+    private static final int MIN_BRICKS = 8;
+
+    private static final int SHIFT = Integer.numberOfTrailingZeros(BRICK_SIZE);
+    private static final int MASK = BRICK_SIZE - 1;
+    private static final int BRICK_VOXELS = BRICK_SIZE * BRICK_SIZE * BRICK_SIZE;
+
+    private final byte[][] bricks;
+    private final long compressedBytes;
+    private final VoxelType type, sourceType;
+    private final int bricksX, bricksY;
+
+    private final AtomicReferenceArray<short[]> decoded;
+    /**
+     * Decoded bricks in the order they were decoded, a ring of which
+     * next is the oldest. Guarded by the volume.
+     */
+    private final int[] decodeOrder;
+    private int next = 0, resident = 0;
+    private long decodes = 0;
+
+    /**
+     * Compresses a volume with the budget of the system properties.
+     *
+     * @param source The volume.
+     */
+    public CompressedVolume(Volume source) {
+        this(source, Long.getLong("volvis.compress.cache.mb", DEFAULT_BUDGET_MB) << 20);
+    }
+
+    /**
+     * Compresses a volume. The bricks are compressed in parallel.
+     *
+     * @param source The volume.
+     * @param budget Memory budget of the decoded bricks in bytes.
+     */
+    public CompressedVolume(final Volume source, long budget) {
+        super(source.getDimX(), source.getDimY(), source.getDimZ(), null);
+        sourceType = source.getType();
+        // the voxel values of floats are 0 to Float32Volume.LEVELS - 1
+        type = sourceType == VoxelType.FLOAT32 ? VoxelType.UINT16 : sourceType;
+        bricksX = (getDimX() + MASK) >> SHIFT;
+        bricksY = (getDimY() + MASK) >> SHIFT;
+        int bricksZ = (getDimZ() + MASK) >> SHIFT;
+        bricks = new byte[bricksX * bricksY * bricksZ][];
+        IntStream.range(0, bricks.length).parallel().forEach(index -> {
+            bricks[index] = BrickCodec.encode(extractBrick(source, index), BRICK_SIZE);
+        });
+        long bytes = 0;
+        for (byte[] brick : bricks) {
+            bytes += brick.length;
+        }
+        compressedBytes = bytes;
+        setStatistics(source.getStatistics());
+
+        decoded = new AtomicReferenceArray<short[]>(bricks.length);
+        long maxBricks = Math.max(MIN_BRICKS, budget / (2 * BRICK_VOXELS));
+        decodeOrder = new int[(int) Math.min(bricks.length, maxBricks)];
+    }
+
+    /**
+     * Copies the voxels of a brick. Voxels outside the volume repeat the
+     * nearest voxel inside, which compresses better than zeros.
+     */
+    private short[] extractBrick(Volume source, int index) {
+        int x0 = (index % bricksX) << SHIFT;
+        int y0 = ((index / bricksX) % bricksY) << SHIFT;
+        int z0 = (index / (bricksX * bricksY)) << SHIFT;
+        short[] voxels = new short[BRICK_SIZE * BRICK_SIZE * BRICK_SIZE];
+        int v = 0;
+        for (int k = 0; k < BRICK_SIZE; k++) {
+            int z = Math.min(z0 + k, getDimZ() - 1);
+            for (int j = 0; j < BRICK_SIZE; j++) {
+                int y = Math.min(y0 + j, getDimY() - 1);
+                for (int i = 0; i < BRICK_SIZE; i++) {
+                    voxels[v++] = (short) source.getVoxel(Math.min(x0 + i, getDimX() - 1), y, z);
+                }
+            }
+        }
+        return voxels;
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        int index = (x >> SHIFT) + bricksX * ((y >> SHIFT) + bricksY * (z >> SHIFT));
+        short[] voxels = decoded.get(index);
+        if (voxels == null) {
+            voxels = decode(index);
+        }
+        short value = voxels[(x & MASK) + BRICK_SIZE * ((y & MASK) + BRICK_SIZE * (z & MASK))];
+        return type == VoxelType.UINT16 ? value & 0xFFFF : value;
+    }
+
+    /**
+     * Decodes a brick that is not kept, unless another thread did so while
+     * this one waited for the lock.
+     *
+     * @param index Index of the brick.
+     * @return The voxels of the brick, which must not be changed.
+     */
+    private synchronized short[] decode(int index) {
+        short[] voxels = decoded.get(index);
+        if (voxels != null) {
+            return voxels;
+        }
+        decodes++;
+        voxels = new short[BRICK_VOXELS];
+        BrickCodec.decode(bricks[index], 0, voxels, BRICK_SIZE);
+        if (resident == decodeOrder.length) {
+            decoded.set(decodeOrder[next], null);
+        } else {
+            resident++;
+        }
+        decodeOrder[next] = index;
+        next = (next + 1) % decodeOrder.length;
+        decoded.set(index, voxels);
+        return voxels;
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        int x = i % getDimX();
+        int y = (i / getDimX()) % getDimY();
+        int z = i / (getDimX() * getDimY());
+        return getVoxel(x, y, z);
+    }
+
+    /**
+     * @return Type of the voxel values, which are stored as shorts. Those of
+     * a {@link Float32Volume} are kept as {@link VoxelType#UINT16}.
+     */
+    @Override
+    public VoxelType getType() {
+        return type;
+    }
+
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        throw new UnsupportedOperationException("A compressed volume is read-only");
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        throw new UnsupportedOperationException("A compressed volume is read-only");
+    }
+
+    /**
+     * @return Number of bricks decoded so far. A brick is decoded again
+     * after it was dropped.
+     */
+    public synchronized long getDecodeCount() {
+        return decodes;
+    }
+
+    /**
+     * @return Number of decoded bricks kept.
+     */
+    public synchronized int getDecodedBrickCount() {
+        return resident;
+    }
+
+    /**
+     * @return Bytes of the compressed bricks.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * @return Size of the uncompressed voxels divided by the compressed
+     * size.
+     */
+    public double getCompressionRatio() {
+        return (double) sourceType.getBytes() * getDimX() * getDimY() * getDimZ() / compressedBytes;
+    }
+
+    /**
+     * @return Bytes held by the compressed and decoded bricks and the
+     * histogram.
+     */
+    @Override
+    public long getByteSize() {
+        // called from the monitor, possibly before the constructor is done
+        if (decoded == null) {
+            return 0;
+        }
+        return compressedBytes + 2L * BRICK_VOXELS * getDecodedBrickCount() + 4L * getHistogram().length;
+    }
+
+    /**
+     * Drops the decoded bricks.
+     */
+    public synchronized void close() {
+        for (int i = 0; i < resident; i++) {
+            decoded.set(decodeOrder[i], null);
+        }
+        resident = 0;
+        next = 0;
+    }
+}
@@ -0,0 +1,348 @@
+package volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * A directory of DICOM files, one slice each, read by {@link VolumeIO}. The
+ * headers are parsed in parallel and the slices sorted along the slice
+ * normal, or by instance number if they have no position. The pixel data of
+ * every slice is mapped and decoded straight into the volume, many slices in
+ * parallel.
+ *
+ * Only uncompressed little-endian transfer syntaxes with one sample of 8 or
+ * 16 bits per pixel are supported. The stored pixel values are kept; the
+ * rescale slope and intercept are not applied. Files without the DICM magic
+ * are skipped.
+ */
+final class DicomSeries {
+
+    private static final String IMPLICIT_LITTLE_ENDIAN = "1.2.840.10008.1.2";
+    private static final String EXPLICIT_LITTLE_ENDIAN = "1.2.840.10008.1.2.1";
+
+    /**
+     * Value representations with a reserved field and a 4-byte length in the
+     * explicit VR syntaxes.
+     */
+    private static final List<String> LONG_VRS = Arrays.asList("OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV",
+            "UC", "UN", "UR", "UT", "UV");
+
+    private static final int UNDEFINED_LENGTH = -1;
+
+    /**
+     * What is read from the header of a slice.
+     */
+    private static class Slice {
+
+        final File file;
+        String transferSyntax;
+        int rows, columns, bitsAllocated, pixelRepresentation, samples = 1, instance;
+        double[] position, orientation;
+        long pixelOffset = -1, pixelLength;
+        double location;
+
+        Slice(File file) {
+            this.file = file;
+        }
+    }
+
+    private final Slice[] slices;
+    private final int rows, columns;
+    private final VoxelType type;
+
+    /**
+     * Parses the headers of the DICOM files in a directory.
+     *
+     * @param directory The directory.
+     * @throws IOException If a header cannot be read, or the slices are not
+     * supported or do not match.
+     */
+    DicomSeries(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+        Slice[] parsed;
+        try {
+            parsed = Arrays.stream(files).parallel().filter(File::isFile).map(file -> {
+                try {
+                    return parse(file);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }).filter(Objects::nonNull).toArray(Slice[]::new);
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        if (parsed.length == 0) {
+            throw new IOException("No DICOM slices in " + directory);
+        }
+
+        Slice first = parsed[0];
+        for (Slice slice : parsed) {
+            if (!IMPLICIT_LITTLE_ENDIAN.equals(slice.transferSyntax)
+                    && !EXPLICIT_LITTLE_ENDIAN.equals(slice.transferSyntax)) {
+                throw new IOException("Unsupported transfer syntax " + slice.transferSyntax + " in " + slice.file);
+            }
+            if (slice.samples != 1) {
+                throw new IOException("Only scalar data are supported: " + slice.file);
+            }
+            if (slice.rows != first.rows || slice.columns != first.columns
+                    || slice.bitsAllocated != first.bitsAllocated
+                    || slice.pixelRepresentation != first.pixelRepresentation) {
+                throw new IOException(slice.file + " does not match " + first.file);
+            }
+            if (slice.pixelLength < (long) slice.rows * slice.columns * slice.bitsAllocated / 8) {
+                throw new IOException("Pixel data of " + slice.file + " is truncated");
+            }
+        }
+        rows = first.rows;
+        columns = first.columns;
+        if (first.bitsAllocated == 8) {
+            type = VoxelType.UINT8;
+        } else if (first.bitsAllocated == 16) {
+            type = first.pixelRepresentation == 0 ? VoxelType.UINT16 : VoxelType.INT16;
+        } else {
+            throw new IOException("Unsupported bits allocated " + first.bitsAllocated + " in " + first.file);
+        }
+        slices = sort(parsed);
+    }
+
+    /**
+     * Sorts the slices along the normal of the first slice if all have a
+     * position and orientation, else by instance number. Files keep their
+     * order by name otherwise.
+     */
+    private static Slice[] sort(Slice[] slices) {
+        double[] orientation = slices[0].orientation;
+        boolean positioned = orientation != null && orientation.length == 6;
+        for (Slice slice : slices) {
+            positioned &= slice.position != null && slice.position.length == 3;
+        }
+        if (positioned) {
+            double nx = orientation[1] * orientation[5] - orientation[2] * orientation[4];
+            double ny = orientation[2] * orientation[3] - orientation[0] * orientation[5];
+            double nz = orientation[0] * orientation[4] - orientation[1] * orientation[3];
+            for (Slice slice : slices) {
+                slice.location = nx * slice.position[0] + ny * slice.position[1] + nz * slice.position[2];
+            }
+            Arrays.sort(slices, Comparator.comparingDouble((Slice s) -> s.location));
+        } else {
+            Arrays.sort(slices, Comparator.comparingInt((Slice s) -> s.instance));
+        }
+        return slices;
+    }
+
+    /**
+     * Parses the header of a file up to the pixel data.
+     *
+     * @return The slice, or null if the file is no DICOM file or has no
+     * pixel data.
+     */
+    private static Slice parse(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 132 || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer b = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            if (b.get(128) != 'D' || b.get(129) != 'I' || b.get(130) != 'C' || b.get(131) != 'M') {
+                return null;
+            }
+            Slice slice = new Slice(file);
+            // the file meta information is always explicit VR little endian
+            int pos = 132;
+            while (pos + 8 <= size && (b.getShort(pos) & 0xFFFF) == 0x0002) {
+                pos = readElement(b, pos, true, slice);
+            }
+            boolean explicit = !IMPLICIT_LITTLE_ENDIAN.equals(slice.transferSyntax);
+            while (pos + 8 <= size && slice.pixelOffset < 0) {
+                pos = readElement(b, pos, explicit, slice);
+            }
+            return slice.pixelOffset < 0 ? null : slice;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads an element, skipping nested sequences, and records it in slice
+     * if it is one of those needed.
+     *
+     * @param b The file.
+     * @param pos Position of the element.
+     * @param explicit True for an explicit VR syntax.
+     * @param slice Receives the value, or null to only skip the element.
+     * @return Position of the next element.
+     */
+    private static int readElement(ByteBuffer b, int pos, boolean explicit, Slice slice) throws IOException {
+        int group = b.getShort(pos) & 0xFFFF, element = b.getShort(pos + 2) & 0xFFFF;
+        int length, value;
+        if (group == 0xFFFE) {
+            // items and delimiters have no VR
+            length = b.getInt(pos + 4);
+            value = pos + 8;
+        } else if (explicit) {
+            String vr = new String(new char[]{(char) b.get(pos + 4), (char) b.get(pos + 5)});
+            if (LONG_VRS.contains(vr)) {
+                length = b.getInt(pos + 8);
+                value = pos + 12;
+            } else {
+                length = b.getShort(pos + 6) & 0xFFFF;
+                value = pos + 8;
+            }
+        } else {
+            length = b.getInt(pos + 4);
+            value = pos + 8;
+        }
+
+        if (group == 0x7FE0 && element == 0x0010 && slice != null) {
+            if (length == UNDEFINED_LENGTH) {
+                throw new IOException("Compressed pixel data in " + slice.file + " is not supported");
+            }
+            slice.pixelOffset = value;
+            slice.pixelLength = length & 0xFFFFFFFFL;
+            return value + length;
+        }
+        if (length == UNDEFINED_LENGTH) {
+            // a sequence or item that ends with a delimiter
+            int next = value;
+            while (next + 8 <= b.limit()) {
+                int nestedGroup = b.getShort(next) & 0xFFFF, nestedElement = b.getShort(next + 2) & 0xFFFF;
+                boolean delimiter = nestedGroup == 0xFFFE && (nestedElement == 0xE0DD || nestedElement == 0xE00D);
+                next = readElement(b, next, explicit, null);
+                if (delimiter) {
+                    break;
+                }
+            }
+            return next;
+        }
+        if (value + length > b.limit() || length < 0) {
+            throw new IOException("Invalid element length in " + (slice == null ? "sequence" : slice.file));
+        }
+        if (slice != null) {
+            record(b, group, element, value, length, slice);
+        }
+        return value + length;
+    }
+
+    private static void record(ByteBuffer b, int group, int element, int value, int length, Slice slice) {
+        int tag = group << 16 | element;
+        switch (tag) {
+            case 0x00020010:
+                slice.transferSyntax = string(b, value, length);
+                break;
+            case 0x00200013:
+                String instance = string(b, value, length);
+                slice.instance = instance.isEmpty() ? 0 : Integer.parseInt(instance);
+                break;
+            case 0x00200032:
+                slice.position = decimals(string(b, value, length));
+                break;
+            case 0x00200037:
+                slice.orientation = decimals(string(b, value, length));
+                break;
+            case 0x00280002:
+                slice.samples = b.getShort(value) & 0xFFFF;
+                break;
+            case 0x00280010:
+                slice.rows = b.getShort(value) & 0xFFFF;
+                break;
+            case 0x00280011:
+                slice.columns = b.getShort(value) & 0xFFFF;
+                break;
+            case 0x00280100:
+                slice.bitsAllocated = b.getShort(value) & 0xFFFF;
+                break;
+            case 0x00280103:
+                slice.pixelRepresentation = b.getShort(value) & 0xFFFF;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return A string value without its padding.
+     */
+    private static String string(ByteBuffer b, int value, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (b.get(value + i) & 0xFF);
+        }
+        return new String(chars).replace('\0', ' ').trim();
+    }
+
+    private static double[] decimals(String value) {
+        String[] parts = value.split("\\\\");
+        double[] values = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getColumns() {
+        return columns;
+    }
+
+    int getSliceCount() {
+        return slices.length;
+    }
+
+    VoxelType getType() {
+        return type;
+    }
+
+    /**
+     * Decodes slices into a volume in parallel. The pixel data of every
+     * slice is mapped and read straight into the voxels.
+     *
+     * @param volume The volume, of {@link #getType()} and the size of the
+     * series.
+     * @param first First slice.
+     * @param end Slice after the last one.
+     * @throws IOException If a slice cannot be read.
+     */
+    void readSlices(final Volume volume, int first, int end) throws IOException {
+        final int sliceVoxels = rows * columns;
+        final long sliceBytes = (long) sliceVoxels * type.getBytes();
+        try {
+            IntStream.range(first, end).parallel().forEach(z -> {
+                try {
+                    RandomAccessFile raf = new RandomAccessFile(slices[z].file, "r");
+                    try {
+                        MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                slices[z].pixelOffset, sliceBytes);
+                        volume.readVoxels(pixels.order(ByteOrder.LITTLE_ENDIAN), (long) z * sliceVoxels,
+                                sliceVoxels);
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+}
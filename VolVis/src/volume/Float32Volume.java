@@ -0,0 +1,196 @@
+package volume;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * A volume of 32-bit float voxels. The transfer functions, histograms and
+ * statistics work on integer voxel values, so {@link #getVoxel(int)} maps
+ * the range of the floats linearly onto {@link #LEVELS} values, 0 for the
+ * smallest float and LEVELS - 1 for the largest. The floats themselves are
+ * read with {@link #getValue(int)}, and {@link #toValue(double)} maps a voxel
+ * value back, e.g. for display.
+ *
+ * The range is found when the statistics are computed and by
+ * {@link #updateRange()}; floats written since are clamped to it.
+ */
+public final class Float32Volume extends Volume {
+
+    /**
+     * Number of integer voxel values the floats are mapped onto.
+     */
+    public static final int LEVELS = 4096;
+
+    private final float[] data;
+    private double offset = 0, scale = 0;
+
+    public Float32Volume(int xd, int yd, int zd) {
+        this(xd, yd, zd, new float[xd * yd * zd]);
+    }
+
+    /**
+     * Creates a volume around existing floats, which it takes over without
+     * copying.
+     */
+    Float32Volume(int xd, int yd, int zd, float[] data) {
+        super(xd, yd, zd, null);
+        this.data = data;
+        updateRange();
+    }
+
+    /**
+     * Finds the range of the floats in parallel and maps it onto the voxel
+     * values. NaNs are left out; they map to 0.
+     */
+    public void updateRange() {
+        final int dimX = getDimX(), sliceSize = dimX * getDimY();
+        float[] range = IntStream.range(0, getDimZ()).parallel().collect(
+                () -> new float[]{Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY}, (r, z) -> {
+                    for (int i = z * sliceSize; i < (z + 1) * sliceSize; i++) {
+                        float v = data[i];
+                        r[0] = v < r[0] ? v : r[0];
+                        r[1] = v > r[1] ? v : r[1];
+                    }
+                }, (r, other) -> {
+                    r[0] = Math.min(r[0], other[0]);
+                    r[1] = Math.max(r[1], other[1]);
+                });
+        if (range[0] > range[1]) {
+            offset = 0;
+            scale = 0;
+        } else {
+            offset = range[0];
+            scale = computeScale(range[0], range[1]);
+        }
+        invalidateStatistics();
+    }
+
+    @Override
+    synchronized void computeStatistics() {
+        updateRange();
+        super.computeStatistics();
+    }
+
+    private int toLevel(double value) {
+        return toLevel(value, offset, scale);
+    }
+
+    /**
+     * @return The scale that maps floats from minimum to maximum onto the
+     * voxel values.
+     */
+    static double computeScale(double minimum, double maximum) {
+        return maximum > minimum ? (LEVELS - 1) / (maximum - minimum) : 0;
+    }
+
+    /**
+     * Maps a float onto a voxel value, clamped to the levels.
+     *
+     * @param value The float.
+     * @param offset Float mapped to 0.
+     * @param scale Levels per unit of the floats, see
+     * {@link #computeScale(double, double)}.
+     */
+    static int toLevel(double value, double offset, double scale) {
+        int level = (int) ((value - offset) * scale);
+        return level < 0 ? 0 : (level > LEVELS - 1 ? LEVELS - 1 : level);
+    }
+
+    /**
+     * Maps a voxel value back onto the floats.
+     *
+     * @param level Voxel value, 0 to LEVELS - 1.
+     * @return The float it stands for.
+     */
+    public double toValue(double level) {
+        return scale == 0 ? offset : offset + level / scale;
+    }
+
+    public float getValue(int x, int y, int z) {
+        return data[x + getDimX() * (y + getDimY() * z)];
+    }
+
+    public float getValue(int i) {
+        return data[i];
+    }
+
+    public void setValue(int x, int y, int z, float value) {
+        setValue(x + getDimX() * (y + getDimY() * z), value);
+    }
+
+    public void setValue(int i, float value) {
+        data[i] = value;
+        invalidateStatistics();
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        return toLevel(data[x + getDimX() * (y + getDimY() * z)]);
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        return toLevel(data[i]);
+    }
+
+    /**
+     * Sets the float a voxel value stands for.
+     */
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        setValue(x, y, z, (float) toValue(value));
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        setValue(i, (float) toValue(value));
+    }
+
+    @Override
+    public VoxelType getType() {
+        return VoxelType.FLOAT32;
+    }
+
+    /**
+     * Copies the float, so a cropped volume maps its own range onto the
+     * voxel values.
+     */
+    @Override
+    void copyVoxel(Volume target, int x, int y, int z, int sourceX, int sourceY, int sourceZ) {
+        ((Float32Volume) target).setValue(x, y, z, getValue(sourceX, sourceY, sourceZ));
+    }
+
+    /**
+     * Interpolates the floats and maps the result onto the voxel values,
+     * without rounding it to a level.
+     */
+    @Override
+    public double sampleTrilinear(double x, double y, double z) {
+        int dimX = getDimX(), dimY = getDimY();
+        int xl = (int) x, yl = (int) y, zl = (int) z;
+        int dx = xl < dimX - 1 ? 1 : 0;
+        int dy = yl < dimY - 1 ? dimX : 0;
+        int dz = zl < getDimZ() - 1 ? dimX * dimY : 0;
+        int i = xl + dimX * (yl + dimY * zl);
+        float[] d = data;
+        double value = interpolate(x - xl, y - yl, z - zl, d[i], d[i + dx], d[i + dy], d[i + dx + dy],
+                d[i + dz], d[i + dx + dz], d[i + dy + dz], d[i + dx + dy + dz]);
+        double level = (value - offset) * scale;
+        return level > 0 ? (level < LEVELS - 1 ? level : LEVELS - 1) : 0;
+    }
+
+    @Override
+    void readVoxels(ByteBuffer source, long first, int count) {
+        source.asFloatBuffer().get(data, (int) first, count);
+    }
+
+    @Override
+    void writeVoxel(ByteBuffer target, int i) {
+        target.putFloat(data[i]);
+    }
+
+    @Override
+    long getVoxelByteSize() {
+        return data == null ? 0 : 4L * data.length;
+    }
+}
@@ -4,11 +4,20 @@
  */
 package volume;
 
+import java.util.stream.IntStream;
+import telemetry.MemoryFootprint;
+import telemetry.Telemetry;
+
 /**
  *
  * @author michel
  */
-public class GradientVolume {
+public class GradientVolume implements MemoryFootprint {
+
+    /**
+     * Number of bins of the gradient magnitude histogram.
+     */
+    public static final int HISTOGRAM_MAGNITUDE_BINS = Histogram2D.DEFAULT_MAGNITUDE_BINS;
 
     public GradientVolume(Volume vol) {
         volume = vol;
@@ -16,8 +25,79 @@ public class GradientVolume {
         dimY = vol.getDimY();
         dimZ = vol.getDimZ();
         data = new VoxelGradient[dimX * dimY * dimZ];
+        Object event = Telemetry.beginGradients();
         compute();
+        Telemetry.endGradients(event, dimX, dimY, dimZ);
         maxmag = -1.0;
+        Telemetry.track(this);
+    }
+
+    /**
+     * Creates a gradient volume without storing the gradients, for
+     * subclasses that compute them on demand.
+     *
+     * @param vol The volume.
+     * @param maxMagnitude Maximum gradient magnitude of the volume.
+     */
+    GradientVolume(Volume vol, double maxMagnitude) {
+        volume = vol;
+        dimX = vol.getDimX();
+        dimY = vol.getDimY();
+        dimZ = vol.getDimZ();
+        maxmag = maxMagnitude;
+    }
+
+    /**
+     * Creates the gradients of a volume. Gradients of a
+     * {@link BrickedVolume} or an {@link OffHeapVolume} are computed on
+     * demand instead of stored, since they would take eight times the memory
+     * of the volume.
+     *
+     * @param vol The volume.
+     * @return The gradients.
+     */
+    public static GradientVolume create(Volume vol) {
+        if (vol instanceof BrickedVolume) {
+            return new BrickedGradientVolume((BrickedVolume) vol);
+        }
+        if (vol instanceof OffHeapVolume) {
+            return new BrickedGradientVolume(vol);
+        }
+        return new GradientVolume(vol);
+    }
+
+    /**
+     * @return Estimate of the memory held: a reference per voxel and an
+     * object of 32 bytes per interior voxel.
+     */
+    @Override
+    public long getByteSize() {
+        long interior = (long) Math.max(0, dimX - 2) * Math.max(0, dimY - 2) * Math.max(0, dimZ - 2);
+        return 4L * data.length + 32L * interior + (histogram2D == null ? 0 : 4L * histogram2D.getCounts().length)
+                + (magnitudeHistogram == null ? 0 : 4L * magnitudeHistogram.length);
+    }
+
+    /**
+     * Returns the 2D histogram of voxel value and gradient magnitude. It is
+     * computed once, in parallel, and shared by all its users, such as the
+     * front and back transfer function editors.
+     *
+     * @return The histogram, with the numbers of bins of the system
+     * properties described in {@link Histogram2D}.
+     */
+    public synchronized Histogram2D get2DHistogram() {
+        if (histogram2D == null) {
+            histogram2D = Histogram2D.compute(volume, this);
+        }
+        return histogram2D;
+    }
+
+    /**
+     * Sets a 2D histogram computed before, e.g. restored from a
+     * {@link VolumeCache}.
+     */
+    synchronized void set2DHistogram(Histogram2D histogram) {
+        histogram2D = histogram;
     }
 
     public VoxelGradient getGradient(int x, int y, int z) {
@@ -87,18 +167,32 @@ public class GradientVolume {
         if (maxmag >= 0) {
             return maxmag;
         } else {
-            double magnitude = data[0].mag;
-            for (int i = 0; i < data.length; i++) {
-                magnitude = data[i].mag > magnitude ? data[i].mag : magnitude;
-            }
+            double magnitude = IntStream.range(0, data.length).parallel().mapToDouble(i -> data[i].mag).max()
+                    .orElse(0);
             maxmag = magnitude;
             return magnitude;
         }
     }
 
+    /**
+     * Returns the histogram of the gradient magnitudes. It is computed once
+     * and shared by all its users.
+     *
+     * @return Counts of {@link #HISTOGRAM_MAGNITUDE_BINS} bins spanning 0 to
+     * {@link #getMaxGradientMagnitude()}.
+     */
+    public synchronized int[] getMagnitudeHistogram() {
+        if (magnitudeHistogram == null) {
+            magnitudeHistogram = VolumeStatistics.computeMagnitudeHistogram(this, HISTOGRAM_MAGNITUDE_BINS);
+        }
+        return magnitudeHistogram;
+    }
+
     private int dimX, dimY, dimZ;
     private VoxelGradient zero = new VoxelGradient();
     VoxelGradient[] data;
     Volume volume;
     double maxmag;
+    Histogram2D histogram2D;
+    int[] magnitudeHistogram;
 }
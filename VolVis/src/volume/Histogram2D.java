@@ -0,0 +1,180 @@
+package volume;
+
+import java.util.stream.IntStream;
+import telemetry.Telemetry;
+
+/**
+ * Joint histogram of voxel value and gradient magnitude, as shown by the 2D
+ * transfer function editors. The value bins span 0 to the maximum voxel
+ * value and the magnitude bins 0 to the maximum gradient magnitude.
+ *
+ * It is computed in parallel: every thread counts a slab of slices into its
+ * own partial histogram, and the partial histograms are added up at the
+ * end. The number of bins defaults to one per voxel value and
+ * {@link #DEFAULT_MAGNITUDE_BINS} magnitudes, and is set with the system
+ * properties volvis.histogram2d.value.bins and
+ * volvis.histogram2d.magnitude.bins.
+ */
+public class Histogram2D {
+
+    public static final int DEFAULT_MAGNITUDE_BINS = 300;
+
+    private final int valueBins, magnitudeBins;
+    private final int maxValue;
+    private final double maxMagnitude;
+    private final int[] counts;
+
+    /**
+     * @param valueBins Number of value bins.
+     * @param magnitudeBins Number of magnitude bins.
+     * @param maxValue Value of the last value bin.
+     * @param maxMagnitude Magnitude of the last magnitude bin.
+     * @param counts Counts at index magnitude bin * valueBins + value bin.
+     */
+    Histogram2D(int valueBins, int magnitudeBins, int maxValue, double maxMagnitude, int[] counts) {
+        this.valueBins = valueBins;
+        this.magnitudeBins = magnitudeBins;
+        this.maxValue = maxValue;
+        this.maxMagnitude = maxMagnitude;
+        this.counts = counts;
+    }
+
+    /**
+     * Computes the histogram with the numbers of bins of the system
+     * properties.
+     *
+     * @param volume The volume.
+     * @param gradients Gradients of the volume.
+     * @return The histogram.
+     */
+    public static Histogram2D compute(Volume volume, GradientVolume gradients) {
+        return compute(volume, gradients, requestedValueBins(), requestedMagnitudeBins());
+    }
+
+    /**
+     * @return True if the histogram has the numbers of bins of the system
+     * properties, so it can be used in place of a new one.
+     */
+    boolean hasConfiguredBins() {
+        return valueBins == valueBins(requestedValueBins(), maxValue)
+                && magnitudeBins == magnitudeBins(requestedMagnitudeBins());
+    }
+
+    private static int requestedValueBins() {
+        return Integer.getInteger("volvis.histogram2d.value.bins", 0);
+    }
+
+    private static int requestedMagnitudeBins() {
+        return Integer.getInteger("volvis.histogram2d.magnitude.bins", DEFAULT_MAGNITUDE_BINS);
+    }
+
+    private static int valueBins(int requested, int maxValue) {
+        return requested > 0 ? Math.min(requested, maxValue + 1) : maxValue + 1;
+    }
+
+    private static int magnitudeBins(int requested) {
+        return Math.max(1, requested);
+    }
+
+    /**
+     * Computes the histogram.
+     *
+     * @param volume The volume.
+     * @param gradients Gradients of the volume.
+     * @param valueBins Number of value bins, or 0 for one per voxel value.
+     * Values are binned the same however many bins there are.
+     * @param magnitudeBins Number of magnitude bins.
+     * @return The histogram.
+     */
+    public static Histogram2D compute(final Volume volume, final GradientVolume gradients, int valueBins,
+            final int magnitudeBins) {
+        final int maxValue = Math.max(0, volume.getMaximum());
+        final int xbins = valueBins(valueBins, maxValue);
+        final int ybins = magnitudeBins(magnitudeBins);
+        double maxMagnitude = gradients.getMaxGradientMagnitude();
+        final double magnitudeScale = maxMagnitude > 0 ? (ybins - 1) / maxMagnitude : 0;
+        final int dimX = volume.getDimX(), dimY = volume.getDimY(), dimZ = volume.getDimZ();
+
+        Object event = Telemetry.beginHistogram();
+        // a slab per thread, and more for volumes so large a count of a slab
+        // could pass Integer.MAX_VALUE
+        long voxels = (long) dimX * dimY * dimZ;
+        int slabCount = (int) Math.max(Runtime.getRuntime().availableProcessors(), voxels / Integer.MAX_VALUE + 1);
+        final int slabs = Math.max(1, Math.min(dimZ, slabCount));
+        final int[][] partials = new int[slabs][];
+        IntStream.range(0, slabs).parallel().forEach(t -> {
+            int[] partial = new int[xbins * ybins];
+            for (int z = (int) ((long) t * dimZ / slabs); z < (int) ((long) (t + 1) * dimZ / slabs); z++) {
+                for (int y = 0; y < dimY; y++) {
+                    for (int x = 0; x < dimX; x++) {
+                        int value = Math.max(0, volume.getVoxel(x, y, z));
+                        int xPos = (int) ((long) value * xbins / (maxValue + 1));
+                        int yPos = (int) (gradients.getGradient(x, y, z).mag * magnitudeScale);
+                        partial[Math.min(yPos, ybins - 1) * xbins + xPos]++;
+                    }
+                }
+            }
+            partials[t] = partial;
+        });
+        int[] counts = partials[0];
+        for (int t = 1; t < slabs; t++) {
+            int[] partial = partials[t];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = (int) Math.min(Integer.MAX_VALUE, (long) counts[i] + partial[i]);
+            }
+        }
+        Telemetry.endHistogram(event, "2D", counts.length, voxels);
+        return new Histogram2D(xbins, ybins, maxValue, maxMagnitude, counts);
+    }
+
+    public int getValueBins() {
+        return valueBins;
+    }
+
+    public int getMagnitudeBins() {
+        return magnitudeBins;
+    }
+
+    /**
+     * @return The maximum voxel value, the upper end of the last value bin.
+     */
+    public int getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * @return The maximum gradient magnitude, the upper end of the last
+     * magnitude bin.
+     */
+    public double getMaxMagnitude() {
+        return maxMagnitude;
+    }
+
+    /**
+     * @param valueBin A value bin.
+     * @param magnitudeBin A magnitude bin.
+     * @return The number of voxels in the bins.
+     */
+    public int getCount(int valueBin, int magnitudeBin) {
+        return counts[magnitudeBin * valueBins + valueBin];
+    }
+
+    /**
+     * @return Counts at index magnitude bin * value bins + value bin. They
+     * must not be changed.
+     */
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return The largest count of a bin.
+     */
+    public int getMaxCount() {
+        int max = 0;
+        for (int count : counts) {
+            max = count > max ? count : max;
+        }
+        return max;
+    }
+}
@@ -0,0 +1,83 @@
+package volume;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Gradients read from a memory-mapped {@link VolumeCache} instead of being
+ * computed. Every voxel takes four floats, x, y, z and the magnitude, and a
+ * gradient object is made on every access, so the gradients take no heap.
+ */
+class MappedGradientVolume extends GradientVolume {
+
+    /**
+     * Voxels per mapped buffer, so a buffer stays below 2 GB.
+     */
+    static final int VOXELS_PER_BUFFER = 1 << 26;
+
+    private final FloatBuffer[] buffers;
+
+    /**
+     * @param vol The volume.
+     * @param maps Mapped gradients, {@link #VOXELS_PER_BUFFER} voxels per
+     * buffer.
+     * @param maxMagnitude Maximum gradient magnitude.
+     */
+    MappedGradientVolume(Volume vol, MappedByteBuffer[] maps, double maxMagnitude) {
+        super(vol, maxMagnitude);
+        buffers = new FloatBuffer[maps.length];
+        for (int i = 0; i < maps.length; i++) {
+            buffers[i] = maps[i].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+    }
+
+    @Override
+    public VoxelGradient getVoxel(int i) {
+        FloatBuffer buffer = buffers[i / VOXELS_PER_BUFFER];
+        int offset = 4 * (i % VOXELS_PER_BUFFER);
+        VoxelGradient gradient = new VoxelGradient();
+        gradient.x = buffer.get(offset);
+        gradient.y = buffer.get(offset + 1);
+        gradient.z = buffer.get(offset + 2);
+        gradient.mag = buffer.get(offset + 3);
+        return gradient;
+    }
+
+    @Override
+    public VoxelGradient getGradient(int x, int y, int z) {
+        return getVoxel(x + getDimX() * (y + getDimY() * z));
+    }
+
+    @Override
+    public float[] getGradientVec(int x, int y, int z) {
+        int i = x + getDimX() * (y + getDimY() * z);
+        FloatBuffer buffer = buffers[i / VOXELS_PER_BUFFER];
+        int offset = 4 * (i % VOXELS_PER_BUFFER);
+        return new float[]{buffer.get(offset), buffer.get(offset + 1), buffer.get(offset + 2)};
+    }
+
+    @Override
+    public void setGradient(int x, int y, int z, VoxelGradient value) {
+        throw new UnsupportedOperationException("Cached gradients are read-only");
+    }
+
+    @Override
+    public void setVoxel(int i, VoxelGradient value) {
+        throw new UnsupportedOperationException("Cached gradients are read-only");
+    }
+
+    @Override
+    public double getMaxGradientMagnitude() {
+        return maxmag;
+    }
+
+    /**
+     * @return The size of the 2D histogram; the gradients are mapped, not
+     * on the heap.
+     */
+    @Override
+    public synchronized long getByteSize() {
+        return histogram2D == null ? 0 : 4L * histogram2D.getCounts().length;
+    }
+}
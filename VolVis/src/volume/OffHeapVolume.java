@@ -0,0 +1,178 @@
+package volume;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A volume of integer voxels kept outside the Java heap, in direct buffers of
+ * {@link #CHUNK_BYTES} bytes, and indexed with longs. It holds volumes of
+ * more than 2^31 voxels, which no Java array can, and keeps large volumes
+ * out of the garbage collected heap. Its voxels count against the maximum
+ * direct memory, -XX:MaxDirectMemorySize, and are freed when the volume is
+ * collected.
+ *
+ * {@link Volume#create(VoxelType, int, int, int)} makes one for volumes
+ * beyond {@link #MAX_ARRAY_LENGTH} voxels, and for all volumes of integer
+ * voxels if the system property volvis.offheap is true. Floats are not
+ * supported.
+ */
+public final class OffHeapVolume extends Volume {
+
+    public static final boolean ENABLED = Boolean.getBoolean("volvis.offheap");
+
+    /**
+     * Largest number of voxels kept in a Java array.
+     */
+    public static final long MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    private static final int CHUNK_SHIFT = 30;
+    /**
+     * Bytes per direct buffer.
+     */
+    public static final long CHUNK_BYTES = 1L << CHUNK_SHIFT;
+    private static final long CHUNK_MASK = CHUNK_BYTES - 1;
+
+    private final VoxelType type;
+    private final boolean bytes, unsigned;
+    /**
+     * log2 of the bytes per voxel.
+     */
+    private final int shift;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Allocates a volume, all voxels 0.
+     *
+     * @param type Voxel type, one of the integer types.
+     * @param xd Size along x.
+     * @param yd Size along y.
+     * @param zd Size along z.
+     */
+    public OffHeapVolume(VoxelType type, int xd, int yd, int zd) {
+        super(xd, yd, zd, null);
+        if (type == VoxelType.FLOAT32) {
+            throw new IllegalArgumentException("Off-heap volumes hold integer voxels");
+        }
+        this.type = type;
+        bytes = type == VoxelType.UINT8;
+        unsigned = type == VoxelType.UINT16;
+        shift = bytes ? 0 : 1;
+        long byteCount = getVoxelCount() << shift;
+        chunks = new ByteBuffer[(int) ((byteCount + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int c = 0; c < chunks.length; c++) {
+            int size = (int) Math.min(CHUNK_BYTES, byteCount - ((long) c << CHUNK_SHIFT));
+            chunks[c] = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * @return Number of voxels.
+     */
+    public long getVoxelCount() {
+        return (long) getDimX() * getDimY() * getDimZ();
+    }
+
+    private long index(int x, int y, int z) {
+        return x + getDimX() * (y + (long) getDimY() * z);
+    }
+
+    /**
+     * @param i Index of a voxel, x fastest.
+     * @return The voxel value.
+     */
+    public int getVoxel(long i) {
+        long position = i << shift;
+        ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+        int offset = (int) (position & CHUNK_MASK);
+        if (bytes) {
+            return chunk.get(offset) & 0xFF;
+        }
+        short value = chunk.getShort(offset);
+        return unsigned ? value & 0xFFFF : value;
+    }
+
+    /**
+     * @param i Index of a voxel, x fastest.
+     * @param value The voxel value.
+     */
+    public void setVoxel(long i, int value) {
+        long position = i << shift;
+        ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)];
+        int offset = (int) (position & CHUNK_MASK);
+        if (bytes) {
+            chunk.put(offset, (byte) value);
+        } else {
+            chunk.putShort(offset, (short) value);
+        }
+        invalidateStatistics();
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        return getVoxel(index(x, y, z));
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        return getVoxel((long) i);
+    }
+
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        setVoxel(index(x, y, z), value);
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        setVoxel((long) i, value);
+    }
+
+    @Override
+    public VoxelType getType() {
+        return type;
+    }
+
+    @Override
+    public double sampleTrilinear(double x, double y, double z) {
+        int dimX = getDimX(), dimY = getDimY();
+        int xl = (int) x, yl = (int) y, zl = (int) z;
+        long dx = xl < dimX - 1 ? 1 : 0;
+        long dy = yl < dimY - 1 ? dimX : 0;
+        long dz = zl < getDimZ() - 1 ? (long) dimX * dimY : 0;
+        long i = index(xl, yl, zl);
+        return interpolate(x - xl, y - yl, z - zl, getVoxel(i), getVoxel(i + dx), getVoxel(i + dy),
+                getVoxel(i + dx + dy), getVoxel(i + dz), getVoxel(i + dx + dz), getVoxel(i + dy + dz),
+                getVoxel(i + dx + dy + dz));
+    }
+
+    @Override
+    void readVoxels(ByteBuffer source, long first, int count) {
+        if (!bytes && source.order() != ByteOrder.LITTLE_ENDIAN) {
+            // the chunks are little-endian, so the bytes cannot be copied
+            for (int i = 0; i < count; i++) {
+                setVoxel(first + i, source.getShort(source.position() + 2 * i));
+            }
+            return;
+        }
+        ByteBuffer in = source.duplicate();
+        long position = first << shift;
+        int remaining = count << shift;
+        while (remaining > 0) {
+            ByteBuffer chunk = chunks[(int) (position >>> CHUNK_SHIFT)].duplicate();
+            chunk.position((int) (position & CHUNK_MASK));
+            int n = Math.min(remaining, chunk.remaining());
+            ByteBuffer part = in.slice();
+            part.limit(n);
+            chunk.put(part);
+            in.position(in.position() + n);
+            position += n;
+            remaining -= n;
+        }
+    }
+
+    @Override
+    long getVoxelByteSize() {
+        // called from the monitor, possibly before the constructor is done
+        return chunks == null ? 0 : getVoxelCount() << shift;
+    }
+}
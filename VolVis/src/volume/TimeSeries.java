@@ -0,0 +1,288 @@
+package volume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A time-varying volume: a series of timesteps of the same size and voxel
+ * type, kept as bricks compressed with {@link BrickCodec}. A brick that did
+ * not change since the previous timestep is not stored again; the timestep
+ * shares the encoded brick of the one before, so a series in which little
+ * moves takes little more than its first timestep. Which bricks differ
+ * between two timesteps is known without decoding them, from the shared
+ * bricks, and is what {@link volvis.RaycastRenderer} re-renders.
+ *
+ * Timesteps are decoded into a plain {@link Volume} with
+ * {@link #decode(int)}, usually ahead of time by a
+ * {@link TimeSeriesPlayer}. As in {@link CompressedVolume}, float timesteps
+ * keep only their voxel values. All timesteps map their floats onto the
+ * voxel values with the range of the whole series, given when it is
+ * created, so a voxel value stands for the same float in every timestep.
+ *
+ * The series keeps the lowest and highest voxel value of all its
+ * timesteps, which the transfer functions of the series have to cover.
+ */
+public class TimeSeries {
+
+    public static final int BRICK_SIZE = CompressedVolume.BRICK_SIZE;
+
+    private static final int SHIFT = Integer.numberOfTrailingZeros(BRICK_SIZE);
+    private static final int MASK = BRICK_SIZE - 1;
+
+    private final int dimX, dimY, dimZ;
+    private final VoxelType type;
+    private final int bricksX, bricksY, bricksZ;
+    /**
+     * Encoded bricks of every timestep. Unchanged bricks are the same array
+     * as in the timestep before.
+     */
+    private final List<byte[][]> timesteps = new ArrayList<byte[][]>();
+    private long storedBytes = 0;
+    private int sharedBricks = 0;
+    private int minimum = Integer.MAX_VALUE, maximum = Integer.MIN_VALUE;
+    /**
+     * True for a series of floats, which are mapped onto the voxel values
+     * from floatOffset up at floatScale levels per unit.
+     */
+    private final boolean floats;
+    private final double floatOffset, floatScale;
+
+    /**
+     * Creates an empty series.
+     *
+     * @param dimX Size along x of every timestep.
+     * @param dimY Size along y.
+     * @param dimZ Size along z.
+     * @param type Voxel type of every timestep, other than FLOAT32.
+     */
+    public TimeSeries(int dimX, int dimY, int dimZ, VoxelType type) {
+        this(dimX, dimY, dimZ, type, 0, 0);
+        if (type == VoxelType.FLOAT32) {
+            throw new IllegalArgumentException("A series of floats needs the range of its floats");
+        }
+    }
+
+    /**
+     * Creates an empty series of floats.
+     *
+     * @param dimX Size along x of every timestep.
+     * @param dimY Size along y.
+     * @param dimZ Size along z.
+     * @param floatMinimum Lowest float of all timesteps.
+     * @param floatMaximum Highest float of all timesteps.
+     */
+    public TimeSeries(int dimX, int dimY, int dimZ, double floatMinimum, double floatMaximum) {
+        this(dimX, dimY, dimZ, VoxelType.FLOAT32, floatMinimum, floatMaximum);
+    }
+
+    private TimeSeries(int dimX, int dimY, int dimZ, VoxelType type, double floatMinimum, double floatMaximum) {
+        this.dimX = dimX;
+        this.dimY = dimY;
+        this.dimZ = dimZ;
+        // the voxel values of floats are 0 to Float32Volume.LEVELS - 1
+        this.type = type == VoxelType.FLOAT32 ? VoxelType.UINT16 : type;
+        floats = type == VoxelType.FLOAT32;
+        floatOffset = floatMinimum;
+        floatScale = Float32Volume.computeScale(floatMinimum, floatMaximum);
+        bricksX = (dimX + MASK) >> SHIFT;
+        bricksY = (dimY + MASK) >> SHIFT;
+        bricksZ = (dimZ + MASK) >> SHIFT;
+    }
+
+    /**
+     * Appends a timestep. Its bricks are compressed in parallel, and those
+     * equal to the bricks of the last timestep are shared with it.
+     *
+     * @param volume The timestep, of the size and type of the series.
+     */
+    public synchronized void add(final Volume volume) {
+        if (volume.getDimX() != dimX || volume.getDimY() != dimY || volume.getDimZ() != dimZ) {
+            throw new IllegalArgumentException("Timestep of " + volume.getDimX() + " x " + volume.getDimY() + " x "
+                    + volume.getDimZ() + " voxels in a series of " + dimX + " x " + dimY + " x " + dimZ);
+        }
+        VoxelType volumeType = volume.getType() == VoxelType.FLOAT32 ? VoxelType.UINT16 : volume.getType();
+        if (volumeType != type || (volume instanceof Float32Volume) != floats) {
+            throw new IllegalArgumentException("Timestep of " + volume.getType() + " voxels in a series of "
+                    + type);
+        }
+        final byte[][] previous = timesteps.isEmpty() ? null : timesteps.get(timesteps.size() - 1);
+        final byte[][] bricks = new byte[bricksX * bricksY * bricksZ][];
+        final int[][] ranges = new int[bricks.length][];
+        IntStream.range(0, bricks.length).parallel().forEach(index -> {
+            short[] voxels = extractBrick(volume, index);
+            int low = Integer.MAX_VALUE, high = Integer.MIN_VALUE;
+            for (short voxel : voxels) {
+                int value = type == VoxelType.INT16 ? voxel : voxel & 0xFFFF;
+                low = Math.min(low, value);
+                high = Math.max(high, value);
+            }
+            ranges[index] = new int[]{low, high};
+            byte[] brick = BrickCodec.encode(voxels, BRICK_SIZE);
+            // the codec is deterministic, so equal voxels encode to equal bytes
+            bricks[index] = previous != null && Arrays.equals(brick, previous[index]) ? previous[index] : brick;
+        });
+        for (int index = 0; index < bricks.length; index++) {
+            minimum = Math.min(minimum, ranges[index][0]);
+            maximum = Math.max(maximum, ranges[index][1]);
+            if (previous != null && bricks[index] == previous[index]) {
+                sharedBricks++;
+            } else {
+                storedBytes += bricks[index].length;
+            }
+        }
+        timesteps.add(bricks);
+    }
+
+    /**
+     * Copies the voxels of a brick. Voxels outside the volume repeat the
+     * nearest voxel inside, as in {@link CompressedVolume}. Floats are mapped
+     * with the range of the series.
+     */
+    private short[] extractBrick(Volume source, int index) {
+        int x0 = (index % bricksX) << SHIFT;
+        int y0 = ((index / bricksX) % bricksY) << SHIFT;
+        int z0 = (index / (bricksX * bricksY)) << SHIFT;
+        short[] voxels = new short[BRICK_SIZE * BRICK_SIZE * BRICK_SIZE];
+        int v = 0;
+        for (int k = 0; k < BRICK_SIZE; k++) {
+            int z = Math.min(z0 + k, dimZ - 1);
+            for (int j = 0; j < BRICK_SIZE; j++) {
+                int y = Math.min(y0 + j, dimY - 1);
+                for (int i = 0; i < BRICK_SIZE; i++) {
+                    int x = Math.min(x0 + i, dimX - 1);
+                    if (floats) {
+                        float value = ((Float32Volume) source).getValue(x, y, z);
+                        voxels[v++] = (short) Float32Volume.toLevel(value, floatOffset, floatScale);
+                    } else {
+                        voxels[v++] = (short) source.getVoxel(x, y, z);
+                    }
+                }
+            }
+        }
+        return voxels;
+    }
+
+    /**
+     * Decodes a timestep. The bricks are decoded in parallel.
+     *
+     * @param t Index of the timestep.
+     * @return The voxels of the timestep, with their statistics computed.
+     */
+    public Volume decode(int t) {
+        final byte[][] bricks = getBricks(t);
+        final Volume volume = Volume.create(type, dimX, dimY, dimZ);
+        IntStream.range(0, bricks.length).parallel().forEach(index -> {
+            short[] voxels = new short[BRICK_SIZE * BRICK_SIZE * BRICK_SIZE];
+            BrickCodec.decode(bricks[index], 0, voxels, BRICK_SIZE);
+            int x0 = (index % bricksX) << SHIFT;
+            int y0 = ((index / bricksX) % bricksY) << SHIFT;
+            int z0 = (index / (bricksX * bricksY)) << SHIFT;
+            int xEnd = Math.min(BRICK_SIZE, dimX - x0);
+            int yEnd = Math.min(BRICK_SIZE, dimY - y0);
+            int zEnd = Math.min(BRICK_SIZE, dimZ - z0);
+            for (int k = 0; k < zEnd; k++) {
+                for (int j = 0; j < yEnd; j++) {
+                    int v = (k * BRICK_SIZE + j) * BRICK_SIZE;
+                    for (int i = 0; i < xEnd; i++) {
+                        volume.setVoxel(x0 + i, y0 + j, z0 + k, voxels[v + i]);
+                    }
+                }
+            }
+        });
+        volume.computeStatistics();
+        return volume;
+    }
+
+    private synchronized byte[][] getBricks(int t) {
+        return timesteps.get(t);
+    }
+
+    /**
+     * Finds the bricks that differ between two timesteps, from the bricks
+     * they share. A brick that changed and changed back between them counts
+     * as changed.
+     *
+     * @param from A timestep.
+     * @param to Another timestep.
+     * @return The changed bricks, indexed x fastest.
+     */
+    public BitSet getChangedBricks(int from, int to) {
+        byte[][] a = getBricks(from), b = getBricks(to);
+        BitSet changed = new BitSet(a.length);
+        if (from == to) {
+            return changed;
+        }
+        for (int index = 0; index < a.length; index++) {
+            if (a[index] != b[index]) {
+                changed.set(index);
+            }
+        }
+        return changed;
+    }
+
+    public synchronized int getTimestepCount() {
+        return timesteps.size();
+    }
+
+    public int getDimX() {
+        return dimX;
+    }
+
+    public int getDimY() {
+        return dimY;
+    }
+
+    public int getDimZ() {
+        return dimZ;
+    }
+
+    /**
+     * @return The type of the decoded timesteps.
+     */
+    public VoxelType getType() {
+        return type;
+    }
+
+    public int getBricksX() {
+        return bricksX;
+    }
+
+    public int getBricksY() {
+        return bricksY;
+    }
+
+    public int getBricksZ() {
+        return bricksZ;
+    }
+
+    /**
+     * @return Lowest voxel value of all timesteps.
+     */
+    public synchronized int getMinimum() {
+        return minimum;
+    }
+
+    /**
+     * @return Highest voxel value of all timesteps.
+     */
+    public synchronized int getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * @return Bytes of the encoded bricks, counting shared bricks once.
+     */
+    public synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * @return Number of bricks shared with the timestep before.
+     */
+    public synchronized int getSharedBrickCount() {
+        return sharedBricks;
+    }
+}
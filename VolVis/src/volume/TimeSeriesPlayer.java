@@ -0,0 +1,205 @@
+package volume;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays a {@link TimeSeries}. It keeps a sliding window of timesteps decoded
+ * ahead of the current one on background threads, each with its gradients,
+ * so stepping forward finds the next timestep ready. Moving to a timestep
+ * queues the timesteps of the new window and drops those that fell out of
+ * it; the window wraps around at the end of the series, since playback
+ * loops.
+ *
+ * The window is set with the system property volvis.timeseries.window
+ * (default 4 timesteps), the number of decoding threads with
+ * volvis.timeseries.threads (default 2).
+ */
+public class TimeSeriesPlayer {
+
+    private static final int WINDOW = Math.max(1, Integer.getInteger("volvis.timeseries.window", 4));
+
+    /**
+     * Timesteps are decoded on daemon threads, shared by all players.
+     */
+    private static final ExecutorService decoders = Executors.newFixedThreadPool(
+            Math.max(1, Integer.getInteger("volvis.timeseries.threads", 2)), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "timestep-decode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * A decoded timestep.
+     */
+    public static final class Timestep {
+
+        private final int index;
+        private final Volume volume;
+        private final GradientVolume gradients;
+
+        Timestep(int index, Volume volume, GradientVolume gradients) {
+            this.index = index;
+            this.volume = volume;
+            this.gradients = gradients;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Volume getVolume() {
+            return volume;
+        }
+
+        public GradientVolume getGradients() {
+            return gradients;
+        }
+    }
+
+    private final TimeSeries series;
+    private final int window;
+    /**
+     * Timesteps of the window, decoded or queued. Guarded by the player.
+     */
+    private final Map<Integer, Future<Timestep>> decoded = new HashMap<Integer, Future<Timestep>>();
+    private int current = 0;
+
+    /**
+     * Creates a player at the first timestep, with the window of the system
+     * properties.
+     */
+    public TimeSeriesPlayer(TimeSeries series) {
+        this(series, WINDOW);
+    }
+
+    /**
+     * Creates a player at the first timestep and starts decoding its window.
+     *
+     * @param series The series.
+     * @param window Number of timesteps kept decoded, from the current one
+     * on.
+     */
+    public TimeSeriesPlayer(TimeSeries series, int window) {
+        this.series = series;
+        this.window = Math.max(1, Math.min(window, series.getTimestepCount()));
+        setTimestep(0);
+    }
+
+    public TimeSeries getSeries() {
+        return series;
+    }
+
+    public synchronized int getTimestep() {
+        return current;
+    }
+
+    /**
+     * Moves to a timestep. The timesteps of its window are queued in
+     * playback order, and the others are dropped.
+     *
+     * @param t Index of the timestep.
+     */
+    public synchronized void setTimestep(int t) {
+        int count = series.getTimestepCount();
+        current = t;
+        Iterator<Map.Entry<Integer, Future<Timestep>>> it = decoded.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future<Timestep>> entry = it.next();
+            if (Math.floorMod(entry.getKey() - t, count) >= window) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+        for (int i = 0; i < window; i++) {
+            final int index = (t + i) % count;
+            if (!decoded.containsKey(index)) {
+                decoded.put(index, decoders.submit(new Callable<Timestep>() {
+                    @Override
+                    public Timestep call() {
+                        Volume volume = series.decode(index);
+                        return new Timestep(index, volume, GradientVolume.create(volume));
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * @return The timestep after the current one, wrapping around.
+     */
+    public synchronized int getNextTimestep() {
+        return (current + 1) % series.getTimestepCount();
+    }
+
+    /**
+     * Returns a timestep if it is decoded, without waiting.
+     *
+     * @param t Index of the timestep.
+     * @return The timestep, or null if it is still decoding or outside the
+     * window.
+     */
+    public Timestep poll(int t) {
+        Future<Timestep> future;
+        synchronized (this) {
+            future = decoded.get(t);
+        }
+        return future != null && future.isDone() ? get(future) : null;
+    }
+
+    /**
+     * Moves to a timestep and waits until it is decoded.
+     *
+     * @param t Index of the timestep.
+     * @return The timestep.
+     */
+    public Timestep get(int t) {
+        Future<Timestep> future;
+        synchronized (this) {
+            setTimestep(t);
+            future = decoded.get(t);
+        }
+        return get(future);
+    }
+
+    private static Timestep get(Future<Timestep> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException ex) {
+            return null;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Drops all decoded and queued timesteps.
+     */
+    public synchronized void close() {
+        for (Future<Timestep> future : decoded.values()) {
+            future.cancel(false);
+        }
+        decoded.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package volume;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A volume of unsigned 16-bit voxels, 0 to 65535, which a {@link Volume} of
+ * shorts would wrap to negative values above 32767.
+ */
+public final class UInt16Volume extends Volume {
+
+    private final char[] data;
+
+    public UInt16Volume(int xd, int yd, int zd) {
+        this(xd, yd, zd, new char[xd * yd * zd]);
+    }
+
+    /**
+     * Creates a volume around existing voxels, which it takes over without
+     * copying.
+     */
+    UInt16Volume(int xd, int yd, int zd, char[] data) {
+        super(xd, yd, zd, null);
+        this.data = data;
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        return data[x + getDimX() * (y + getDimY() * z)];
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        return data[i];
+    }
+
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        setVoxel(x + getDimX() * (y + getDimY() * z), value);
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        data[i] = (char) value;
+        invalidateStatistics();
+    }
+
+    @Override
+    public VoxelType getType() {
+        return VoxelType.UINT16;
+    }
+
+    @Override
+    public double sampleTrilinear(double x, double y, double z) {
+        int dimX = getDimX(), dimY = getDimY();
+        int xl = (int) x, yl = (int) y, zl = (int) z;
+        int dx = xl < dimX - 1 ? 1 : 0;
+        int dy = yl < dimY - 1 ? dimX : 0;
+        int dz = zl < getDimZ() - 1 ? dimX * dimY : 0;
+        int i = xl + dimX * (yl + dimY * zl);
+        char[] d = data;
+        return interpolate(x - xl, y - yl, z - zl, d[i], d[i + dx], d[i + dy], d[i + dx + dy],
+                d[i + dz], d[i + dx + dz], d[i + dy + dz], d[i + dx + dy + dz]);
+    }
+
+    @Override
+    void readVoxels(ByteBuffer source, long first, int count) {
+        source.asCharBuffer().get(data, (int) first, count);
+    }
+
+    @Override
+    long getVoxelByteSize() {
+        return data == null ? 0 : 2L * data.length;
+    }
+}
@@ -0,0 +1,75 @@
+package volume;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A volume of unsigned 8-bit voxels, 0 to 255. It takes one byte per voxel,
+ * half of a {@link Volume} of shorts.
+ */
+public final class UInt8Volume extends Volume {
+
+    private final byte[] data;
+
+    public UInt8Volume(int xd, int yd, int zd) {
+        this(xd, yd, zd, new byte[xd * yd * zd]);
+    }
+
+    /**
+     * Creates a volume around existing voxels, which it takes over without
+     * copying.
+     */
+    UInt8Volume(int xd, int yd, int zd, byte[] data) {
+        super(xd, yd, zd, null);
+        this.data = data;
+    }
+
+    @Override
+    public int getVoxel(int x, int y, int z) {
+        return data[x + getDimX() * (y + getDimY() * z)] & 0xFF;
+    }
+
+    @Override
+    public int getVoxel(int i) {
+        return data[i] & 0xFF;
+    }
+
+    @Override
+    public void setVoxel(int x, int y, int z, int value) {
+        setVoxel(x + getDimX() * (y + getDimY() * z), value);
+    }
+
+    @Override
+    public void setVoxel(int i, int value) {
+        data[i] = (byte) value;
+        invalidateStatistics();
+    }
+
+    @Override
+    public VoxelType getType() {
+        return VoxelType.UINT8;
+    }
+
+    @Override
+    public double sampleTrilinear(double x, double y, double z) {
+        int dimX = getDimX(), dimY = getDimY();
+        int xl = (int) x, yl = (int) y, zl = (int) z;
+        int dx = xl < dimX - 1 ? 1 : 0;
+        int dy = yl < dimY - 1 ? dimX : 0;
+        int dz = zl < getDimZ() - 1 ? dimX * dimY : 0;
+        int i = xl + dimX * (yl + dimY * zl);
+        byte[] d = data;
+        return interpolate(x - xl, y - yl, z - zl, d[i] & 0xFF, d[i + dx] & 0xFF, d[i + dy] & 0xFF,
+                d[i + dx + dy] & 0xFF, d[i + dz] & 0xFF, d[i + dx + dz] & 0xFF, d[i + dy + dz] & 0xFF,
+                d[i + dx + dy + dz] & 0xFF);
+    }
+
+    @Override
+    void readVoxels(ByteBuffer source, long first, int count) {
+        source.get(data, (int) first, count);
+    }
+
+    @Override
+    long getVoxelByteSize() {
+        return data == null ? 0 : data.length;
+    }
+}
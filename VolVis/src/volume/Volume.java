@@ -6,51 +6,174 @@ package volume;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+import telemetry.MemoryFootprint;
+import telemetry.Telemetry;
 
 /**
+ * A volume of signed 16-bit voxels. Volumes of other voxel types are
+ * subclasses that store their own primitive arrays; see {@link VoxelType}.
+ * Voxel values are ints, so unsigned values keep their sign, and the
+ * statistics, histograms and transfer functions all work on them.
  *
  * @author michel
  */
-public class Volume {
+public class Volume implements MemoryFootprint {
     
     public Volume(int xd, int yd, int zd) {
         data = new short[xd*yd*zd];
         dimX = xd;
         dimY = yd;
         dimZ = zd;
+        Telemetry.track(this);
     }
     
-    public Volume(File file) {
-        
-        try {
-            VolumeIO reader = new VolumeIO(file);
-            dimX = reader.getXDim();
-            dimY = reader.getYDim();
-            dimZ = reader.getZDim();
-            data = reader.getData().clone();
-            computeHistogram();
-        } catch (IOException ex) {
-            System.out.println("IO exception");
+    /**
+     * Creates a volume around existing voxels, which it takes over without
+     * copying. The histogram is not computed.
+     */
+    Volume(int xd, int yd, int zd, short[] data) {
+        this.data = data;
+        dimX = xd;
+        dimY = yd;
+        dimZ = zd;
+        Telemetry.track(this);
+    }
+
+    /**
+     * Reads an AVS field file into a volume of the voxel type of the file.
+     *
+     * @param file AVS field file.
+     * @return The volume, with its statistics.
+     * @throws IOException On read errors.
+     */
+    public static Volume load(File file) throws IOException {
+        Volume volume = new VolumeIO(file).getVolume();
+        volume.computeStatistics();
+        return volume;
+    }
+
+    /**
+     * Creates an empty volume. Volumes of integer voxels are kept off the
+     * heap in an {@link OffHeapVolume} if they are too large for an array or
+     * if that is enabled.
+     *
+     * @param type Voxel type.
+     * @param xd Size along x.
+     * @param yd Size along y.
+     * @param zd Size along z.
+     * @return The volume.
+     */
+    public static Volume create(VoxelType type, int xd, int yd, int zd) {
+        if (type != VoxelType.FLOAT32
+                && (OffHeapVolume.ENABLED || (long) xd * yd * zd > OffHeapVolume.MAX_ARRAY_LENGTH)) {
+            return new OffHeapVolume(type, xd, yd, zd);
+        }
+        switch (type) {
+            case UINT8:
+                return new UInt8Volume(xd, yd, zd);
+            case UINT16:
+                return new UInt16Volume(xd, yd, zd);
+            case FLOAT32:
+                return new Float32Volume(xd, yd, zd);
+            default:
+                return new Volume(xd, yd, zd);
         }
-        
     }
-    
-    
-    public short getVoxel(int x, int y, int z) {
+
+    public int getVoxel(int x, int y, int z) {
         return data[x + dimX*(y + dimY * z)];
     }
     
-    public void setVoxel(int x, int y, int z, short value) {
-        data[x + dimX*(y + dimY*z)] = value;
+    public void setVoxel(int x, int y, int z, int value) {
+        data[x + dimX*(y + dimY*z)] = (short) value;
+        invalidateStatistics();
     }
 
-    public void setVoxel(int i, short value) {
-        data[i] = value;
+    public void setVoxel(int i, int value) {
+        data[i] = (short) value;
+        invalidateStatistics();
     }
     
-    public short getVoxel(int i) {
+    public int getVoxel(int i) {
         return data[i];
     }
+
+    /**
+     * @return The type the voxels are stored in.
+     */
+    public VoxelType getType() {
+        return VoxelType.INT16;
+    }
+
+    /**
+     * Interpolates the voxels trilinearly. Subclasses that store their
+     * voxels in an array override this to read it directly, so every voxel
+     * type has its own sampler.
+     *
+     * @param x Position along x, at least 0 and less than the size along x.
+     * @param y Position along y, likewise.
+     * @param z Position along z, likewise.
+     * @return The interpolated value.
+     */
+    public double sampleTrilinear(double x, double y, double z) {
+        int xl = (int) x, yl = (int) y, zl = (int) z;
+        int xu = dimX - 1 > xl ? xl + 1 : xl;
+        int yu = dimY - 1 > yl ? yl + 1 : yl;
+        int zu = dimZ - 1 > zl ? zl + 1 : zl;
+        short[] d = data;
+        if (d == null) {
+            return interpolate(x - xl, y - yl, z - zl,
+                    getVoxel(xl, yl, zl), getVoxel(xu, yl, zl), getVoxel(xl, yu, zl), getVoxel(xu, yu, zl),
+                    getVoxel(xl, yl, zu), getVoxel(xu, yl, zu), getVoxel(xl, yu, zu), getVoxel(xu, yu, zu));
+        }
+        int i = xl + dimX * (yl + dimY * zl);
+        int dx = xu - xl, dy = (yu - yl) * dimX, dz = (zu - zl) * dimX * dimY;
+        return interpolate(x - xl, y - yl, z - zl, d[i], d[i + dx], d[i + dy], d[i + dx + dy],
+                d[i + dz], d[i + dx + dz], d[i + dy + dz], d[i + dx + dy + dz]);
+    }
+
+    /**
+     * Trilinear interpolation of the corners of a cell, s0 at the lower
+     * corner and x changing fastest.
+     *
+     * @param alpha Position in the cell along x, 0 to 1.
+     * @param beta Position in the cell along y.
+     * @param gamma Position in the cell along z.
+     */
+    static double interpolate(double alpha, double beta, double gamma, double s0, double s1, double s2,
+            double s3, double s4, double s5, double s6, double s7) {
+        return (1 - alpha) * (1 - beta) * (1 - gamma) * s0 + alpha * (1 - beta) * (1 - gamma) * s1
+                + (1 - alpha) * beta * (1 - gamma) * s2 + alpha * beta * (1 - gamma) * s3
+                + (1 - alpha) * (1 - beta) * gamma * s4 + alpha * (1 - beta) * gamma * s5
+                + (1 - alpha) * beta * gamma * s6 + alpha * beta * gamma * s7;
+    }
+
+    /**
+     * Reads voxels stored in the layout of the voxel type.
+     *
+     * @param source The stored voxels, from its position, in its byte order.
+     * @param first Index of the first voxel.
+     * @param count Number of voxels.
+     */
+    void readVoxels(ByteBuffer source, long first, int count) {
+        source.asShortBuffer().get(data, (int) first, count);
+    }
+
+    /**
+     * Writes a voxel in the layout of the voxel type.
+     *
+     * @param target Receives the voxel, little-endian.
+     * @param i Index of the voxel.
+     */
+    void writeVoxel(ByteBuffer target, int i) {
+        if (getType() == VoxelType.UINT8) {
+            target.put((byte) getVoxel(i));
+        } else {
+            target.putShort((short) getVoxel(i));
+        }
+    }
     
     public int getDimX() {
         return dimX;
@@ -64,34 +187,115 @@ public class Volume {
         return dimZ;
     }
 
-    public short getMinimum() {
-        short minimum = data[0];
-        for (int i=0; i<data.length; i++) {
-            minimum = data[i] < minimum ? data[i] : minimum;
+    /**
+     * Copies a box of voxels into a volume of its own of the same voxel type,
+     * e.g. to render a region of interest of a large volume as cheaply as a
+     * small one. The slices are copied in parallel, and the statistics of
+     * the box are computed; its gradients are left to the caller.
+     *
+     * @param x0 First voxel along x.
+     * @param y0 First voxel along y.
+     * @param z0 First voxel along z.
+     * @param x1 Voxel after the last one along x.
+     * @param y1 Voxel after the last one along y.
+     * @param z1 Voxel after the last one along z.
+     * @return The voxels of the box.
+     */
+    public Volume crop(final int x0, final int y0, final int z0, int x1, int y1, int z1) {
+        if (x0 < 0 || y0 < 0 || z0 < 0 || x1 > getDimX() || y1 > getDimY() || z1 > getDimZ() || x0 >= x1
+                || y0 >= y1 || z0 >= z1) {
+            throw new IllegalArgumentException("Crop box " + x0 + "," + y0 + "," + z0 + " - " + x1 + "," + y1
+                    + "," + z1 + " is empty or outside the volume");
         }
-        return minimum;
+        final Volume box = create(getType(), x1 - x0, y1 - y0, z1 - z0);
+        IntStream.range(0, box.getDimZ()).parallel().forEach(z -> {
+            for (int y = 0; y < box.getDimY(); y++) {
+                for (int x = 0; x < box.getDimX(); x++) {
+                    copyVoxel(box, x, y, z, x0 + x, y0 + y, z0 + z);
+                }
+            }
+        });
+        box.computeStatistics();
+        return box;
     }
 
-    public short getMaximum() {
-        short maximum = data[0];
-        for (int i=0; i<data.length; i++) {
-            maximum = data[i] > maximum ? data[i] : maximum;
-        }
-        return maximum;
+    /**
+     * Copies a voxel into a volume of the same voxel type.
+     */
+    void copyVoxel(Volume target, int x, int y, int z, int sourceX, int sourceY, int sourceZ) {
+        target.setVoxel(x, y, z, getVoxel(sourceX, sourceY, sourceZ));
+    }
+
+    public int getMinimum() {
+        return getStatistics().getMinimum();
+    }
+
+    public int getMaximum() {
+        return getStatistics().getMaximum();
     }
  
     public int[] getHistogram() {
-        return histogram;
+        return getStatistics().getHistogram();
     }
-    
-    private void computeHistogram() {
-        histogram = new int[getMaximum() + 1];
-        for (int i=0; i<data.length; i++) {
-            histogram[data[i]]++;
+
+    /**
+     * Returns the statistics of the voxels, computing them on first use.
+     * They are shared until a voxel changes.
+     *
+     * @return The statistics.
+     */
+    public VolumeStatistics getStatistics() {
+        VolumeStatistics result = statistics;
+        if (result == null) {
+            synchronized (this) {
+                result = statistics;
+                if (result == null) {
+                    result = VolumeStatistics.compute(this);
+                    statistics = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sets statistics computed before, e.g. restored from a
+     * {@link VolumeCache}.
+     */
+    void setStatistics(VolumeStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Computes the statistics again, after the voxels were changed other
+     * than through {@link #setVoxel(int, int)}, e.g. by a loader.
+     */
+    synchronized void computeStatistics() {
+        statistics = VolumeStatistics.compute(this);
+    }
+
+    void invalidateStatistics() {
+        // only the first change writes the volatile field
+        if (statistics != null) {
+            statistics = null;
         }
     }
+
+    @Override
+    public long getByteSize() {
+        long bytes = getVoxelByteSize();
+        VolumeStatistics current = statistics;
+        return current == null ? bytes : bytes + current.getByteSize();
+    }
+
+    /**
+     * @return Bytes held by the voxels.
+     */
+    long getVoxelByteSize() {
+        return data == null ? 0 : 2L * data.length;
+    }
     
     private int dimX, dimY, dimZ;
     private short[] data;
-    private int[] histogram;
+    private volatile VolumeStatistics statistics;
 }
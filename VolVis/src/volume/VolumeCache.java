@@ -0,0 +1,342 @@
+package volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file next to an AVS field file, name.fld.vvcache, holding all that
+ * is derived from the volume when it is loaded: the voxels in their
+ * {@link VoxelType}, gradients, the 1D and 2D histograms and the maximum
+ * gradient magnitude. Reopening the volume from it takes a bulk copy of the
+ * voxels and mapping the gradients, instead of decoding the field file and
+ * computing the rest again. The voxels are stored in the order of the
+ * volume rather than in bricks, since the volume they are copied into keeps
+ * them in that order; volumes too large to copy use a brick file, see
+ * {@link BrickedVolume}.
+ *
+ * The cache stores the length, modification time and a checksum of the
+ * field file, and is ignored when they do not match. The checksum covers
+ * samples of the file spread over its whole length, so it is cheap for large
+ * files. Sections are stored little-endian and 64-byte aligned, so they can
+ * be mapped as they are. Caching is switched off with the system property
+ * volvis.cache=false.
+ */
+public class VolumeCache {
+
+    public static final String EXTENSION = ".vvcache";
+
+    public static final boolean ENABLED = !"false".equals(System.getProperty("volvis.cache"));
+
+    private static final byte[] MAGIC = {'V', 'V', 'C', 'A', 'C', 'H', 'E', '4'};
+    private static final int HEADER_SIZE = 128;
+    private static final int ALIGNMENT = 64;
+
+    /**
+     * Number and size of the samples of the field file the checksum covers.
+     */
+    private static final int CHECKSUM_SAMPLES = 64;
+    private static final int CHECKSUM_SAMPLE_SIZE = 1 << 16;
+
+    /**
+     * Bytes written per buffer.
+     */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Offsets of the sections, which follow from the header.
+     */
+    private static class Layout {
+
+        final long voxels, gradients, histogram, histogram2D, end;
+
+        Layout(int dimX, int dimY, int dimZ, VoxelType type, int histogramLength, int histogram2DLength) {
+            long count = (long) dimX * dimY * dimZ;
+            voxels = HEADER_SIZE;
+            gradients = align(voxels + type.getBytes() * count);
+            histogram = align(gradients + 16 * count);
+            histogram2D = align(histogram + 4L * histogramLength);
+            end = histogram2D + 4L * histogram2DLength;
+        }
+
+        private static long align(long offset) {
+            return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        }
+    }
+
+    private final Volume volume;
+    private final GradientVolume gradients;
+
+    private VolumeCache(Volume volume, GradientVolume gradients) {
+        this.volume = volume;
+        this.gradients = gradients;
+    }
+
+    /**
+     * @param source A volume file.
+     * @return True if it can have a cache. Only AVS field files do; the
+     * other formats may keep their data in other files, which the checksum
+     * of the source does not cover.
+     */
+    public static boolean canCache(File source) {
+        return VolumeIO.formatOf(source) == VolumeIO.Format.AVS;
+    }
+
+    /**
+     * @param source AVS field file.
+     * @return The cache file of source.
+     */
+    public static File getCacheFile(File source) {
+        return new File(source.getPath() + EXTENSION);
+    }
+
+    /**
+     * Opens the cache of a field file.
+     *
+     * @param source AVS field file.
+     * @return The cache, or null if there is none or it does not match the
+     * field file.
+     * @throws IOException If the cache cannot be read.
+     */
+    public static VolumeCache open(File source) throws IOException {
+        File file = getCacheFile(source);
+        if (!file.isFile()) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header.get(i) != MAGIC[i]) {
+                    System.out.println("Ignoring " + file.getName() + ": not a volume cache");
+                    return null;
+                }
+            }
+            if (header.getLong(8) != source.length() || header.getLong(16) != source.lastModified()
+                    || header.getLong(24) != checksum(source)) {
+                System.out.println("Ignoring " + file.getName() + ": " + source.getName() + " has changed");
+                return null;
+            }
+            int dimX = header.getInt(32), dimY = header.getInt(36), dimZ = header.getInt(40);
+            int minimum = header.getInt(48), maximum = header.getInt(52);
+            double maxGradientMagnitude = header.getDouble(56);
+            int histogramLength = header.getInt(64);
+            int histogram2DLength = header.getInt(68);
+            int valueBins = header.getInt(72), magnitudeBins = header.getInt(76);
+            int typeIndex = header.getInt(80);
+            if (typeIndex < 0 || typeIndex >= VoxelType.values().length) {
+                System.out.println("Ignoring " + file.getName() + ": unknown voxel type");
+                return null;
+            }
+            VoxelType type = VoxelType.values()[typeIndex];
+            Layout layout = new Layout(dimX, dimY, dimZ, type, histogramLength, histogram2DLength);
+            if (channel.size() < layout.end || histogramLength != Math.max(0, maximum) + 1) {
+                System.out.println("Ignoring " + file.getName() + ": truncated");
+                return null;
+            }
+
+            int count = dimX * dimY * dimZ;
+            Volume volume = Volume.create(type, dimX, dimY, dimZ);
+            for (int first = 0; first < count; first += MappedGradientVolume.VOXELS_PER_BUFFER) {
+                int n = Math.min(MappedGradientVolume.VOXELS_PER_BUFFER, count - first);
+                volume.readVoxels(channel.map(FileChannel.MapMode.READ_ONLY,
+                        layout.voxels + (long) type.getBytes() * first, (long) type.getBytes() * n)
+                        .order(ByteOrder.LITTLE_ENDIAN), first, n);
+            }
+            if (volume instanceof Float32Volume) {
+                ((Float32Volume) volume).updateRange();
+            }
+            if (minimum >= 0) {
+                volume.setStatistics(VolumeStatistics.fromHistogram(minimum, maximum,
+                        readInts(channel, layout.histogram, histogramLength)));
+            }
+            if (CompressedVolume.ENABLED) {
+                volume = VolumeLoader.compress(volume);
+            }
+
+            // the mappings stay valid after the channel is closed
+            MappedByteBuffer[] maps = new MappedByteBuffer[(count + MappedGradientVolume.VOXELS_PER_BUFFER - 1)
+                    / MappedGradientVolume.VOXELS_PER_BUFFER];
+            for (int m = 0; m < maps.length; m++) {
+                long first = (long) m * MappedGradientVolume.VOXELS_PER_BUFFER;
+                long n = Math.min(MappedGradientVolume.VOXELS_PER_BUFFER, count - first);
+                maps[m] = channel.map(FileChannel.MapMode.READ_ONLY, layout.gradients + 16 * first, 16 * n);
+            }
+            GradientVolume gradients = new MappedGradientVolume(volume, maps, maxGradientMagnitude);
+            if (histogram2DLength > 0 && histogram2DLength == valueBins * magnitudeBins) {
+                Histogram2D histogram2D = new Histogram2D(valueBins, magnitudeBins, Math.max(0, maximum),
+                        maxGradientMagnitude, readInts(channel, layout.histogram2D, histogram2DLength));
+                // one with other bins is computed again when it is needed
+                if (histogram2D.hasConfiguredBins()) {
+                    gradients.set2DHistogram(histogram2D);
+                }
+            }
+
+            return new VolumeCache(volume, gradients);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the cache of a field file. It is written to a temporary file
+     * first, so a partly written cache is never used.
+     *
+     * @param source AVS field file the volume was read from.
+     * @param volume The volume.
+     * @param gradients Gradients of the volume.
+     * @throws IOException If the cache cannot be written, or the volume has
+     * more than 2^31 voxels.
+     */
+    public static void write(File source, Volume volume, GradientVolume gradients) throws IOException {
+        int dimX = volume.getDimX(), dimY = volume.getDimY(), dimZ = volume.getDimZ();
+        if ((long) dimX * dimY * dimZ > Integer.MAX_VALUE) {
+            throw new IOException("volumes of more than 2^31 voxels are not cached");
+        }
+        int[] histogram = volume.getHistogram();
+        Histogram2D histogram2D = gradients.get2DHistogram();
+        int[] counts2D = histogram2D.getCounts();
+        VoxelType type = volume.getType();
+        Layout layout = new Layout(dimX, dimY, dimZ, type, histogram.length, counts2D.length);
+        int count = dimX * dimY * dimZ;
+
+        File file = getCacheFile(source);
+        File temporary = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = layout.voxels;
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < type.getBytes()) {
+                    position = flush(channel, buffer, position);
+                }
+                volume.writeVoxel(buffer, i);
+            }
+            flush(channel, buffer, position);
+
+            position = layout.gradients;
+            for (int i = 0; i < count; i++) {
+                if (buffer.remaining() < 16) {
+                    position = flush(channel, buffer, position);
+                }
+                VoxelGradient gradient = gradients.getVoxel(i);
+                buffer.putFloat(gradient.x).putFloat(gradient.y).putFloat(gradient.z).putFloat(gradient.mag);
+            }
+            flush(channel, buffer, position);
+
+            position = layout.histogram;
+            for (int bin : histogram) {
+                if (buffer.remaining() < 4) {
+                    position = flush(channel, buffer, position);
+                }
+                buffer.putInt(bin);
+            }
+            flush(channel, buffer, position);
+
+            position = layout.histogram2D;
+            for (int bin : counts2D) {
+                if (buffer.remaining() < 4) {
+                    position = flush(channel, buffer, position);
+                }
+                buffer.putInt(bin);
+            }
+            flush(channel, buffer, position);
+
+            // the header last, so a cache is only valid when it is complete
+            buffer.put(MAGIC);
+            buffer.putLong(source.length()).putLong(source.lastModified()).putLong(checksum(source));
+            // the int after the dimensions is unused
+            buffer.putInt(dimX).putInt(dimY).putInt(dimZ).putInt(0);
+            buffer.putInt(volume.getMinimum()).putInt(volume.getMaximum());
+            buffer.putDouble(gradients.getMaxGradientMagnitude());
+            buffer.putInt(histogram.length).putInt(counts2D.length);
+            buffer.putInt(histogram2D.getValueBins()).putInt(histogram2D.getMagnitudeBins());
+            buffer.putInt(type.ordinal());
+            flush(channel, buffer, 0);
+        } finally {
+            raf.close();
+        }
+        if (file.exists() && !file.delete() || !temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /**
+     * Checksum of the length and of evenly spread samples of a file.
+     */
+    private static long checksum(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        RandomAccessFile raf = new RandomAccessFile(source, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            ByteBuffer sample = ByteBuffer.allocate(CHECKSUM_SAMPLE_SIZE);
+            long stride = Math.max(CHECKSUM_SAMPLE_SIZE, length / CHECKSUM_SAMPLES);
+            for (long position = 0; position < length; position += stride) {
+                sample.clear();
+                sample.limit((int) Math.min(CHECKSUM_SAMPLE_SIZE, length - position));
+                readFully(channel, sample, position);
+                crc.update(sample.array(), 0, sample.limit());
+            }
+        } finally {
+            raf.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    private static int[] readInts(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        int[] values = new int[length];
+        buffer.flip();
+        buffer.asIntBuffer().get(values);
+        return values;
+    }
+
+    /**
+     * Writes and clears a buffer.
+     *
+     * @return The position after the written bytes.
+     */
+    private static long flush(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+        return position;
+    }
+
+    /**
+     * @return The volume, with its histogram.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * @return The gradients, with the 2D histogram.
+     */
+    public GradientVolume getGradients() {
+        return gradients;
+    }
+}
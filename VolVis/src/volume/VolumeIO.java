@@ -5,71 +5,797 @@
 package volume;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import telemetry.Telemetry;
 
 /**
+ * Reads volumes of bytes, shorts or floats from AVS field files, MetaImage
+ * (.mhd/.mha) and NRRD (.nrrd/.nhdr) files, and directories of DICOM slices.
+ * Every format only parses its header into a description of the data
+ * section: the file it is in, its offset, byte order and encoding. Raw data
+ * sections are memory-mapped and decoded in bulk straight into a volume of
+ * the voxel type of the file, so loading needs little more heap than the
+ * volume itself. Compressed ones, and gzip compressed files such as .fld.gz
+ * or .raw.gz, are inflated by {@link CompressedInput} a slab ahead of the
+ * decoding, or in parallel for BGZF files. DICOM slices are decoded by
+ * {@link DicomSeries}, many in parallel. Volumes too large for a Java array
+ * are read into an {@link OffHeapVolume}.
  *
  * @author michel
  */
 public class VolumeIO {
-    
+
+    /**
+     * Maximum length of the header that is searched for the form feeds, or
+     * the end of a MetaImage or NRRD header.
+     */
+    private static final int MAX_HEADER_LENGTH = 1 << 20;
+
+    /**
+     * Data sections larger than this are decoded in parallel.
+     */
+    private static final long PARALLEL_THRESHOLD = 8L << 20;
+
+    /**
+     * Bytes mapped and decoded per task.
+     */
+    private static final int CHUNK_SIZE = 1 << 22;
+
+    /**
+     * File formats, told apart by {@link #formatOf(File)}.
+     */
+    enum Format {
+        AVS, METAIMAGE, NRRD, DICOM
+    }
+
+    /**
+     * Encodings of a data section.
+     */
+    private enum Encoding {
+        RAW, GZIP, ZLIB
+    }
+
+    /**
+     * Receives the progress of a load with
+     * {@link VolumeIO#VolumeIO(File, SlabListener)}.
+     */
+    public interface SlabListener {
+
+        /**
+         * Called after every slab that was read.
+         *
+         * @param reader The reader. Its volume is created before the first
+         * call, and the slices below slices are final.
+         * @param slices Number of slices read so far.
+         * @return False to cancel the load.
+         */
+        public boolean slabRead(VolumeIO reader, int slices);
+    }
+
     public VolumeIO(File file) throws IOException {
-        BufferedInputStream stream = null;
+        this(file, null);
+    }
+
+    /**
+     * Reads a file slab by slab along z, reporting progress after every slab,
+     * so the volume can be shown while it is loading.
+     *
+     * @param file AVS field file, MetaImage or NRRD header, or directory of
+     * DICOM slices.
+     * @param listener Listener, or null to decode all data at once, in
+     * parallel for large files.
+     * @throws IOException On read errors, and InterruptedIOException if the
+     * listener cancelled the load.
+     */
+    public VolumeIO(File file, SlabListener listener) throws IOException {
+        this(file, listener, true);
+    }
+
+    /**
+     * Reads the header, and the data if readData is set. Without the data
+     * the reader only describes the file, e.g. for
+     * {@link BrickedVolumeWriter}, which maps the data section itself.
+     */
+    VolumeIO(File file, SlabListener listener, boolean readData) throws IOException {
+        Object event = Telemetry.beginVolumeLoad();
+        DicomSeries series = null;
+        switch (formatOf(file)) {
+            case DICOM:
+                series = new DicomSeries(file);
+                x_dim = series.getColumns();
+                y_dim = series.getRows();
+                z_dim = series.getSliceCount();
+                type = series.getType();
+                break;
+            case METAIMAGE:
+                readMetaImageHeader(file);
+                break;
+            case NRRD:
+                readNrrdHeader(file);
+                break;
+            default:
+                readFieldHeader(file);
+        }
+        if (type == null) {
+            throw new IOException("Unsupported data type in " + file);
+        }
+
+        long voxelCount = (long) x_dim * y_dim * z_dim;
+        if (x_dim <= 0 || y_dim <= 0 || z_dim <= 0) {
+            throw new IOException("Unsupported volume size " + x_dim + " x " + y_dim + " x " + z_dim);
+        }
+        long byteCount = voxelCount * type.getBytes();
+        if (dataFile != null && encoding == Encoding.RAW && CompressedInput.isGzip(dataFile)) {
+            // a .gz file, or a raw data file that was gzipped: its offsets
+            // count uncompressed bytes
+            if (dataOffset < 0) {
+                throw new IOException("Data at the end of a gzip file is not supported: " + file);
+            }
+            encoding = Encoding.GZIP;
+            skip = dataOffset;
+            dataOffset = 0;
+        }
+        if (dataFile != null && encoding == Encoding.RAW) {
+            if (dataOffset < 0) {
+                // the data is at the end of the file
+                dataOffset = dataFile.length() - byteCount;
+            }
+            long available = dataFile.length() - dataOffset;
+            if (available < byteCount) {
+                throw new IOException("File is truncated: expected " + byteCount + " bytes of data, found "
+                        + available);
+            }
+        }
+
+        if (!readData) {
+            return;
+        }
+
+        volume = Volume.create(type, x_dim, y_dim, z_dim);
+        if (series != null) {
+            readSeries(series, listener);
+        } else if (encoding != Encoding.RAW) {
+            readStream(listener);
+        } else {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                if (listener == null) {
+                    decode(channel, dataOffset, byteCount);
+                } else {
+                    decodeSlabs(channel, dataOffset, listener);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        Telemetry.endVolumeLoad(event, file.getPath(), x_dim, y_dim, z_dim, byteCount);
+    }
+
+    /**
+     * @param file A file or directory.
+     * @return The format it is read as: DICOM for directories, else by the
+     * extension, AVS if it is none of the others.
+     */
+    static Format formatOf(File file) {
+        if (file.isDirectory()) {
+            return Format.DICOM;
+        }
+        String name = baseName(file);
+        if (name.endsWith(".mhd") || name.endsWith(".mha")) {
+            return Format.METAIMAGE;
+        }
+        if (name.endsWith(".nrrd") || name.endsWith(".nhdr")) {
+            return Format.NRRD;
+        }
+        return Format.AVS;
+    }
+
+    /**
+     * @return The name of a file in lower case, without a .gz extension.
+     */
+    private static String baseName(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".gz") ? name.substring(0, name.length() - 3) : name;
+    }
+
+    /**
+     * @param file A file.
+     * @return True if it has the extension of a format that can be read,
+     * gzip compressed or not. Directories of DICOM slices are not
+     * recognised.
+     */
+    public static boolean isVolumeFile(File file) {
+        return baseName(file).endsWith(".fld") || formatOf(file) == Format.METAIMAGE || formatOf(file) == Format.NRRD;
+    }
+
+    /**
+     * Reads the header of an AVS field file, which is followed by the data.
+     */
+    private void readFieldHeader(File file) throws IOException {
+        InputStream in = CompressedInput.open(file);
         try {
-            stream = new BufferedInputStream(new FileInputStream(file));
-            
-            stream.mark(2000);
-            byte[] magicCode = new byte[16];
-            if (stream.read(magicCode) == 16) {
-                String headerText = new String(magicCode);
-                if (headerText.compareTo("# AVS field file") != 0) {
-                    System.out.println("not a valid file");
-                } 
-            } 
-            stream.reset();
-            int headerLength = 1;
-            while (stream.read() != '\f') {
-                headerLength++;
+            byte[] h = readHeader(in);
+            String header = new String(h, "US-ASCII");
+            if (!header.startsWith("# AVS field file")) {
+                System.out.println("not a valid file");
             }
+            parseHeader(header);
+            dataFile = file;
             // skip also next ^L
-            headerLength++;
-            stream.reset();
-            
-            byte[] h = new byte[headerLength];
-            if (stream.read(h) == headerLength) {
-                String header = new String(h);
-                parseHeader(header);
-            }
-
-            int byteCount = x_dim*y_dim*z_dim*data_type;
-            byte[] d = new byte[byteCount];
-
-            if (stream.read(d) == byteCount) {
-                //System.out.println("read " + byteCount + " bytes");
-            }
-            
-            data = new short[x_dim * y_dim * z_dim];
-            if (data_type == 1) { //bytes
-                for (int i=0; i<byteCount; i++) {
-                    data[i] = (short) (d[i] & 0xFF);
+            dataOffset = h.length + 1;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the header up to and including the first of the two form feeds
+     * that end it.
+     */
+    private static byte[] readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (header.size() < MAX_HEADER_LENGTH) {
+            int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            header.write(b);
+            if (b == '\f') {
+                return header.toByteArray();
+            }
+        }
+        throw new IOException("No end of AVS header found");
+    }
+
+    /**
+     * Reads the start of a file that holds a text header, inflated if the
+     * file is gzip compressed.
+     *
+     * @return Up to {@link #MAX_HEADER_LENGTH} bytes, fewer if that is the
+     * whole file.
+     */
+    private static byte[] readStart(File file) throws IOException {
+        InputStream in = CompressedInput.open(file);
+        try {
+            byte[] start = new byte[MAX_HEADER_LENGTH];
+            int n = 0;
+            for (int read = 0; n < start.length && read >= 0; n += Math.max(read, 0)) {
+                read = in.read(start, n, start.length - n);
+            }
+            return Arrays.copyOf(start, n);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return Index of the end of the line at pos, the length of the header
+     * if it is the last line of the file, or -1 if the line is not complete.
+     */
+    private static int lineEnd(byte[] header, int pos) {
+        for (int i = pos; i < header.length; i++) {
+            if (header[i] == '\n') {
+                return i;
+            }
+        }
+        return pos < header.length && isWholeFile(header) ? header.length : -1;
+    }
+
+    /**
+     * @return True if the start of a file read by {@link #readStart(File)}
+     * is the whole file.
+     */
+    private static boolean isWholeFile(byte[] start) {
+        return start.length < MAX_HEADER_LENGTH;
+    }
+
+    private static String line(byte[] header, int pos, int end) throws IOException {
+        return new String(header, pos, end - pos, "US-ASCII").trim();
+    }
+
+    private static int[] parseSizes(String value, File file) throws IOException {
+        String[] parts = value.trim().split("\\s+");
+        if (parts.length != 3) {
+            throw new IOException("Only 3D files supported: " + file);
+        }
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])};
+    }
+
+    /**
+     * Reads a MetaImage header, of a .mha file with the data in it or a .mhd
+     * file with the data in a file of its own.
+     */
+    private void readMetaImageHeader(File file) throws IOException {
+        byte[] header = readStart(file);
+        int pos = 0, dimensions = 3, channels = 1;
+        long headerSize = 0;
+        String dataName = null;
+        while (dataName == null) {
+            int end = lineEnd(header, pos);
+            if (end < 0) {
+                throw new IOException("No ElementDataFile in " + file);
+            }
+            String line = line(header, pos, end);
+            pos = end + 1;
+            int equals = line.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            String key = line.substring(0, equals).trim(), value = line.substring(equals + 1).trim();
+            switch (key) {
+                case "NDims":
+                    dimensions = Integer.parseInt(value);
+                    break;
+                case "DimSize":
+                    int[] sizes = parseSizes(value, file);
+                    x_dim = sizes[0];
+                    y_dim = sizes[1];
+                    z_dim = sizes[2];
+                    break;
+                case "ElementType":
+                    type = metaImageType(value);
+                    if (type == null) {
+                        System.out.println("Data type not recognized");
+                        System.out.println("data type: " + value);
+                    }
+                    break;
+                case "ElementByteOrderMSB":
+                case "BinaryDataByteOrderMSB":
+                    order = value.equalsIgnoreCase("True") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                    break;
+                case "ElementNumberOfChannels":
+                    channels = Integer.parseInt(value);
+                    break;
+                case "CompressedData":
+                    encoding = value.equalsIgnoreCase("True") ? Encoding.ZLIB : Encoding.RAW;
+                    break;
+                case "HeaderSize":
+                    headerSize = Long.parseLong(value);
+                    break;
+                case "ElementDataFile":
+                    dataName = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (dimensions != 3) {
+            throw new IOException("Only 3D files supported: " + file);
+        }
+        if (channels != 1) {
+            throw new IOException("Only scalar data are supported: " + file);
+        }
+        if (dataName.equals("LOCAL")) {
+            dataFile = file;
+            dataOffset = pos;
+        } else if (dataName.startsWith("LIST") || dataName.contains("%")) {
+            throw new IOException("Data split over several files is not supported: " + file);
+        } else {
+            dataFile = new File(file.getAbsoluteFile().getParentFile(), dataName);
+            dataOffset = headerSize;
+        }
+    }
+
+    private static VoxelType metaImageType(String name) {
+        switch (name) {
+            case "MET_UCHAR":
+                return VoxelType.UINT8;
+            case "MET_SHORT":
+                return VoxelType.INT16;
+            case "MET_USHORT":
+                return VoxelType.UINT16;
+            case "MET_FLOAT":
+                return VoxelType.FLOAT32;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a NRRD header, of a .nrrd file with the data after the blank
+     * line that ends it or a .nhdr file with a separate data file.
+     */
+    private void readNrrdHeader(File file) throws IOException {
+        byte[] header = readStart(file);
+        int pos = lineEnd(header, 0);
+        if (pos < 0 || !line(header, 0, pos).startsWith("NRRD000")) {
+            throw new IOException("Not a NRRD file: " + file);
+        }
+        pos++;
+        int dimension = 0, lineSkip = 0;
+        long byteSkip = 0;
+        String dataName = null;
+        while (true) {
+            int end = lineEnd(header, pos);
+            if (end < 0) {
+                if (dataName != null && isWholeFile(header)) {
+                    // a detached header need not end with a blank line
+                    break;
+                }
+                throw new IOException("No end of NRRD header found");
+            }
+            String line = line(header, pos, end);
+            pos = end + 1;
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(": ");
+            if (line.startsWith("#") || line.contains(":=") || colon < 0) {
+                continue;
+            }
+            String key = line.substring(0, colon), value = line.substring(colon + 2).trim();
+            switch (key) {
+                case "type":
+                    type = nrrdType(value);
+                    if (type == null) {
+                        System.out.println("Data type not recognized");
+                        System.out.println("data type: " + value);
+                    }
+                    break;
+                case "dimension":
+                    dimension = Integer.parseInt(value);
+                    break;
+                case "sizes":
+                    int[] sizes = parseSizes(value, file);
+                    x_dim = sizes[0];
+                    y_dim = sizes[1];
+                    z_dim = sizes[2];
+                    break;
+                case "endian":
+                    order = value.equals("big") ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+                    break;
+                case "encoding":
+                    if (value.equals("raw")) {
+                        encoding = Encoding.RAW;
+                    } else if (value.equals("gzip") || value.equals("gz")) {
+                        encoding = Encoding.GZIP;
+                    } else {
+                        throw new IOException("Unsupported encoding " + value + " in " + file);
+                    }
+                    break;
+                case "data file":
+                case "datafile":
+                    dataName = value;
+                    break;
+                case "byte skip":
+                case "byteskip":
+                    byteSkip = Long.parseLong(value);
+                    break;
+                case "line skip":
+                case "lineskip":
+                    lineSkip = Integer.parseInt(value);
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (dimension != 3) {
+            throw new IOException("Only 3D files supported: " + file);
+        }
+        if (dataName == null) {
+            dataFile = file;
+            dataOffset = pos;
+        } else if (dataName.startsWith("LIST") || dataName.contains("%")) {
+            throw new IOException("Data split over several files is not supported: " + file);
+        } else {
+            dataFile = new File(file.getAbsoluteFile().getParentFile(), dataName);
+            dataOffset = 0;
+        }
+        dataOffset = skipLines(dataFile, dataOffset, lineSkip);
+        if (encoding == Encoding.RAW) {
+            dataOffset = byteSkip < 0 ? -1 : dataOffset + byteSkip;
+        } else {
+            // the bytes skipped are in the decompressed data
+            skip = byteSkip;
+        }
+    }
+
+    private static VoxelType nrrdType(String name) {
+        switch (name) {
+            case "uchar":
+            case "unsigned char":
+            case "uint8":
+            case "uint8_t":
+                return VoxelType.UINT8;
+            case "short":
+            case "short int":
+            case "signed short":
+            case "signed short int":
+            case "int16":
+            case "int16_t":
+                return VoxelType.INT16;
+            case "ushort":
+            case "unsigned short":
+            case "unsigned short int":
+            case "uint16":
+            case "uint16_t":
+                return VoxelType.UINT16;
+            case "float":
+                return VoxelType.FLOAT32;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Offset of the line lines after the one at offset.
+     */
+    private static long skipLines(File file, long offset, int lines) throws IOException {
+        if (lines == 0) {
+            return offset;
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            CompressedInput.skipFully(in, offset);
+            while (lines > 0) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException("Line skip beyond the end of " + file);
                 }
-            } else if (data_type == 2) { //shorts
-                for (int i=0; i<byteCount; i+=2) {
-                    short value = (short) ((d[i]&0xFF) + (d[i+1]&0xFF)*256);
-                    data[i/2] = value;
+                offset++;
+                if (b == '\n') {
+                    lines--;
                 }
             }
-            
+            return offset;
         } finally {
-            if (stream != null) {
-                stream.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the slices of a DICOM series in batches of at least one slice per
+     * core, which {@link DicomSeries} decodes in parallel.
+     */
+    private void readSeries(DicomSeries series, SlabListener listener) throws IOException {
+        long sliceBytes = (long) x_dim * y_dim * type.getBytes();
+        int batch = listener == null ? z_dim : (int) Math.max(Runtime.getRuntime().availableProcessors(),
+                CHUNK_SIZE / sliceBytes);
+        for (int z = 0; z < z_dim; z += batch) {
+            int end = Math.min(z_dim, z + batch);
+            series.readSlices(volume, z, end);
+            if (listener != null && !listener.slabRead(this, end)) {
+                throw new InterruptedIOException("Loading cancelled");
             }
         }
     }
 
+    /**
+     * Inflates a compressed data section into {@link #volume} in slabs of
+     * whole slices of about {@link #CHUNK_SIZE} bytes, in order of z. The
+     * slabs are inflated on a thread of their own while the previous slab is
+     * decoded, or in parallel if the file is indexed gzip.
+     */
+    private void readStream(SlabListener listener) throws IOException {
+        if (encoding == Encoding.GZIP) {
+            List<CompressedInput.Member> members = CompressedInput.indexMembers(dataFile, dataOffset);
+            if (members != null) {
+                readMembers(members, listener);
+                return;
+            }
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(dataFile), 1 << 16);
+        try {
+            CompressedInput.skipFully(in, dataOffset);
+            in = encoding == Encoding.GZIP ? new GZIPInputStream(in, 1 << 16) : new InflaterInputStream(in);
+            CompressedInput.skipFully(in, skip);
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+        long sliceBytes = (long) x_dim * y_dim * type.getBytes();
+        int slicesPerSlab = (int) Math.max(1, CHUNK_SIZE / sliceBytes);
+        CompressedInput.Pipeline pipeline = new CompressedInput.Pipeline(in, (int) (slicesPerSlab * sliceBytes), z_dim * sliceBytes);
+        try {
+            for (int z = 0; z < z_dim; z += slicesPerSlab) {
+                int slices = Math.min(slicesPerSlab, z_dim - z);
+                byte[] slab = pipeline.next();
+                decodeChunk(ByteBuffer.wrap(slab, 0, (int) (slices * sliceBytes)), z * sliceBytes);
+                pipeline.release(slab);
+                if (listener != null && !listener.slabRead(this, z + slices)) {
+                    throw new InterruptedIOException("Loading cancelled");
+                }
+            }
+            pipeline.finish();
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    /**
+     * Inflates the members of an indexed gzip file into {@link #volume}, in
+     * groups of about {@link #CHUNK_SIZE} uncompressed bytes that are
+     * inflated and decoded in parallel, one batch of groups per core at a
+     * time. A voxel split between two groups is decoded when both are done.
+     */
+    private void readMembers(final List<CompressedInput.Member> members, SlabListener listener)
+            throws IOException {
+        final int voxelBytes = type.getBytes();
+        final long start = skip, end = skip + (long) x_dim * y_dim * z_dim * voxelBytes;
+        CompressedInput.Member tail = members.get(members.size() - 1);
+        if (tail.offset + tail.size < end) {
+            throw new EOFException("File is truncated: expected " + (end - start) + " bytes of data");
+        }
+
+        // the members that hold data, in groups of whole members
+        int first = 0, last = 0;
+        while (members.get(first).offset + members.get(first).size <= start) {
+            first++;
+        }
+        while (last < members.size() && members.get(last).offset < end) {
+            last++;
+        }
+        final List<Integer> bounds = new ArrayList<Integer>();
+        bounds.add(first);
+        long groupStart = members.get(first).offset;
+        for (int m = first; m < last; m++) {
+            long memberEnd = members.get(m).offset + members.get(m).size;
+            if (memberEnd - groupStart >= CHUNK_SIZE || m == last - 1) {
+                bounds.add(m + 1);
+                groupStart = memberEnd;
+            }
+        }
+
+        int groups = bounds.size() - 1;
+        int batch = listener == null ? groups : Runtime.getRuntime().availableProcessors();
+        long sliceBytes = (long) x_dim * y_dim * voxelBytes;
+        final Map<Long, byte[]> split = new HashMap<Long, byte[]>();
+        final RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+        try {
+            for (int g = 0; g < groups; g += batch) {
+                int batchEnd = Math.min(groups, g + batch);
+                IntStream.range(g, batchEnd).parallel().forEach(i -> {
+                    try {
+                        decodeMembers(raf, members, bounds.get(i), bounds.get(i + 1), split);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                CompressedInput.Member member = members.get(bounds.get(batchEnd) - 1);
+                long done = Math.min(end, member.offset + member.size) - start;
+                if (listener != null && !listener.slabRead(this, (int) (done / sliceBytes))) {
+                    throw new InterruptedIOException("Loading cancelled");
+                }
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Inflates a group of members and decodes the voxels in it. The bytes of
+     * voxels split with a neighbouring group are collected in split, and the
+     * voxel is decoded by the group that completes it.
+     */
+    private void decodeMembers(RandomAccessFile raf, List<CompressedInput.Member> members, int first, int last,
+            Map<Long, byte[]> split) throws IOException {
+        byte[] bytes = CompressedInput.inflate(raf, members, first, last);
+        int voxelBytes = type.getBytes();
+        long from = members.get(first).offset;
+        long start = skip, end = skip + (long) x_dim * y_dim * z_dim * voxelBytes;
+        long a = Math.max(from, start), b = Math.min(from + bytes.length, end);
+        long firstVoxel = (a - start + voxelBytes - 1) / voxelBytes, endVoxel = (b - start) / voxelBytes;
+        if (firstVoxel > endVoxel) {
+            // the group is inside one voxel
+            addSplit(bytes, from, a, b, split);
+            return;
+        }
+        int count = (int) (endVoxel - firstVoxel);
+        if (count > 0) {
+            ByteBuffer voxels = ByteBuffer.wrap(bytes, (int) (start + firstVoxel * voxelBytes - from),
+                    count * voxelBytes);
+            volume.readVoxels(voxels.order(order), firstVoxel, count);
+        }
+        addSplit(bytes, from, a, start + firstVoxel * voxelBytes, split);
+        addSplit(bytes, from, start + endVoxel * voxelBytes, b, split);
+    }
+
+    /**
+     * Adds bytes of split voxels, and decodes the voxels that are complete.
+     *
+     * @param bytes Uncompressed bytes.
+     * @param from Offset of bytes in the uncompressed stream.
+     * @param a Offset of the first byte to add.
+     * @param b Offset after the last byte to add.
+     * @param split Bytes of the voxels, by voxel index, followed by the
+     * number of bytes known.
+     */
+    private void addSplit(byte[] bytes, long from, long a, long b, Map<Long, byte[]> split) {
+        int voxelBytes = type.getBytes();
+        synchronized (split) {
+            for (long p = a; p < b; p++) {
+                long index = (p - skip) / voxelBytes;
+                byte[] voxel = split.get(index);
+                if (voxel == null) {
+                    voxel = new byte[voxelBytes + 1];
+                    split.put(index, voxel);
+                }
+                voxel[(int) ((p - skip) % voxelBytes)] = bytes[(int) (p - from)];
+                if (++voxel[voxelBytes] == voxelBytes) {
+                    volume.readVoxels(ByteBuffer.wrap(voxel, 0, voxelBytes).order(order), index, 1);
+                    split.remove(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the data section into {@link #volume}. It is mapped in chunks,
+     * since a single mapping is limited to 2 GB, and the chunks are decoded
+     * in parallel for large volumes.
+     *
+     * @param channel File channel.
+     * @param offset Offset of the data section in the file.
+     * @param byteCount Length of the data section.
+     */
+    private void decode(final FileChannel channel, final long offset, final long byteCount) throws IOException {
+        final int chunks = (int) ((byteCount + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        final MappedByteBuffer[] maps = new MappedByteBuffer[chunks];
+        for (int c = 0; c < chunks; c++) {
+            long start = (long) c * CHUNK_SIZE;
+            maps[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                    Math.min(CHUNK_SIZE, byteCount - start));
+        }
+
+        IntStream tasks = IntStream.range(0, chunks);
+        if (byteCount > PARALLEL_THRESHOLD) {
+            tasks = tasks.parallel();
+        }
+        tasks.forEach(c -> decodeChunk(maps[c], (long) c * CHUNK_SIZE));
+    }
+
+    /**
+     * Decodes the data section into {@link #volume} in slabs of whole slices of
+     * about {@link #CHUNK_SIZE} bytes, in order of z.
+     */
+    private void decodeSlabs(FileChannel channel, long offset, SlabListener listener) throws IOException {
+        long sliceBytes = (long) x_dim * y_dim * type.getBytes();
+        int slicesPerSlab = (int) Math.max(1, CHUNK_SIZE / sliceBytes);
+        for (int z = 0; z < z_dim; z += slicesPerSlab) {
+            int slices = Math.min(slicesPerSlab, z_dim - z);
+            long start = z * sliceBytes;
+            decodeChunk(channel.map(FileChannel.MapMode.READ_ONLY, offset + start, slices * sliceBytes), start);
+            if (!listener.slabRead(this, z + slices)) {
+                throw new InterruptedIOException("Loading cancelled");
+            }
+        }
+    }
+
+    /**
+     * Decodes a part of the data section.
+     *
+     * @param chunk The bytes, from its position.
+     * @param start Offset of the chunk in the data section.
+     */
+    private void decodeChunk(ByteBuffer chunk, long start) {
+        int bytes = type.getBytes();
+        volume.readVoxels(chunk.order(order), start / bytes, chunk.remaining() / bytes);
+    }
+
     public int getXDim() {
         return x_dim;
     }
@@ -82,8 +808,48 @@ public class VolumeIO {
         return z_dim;
     }
 
-    public short[] getData() {
-        return data;
+    /**
+     * @return The volume read, without its statistics, or null if the data
+     * was not read.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * @return Type of the voxels in the file.
+     */
+    public VoxelType getType() {
+        return type;
+    }
+
+    /**
+     * @return The file of a raw data section, which can be mapped, or null
+     * if the data is compressed or in many files.
+     */
+    File getDataFile() {
+        return encoding == Encoding.RAW ? dataFile : null;
+    }
+
+    /**
+     * @return Offset of the data section in its file.
+     */
+    long getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * @return Byte order of the data section.
+     */
+    ByteOrder getByteOrder() {
+        return order;
+    }
+
+    /**
+     * @return Bytes per voxel in the file.
+     */
+    int getBytesPerVoxel() {
+        return type.getBytes();
     }
     
     private void parseHeader(String header) {
@@ -135,14 +901,17 @@ public class VolumeIO {
                        }
                        break;
                    case 6: // data
-                       data_type = -1;
+                       type = null;
                        if (tokens[1].compareTo("byte") == 0) {
-                           data_type = 1;
+                           type = VoxelType.UINT8;
                        }
                        if (tokens[1].compareTo("short") == 0) {
-                           data_type = 2;
+                           type = VoxelType.INT16;
+                       }
+                       if (tokens[1].compareTo("float") == 0) {
+                           type = VoxelType.FLOAT32;
                        }
-                       if (data_type < 0) {
+                       if (type == null) {
                            System.out.println("Data type not recognized");
                            System.out.println("data type: " + tokens[1]);
                        }
@@ -170,7 +939,11 @@ public class VolumeIO {
     }
     
     private int x_dim, y_dim, z_dim;
-    private short[] data;
-    private int data_type;
-    
+    private Volume volume;
+    private VoxelType type;
+    private File dataFile;
+    private long dataOffset, skip;
+    private ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+    private Encoding encoding = Encoding.RAW;
+
 }
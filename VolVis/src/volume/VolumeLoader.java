@@ -0,0 +1,323 @@
+package volume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads a volume and computes its gradients as one cancellable job with
+ * progress, meant to run off the event dispatch thread. The volume is read
+ * slab by slab and handed out as soon as the first slab is in, so it can be
+ * previewed while the rest is still loading. A brick file is opened as a
+ * {@link BrickedVolume} instead, which reads its voxels on demand.
+ *
+ * A field file is reopened from its {@link VolumeCache} if it has one that
+ * matches, and the cache is written after the field file was loaded. It is
+ * kept as a {@link CompressedVolume} if compression is enabled. The other
+ * formats of {@link VolumeIO} are read the same way, without a cache.
+ *
+ * Several files are loaded as the timesteps of a {@link TimeSeries}. The
+ * volume is its first timestep; there are no levels of detail.
+ */
+public class VolumeLoader {
+
+    /**
+     * Receives the progress of {@link VolumeLoader#load(Listener)}. It is
+     * called on the loading thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called once after the first slab was read. Slices are filled in
+         * while loading continues.
+         *
+         * @param volume The partially loaded volume.
+         */
+        public void volumeAvailable(Volume volume);
+
+        /**
+         * @param stage Description of the current stage.
+         * @param fraction Fraction of the whole job that is done, 0 to 1.
+         */
+        public void progress(String stage, double fraction);
+    }
+
+    /**
+     * Fractions of the job spent reading, computing the statistics, building
+     * the levels of detail and writing the cache. The rest is spent
+     * computing gradients.
+     */
+    private static final double READ_FRACTION = 0.5;
+    private static final double STATISTICS_FRACTION = 0.05;
+    private static final double PYRAMID_FRACTION = 0.1;
+    private static final double CACHE_FRACTION = 0.1;
+
+    private final File file;
+    private final List<File> files;
+    private volatile boolean cancelled = false;
+    private Volume volume = null;
+    private GradientVolume gradients = null;
+    private VolumePyramid pyramid = null;
+    private TimeSeries series = null;
+
+    public VolumeLoader(File file) {
+        this(Collections.singletonList(file));
+    }
+
+    /**
+     * @param files The file of a volume, or the files of the timesteps of a
+     * series in playback order.
+     */
+    public VolumeLoader(List<File> files) {
+        this.file = files.get(0);
+        this.files = files;
+    }
+
+    /**
+     * Stops the load at the next slab or stage.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Reads the volume, computes its statistics and gradients and
+     * builds its levels of detail.
+     *
+     * @param listener Listener for the progress.
+     * @throws IOException On read errors, and InterruptedIOException if the
+     * load was cancelled.
+     */
+    public void load(final Listener listener) throws IOException {
+        if (files.size() > 1) {
+            loadSeries(listener);
+            return;
+        }
+        if (BrickedVolume.isBrickFile(file)) {
+            listener.progress("Opening " + file.getName(), 0);
+            volume = new BrickedVolume(file);
+            gradients = GradientVolume.create(volume);
+            checkCancelled();
+            listener.progress("Building levels of detail", 1 - PYRAMID_FRACTION);
+            pyramid = new VolumePyramid(volume, gradients);
+            listener.progress("Done", 1);
+            return;
+        }
+
+        boolean cached = VolumeCache.ENABLED && VolumeCache.canCache(file);
+        if (cached && loadCache(listener)) {
+            return;
+        }
+
+        listener.progress("Reading " + file.getName(), 0);
+        new VolumeIO(file, new VolumeIO.SlabListener() {
+            @Override
+            public boolean slabRead(VolumeIO reader, int slices) {
+                if (volume == null) {
+                    volume = reader.getVolume();
+                    listener.volumeAvailable(volume);
+                }
+                listener.progress("Reading slice " + slices + " of " + reader.getZDim(),
+                        READ_FRACTION * slices / reader.getZDim());
+                return !cancelled;
+            }
+        });
+
+        checkCancelled();
+        listener.progress("Computing statistics", READ_FRACTION);
+        volume.computeStatistics();
+
+        if (CompressedVolume.ENABLED) {
+            checkCancelled();
+            listener.progress("Compressing", READ_FRACTION + STATISTICS_FRACTION);
+            volume = compress(volume);
+        }
+
+        checkCancelled();
+        listener.progress("Computing gradients", READ_FRACTION + STATISTICS_FRACTION);
+        gradients = GradientVolume.create(volume);
+
+        checkCancelled();
+        listener.progress("Building levels of detail", 1 - PYRAMID_FRACTION - CACHE_FRACTION);
+        pyramid = new VolumePyramid(volume, gradients);
+
+        if (cached) {
+            checkCancelled();
+            listener.progress("Writing cache", 1 - CACHE_FRACTION);
+            try {
+                VolumeCache.write(file, volume, gradients);
+            } catch (IOException ex) {
+                // the volume is loaded, it only opens slower next time
+                System.out.println("Cannot write cache of " + file.getName() + ": " + ex.getMessage());
+            }
+        }
+
+        checkCancelled();
+        listener.progress("Done", 1);
+    }
+
+    /**
+     * Loads the volume from its cache.
+     *
+     * @return False if there is no valid cache.
+     */
+    private boolean loadCache(Listener listener) throws IOException {
+        if (!VolumeCache.getCacheFile(file).isFile()) {
+            return false;
+        }
+        listener.progress("Reading cache of " + file.getName(), 0);
+        VolumeCache cache;
+        try {
+            cache = VolumeCache.open(file);
+        } catch (IOException ex) {
+            System.out.println("Cannot read cache of " + file.getName() + ": " + ex.getMessage());
+            return false;
+        }
+        if (cache == null) {
+            return false;
+        }
+        volume = cache.getVolume();
+        gradients = cache.getGradients();
+
+        checkCancelled();
+        listener.progress("Building levels of detail", 1 - PYRAMID_FRACTION);
+        pyramid = new VolumePyramid(volume, gradients);
+
+        checkCancelled();
+        listener.progress("Done", 1);
+        return true;
+    }
+
+    /**
+     * Reads the timesteps of a series one after the other, and computes the
+     * gradients of the first. A series of floats is read twice, first to
+     * find the range of the floats of all timesteps, which they are all
+     * mapped onto the voxel values with.
+     */
+    private void loadSeries(Listener listener) throws IOException {
+        double readFraction = 1 - PYRAMID_FRACTION;
+        // the part of the progress of reading the timesteps, after finding
+        // the range of floats
+        double readStart = 0, readShare = readFraction;
+        for (int t = 0; t < files.size(); t++) {
+            listener.progress("Reading timestep " + (t + 1) + " of " + files.size() + ": " + files.get(t).getName(),
+                    readStart + readShare * t / files.size());
+            Volume read = readTimestep(t);
+            if (series == null) {
+                if (read instanceof Float32Volume) {
+                    readShare = readFraction / 2;
+                    double[] range = findFloatRange((Float32Volume) read, listener, readShare);
+                    readStart = readShare;
+                    series = new TimeSeries(read.getDimX(), read.getDimY(), read.getDimZ(), range[0], range[1]);
+                } else {
+                    series = new TimeSeries(read.getDimX(), read.getDimY(), read.getDimZ(), read.getType());
+                }
+            }
+            try {
+                series.add(read);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException(files.get(t).getName() + ": " + ex.getMessage());
+            }
+        }
+        System.out.println(String.format("Series of %d timesteps, %d bricks shared, %.1f MB", files.size(),
+                series.getSharedBrickCount(), series.getStoredBytes() / 1048576.0));
+
+        // the first timestep as played back, so stepping back to it matches
+        volume = series.decode(0);
+        listener.volumeAvailable(volume);
+        checkCancelled();
+        listener.progress("Computing gradients", readFraction);
+        gradients = GradientVolume.create(volume);
+        listener.progress("Done", 1);
+    }
+
+    private Volume readTimestep(int t) throws IOException {
+        Volume read = new VolumeIO(files.get(t), new VolumeIO.SlabListener() {
+            @Override
+            public boolean slabRead(VolumeIO reader, int slices) {
+                return !cancelled;
+            }
+        }).getVolume();
+        checkCancelled();
+        return read;
+    }
+
+    /**
+     * Finds the lowest and highest float of all timesteps of a series of
+     * floats.
+     *
+     * @param first The first timestep.
+     * @param fraction Part of the progress the search takes.
+     * @return The lowest and highest float.
+     */
+    private double[] findFloatRange(Float32Volume first, Listener listener, double fraction)
+            throws IOException {
+        double[] range = {first.toValue(0), first.toValue(Float32Volume.LEVELS - 1)};
+        for (int t = 1; t < files.size(); t++) {
+            listener.progress("Finding the range of timestep " + (t + 1) + " of " + files.size(),
+                    fraction * t / files.size());
+            Volume read = readTimestep(t);
+            if (!(read instanceof Float32Volume)) {
+                throw new IOException(files.get(t).getName() + ": " + read.getType() + " voxels in a series of "
+                        + VoxelType.FLOAT32);
+            }
+            Float32Volume floats = (Float32Volume) read;
+            range[0] = Math.min(range[0], floats.toValue(0));
+            range[1] = Math.max(range[1], floats.toValue(Float32Volume.LEVELS - 1));
+        }
+        return range;
+    }
+
+    /**
+     * Compresses a volume, before its gradients are computed so nothing
+     * keeps the uncompressed voxels.
+     */
+    static CompressedVolume compress(Volume volume) {
+        CompressedVolume compressed = new CompressedVolume(volume);
+        System.out.println(String.format("Compressed %d x %d x %d voxels %.1f : 1", volume.getDimX(),
+                volume.getDimY(), volume.getDimZ(), compressed.getCompressionRatio()));
+        return compressed;
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled) {
+            throw new InterruptedIOException("Loading cancelled");
+        }
+    }
+
+    /**
+     * @return The loaded volume, or null if it is not loaded.
+     */
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * @return Gradients of the loaded volume, or null if they are not
+     * computed.
+     */
+    public GradientVolume getGradients() {
+        return gradients;
+    }
+
+    /**
+     * @return Levels of detail of the loaded volume, or null if they are not
+     * built.
+     */
+    public VolumePyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * @return The series if several files were loaded, else null.
+     */
+    public TimeSeries getTimeSeries() {
+        return series;
+    }
+}
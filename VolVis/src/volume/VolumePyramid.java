@@ -0,0 +1,102 @@
+package volume;
+
+import java.util.ArrayList;
+import java.util.stream.IntStream;
+
+/**
+ * Levels of detail of a volume. Level 0 is the volume itself and every next
+ * level halves the resolution along each axis, each voxel being the rounded
+ * mean of the up to eight voxels it covers. Voxel i of level k covers the
+ * voxels i 2^k up to (i + 1) 2^k of level 0. Every level has its gradients,
+ * computed at its own resolution. Levels keep the voxel type of the volume,
+ * except that those of a {@link Float32Volume} hold its voxel values as
+ * unsigned shorts.
+ *
+ * The levels are built in parallel: the slices of a level and the gradients
+ * of all levels. Levels stop at {@link #MIN_SIZE} voxels along an axis or
+ * when a level would take more than an eighth of the maximum heap, e.g. for
+ * a large {@link BrickedVolume}.
+ */
+public class VolumePyramid {
+
+    /**
+     * Maximum number of levels below level 0.
+     */
+    public static final int MAX_LEVELS = 4;
+
+    /**
+     * Smallest size of a level along any axis.
+     */
+    public static final int MIN_SIZE = 16;
+
+    private final Volume[] volumes;
+    private final GradientVolume[] gradients;
+
+    /**
+     * Builds the levels of a volume.
+     *
+     * @param volume The volume, level 0.
+     * @param gradientVolume Gradients of the volume.
+     */
+    public VolumePyramid(Volume volume, GradientVolume gradientVolume) {
+        ArrayList<Volume> levels = new ArrayList<Volume>();
+        levels.add(volume);
+        long budget = Runtime.getRuntime().maxMemory() / 8;
+        // levels of floats hold their voxel values, 0 to Float32Volume.LEVELS - 1
+        VoxelType type = volume.getType() == VoxelType.FLOAT32 ? VoxelType.UINT16 : volume.getType();
+        Volume level = volume;
+        while (levels.size() <= MAX_LEVELS) {
+            int dimX = (level.getDimX() + 1) / 2, dimY = (level.getDimY() + 1) / 2, dimZ = (level.getDimZ() + 1) / 2;
+            if (Math.min(dimX, Math.min(dimY, dimZ)) < MIN_SIZE || (long) type.getBytes() * dimX * dimY * dimZ > budget) {
+                break;
+            }
+            level = downsample(level, Volume.create(type, dimX, dimY, dimZ));
+            levels.add(level);
+        }
+        volumes = levels.toArray(new Volume[levels.size()]);
+
+        gradients = new GradientVolume[volumes.length];
+        gradients[0] = gradientVolume;
+        IntStream.range(1, volumes.length).parallel().forEach(k -> gradients[k] = GradientVolume.create(volumes[k]));
+    }
+
+    private static Volume downsample(final Volume source, final Volume target) {
+        final int dimX = target.getDimX(), dimY = target.getDimY(), dimZ = target.getDimZ();
+        final int sourceX = source.getDimX(), sourceY = source.getDimY(), sourceZ = source.getDimZ();
+        IntStream.range(0, dimZ).parallel().forEach(z -> {
+            int z1 = Math.min(2 * z + 1, sourceZ - 1);
+            for (int y = 0; y < dimY; y++) {
+                int y1 = Math.min(2 * y + 1, sourceY - 1);
+                for (int x = 0; x < dimX; x++) {
+                    int x1 = Math.min(2 * x + 1, sourceX - 1);
+                    int sum = 0, count = 0;
+                    for (int k = 2 * z; k <= z1; k++) {
+                        for (int j = 2 * y; j <= y1; j++) {
+                            for (int i = 2 * x; i <= x1; i++) {
+                                sum += source.getVoxel(i, j, k);
+                                count++;
+                            }
+                        }
+                    }
+                    target.setVoxel(x + dimX * (y + dimY * z), Math.round((float) sum / count));
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * @return Number of levels, including level 0.
+     */
+    public int getLevelCount() {
+        return volumes.length;
+    }
+
+    public Volume getVolume(int level) {
+        return volumes[level];
+    }
+
+    public GradientVolume getGradients(int level) {
+        return gradients[level];
+    }
+}
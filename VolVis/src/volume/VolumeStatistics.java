@@ -0,0 +1,231 @@
+package volume;
+
+import java.util.stream.IntStream;
+import telemetry.Telemetry;
+
+/**
+ * Statistics of the voxel values of a volume: minimum, maximum, mean,
+ * variance, the histogram and percentiles. They are computed once with
+ * parallel reductions over the slices and kept by the {@link Volume}, which
+ * drops them when a voxel changes, so all consumers share them.
+ *
+ * The histogram has a bin per value from 0 to the maximum; negative values
+ * are not counted in it or in the percentiles. The histogram of the
+ * gradient magnitudes is computed by
+ * {@link #computeMagnitudeHistogram(GradientVolume, int)} and kept by the
+ * {@link GradientVolume}.
+ */
+public class VolumeStatistics {
+
+    /**
+     * Partial statistics of a range of slices.
+     */
+    private static class Partial {
+
+        int minimum = Integer.MAX_VALUE, maximum = Integer.MIN_VALUE;
+        long sum = 0;
+        double sumOfSquares = 0;
+        // long counts, since a volume may have more than 2^31 voxels
+        final long[] histogram;
+
+        Partial(int bins) {
+            histogram = new long[bins];
+        }
+
+        void add(Partial other) {
+            minimum = other.minimum < minimum ? other.minimum : minimum;
+            maximum = other.maximum > maximum ? other.maximum : maximum;
+            sum += other.sum;
+            sumOfSquares += other.sumOfSquares;
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] += other.histogram[i];
+            }
+        }
+    }
+
+    private final int minimum, maximum;
+    private final double mean, variance;
+    private final long voxelCount;
+    private final int[] histogram;
+
+    private VolumeStatistics(int minimum, int maximum, double mean, double variance, long voxelCount,
+            int[] histogram) {
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.mean = mean;
+        this.variance = variance;
+        this.voxelCount = voxelCount;
+        this.histogram = histogram;
+    }
+
+    /**
+     * Computes the statistics of a volume in two parallel passes, one for
+     * the range and one for the histogram and moments.
+     *
+     * @param volume The volume.
+     * @return The statistics.
+     */
+    public static VolumeStatistics compute(final Volume volume) {
+        final int dimX = volume.getDimX(), dimY = volume.getDimY();
+        long count = (long) dimX * dimY * volume.getDimZ();
+        Partial range = IntStream.range(0, volume.getDimZ()).parallel().collect(() -> new Partial(0), (p, z) -> {
+            for (int y = 0; y < dimY; y++) {
+                for (int x = 0; x < dimX; x++) {
+                    int value = volume.getVoxel(x, y, z);
+                    p.minimum = value < p.minimum ? value : p.minimum;
+                    p.maximum = value > p.maximum ? value : p.maximum;
+                }
+            }
+        }, Partial::add);
+
+        Object event = Telemetry.beginHistogram();
+        final int bins = Math.max(0, range.maximum) + 1;
+        Partial total = IntStream.range(0, volume.getDimZ()).parallel().collect(() -> new Partial(bins), (p, z) -> {
+            // the sums of a slice fit in longs
+            long sum = 0, sumOfSquares = 0;
+            for (int y = 0; y < dimY; y++) {
+                for (int x = 0; x < dimX; x++) {
+                    int value = volume.getVoxel(x, y, z);
+                    sum += value;
+                    sumOfSquares += (long) value * value;
+                    if (value >= 0) {
+                        p.histogram[value]++;
+                    }
+                }
+            }
+            p.sum += sum;
+            p.sumOfSquares += sumOfSquares;
+        }, Partial::add);
+        Telemetry.endHistogram(event, "1D", bins, count);
+
+        double mean = count == 0 ? 0 : (double) total.sum / count;
+        double variance = count == 0 ? 0 : Math.max(0, total.sumOfSquares / count - mean * mean);
+        return new VolumeStatistics(range.minimum, range.maximum, mean, variance, count, toInts(total.histogram));
+    }
+
+    /**
+     * Makes the statistics from a histogram computed before, e.g. stored in
+     * a brick file or a {@link VolumeCache}. The mean and variance cover the
+     * voxels in the histogram, which are all voxels if the minimum is not
+     * negative.
+     *
+     * @param minimum Minimum voxel value.
+     * @param maximum Maximum voxel value.
+     * @param histogram Histogram with a bin per value from 0 to maximum.
+     * @return The statistics.
+     */
+    static VolumeStatistics fromHistogram(int minimum, int maximum, int[] histogram) {
+        long count = 0, sum = 0;
+        double sumOfSquares = 0;
+        for (int value = 0; value < histogram.length; value++) {
+            count += histogram[value];
+            sum += (long) value * histogram[value];
+            sumOfSquares += (double) value * value * histogram[value];
+        }
+        double mean = count == 0 ? 0 : (double) sum / count;
+        double variance = count == 0 ? 0 : Math.max(0, sumOfSquares / count - mean * mean);
+        return new VolumeStatistics(minimum, maximum, mean, variance, count, histogram);
+    }
+
+    /**
+     * Computes the histogram of the gradient magnitudes of a volume in
+     * parallel.
+     *
+     * @param gradients The gradients.
+     * @param bins Number of bins, spanning 0 to the maximum gradient
+     * magnitude.
+     * @return The histogram.
+     */
+    public static int[] computeMagnitudeHistogram(final GradientVolume gradients, final int bins) {
+        final int dimX = gradients.getDimX(), dimY = gradients.getDimY();
+        final double scale = gradients.getMaxGradientMagnitude() > 0
+                ? (bins - 1) / gradients.getMaxGradientMagnitude() : 0;
+        Object event = Telemetry.beginHistogram();
+        Partial total = IntStream.range(0, gradients.getDimZ()).parallel().collect(() -> new Partial(bins), (p, z) -> {
+            for (int y = 0; y < dimY; y++) {
+                for (int x = 0; x < dimX; x++) {
+                    int bin = (int) (gradients.getGradient(x, y, z).mag * scale);
+                    p.histogram[Math.min(bin, bins - 1)]++;
+                }
+            }
+        }, Partial::add);
+        Telemetry.endHistogram(event, "gradient magnitude", bins, (long) dimX * dimY * gradients.getDimZ());
+        return toInts(total.histogram);
+    }
+
+    /**
+     * Converts counts to ints, clamping those that do not fit.
+     */
+    private static int[] toInts(long[] counts) {
+        int[] ints = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            ints[i] = (int) Math.min(Integer.MAX_VALUE, counts[i]);
+        }
+        return ints;
+    }
+
+    public int getMinimum() {
+        return minimum;
+    }
+
+    public int getMaximum() {
+        return maximum;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public double getVariance() {
+        return variance;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(variance);
+    }
+
+    /**
+     * @return Number of voxels the mean and variance cover.
+     */
+    public long getVoxelCount() {
+        return voxelCount;
+    }
+
+    /**
+     * @return Number of voxels of every value from 0 to the maximum, at most
+     * Integer.MAX_VALUE. It must not be changed.
+     */
+    public int[] getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Returns a percentile of the non-negative voxel values.
+     *
+     * @param fraction Fraction of the voxels, 0 to 1.
+     * @return The smallest value that at least that fraction of the voxels
+     * does not exceed.
+     */
+    public int getPercentile(double fraction) {
+        long counted = 0;
+        for (int bin : histogram) {
+            counted += bin;
+        }
+        long target = (long) Math.ceil(Math.max(0, Math.min(1, fraction)) * counted);
+        long cumulative = 0;
+        for (int value = 0; value < histogram.length; value++) {
+            cumulative += histogram[value];
+            if (cumulative >= target && cumulative > 0) {
+                return value;
+            }
+        }
+        return Math.max(0, histogram.length - 1);
+    }
+
+    /**
+     * @return Bytes held by the histogram.
+     */
+    long getByteSize() {
+        return 4L * histogram.length;
+    }
+}
@@ -0,0 +1,45 @@
+package volume;
+
+/**
+ * Primitive type the voxels of a volume are stored in. Every type has its
+ * own {@link Volume} class, so its voxels take only the bytes they need and
+ * its sampler reads its array directly.
+ */
+public enum VoxelType {
+
+    /**
+     * Unsigned bytes, 0 to 255, stored in a {@link UInt8Volume}.
+     */
+    UINT8(1),
+    /**
+     * Signed shorts, stored in a plain {@link Volume}.
+     */
+    INT16(2),
+    /**
+     * Unsigned shorts, 0 to 65535, stored in a {@link UInt16Volume}.
+     */
+    UINT16(2),
+    /**
+     * Floats, stored in a {@link Float32Volume}, which maps them linearly
+     * onto {@link Float32Volume#LEVELS} integer voxel values.
+     */
+    FLOAT32(4);
+
+    private final int bytes;
+
+    private VoxelType(int bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return Bytes per voxel.
+     */
+    public int getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,172 @@
+package volvis;
+
+import java.util.Arrays;
+
+/**
+ * A convex region rays are clipped to: the intersection of half-spaces, each
+ * bounded by a plane and kept on the side its normal points to. A clip box
+ * adds the six half-spaces of its faces, so several planes and boxes combine
+ * into one region.
+ *
+ * A ray is clipped with {@link #clip(double[], double[])} in one pass over
+ * the planes, before it is sampled, which leaves the interval of the ray
+ * inside all of them. Clipped space is never sampled, and the number of
+ * planes does not change the cost per sample.
+ */
+public final class ClipRegion {
+
+    /**
+     * Normal and offset of every plane, 4 numbers per plane: the points p
+     * with p . normal >= offset are kept.
+     */
+    private double[] planes = new double[0];
+    private int count = 0;
+
+    /**
+     * Creates a region without planes, which keeps everything.
+     */
+    public ClipRegion() {
+    }
+
+    /**
+     * Creates a copy of a region.
+     */
+    public ClipRegion(ClipRegion region) {
+        planes = Arrays.copyOf(region.planes, region.count * 4);
+        count = region.count;
+    }
+
+    /**
+     * Keeps the half-space on the side of a plane its normal points to.
+     *
+     * @param point A point of the plane, in voxel coordinates.
+     * @param normal Normal of the plane, which need not be of unit length.
+     */
+    public void addPlane(double[] point, double[] normal) {
+        if (normal[0] == 0 && normal[1] == 0 && normal[2] == 0) {
+            throw new IllegalArgumentException("Clip plane without a normal");
+        }
+        if (planes.length < (count + 1) * 4) {
+            planes = Arrays.copyOf(planes, Math.max(24, planes.length * 2));
+        }
+        int i = count * 4;
+        planes[i] = normal[0];
+        planes[i + 1] = normal[1];
+        planes[i + 2] = normal[2];
+        planes[i + 3] = point[0] * normal[0] + point[1] * normal[1] + point[2] * normal[2];
+        count++;
+    }
+
+    /**
+     * Keeps the inside of an axis-aligned box.
+     *
+     * @param min Lower corner in voxel coordinates.
+     * @param max Upper corner.
+     */
+    public void addBox(double[] min, double[] max) {
+        for (int k = 0; k < 3; k++) {
+            if (!(min[k] < max[k])) {
+                throw new IllegalArgumentException("Empty clip box");
+            }
+        }
+        for (int k = 0; k < 3; k++) {
+            addAxisPlane(k, min[k], true);
+            addAxisPlane(k, max[k], false);
+        }
+    }
+
+    /**
+     * Keeps the points above or below a value along an axis.
+     *
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @param value Position of the plane along the axis.
+     * @param above True to keep the points from the value up.
+     */
+    void addAxisPlane(int axis, double value, boolean above) {
+        double[] point = new double[3];
+        double[] normal = new double[3];
+        point[axis] = value;
+        normal[axis] = above ? 1 : -1;
+        addPlane(point, normal);
+    }
+
+    /**
+     * Removes all planes.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getPlaneCount() {
+        return count;
+    }
+
+    /**
+     * @return True if the point is in the region, including its boundary.
+     */
+    public boolean contains(double[] p) {
+        for (int i = 0; i < count * 4; i += 4) {
+            if (p[0] * planes[i] + p[1] * planes[i + 1] + p[2] * planes[i + 2] < planes[i + 3]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clips a segment of a ray to the region. Each plane moves the entry or
+     * the exit of the segment, whichever it faces. An end no plane moves
+     * stays exactly where it was.
+     *
+     * @param entryPoint Start of the segment, moved to its entry into the
+     * region.
+     * @param exitPoint End of the segment, moved to its exit from the
+     * region.
+     * @return False if the segment misses the region, in which case the
+     * points are unchanged.
+     */
+    public boolean clip(double[] entryPoint, double[] exitPoint) {
+        double dx = exitPoint[0] - entryPoint[0];
+        double dy = exitPoint[1] - entryPoint[1];
+        double dz = exitPoint[2] - entryPoint[2];
+        double tEntry = 0, tExit = 1;
+        for (int i = 0; i < count * 4; i += 4) {
+            double nx = planes[i], ny = planes[i + 1], nz = planes[i + 2];
+            // distance of the entry inside the plane, and its change along the segment
+            double inside = entryPoint[0] * nx + entryPoint[1] * ny + entryPoint[2] * nz - planes[i + 3];
+            double rate = dx * nx + dy * ny + dz * nz;
+            if (Math.abs(rate) < 1e-12) {
+                if (inside < 0) {
+                    return false;
+                }
+            } else if (rate > 0) {
+                tEntry = Math.max(tEntry, -inside / rate);
+            } else {
+                tExit = Math.min(tExit, -inside / rate);
+            }
+        }
+        if (tEntry > tExit) {
+            return false;
+        }
+        if (tExit < 1) {
+            exitPoint[0] = entryPoint[0] + tExit * dx;
+            exitPoint[1] = entryPoint[1] + tExit * dy;
+            exitPoint[2] = entryPoint[2] + tExit * dz;
+        }
+        if (tEntry > 0) {
+            entryPoint[0] += tEntry * dx;
+            entryPoint[1] += tEntry * dy;
+            entryPoint[2] += tEntry * dz;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(planes, count * 4));
+    }
+}
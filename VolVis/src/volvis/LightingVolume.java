@@ -0,0 +1,298 @@
+package volvis;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import volume.Volume;
+
+/**
+ * Ambient occlusion of a volume under a transfer function, at a reduced
+ * resolution: one cell per DOWNSAMPLE^3 voxels. The occlusion of a cell is
+ * the light that reaches it through the cells around it, averaged over 14
+ * directions and up to RADIUS cells away, with the opacity of a cell taken
+ * from the transfer function of its voxels. Compositing samples it
+ * trilinearly and darkens the color of a sample by it, so creases and
+ * cavities of dense data sets stand out, without casting any ray at render
+ * time.
+ *
+ * Half the directions from a point on a flat surface are open, which counts
+ * as unoccluded; only points with less open space around them darken.
+ *
+ * The cells are computed in parallel. When the transfer function changes,
+ * {@link #update(TransferFunction)} finds the cells whose voxel values have
+ * a changed opacity, from the range of values of every cell, and computes the
+ * occlusion again only in the bricks of cells within RADIUS of them.
+ *
+ * The resolution is set with the system property volvis.ao.downsample
+ * (default 2 voxels per cell along every axis), the reach with
+ * volvis.ao.radius (default 8 cells).
+ */
+public class LightingVolume {
+
+    public static final int DOWNSAMPLE = Math.max(1, Integer.getInteger("volvis.ao.downsample", 2));
+    public static final int RADIUS = Math.max(1, Integer.getInteger("volvis.ao.radius", 8));
+
+    /**
+     * Cells along every axis of the bricks occlusion is updated in.
+     */
+    private static final int BRICK = 8;
+    /**
+     * Directions of the occlusion rays in cells: the 6 axes and the 8
+     * diagonals.
+     */
+    private static final int[][] DIRECTIONS = {
+        {1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1},
+        {1, 1, 1}, {1, 1, -1}, {1, -1, 1}, {1, -1, -1}, {-1, 1, 1}, {-1, 1, -1}, {-1, -1, 1}, {-1, -1, -1}};
+    /**
+     * Opacity above which a voxel is taken to stop all light.
+     */
+    private static final double MAX_OPACITY = 0.999;
+
+    private final Volume volume;
+    private final int factor;
+    private final int cellsX, cellsY, cellsZ;
+    private final int bricksX, bricksY, bricksZ;
+    /**
+     * Lowest and highest voxel value of every cell.
+     */
+    private final int[] cellMin, cellMax;
+    /**
+     * Absorption of every cell per voxel of path, -ln(1 - opacity).
+     */
+    private final float[] absorption;
+    /**
+     * Occlusion of every cell, 1 where it is unoccluded.
+     */
+    private final float[] occlusion;
+    /**
+     * Opacity of every voxel value the cells were computed with, from the
+     * minimum of the volume, or null before the first update.
+     */
+    private double[] opacities = null;
+    private int lastUpdatedCells = 0;
+
+    /**
+     * Creates the lighting of a volume, unoccluded until the first
+     * {@link #update(TransferFunction)}.
+     */
+    public LightingVolume(Volume volume) {
+        this(volume, DOWNSAMPLE);
+    }
+
+    /**
+     * @param volume The volume.
+     * @param factor Voxels per cell along every axis.
+     */
+    public LightingVolume(final Volume volume, int factor) {
+        this.volume = volume;
+        this.factor = Math.max(1, factor);
+        cellsX = (volume.getDimX() + this.factor - 1) / this.factor;
+        cellsY = (volume.getDimY() + this.factor - 1) / this.factor;
+        cellsZ = (volume.getDimZ() + this.factor - 1) / this.factor;
+        bricksX = (cellsX + BRICK - 1) / BRICK;
+        bricksY = (cellsY + BRICK - 1) / BRICK;
+        bricksZ = (cellsZ + BRICK - 1) / BRICK;
+        int cells = cellsX * cellsY * cellsZ;
+        cellMin = new int[cells];
+        cellMax = new int[cells];
+        absorption = new float[cells];
+        occlusion = new float[cells];
+        Arrays.fill(occlusion, 1);
+        IntStream.range(0, cellsZ).parallel().forEach(cz -> {
+            for (int cy = 0; cy < cellsY; cy++) {
+                for (int cx = 0; cx < cellsX; cx++) {
+                    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                    for (int z = cz * this.factor; z < Math.min((cz + 1) * this.factor, volume.getDimZ()); z++) {
+                        for (int y = cy * this.factor; y < Math.min((cy + 1) * this.factor, volume.getDimY()); y++) {
+                            for (int x = cx * this.factor; x < Math.min((cx + 1) * this.factor, volume.getDimX());
+                                    x++) {
+                                int value = volume.getVoxel(x, y, z);
+                                min = Math.min(min, value);
+                                max = Math.max(max, value);
+                            }
+                        }
+                    }
+                    int cell = (cz * cellsY + cy) * cellsX + cx;
+                    cellMin[cell] = min;
+                    cellMax[cell] = max;
+                }
+            }
+        });
+    }
+
+    public Volume getVolume() {
+        return volume;
+    }
+
+    /**
+     * Brings the occlusion up to date with a transfer function. Only the
+     * cells near voxels whose opacity changed since the last update are
+     * computed again, so an unchanged transfer function costs one comparison
+     * of its opacities.
+     *
+     * @param tf The transfer function.
+     * @return Number of cells whose occlusion was computed.
+     */
+    public synchronized int update(TransferFunction tf) {
+        final int minimum = volume.getMinimum();
+        final double[] current = new double[volume.getMaximum() - minimum + 1];
+        for (int v = 0; v < current.length; v++) {
+            current[v] = Math.min(tf.getColor(minimum + v).a, MAX_OPACITY);
+        }
+        // changedBefore[v]: number of changed values below minimum + v
+        final int[] changedBefore = new int[current.length + 1];
+        for (int v = 0; v < current.length; v++) {
+            boolean changed = opacities == null || current[v] != opacities[v];
+            changedBefore[v + 1] = changedBefore[v] + (changed ? 1 : 0);
+        }
+        if (changedBefore[current.length] == 0) {
+            lastUpdatedCells = 0;
+            return 0;
+        }
+        opacities = current;
+
+        // the absorption of the cells with a changed value, and the bricks
+        // in which it changed
+        final boolean[] changedBricks = new boolean[bricksX * bricksY * bricksZ];
+        IntStream.range(0, cellsZ).parallel().forEach(cz -> {
+            for (int cy = 0; cy < cellsY; cy++) {
+                for (int cx = 0; cx < cellsX; cx++) {
+                    int cell = (cz * cellsY + cy) * cellsX + cx;
+                    if (changedBefore[cellMax[cell] - minimum + 1] == changedBefore[cellMin[cell] - minimum]) {
+                        continue;
+                    }
+                    float a = computeAbsorption(cx, cy, cz, current, minimum);
+                    if (a != absorption[cell]) {
+                        absorption[cell] = a;
+                        changedBricks[((cz / BRICK) * bricksY + cy / BRICK) * bricksX + cx / BRICK] = true;
+                    }
+                }
+            }
+        });
+
+        // the occlusion of the bricks within reach of a changed brick
+        int reach = (RADIUS + BRICK - 1) / BRICK;
+        final boolean[] dirty = new boolean[changedBricks.length];
+        for (int b = 0; b < changedBricks.length; b++) {
+            if (!changedBricks[b]) {
+                continue;
+            }
+            int bx = b % bricksX, by = (b / bricksX) % bricksY, bz = b / (bricksX * bricksY);
+            for (int z = Math.max(0, bz - reach); z <= Math.min(bricksZ - 1, bz + reach); z++) {
+                for (int y = Math.max(0, by - reach); y <= Math.min(bricksY - 1, by + reach); y++) {
+                    for (int x = Math.max(0, bx - reach); x <= Math.min(bricksX - 1, bx + reach); x++) {
+                        dirty[(z * bricksY + y) * bricksX + x] = true;
+                    }
+                }
+            }
+        }
+        int updated = IntStream.range(0, dirty.length).parallel().filter(b -> dirty[b])
+                .map(this::computeBrickOcclusion).sum();
+        lastUpdatedCells = updated;
+        return updated;
+    }
+
+    /**
+     * @return Absorption of a cell: that of the mean opacity of its voxels.
+     */
+    private float computeAbsorption(int cx, int cy, int cz, double[] opacity, int minimum) {
+        double sum = 0;
+        int count = 0;
+        for (int z = cz * factor; z < Math.min((cz + 1) * factor, volume.getDimZ()); z++) {
+            for (int y = cy * factor; y < Math.min((cy + 1) * factor, volume.getDimY()); y++) {
+                for (int x = cx * factor; x < Math.min((cx + 1) * factor, volume.getDimX()); x++) {
+                    sum += opacity[volume.getVoxel(x, y, z) - minimum];
+                    count++;
+                }
+            }
+        }
+        return (float) -Math.log(1 - sum / count);
+    }
+
+    /**
+     * Computes the occlusion of the cells of a brick.
+     *
+     * @return Number of cells.
+     */
+    private int computeBrickOcclusion(int brick) {
+        int x0 = (brick % bricksX) * BRICK;
+        int y0 = ((brick / bricksX) % bricksY) * BRICK;
+        int z0 = (brick / (bricksX * bricksY)) * BRICK;
+        int count = 0;
+        for (int cz = z0; cz < Math.min(z0 + BRICK, cellsZ); cz++) {
+            for (int cy = y0; cy < Math.min(y0 + BRICK, cellsY); cy++) {
+                for (int cx = x0; cx < Math.min(x0 + BRICK, cellsX); cx++) {
+                    occlusion[(cz * cellsY + cy) * cellsX + cx] = computeOcclusion(cx, cy, cz);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private float computeOcclusion(int cx, int cy, int cz) {
+        double light = 0;
+        for (int[] d : DIRECTIONS) {
+            // path through one cell along the direction, in voxels
+            double step = factor * Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+            double optical = 0;
+            int x = cx, y = cy, z = cz;
+            for (int k = 1; k <= RADIUS; k++) {
+                x += d[0];
+                y += d[1];
+                z += d[2];
+                if (x < 0 || y < 0 || z < 0 || x >= cellsX || y >= cellsY || z >= cellsZ) {
+                    break;
+                }
+                optical += absorption[(z * cellsY + y) * cellsX + x];
+            }
+            light += Math.exp(-optical * step);
+        }
+        return (float) Math.min(1, 2 * light / DIRECTIONS.length);
+    }
+
+    /**
+     * Samples the occlusion trilinearly between the centers of the cells.
+     *
+     * @param p Position in voxel coordinates.
+     * @return The occlusion, from 0 for no light to 1.
+     */
+    public double sample(double[] p) {
+        double half = (factor - 1) * 0.5;
+        double fx = clamp((p[0] - half) / factor, cellsX - 1);
+        double fy = clamp((p[1] - half) / factor, cellsY - 1);
+        double fz = clamp((p[2] - half) / factor, cellsZ - 1);
+        int x = Math.min((int) fx, Math.max(0, cellsX - 2));
+        int y = Math.min((int) fy, Math.max(0, cellsY - 2));
+        int z = Math.min((int) fz, Math.max(0, cellsZ - 2));
+        double ax = fx - x, ay = fy - y, az = fz - z;
+        int dx = cellsX > 1 ? 1 : 0;
+        int dy = cellsY > 1 ? cellsX : 0;
+        int dz = cellsZ > 1 ? cellsX * cellsY : 0;
+        int i = (z * cellsY + y) * cellsX + x;
+        double c00 = occlusion[i] + ax * (occlusion[i + dx] - occlusion[i]);
+        double c10 = occlusion[i + dy] + ax * (occlusion[i + dy + dx] - occlusion[i + dy]);
+        double c01 = occlusion[i + dz] + ax * (occlusion[i + dz + dx] - occlusion[i + dz]);
+        double c11 = occlusion[i + dz + dy] + ax * (occlusion[i + dz + dy + dx] - occlusion[i + dz + dy]);
+        double c0 = c00 + ay * (c10 - c00);
+        double c1 = c01 + ay * (c11 - c01);
+        return c0 + az * (c1 - c0);
+    }
+
+    private static double clamp(double value, int max) {
+        return value < 0 ? 0 : (value > max ? max : value);
+    }
+
+    /**
+     * @return Number of cells computed by the last update.
+     */
+    public synchronized int getLastUpdatedCells() {
+        return lastUpdatedCells;
+    }
+
+    /**
+     * @return Number of cells along x, y and z.
+     */
+    public int[] getCellDims() {
+        return new int[]{cellsX, cellsY, cellsZ};
+    }
+}
@@ -8,11 +8,18 @@ import gui.RaycastRendererPanel;
 import gui.TransferFunction2DEditor;
 import gui.TransferFunctionEditor;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import telemetry.Telemetry;
 
 import util.TFChangeListener;
 import util.VectorMath;
+import volume.BrickPrefetcher;
+import volume.BrickedVolume;
 import volume.GradientVolume;
 import volume.Volume;
+import volume.VolumePyramid;
 import volume.VoxelGradient;
 
 import java.lang.System;
@@ -48,6 +55,51 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      */
     private GradientVolume gradients = null;
 
+    /**
+     * Reads bricks ahead of the ray marcher if the volume is a
+     * {@link BrickedVolume}, null otherwise.
+     */
+    private BrickPrefetcher prefetcher = null;
+
+    /**
+     * Levels of detail of the volume, or null to always sample the volume
+     * itself.
+     */
+    private VolumePyramid pyramid = null;
+
+    /**
+     * Level of detail of the current frame, and the volume and gradients the
+     * sampling functions read: the volume itself at level 0.
+     */
+    private int lodLevel = 0;
+    private Volume sampleVolume = null;
+    private GradientVolume sampleGradients = null;
+    private final double[] _levelCoord = new double[3];
+
+    /**
+     * Coarsest level whose voxels are not larger than a screen pixel, as
+     * found by {@link #visualize(GL2)}.
+     */
+    private int footprintLevel = 0;
+
+    /**
+     * Frame time interactive frames should stay within, set with the system
+     * property volvis.lod.budget.ms.
+     */
+    private long frameTimeBudgetNanos = Long.getLong("volvis.lod.budget.ms", 100) * 1000000L;
+
+    /**
+     * Estimated time of a raycast frame at level 0 with a sample step of 1,
+     * from the last raycast frame, and the sample step of the last frame.
+     */
+    private double fullFrameNanos = 0;
+    private int frameSampleStep = 1;
+
+    /**
+     * Sample step along the rays while interacting.
+     */
+    private static final int INTERACTIVE_SAMPLE_STEP = 5;
+
     /**
      * Reference to the GUI panel.
      */
@@ -87,6 +139,13 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * Whether we are in shading mode or not.
      */
     private boolean shadingMode = false;
+    /**
+     * Whether compositing is darkened by the ambient occlusion of its
+     * transfer function, and the occlusion of the front and back transfer
+     * functions, computed when first needed.
+     */
+    private boolean ambientOcclusion = false;
+    private LightingVolume lightingFront = null, lightingBack = null;
 
     /**
      * Iso value to use in Isosurface rendering.
@@ -144,24 +203,113 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      */
     TransferFunction2DEditor tfEditor2DBack;
 
+    /**
+     * Tables of the front and back 2D transfer functions in the current
+     * frame, and the factor that makes a gradient magnitude a fraction of
+     * the maximum magnitude.
+     */
+    private TransferFunction2D.Table tf2DTableFront, tf2DTableBack;
+    private double tf2DMagnitudeScale;
+
     /**
      * Constant Zero gradient.
      */
     private final static VoxelGradient ZERO_GRADIENT = new VoxelGradient();
 
+    /**
+     * Only one in SHADING_TIMER_MASK + 1 calls of the Phong shading is timed.
+     */
+    private static final int SHADING_TIMER_MASK = 63;
+
+    /**
+     * Statistics of the frame being rendered, and of the last complete frame.
+     */
+    private RenderStatistics frameStatistics = new RenderStatistics();
+    private volatile RenderStatistics statistics = null;
+    private final ArrayList<RenderStatisticsListener> statisticsListeners
+            = new ArrayList<RenderStatisticsListener>();
+    private long frameCount = 0;
+
+    /**
+     * True while a loading volume is shown, and the data that was shown
+     * before, see {@link #setPreviewVolume(Volume)}.
+     */
+    private boolean previewing = false;
+    private Volume previousVolume = null;
+    private GradientVolume previousGradients = null;
+    private BufferedImage previousImage = null;
+    private Object frameEvent = null;
+
+    /**
+     * Start of the current frame and of its sampling loop, and the calls of
+     * the Phong shading of the current frame.
+     */
+    private long frameStart, marchStart;
+    private long shadingCalls, timedShadingCalls, timedShadingNanos;
+
+    /**
+     * Edge length in pixels of the tiles a timestep re-renders.
+     */
+    private static final int TILE_SIZE = 16;
+
+    /**
+     * Bricks that changed since the last frame, accumulated by
+     * {@link #setTimestep}, or null if the volume did not change, and their
+     * edge length in voxels.
+     */
+    private BitSet changedBricks = null;
+    private int changedBrickSize = 0;
+    /**
+     * Tiles of the image the current frame renders, or null to render all.
+     */
+    private boolean[] dirtyTiles = null;
+    private int tilesX = 0;
+    /**
+     * True once a timestep replaced the volume, and everything but the
+     * voxels that the last frame depended on, see
+     * {@link #computeFrameKey(double[])}, or null if it cannot be reused.
+     */
+    private boolean timeVarying = false;
+    private String lastFrameKey = null;
+    /**
+     * Counts the changes of the transfer functions and GUI settings.
+     */
+    private long settingsVersion = 0;
+
+    /**
+     * Corners of the region of interest rays are clipped to, in voxel
+     * coordinates, or null to render the whole volume.
+     */
+    private double[] cropMin = null, cropMax = null;
+    /**
+     * Clip planes and boxes set by the user, in voxel coordinates.
+     */
+    private final ClipRegion clipRegion = new ClipRegion();
+    /**
+     * The clip region and the crop box of the current frame, or null if
+     * nothing is clipped.
+     */
+    private ClipRegion frameClip = null;
+
     /**
      * Gets the corresponding voxel using Nearest Neighbors.
      *
      * @param coord Pixel coordinate in 3D space of the voxel we want to get.
      * @return The voxel value.
      */
-    private short getVoxel(double[] coord) {
+    private int getVoxel(double[] coord) {
+        if (lodLevel > 0) {
+            coord = toLevel(coord);
+            if (coord == null) {
+                return 0;
+            }
+        }
         // Get coordinates
         double dx = coord[0], dy = coord[1], dz = coord[2];
 
         // Verify they are inside the volume
-        if (dx < 0 || dx >= volume.getDimX() || dy < 0 || dy >= volume.getDimY()
-                || dz < 0 || dz >= volume.getDimZ()) {
+        if (dx < 0 || dx >= sampleVolume.getDimX() || dy < 0 || dy >= sampleVolume.getDimY()
+                || dz < 0 || dz >= sampleVolume.getDimZ()) {
 
             // If not, jus return 0
             return 0;
@@ -174,7 +322,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         int z = (int) Math.floor(dz);
 
         // Finally, get the voxel from the Volume for the corresponding coordinates
-        return volume.getVoxel(x, y, z);
+        return sampleVolume.getVoxel(x, y, z);
     }
 
     
@@ -184,54 +332,27 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * @param coord Pixel coordinate in 3D space of the voxel we want to get.
      * @return The voxel value.
      */
-    private short getVoxelTrilinear(double[] coord) {
+    int getVoxelTrilinear(double[] coord) {
         // TODO 1: Implement Tri-Linear interpolation and use it in your code
         // instead of getVoxel().
+        if (lodLevel > 0) {
+            coord = toLevel(coord);
+            if (coord == null) {
+                return 0;
+            }
+        }
         double dx = coord[0], dy = coord[1], dz = coord[2];
         
         // Verify they are inside the volume
-        if (dx < 0 || dx >= volume.getDimX() || dy < 0 || dy >= volume.getDimY()
-                || dz < 0 || dz >= volume.getDimZ()) {
+        if (dx < 0 || dx >= sampleVolume.getDimX() || dy < 0 || dy >= sampleVolume.getDimY()
+                || dz < 0 || dz >= sampleVolume.getDimZ()) {
             // If not, jus return 0
             return 0;
         }
         
-        // Get the nearest lower bounds xl, yl, zl for dx, dy, dz since we only 
-        // have the voxel values at integer coordinates
-        int xl = (int) Math.floor(dx);
-        int yl = (int) Math.floor(dy);
-        int zl = (int) Math.floor(dz);
-        
-        // Compute the interpolation coefficients for the three axes
-        double alpha = dx - xl;
-        double beta = dy - yl;
-        double gamma = dz - zl;
-
-        // Compute the coordinates xu, yu, zu, the upper bounds of the value we 
-        // want to interpolate for; for voxels within the object we take the value
-        // of lower bound + 1; for the voxels at the boundary, we take the boundary values
-        int xu = volume.getDimX() - 1 > xl ? (xl + 1) : xl;
-        int yu = volume.getDimY() - 1 > yl ? (yl + 1) : yl;
-        int zu = volume.getDimZ() - 1 > zl ? (zl + 1) : zl;
-
-        // Get the voxel values of the 8 vertexes of the smallest cube (with the 
-        // nearest vertexes) which contains our interested coordinate values
-        double sx0 = volume.getVoxel(xl, yl, zl);
-        double sx1 = volume.getVoxel(xu, yl, zl);
-        double sx2 = volume.getVoxel(xl, yu, zl);
-        double sx3 = volume.getVoxel(xu, yu, zl);
-        double sx4 = volume.getVoxel(xl, yl, zu);
-        double sx5 = volume.getVoxel(xu, yl, zu);
-        double sx6 = volume.getVoxel(xl, yu, zu);
-        double sx7 = volume.getVoxel(xu, yu, zu);
-        
-        // The equation used for trilinear interpolation
-        double sx = (1 - alpha) * (1-beta) * (1-gamma) * sx0 + alpha * (1 - beta) *(1 - gamma) * sx1 +
-                    (1 - alpha) * beta * (1 - gamma) * sx2 + alpha * beta * (1 - gamma)* sx3 +
-                    (1 - alpha) * (1 - beta) * gamma * sx4 + alpha * (1 - beta) * gamma * sx5 +
-                    (1 - alpha) * beta * gamma * sx6 + alpha * beta * gamma * sx7;
-        
-        return (short) sx;
+        // Interpolate the 8 voxels around the position; every voxel type
+        // has its own sampler, which reads its voxel array directly
+        return (int) sampleVolume.sampleTrilinear(dx, dy, dz);
     }
 
     
@@ -242,12 +363,18 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * @return The voxel gradient.
      */
     private VoxelGradient getGradient(double[] coord) {
+        if (lodLevel > 0) {
+            coord = toLevel(coord);
+            if (coord == null) {
+                return ZERO_GRADIENT;
+            }
+        }
         // Get the coordinates
         double dx = coord[0], dy = coord[1], dz = coord[2];
 
         // Verify they are inside the volume gradient
-        if (dx < 0 || dx > (gradients.getDimX() - 2) || dy < 0 || dy > (gradients.getDimY() - 2)
-                || dz < 0 || dz > (gradients.getDimZ() - 2)) {
+        if (dx < 0 || dx > (sampleGradients.getDimX() - 2) || dy < 0 || dy > (sampleGradients.getDimY() - 2)
+                || dz < 0 || dz > (sampleGradients.getDimZ() - 2)) {
 
             // If not, just return a zero gradient
             return ZERO_GRADIENT;
@@ -260,7 +387,12 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         int z = (int) Math.round(dz);
 
         // Finally, get the gradient from GradientVolume for the corresponding coordinates
-        return gradients.getGradient(x, y, z);
+        VoxelGradient gradient = sampleGradients.getGradient(x, y, z);
+        if (lodLevel > 0) {
+            float scale = 1.0f / (1 << lodLevel);
+            return new VoxelGradient(gradient.x * scale, gradient.y * scale, gradient.z * scale);
+        }
+        return gradient;
     }
 
     
@@ -270,14 +402,20 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * @param coord Pixel coordinate in 3D space of the voxel we want to get.
      * @return The voxel gradient.
      */
-    private VoxelGradient getGradientTrilinear(double[] coord) {
+    VoxelGradient getGradientTrilinear(double[] coord) {
         // TODO 6: Implement Tri-linear interpolation for gradients
+        if (lodLevel > 0) {
+            coord = toLevel(coord);
+            if (coord == null) {
+                return ZERO_GRADIENT;
+            }
+        }
         // Get the coordinates
         double dx = coord[0], dy = coord[1], dz = coord[2];
 
         // Verify they are inside the volume gradient
-        if (dx < 0 || dx > (gradients.getDimX() - 2) || dy < 0 || dy > (gradients.getDimY() - 2)
-                || dz < 0 || dz > (gradients.getDimZ() - 2)) {
+        if (dx < 0 || dx > (sampleGradients.getDimX() - 2) || dy < 0 || dy > (sampleGradients.getDimY() - 2)
+                || dz < 0 || dz > (sampleGradients.getDimZ() - 2)) {
             // If not, just return a zero gradient
             return ZERO_GRADIENT;
         }
@@ -297,20 +435,20 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         // contains our interested coordinates, which is the same as in interpolating
         // for the voxel value (take the boundary value when at the boundary, otherwise
         // take lower bounds + 1)
-        int xu = gradients.getDimX() - 1 > xl ? (xl + 1) : xl;
-        int yu = gradients.getDimY() - 1 > yl ? (yl + 1) : yl;
-        int zu = gradients.getDimZ() - 1 > zl ? (zl + 1) : zl;
+        int xu = sampleGradients.getDimX() - 1 > xl ? (xl + 1) : xl;
+        int yu = sampleGradients.getDimY() - 1 > yl ? (yl + 1) : yl;
+        int zu = sampleGradients.getDimZ() - 1 > zl ? (zl + 1) : zl;
 
         // Get the gradients of the 8 vertexes of the smallest cube which contains 
         // our interested point
-        float[] sx0 = gradients.getGradientVec(xl, yl, zl);
-        float[] sx1 = gradients.getGradientVec(xu, yl, zl);
-        float[] sx2 = gradients.getGradientVec(xl, yu, zl);
-        float[] sx3 = gradients.getGradientVec(xu, yu, zl);
-        float[] sx4 = gradients.getGradientVec(xl, yl, zu);
-        float[] sx5 = gradients.getGradientVec(xu, yl, zu);
-        float[] sx6 = gradients.getGradientVec(xl, yu, zu);
-        float[] sx7 = gradients.getGradientVec(xu, yu, zu);
+        float[] sx0 = sampleGradients.getGradientVec(xl, yl, zl);
+        float[] sx1 = sampleGradients.getGradientVec(xu, yl, zl);
+        float[] sx2 = sampleGradients.getGradientVec(xl, yu, zl);
+        float[] sx3 = sampleGradients.getGradientVec(xu, yu, zl);
+        float[] sx4 = sampleGradients.getGradientVec(xl, yl, zu);
+        float[] sx5 = sampleGradients.getGradientVec(xu, yl, zu);
+        float[] sx6 = sampleGradients.getGradientVec(xl, yu, zu);
+        float[] sx7 = sampleGradients.getGradientVec(xu, yu, zu);
         
         // Tri-linear interpoloation for the gradient values (3 dimensions)
         float[] grad_vec = new float[3];
@@ -321,12 +459,42 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
                  (1 - alpha) * beta * gamma * sx6[i] + alpha * beta * gamma * sx7[i];
         }
         
+        // Gradients of a coarser level are per voxel of that level
+        if (lodLevel > 0) {
+            for (int i = 0; i < 3; i++) {
+                grad_vec[i] /= 1 << lodLevel;
+            }
+        }
+
         // Return the interpolated VoxelGradient
         VoxelGradient sx = new VoxelGradient(grad_vec[0], grad_vec[1], grad_vec[2]);
         return sx;
     }
 
     
+    /**
+     * Maps a position in the volume to the level of detail of the frame,
+     * clamped to the voxels of the level.
+     *
+     * @param coord Position in voxels of the volume.
+     * @return The position in voxels of the level, in {@link #_levelCoord},
+     * or null if coord is outside the volume.
+     */
+    private double[] toLevel(double[] coord) {
+        if (coord[0] < 0 || coord[0] >= volume.getDimX() || coord[1] < 0 || coord[1] >= volume.getDimY()
+                || coord[2] < 0 || coord[2] >= volume.getDimZ()) {
+            return null;
+        }
+        double scale = 1.0 / (1 << lodLevel);
+        _levelCoord[0] = Math.min((coord[0] + 0.5) * scale - 0.5, sampleVolume.getDimX() - 1);
+        _levelCoord[1] = Math.min((coord[1] + 0.5) * scale - 0.5, sampleVolume.getDimY() - 1);
+        _levelCoord[2] = Math.min((coord[2] + 0.5) * scale - 0.5, sampleVolume.getDimZ() - 1);
+        for (int i = 0; i < 3; i++) {
+            _levelCoord[i] = Math.max(0, _levelCoord[i]);
+        }
+        return _levelCoord;
+    }
+
     /**
      * Updates {@link #image} attribute (result of rendering) using the slicing
      * technique.
@@ -338,7 +506,11 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
     private void slicer(double[] viewMatrix) {
 
         // Clear the image
-        resetImage();
+        if (dirtyTiles == null) {
+            resetImage();
+        } else {
+            resetDirtyTiles();
+        }
 
         // vector uVec and vVec define a plane through the origin,
         // perpendicular to the view vector viewVec which is going from the view point towards the object
@@ -372,15 +544,22 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         // Auxiliar color
         TFColor colorAux;
 
+        marchStart = System.nanoTime();
         for (int j = imageCenter[1] - imageH / 2; j < imageCenter[1] + imageH / 2; j++) {
             for (int i = imageCenter[0] - imageW / 2; i < imageCenter[0] + imageW / 2; i++) {
+                if (dirtyTiles != null && !dirtyTiles[(j / TILE_SIZE) * tilesX + i / TILE_SIZE]) {
+                    continue;
+                }
                 // computes the pixelCoord which contains the 3D coordinates of the pixels (i,j)
                 computePixelCoordinatesFloat(pixelCoord, volumeCenter, uVec, vVec, i, j);
-
+                if (frameClip != null && !frameClip.contains(pixelCoord)) {
+                    continue;
+                }
 
                 //NOTE: you have to implement this function to get the tri-linear interpolation
                 // int val = getVoxel(pixelCoord); // The nearest neighbor method is replaced with tri-linear interpolation
                 int val = getVoxelTrilinear(pixelCoord);
+                frameStatistics.samplesTaken++;
 
                 // Map the intensity to a grey value by linear scaling
                 pixelColor.r = val / max;
@@ -403,24 +582,20 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * Do NOT modify this function.
      *
      * Updates {@link #image} attribute (result of rendering) using MIP
-     * raycasting. It returns the color assigned to a ray/pixel given its
-     * starting and ending points, and the direction of the ray.
+     * raycasting. It returns the color assigned to a segment of a ray given
+     * its starting point, its number of samples and the direction of the ray.
      *
-     * @param entryPoint Starting point of the ray.
-     * @param exitPoint Last point of the ray.
+     * @param entryPoint Starting point of the segment.
+     * @param nrSamples Number of samples of the segment.
      * @param rayVector Direction of the ray.
      * @param sampleStep Sample step of the ray.
-     * @return Color assigned to a ray/pixel.
+     * @return Color assigned to the segment.
      */
-    private int traceRayMIP(double[] entryPoint, double[] exitPoint, double[] rayVector, double sampleStep) {
-        //compute the increment and the number of samples
+    private TFColor traceRayMIP(double[] entryPoint, int nrSamples, double[] rayVector, double sampleStep) {
+        //compute the increment
         double[] increments = new double[3];
         VectorMath.setVector(increments, rayVector[0] * sampleStep, rayVector[1] * sampleStep, rayVector[2] * sampleStep);
 
-        // Compute the number of times we need to sample
-        double distance = VectorMath.distance(entryPoint, exitPoint);
-        int nrSamples = 1 + (int) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep);
-
         //the current position is initialized as the entry point
         double[] currentPos = new double[3];
         VectorMath.setVector(currentPos, entryPoint[0], entryPoint[1], entryPoint[2]);
@@ -434,6 +609,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
             for (int i = 0; i < 3; i++) {
                 currentPos[i] += increments[i];
             }
+            frameStatistics.samplesTaken++;
             nrSamples--;
         } while (nrSamples > 0);
 
@@ -445,8 +621,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
             alpha = 0.0;
         }
         r = g = b = maximum;
-        int color = computePackedPixelColor(r, g, b, alpha);
-        return color;
+        return new TFColor(r, g, b, alpha);
     }
 
     
@@ -454,18 +629,21 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      *
      * Updates {@link #image} attribute (result of rendering) using the
      * compositing/accumulated raycasting. It returns the color assigned to a
-     * ray/pixel given its starting and ending points, and the direction of the
-     * ray.
+     * segment of a ray given its starting point, its number of samples and the
+     * direction of the ray.
      *
      * Ray must be sampled with a distance defined by sampleStep.
      *
-     * @param entryPoint Starting point of the ray.
-     * @param exitPoint Last point of the ray.
+     * @param entryPoint Starting point of the segment.
+     * @param nrSamples Number of samples of the segment.
      * @param rayVector Direction of the ray.
      * @param sampleStep Sample step of the ray.
-     * @return Color assigned to a ray/pixel.
+     * @param planeFlag 1 for the front side of the cutting plane, -1 for the
+     * back side.
+     * @return Color assigned to the segment, with its color premultiplied by
+     * its opacity.
      */
-    private int traceRayComposite(double[] entryPoint, double[] exitPoint, double[] rayVector, double sampleStep, int planeFlag) {
+    private TFColor traceRayComposite(double[] entryPoint, int nrSamples, double[] rayVector, double sampleStep, int planeFlag) {
         double[] lightVector = new double[3];
         double[] increments = new double[3];
         
@@ -475,10 +653,6 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         // Get the increments when sampling along the ray
         VectorMath.setVector(increments, rayVector[0] * sampleStep, rayVector[1] * sampleStep, rayVector[2] * sampleStep);
         
-        // Compute the number of times we need to sample
-        double distance = VectorMath.distance(entryPoint, exitPoint);
-        int nrSamples = 1 + (int) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep);
-        
         // We will use the front-to-back casting, so the current position is initialized 
         // as the entry point
         double[] currentPos = new double[3];
@@ -508,7 +682,10 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         // TODO 2: To be Implemented this function. Now, it just gives back a constant color depending on the mode
         switch (mode) {
             case COMPOSITING:
-                // 1D transfer function             
+                // 1D transfer function, darkened by the ambient occlusion of
+                // its side if that is on
+                LightingVolume lighting = ambientOcclusion ? (planeFlag == 1 ? lightingFront : lightingBack) : null;
+                TFColor occluded_color = new TFColor();
                 do {
                     // Get the value of the voxel using tri-linear interpolation, then get the
                     // color from the transfer function
@@ -523,7 +700,17 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
                     // Add shading
                     if (shadingMode){
                         VoxelGradient voxel_grad = getGradientTrilinear(currentPos);
-                        voxel_color = computePhongShading(voxel_color, voxel_grad, lightVector, rayVector);
+                        voxel_color = shade(voxel_color, voxel_grad, lightVector, rayVector);
+                    }
+                    if (lighting != null && voxel_color.a > 0) {
+                        // the colors of the transfer function are shared, so
+                        // they are not changed in place
+                        double occlusion = lighting.sample(currentPos);
+                        occluded_color.r = voxel_color.r * occlusion;
+                        occluded_color.g = voxel_color.g * occlusion;
+                        occluded_color.b = voxel_color.b * occlusion;
+                        occluded_color.a = voxel_color.a;
+                        voxel_color = occluded_color;
                     }
                     
                     // Ray tracing using the front-to-back formulas in Ljung et al.'s paper:
@@ -538,49 +725,32 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
                     for (int i = 0; i < 3; i++) {
                         currentPos[i] += increments[i];
                     }
+                    frameStatistics.samplesTaken++;
                     nrSamples--;
                 } while (nrSamples > 0);
         
                 break;
                 
             case TRANSFER2D:
-                // 2D transfer function 
-                // Get the selected value material_value (fv), desired thickness in voxels 
-                // of the transition region material_r (r), and the set color from the GUI
-                double material_value;
-                double material_r;
-                TFColor set_color;
-                // Get the set parameters from either front or back panels according to the
-                // plane flag
-                if (planeFlag == 1){
-                    material_value = tfEditor2DFront.tf2D.baseIntensity;
-                    material_r = tfEditor2DFront.tf2D.radius;
-                    set_color = tfEditor2DFront.tf2D.color;
-                }
-                else{
-                    material_value = tfEditor2DBack.tf2D.baseIntensity;
-                    material_r = tfEditor2DBack.tf2D.radius;
-                    set_color = tfEditor2DBack.tf2D.color;
-                }
-               
+                // 2D transfer function of either the front or back panel
+                // according to the plane flag, baked into a table over value
+                // and gradient magnitude
+                TransferFunction2D.Table table = planeFlag == 1 ? tf2DTableFront : tf2DTableBack;
+
                 do {
                     // Get the value and gradient of the current voxel
                     int voxelValue = getVoxelTrilinear(currentPos);
                     VoxelGradient voxel_grad = getGradientTrilinear(currentPos);
-                    
-                    // Get the color from the 2D function
-                    voxel_color.r = set_color.r;
-                    voxel_color.g = set_color.g;
-                    voxel_color.b = set_color.b;
-                    voxel_color.a = set_color.a;
-                    
+
+                    // Get the color and the gradient-based weighted opacity
+                    table.lookup(voxelValue, voxel_grad.mag * tf2DMagnitudeScale, voxel_color);
+                    double opacity = voxel_color.a;
+
                     // Add shading
-                    if (shadingMode){
-                        voxel_color = computePhongShading(voxel_color, voxel_grad, lightVector, rayVector);
+                    if (shadingMode && opacity > 0) {
+                        voxel_color = shade(voxel_color, voxel_grad, lightVector, rayVector);
                     }
-                    
-                    // Compute the gradient-based weighted opacity
-                    voxel_color.a = computeOpacity2DTF(material_value, material_r, voxelValue, voxel_grad.mag, set_color.a);
+                    voxel_color.a = opacity;
 
                     // Recursive computing of composite ray casting
                     curr_color.r = prev_color.r + voxel_color.r * voxel_color.a * (1 - prev_color.a);
@@ -593,6 +763,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
                     for (int i = 0; i < 3; i++) {
                         currentPos[i] += increments[i];
                     }
+                    frameStatistics.samplesTaken++;
                     nrSamples--;
                 } while (nrSamples > 0);
         }
@@ -603,25 +774,26 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         b = curr_color.b;
         alpha = curr_color.a;
 
-        //computes the color
-        int color = computePackedPixelColor(r, g, b, alpha);
-        return color;
+        return new TFColor(r, g, b, alpha);
     }
 
     
     /**
      *
      * Updates {@link #image} attribute (result of rendering) using the
-     * Isosurface raycasting. It returns the color assigned to a ray/pixel given
-     * its starting and ending points, and the direction of the ray.
+     * Isosurface raycasting. It returns the color assigned to a segment of a
+     * ray given its starting point, its number of samples and the direction of
+     * the ray.
      *
-     * @param entryPoint Starting point of the ray.
-     * @param exitPoint Last point of the ray.
+     * @param entryPoint Starting point of the segment.
+     * @param nrSamples Number of samples of the segment.
      * @param rayVector Direction of the ray.
      * @param sampleStep Sample step of the ray.
-     * @return Color assigned to a ray/pixel.
+     * @param planeFlag 1 for the front side of the cutting plane, -1 for the
+     * back side.
+     * @return Color assigned to the segment.
      */
-    private int traceRayIso(double[] entryPoint, double[] exitPoint, double[] rayVector, double sampleStep, int planeFlag) {
+    private TFColor traceRayIso(double[] entryPoint, int nrSamples, double[] rayVector, double sampleStep, int planeFlag) {
 
         double[] lightVector = new double[3];
         double[] increments = new double[3];
@@ -644,10 +816,6 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         double[] currentPos = new double[3];
         VectorMath.setVector(currentPos, entryPoint[0], entryPoint[1], entryPoint[2]);
         
-        // Compute the number of times we need to sample
-        double distance = VectorMath.distance(entryPoint, exitPoint);
-        int nrSamples = 1 + (int) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep);
-        
         // Get the front or back isoValue according to the plane flag from the GUI
         float isoValue = 0;
         TFColor isoColor = new TFColor();
@@ -667,13 +835,15 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         do {
             // Get the value of the current voxel using tri-linear interpolation
             double value = getVoxelTrilinear(currentPos);
+            frameStatistics.samplesTaken++;
             // If a voxel with the value higher than isoValue is found, we set the alpha value of the pixel corresponding to this ray as 1 
             // (a complete opaque pixel) and break; otherwise we keep finding along the ray, until the end of the ray. 
             // If no such value is found, the corresponding pixel is below the contour with the isoValue, so it is not displayed in the image 
             // (by keeping alpha=0 to make it transparent).
             // The value is compared with a tolerance of a small epsilon to avoid some precision problems
-            if (value - this.isoValueFront >= eps) {
+            if (value - isoValue >= eps) {
                 alpha = 1;
+                frameStatistics.earlyTerminatedRays++;
                 break;
             }
             // sample for the next voxel
@@ -688,21 +858,33 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         g = isoColor.g;
         b = isoColor.b;
         
-        // Compute the packed color
-        int color = computePackedPixelColor(r, g, b, alpha);
-        
         // Add shading if it is designated 
         TFColor shaded_color = new TFColor(r, g, b, alpha);
         if(shadingMode){
             VoxelGradient voxel_grad = getGradientTrilinear(currentPos);
-            shaded_color = computePhongShading(shaded_color, voxel_grad, lightVector, rayVector);
-            color = computePackedPixelColor(shaded_color.r, shaded_color.g, shaded_color.b, shaded_color.a);
+            shaded_color = shade(shaded_color, voxel_grad, lightVector, rayVector);
         }
-        return color;
+        return shaded_color;
     }
 
     
     
+    /**
+     * Calls {@link #computePhongShading} and times one in
+     * {@link #SHADING_TIMER_MASK} + 1 calls for the frame statistics.
+     */
+    private TFColor shade(TFColor voxel_color, VoxelGradient gradient, double[] lightVector,
+            double[] rayVector) {
+        if ((shadingCalls++ & SHADING_TIMER_MASK) != 0) {
+            return computePhongShading(voxel_color, gradient, lightVector, rayVector);
+        }
+        long start = System.nanoTime();
+        TFColor color = computePhongShading(voxel_color, gradient, lightVector, rayVector);
+        timedShadingNanos += System.nanoTime() - start;
+        timedShadingCalls++;
+        return color;
+    }
+
     /**
      * Compute Phong Shading given the voxel color (material color), gradient,
      * light vector and view vector.
@@ -713,7 +895,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * @param rayVector View vector.
      * @return Computed color for Phong Shading.
      */
-    private TFColor computePhongShading(TFColor voxel_color, VoxelGradient gradient, double[] lightVector,
+    TFColor computePhongShading(TFColor voxel_color, VoxelGradient gradient, double[] lightVector,
             double[] rayVector) {
 
         // TODO 7: Implement Phong Shading.
@@ -789,11 +971,37 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
             // increment: the sample step we take on the displayed 2D image
 //            increment = 4;
             // sampleStep: the sample step we take when casting along the ray
-            sampleStep = 5;
+            sampleStep = INTERACTIVE_SAMPLE_STEP;
+        }
+        // a coarser level of detail is sampled once per voxel of the level
+        sampleStep <<= lodLevel;
+        frameSampleStep = sampleStep;
+
+        // the occlusion is computed again only where the opacity changed
+        if (ambientOcclusion) {
+            updateLighting();
+        }
+
+        // the tables are built again only if a widget changed
+        boolean front2D = modeFront == RaycastMode.TRANSFER2D;
+        boolean back2D = cuttingPlaneMode && modeBack == RaycastMode.TRANSFER2D;
+        if (front2D) {
+            tf2DTableFront = tFunc2DFront.getTable(tFuncFront.getMinimum(), tFuncFront.getMaximum());
+        }
+        if (back2D) {
+            tf2DTableBack = tFunc2DBack.getTable(tFuncBack.getMinimum(), tFuncBack.getMaximum());
+        }
+        if (front2D || back2D) {
+            double maxMagnitude = gradients.getMaxGradientMagnitude();
+            tf2DMagnitudeScale = maxMagnitude > 0 ? 1 / maxMagnitude : 0;
         }
 
         // reset the image to black
-        resetImage();
+        if (dirtyTiles == null) {
+            resetImage();
+        } else {
+            resetDirtyTiles();
+        }
 
         // vector uVec and vVec define a plane through the origin,
         // perpendicular to the view vector viewVec which is going from the view point towards the object
@@ -824,104 +1032,35 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         VectorMath.setVector(volumeCenter, volume.getDimX() / 2, volume.getDimY() / 2, volume.getDimZ() / 2);
 
         // ray computation for each pixel
+        marchStart = System.nanoTime();
         for (int j = imageCenter[1] - imageH / 2; j < imageCenter[1] + imageH / 2; j += increment) {
             for (int i = imageCenter[0] - imageW / 2; i < imageCenter[0] + imageW / 2; i += increment) {
+                if (dirtyTiles != null && !dirtyTiles[(j / TILE_SIZE) * tilesX + i / TILE_SIZE]) {
+                    continue;
+                }
                 // compute starting points of rays in a plane shifted backwards to a position behind the data set
                 computePixelCoordinatesBehindFloat(pixelCoord, viewVec, uVec, vVec, i, j);
                 // compute the entry and exit point of the ray
                 computeEntryAndExit(pixelCoord, rayVector, entryPoint, exitPoint);
+                if (frameClip != null && (entryPoint[0] > -1.0) && (exitPoint[0] > -1.0)) {
+                    // the samples the clip removes count as skipped
+                    long unclipped = 1 + (long) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep);
+                    if (!frameClip.clip(entryPoint, exitPoint)) {
+                        frameStatistics.samplesSkipped += unclipped;
+                        continue;
+                    }
+                    frameStatistics.samplesSkipped += unclipped
+                            - (1 + (long) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep));
+                }
 
-                // TODO 9: Implement logic for cutting plane.
                 if ((entryPoint[0] > -1.0) && (exitPoint[0] > -1.0)) {
-                    int val = 0;
-                    // Define a direction vector to save the dot product of the norm vector of the
-                    // plane and the vector from the center point of the plane to the entry point on the ray
-                    double[] dir_vec = new double[3];
-                    double dir = 0;
-                    // Define a flag to save the front(1) or back(-1) mode, to be passed to ray tracing algorithms
-                    int planeFlag = 0;
-                    // The vector from the center of the plane to the entry point of the ray
-                    for (int k = 0; k < 3; k++){
-                        dir_vec[k] = entryPoint[k] - planePoint[k];
-                    }
-                    // Compute the dot product of the two vectors
-                    dir = 0;
-                    for (int k = 0; k < 3; k++){
-                        dir += dir_vec[k] * planeNorm[k];
-                    }
-                    
-                    // If under the cutting plane mode
-                    if (cuttingPlaneMode){
-                        // We decide whether to take the front mode or back mode based on the positive or negative
-                        // value of the dot product
-                        // If the angle is smaller than 90 degree (dir is positive), the ray is casted onto the front
-                        // part of the plane
-                        if (dir >= 0){
-                            planeFlag = 1;
-                            switch (modeFront) {
-                                case COMPOSITING:
-                                case TRANSFER2D:
-                                    val = traceRayComposite(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                                case MIP:
-                                    val = traceRayMIP(entryPoint, exitPoint, rayVector, sampleStep);
-                                    break;
-                                case ISO_SURFACE:
-                                    val = traceRayIso(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                            }
-                            for (int ii = i; ii < i + increment; ii++) {
-                                for (int jj = j; jj < j + increment; jj++) {
-                                    image.setRGB(ii, jj, val);
-                                }
-                            }
-                        }
-                        // If the angle is greater than 90 degree (dir is negative), the ray is casted onto the back 
-                        // part of the plane
-                        else{
-                            planeFlag = -1;
-                            switch (modeBack) {
-                                case COMPOSITING:
-                                case TRANSFER2D:
-                                    val = traceRayComposite(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                                case MIP:
-                                    val = traceRayMIP(entryPoint, exitPoint, rayVector, sampleStep);
-                                    break;
-                                case ISO_SURFACE:
-                                    val = traceRayIso(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                            }
-                            for (int ii = i; ii < i + increment; ii++) {
-                                for (int jj = j; jj < j + increment; jj++) {
-                                    image.setRGB(ii, jj, val);
-                                }
-                            }
+                    frameStatistics.raysCast++;
+                    int val = traceRay(entryPoint, exitPoint, rayVector, sampleStep);
+                    for (int ii = i; ii < i + increment; ii++) {
+                        for (int jj = j; jj < j + increment; jj++) {
+                            image.setRGB(ii, jj, val);
                         }
                     }
-                    
-                    // If no cutting plane, we take the parameters and transfer functions for the front part
-                    else{
-                        planeFlag = 1;
-                        switch (modeFront) {
-                                case COMPOSITING:
-                                case TRANSFER2D:
-                                    val = traceRayComposite(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                                case MIP:
-                                    val = traceRayMIP(entryPoint, exitPoint, rayVector, sampleStep);
-                                    break;
-                                case ISO_SURFACE:
-                                    val = traceRayIso(entryPoint, exitPoint, rayVector, sampleStep, planeFlag);
-                                    break;
-                            }
-                            for (int ii = i; ii < i + increment; ii++) {
-                                for (int jj = j; jj < j + increment; jj++) {
-                                    image.setRGB(ii, jj, val);
-                                }
-                            }
-                    }
-                
                 }
 
             }
@@ -929,39 +1068,104 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
     }
 
     /**
-     * Computes the opacity based on the value of the pixel and values of the
-     * triangle widget. {@link #tFunc2DFront} contains the values of the base
-     * intensity and radius. {@link TransferFunction2D#baseIntensity} and
-     * {@link TransferFunction2D#radius} are in image intensity units.
+     * Casts a ray from its entry to its exit point. Without the cutting
+     * plane, the whole ray uses the front settings. With it, the ray is
+     * intersected with the plane once, from the signed distance of the entry
+     * point to the plane and the rate at which the ray approaches it, and the
+     * segments on either side are traced with the mode and transfer function
+     * of their side. The segment farther along the ray is composited behind
+     * the first one. A segment whose mode is INVISIBLE is not sampled, nor is
+     * a segment behind an opaque one; their samples count as skipped.
      *
-     * @param material_value Value of the material.
-     * @param material_r Radius of the material.
-     * @param voxelValue Voxel value.
-     * @param gradMagnitude Gradient magnitude.
-     * @return
+     * @param entryPoint Starting point of the ray.
+     * @param exitPoint Last point of the ray.
+     * @param rayVector Direction of the ray.
+     * @param sampleStep Sample step of the ray.
+     * @return Color assigned to a ray/pixel.
      */
-    public double computeOpacity2DTF(double material_value, double material_r,
-            double voxelValue, double gradMagnitude, double set_opacity) {
+    private int traceRay(double[] entryPoint, double[] exitPoint, double[] rayVector, double sampleStep) {
+        int nrSamples = 1 + (int) Math.floor(VectorMath.distance(entryPoint, exitPoint) / sampleStep);
 
-        double opacity = 0.0;
-        double radius = material_r / gradients.getMaxGradientMagnitude();
-         
-        // TODO 8: Implement weight based opacity. 
-        // Compute the weighted opacity. Corresponding to the three cases of formula (3) in Levoy's paper
-        if (gradMagnitude == 0 && voxelValue == material_value) {
-            opacity = set_opacity;
-        }
-        else if (gradMagnitude > 0 && (voxelValue - radius * gradMagnitude <= material_value) &&
-                 (voxelValue + radius * gradMagnitude >= material_value)){
-            opacity = set_opacity * (1 - 1 / radius * Math.abs((material_value - voxelValue) / gradMagnitude));
+        // the samples before split are on the side of the entry point, given
+        // by planeFlag: front (1) or back (-1)
+        int planeFlag = 1;
+        int split = nrSamples;
+        if (cuttingPlaneMode) {
+            double distance = 0, rate = 0;
+            for (int k = 0; k < 3; k++) {
+                distance += (entryPoint[k] - planePoint[k]) * planeNorm[k];
+                rate += rayVector[k] * planeNorm[k];
+            }
+            planeFlag = distance >= 0 ? 1 : -1;
+            if (rate != 0) {
+                double crossing = -distance / rate;
+                if (crossing > 0) {
+                    split = (int) Math.min(nrSamples, Math.ceil(crossing / sampleStep));
+                }
+            }
         }
-        else {
-            opacity = 0;
+
+        TFColor color = null;
+        boolean premultiplied = false;
+        for (int first = 0; first < nrSamples; planeFlag = -planeFlag) {
+            int end = first < split ? split : nrSamples;
+            RaycastMode mode = planeFlag == 1 ? modeFront : modeBack;
+            double[] start = entryPoint;
+            if (first > 0) {
+                start = new double[3];
+                for (int k = 0; k < 3; k++) {
+                    start[k] = entryPoint[k] + rayVector[k] * sampleStep * first;
+                }
+            }
+            TFColor segment = null;
+            switch (mode) {
+                case COMPOSITING:
+                case TRANSFER2D:
+                    segment = traceRayComposite(start, end - first, rayVector, sampleStep, planeFlag);
+                    break;
+                case MIP:
+                    segment = traceRayMIP(start, end - first, rayVector, sampleStep);
+                    break;
+                case ISO_SURFACE:
+                    segment = traceRayIso(start, end - first, rayVector, sampleStep, planeFlag);
+                    break;
+                default:
+                    // INVISIBLE
+                    frameStatistics.samplesSkipped += end - first;
+                    break;
+            }
+            boolean segmentPremultiplied = mode == RaycastMode.COMPOSITING || mode == RaycastMode.TRANSFER2D;
+            if (color == null) {
+                color = segment;
+                premultiplied = segmentPremultiplied;
+            } else if (segment != null) {
+                color = compositeBehind(color, premultiplied, segment, segmentPremultiplied);
+                premultiplied = true;
+            }
+            if (color != null && color.a >= 1) {
+                frameStatistics.samplesSkipped += nrSamples - end;
+                break;
+            }
+            first = end;
         }
-        return opacity;
+        return color == null ? 0 : computePackedPixelColor(color.r, color.g, color.b, color.a);
+    }
+
+    /**
+     * Composites the color of a ray segment behind the color of the segments
+     * before it. Compositing gives colors premultiplied by their opacity, MIP
+     * and isosurfaces do not.
+     *
+     * @return The color of both, premultiplied.
+     */
+    private static TFColor compositeBehind(TFColor front, boolean frontPremultiplied, TFColor back,
+            boolean backPremultiplied) {
+        double frontWeight = frontPremultiplied ? 1 : front.a;
+        double backWeight = (backPremultiplied ? 1 : back.a) * (1 - front.a);
+        return new TFColor(front.r * frontWeight + back.r * backWeight, front.g * frontWeight + back.g * backWeight,
+                front.b * frontWeight + back.b * backWeight, front.a + back.a * (1 - front.a));
     }
 
-    
     /**
      * Class constructor. Initializes attributes.
      */
@@ -992,46 +1196,481 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * @param vol Volume to be visualized.
      */
     public void setVolume(Volume vol) {
-        System.out.println("Assigning volume");
+        System.out.println("Computing gradients");
+        GradientVolume grad = GradientVolume.create(vol);
+        setVolume(vol, grad);
+        setPyramid(new VolumePyramid(vol, grad));
+    }
+
+    /**
+     * Sets the volume to be visualized together with gradients that were
+     * computed elsewhere, e.g. on a loading thread, and creates the GUI
+     * editors of the transfer functions. It ends a preview.
+     *
+     * @param vol Volume to be visualized.
+     * @param grad Gradients of vol.
+     */
+    public void setVolume(Volume vol, GradientVolume grad) {
+        setVolume(vol, grad, vol.getMinimum(), vol.getMaximum());
+    }
+
+    /**
+     * Sets the volume as {@link #setVolume(Volume, GradientVolume)} does,
+     * with transfer functions over a range of voxel values wider than its
+     * own, e.g. that of all timesteps of a {@link volume.TimeSeries}.
+     *
+     * @param vol Volume to be visualized.
+     * @param grad Gradients of vol.
+     * @param minimum Lowest voxel value the transfer functions cover.
+     * @param maximum Highest voxel value the transfer functions cover.
+     */
+    public void setVolume(Volume vol, GradientVolume grad, int minimum, int maximum) {
+        setVolumeData(vol, grad, minimum, maximum);
+
+        // the histogram of the editors spans the values up to the maximum
+        int[] histogram = volume.getHistogram();
+        if (histogram.length < maximum + 1) {
+            histogram = Arrays.copyOf(histogram, maximum + 1);
+        }
+
+        // Initialize the GUI panels of the transfer functions
+        tfEditor = new TransferFunctionEditor(tFuncFront, histogram);
+        tfEditor2DFront = new TransferFunction2DEditor(tFunc2DFront, volume, gradients);
+        tfEditor2DFront.addTFChangeListener(this);
+
+        // Initialize the GUI panels for cutting plane
+        tfEditorBack = new TransferFunctionEditor(tFuncBack, histogram);
+        tfEditor2DBack = new TransferFunction2DEditor(tFunc2DBack, volume, gradients);
+        tfEditor2DBack.addTFChangeListener(this);
+
+        System.out.println("Finished initialization of RaycastRenderer");
+    }
+
+    /**
+     * Shows a volume that is still loading. Until {@link #setVolume} or
+     * {@link #endPreview()} is called every frame is a MIP of the volume,
+     * which needs neither gradients nor transfer functions. The transfer
+     * functions and editors of the previous volume are kept.
+     *
+     * @param vol Partially loaded volume.
+     */
+    public void setPreviewVolume(Volume vol) {
+        if (!previewing) {
+            previewing = true;
+            previousVolume = volume;
+            previousGradients = gradients;
+            previousImage = image;
+        }
         volume = vol;
+        gradients = null;
+        image = new BufferedImage(computeImageSize(vol), computeImageSize(vol), BufferedImage.TYPE_INT_ARGB);
+        VectorMath.setVector(planePoint, volume.getDimX() / 2, volume.getDimY() / 2, volume.getDimZ() / 2);
+    }
 
-        System.out.println("Computing gradients");
-        gradients = new GradientVolume(vol);
+    /**
+     * Ends a preview started by {@link #setPreviewVolume(Volume)} without a
+     * new volume, e.g. because loading was cancelled, and shows the previous
+     * volume again.
+     */
+    public void endPreview() {
+        if (!previewing) {
+            return;
+        }
+        previewing = false;
+        volume = previousVolume;
+        gradients = previousGradients;
+        image = previousImage;
+        previousVolume = null;
+        previousGradients = null;
+        previousImage = null;
+        if (volume != null) {
+            VectorMath.setVector(planePoint, volume.getDimX() / 2, volume.getDimY() / 2, volume.getDimZ() / 2);
+        }
+    }
 
-        // set up image for storing the resulting rendering
-        // the image width and height are equal to the length of the volume diagonal
+    /**
+     * @param vol A volume.
+     * @return Width and height of the image for vol: the length of the volume
+     * diagonal, rounded up to an even number.
+     */
+    private static int computeImageSize(Volume vol) {
         int imageSize = (int) Math.floor(Math.sqrt(vol.getDimX() * vol.getDimX() + vol.getDimY() * vol.getDimY()
                 + vol.getDimZ() * vol.getDimZ()));
         if (imageSize % 2 != 0) {
             imageSize = imageSize + 1;
         }
+        return imageSize;
+    }
+
+    /**
+     * Sets the volume together with gradients that were computed elsewhere.
+     * It creates the Image buffer and the transfer functions, but none of the
+     * GUI editors, so several headless renderers can share the derived data
+     * of a single loaded volume. It ends a preview.
+     *
+     * @param vol Volume to be visualized.
+     * @param grad Gradients of vol.
+     */
+    public void setVolumeData(Volume vol, GradientVolume grad) {
+        setVolumeData(vol, grad, vol.getMinimum(), vol.getMaximum());
+    }
 
+    /**
+     * Sets the volume as {@link #setVolumeData(Volume, GradientVolume)}
+     * does, with transfer functions over a range of voxel values wider than
+     * its own. The timesteps of a {@link volume.TimeSeries} shown with
+     * {@link #setTimestep} must lie in this range.
+     *
+     * @param vol Volume to be visualized.
+     * @param grad Gradients of vol.
+     * @param minimum Lowest voxel value the transfer functions cover.
+     * @param maximum Highest voxel value the transfer functions cover.
+     */
+    public void setVolumeData(Volume vol, GradientVolume grad, int minimum, int maximum) {
+        System.out.println("Assigning volume");
+        previewing = false;
+        previousVolume = null;
+        previousGradients = null;
+        previousImage = null;
+        volume = vol;
+        gradients = grad;
+        pyramid = null;
+        // the samplers can be used before the first frame selects a level
+        lodLevel = 0;
+        sampleVolume = vol;
+        sampleGradients = grad;
+        fullFrameNanos = 0;
+        changedBricks = null;
+        timeVarying = false;
+        lastFrameKey = null;
+        cropMin = null;
+        cropMax = null;
+        clipRegion.clear();
+        lightingFront = null;
+        lightingBack = null;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+        }
+        prefetcher = vol instanceof BrickedVolume && BrickPrefetcher.ENABLED ? new BrickPrefetcher((BrickedVolume) vol) : null;
+
+        // set up image for storing the resulting rendering
+        // the image width and height are equal to the length of the volume diagonal
+        int imageSize = computeImageSize(vol);
         image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_ARGB);
 
-        // Initialize transfer function and GUI panels
-        tFuncFront = new TransferFunction(volume.getMinimum(), volume.getMaximum());
+        // Initialize transfer functions
+        tFuncFront = new TransferFunction(minimum, maximum);
         tFuncFront.setTestFunc();
         tFuncFront.addTFChangeListener(this);
-        tfEditor = new TransferFunctionEditor(tFuncFront, volume.getHistogram());
+        tFunc2DFront = new TransferFunction2D(maximum / 2, 0.2 * maximum);
 
-        tFunc2DFront = new TransferFunction2D((short) (volume.getMaximum() / 2), 0.2 * volume.getMaximum());
-        tfEditor2DFront = new TransferFunction2DEditor(tFunc2DFront, volume, gradients);
-        tfEditor2DFront.addTFChangeListener(this);
-
-        // Initialize transfer function and GUI panels for cutting plane
-        tFuncBack = new TransferFunction(volume.getMinimum(), volume.getMaximum());
+        // Initialize transfer functions for cutting plane
+        tFuncBack = new TransferFunction(minimum, maximum);
         tFuncBack.setTestFunc();
         tFuncBack.addTFChangeListener(this);
-        tfEditorBack = new TransferFunctionEditor(tFuncBack, volume.getHistogram());
-
-        tFunc2DBack = new TransferFunction2D((short) (volume.getMaximum() / 2), 0.2 * volume.getMaximum());
-        tfEditor2DBack = new TransferFunction2DEditor(tFunc2DBack, volume, gradients);
-        tfEditor2DBack.addTFChangeListener(this);
+        tFunc2DBack = new TransferFunction2D(maximum / 2, 0.2 * maximum);
 
         // Set plane point
         VectorMath.setVector(planePoint, volume.getDimX() / 2, volume.getDimY() / 2, volume.getDimZ() / 2);
+    }
 
-        System.out.println("Finished initialization of RaycastRenderer");
+    /**
+     * Shows another timestep of a {@link volume.TimeSeries} in place of the
+     * volume. The transfer functions, their editors and the image are kept,
+     * and if the next frame is otherwise the same as the last one, it only
+     * re-renders the tiles of the image the changed bricks project to.
+     * Timesteps have no levels of detail.
+     *
+     * @param vol The timestep, of the size of the volume, with voxel values
+     * in the range of the transfer functions.
+     * @param grad Gradients of vol.
+     * @param changed Bricks that differ from the timestep shown before,
+     * indexed x fastest.
+     * @param brickSize Edge length of the bricks in voxels.
+     */
+    public void setTimestep(Volume vol, GradientVolume grad, BitSet changed, int brickSize) {
+        if (volume == null || vol.getDimX() != volume.getDimX() || vol.getDimY() != volume.getDimY()
+                || vol.getDimZ() != volume.getDimZ()) {
+            throw new IllegalArgumentException("A timestep must have the size of the volume");
+        }
+        if (changedBricks == null || changedBrickSize != brickSize) {
+            changedBricks = (BitSet) changed.clone();
+            changedBrickSize = brickSize;
+        } else {
+            changedBricks.or(changed);
+        }
+        timeVarying = true;
+        volume = vol;
+        gradients = grad;
+        pyramid = null;
+        sampleVolume = vol;
+        sampleGradients = grad;
+        if (prefetcher != null) {
+            prefetcher.cancel();
+            prefetcher = null;
+        }
+    }
+
+    /**
+     * Describes everything a frame depends on other than the voxels: the
+     * view, modes, settings and image size, and the maximum voxel the slicer
+     * scales by or the maximum gradient magnitude the 2D transfer function
+     * scales by, which change with every voxel.
+     */
+    private String computeFrameKey(double[] viewMatrix) {
+        StringBuilder key = new StringBuilder(Arrays.toString(viewMatrix));
+        key.append(modeFront).append(' ').append(modeBack).append(' ').append(cuttingPlaneMode).append(' ')
+                .append(shadingMode).append(' ').append(interactiveMode).append(' ').append(lodLevel).append(' ')
+                .append(settingsVersion).append(' ').append(isoValueFront).append(' ').append(isoValueBack)
+                .append(' ').append(isoColorFront.r).append(isoColorFront.g).append(isoColorFront.b).append(' ')
+                .append(isoColorBack.r).append(isoColorBack.g).append(isoColorBack.b).append(' ')
+                .append(Arrays.toString(planeNorm)).append(Arrays.toString(planePoint)).append(' ')
+                .append(image.getWidth()).append(' ').append(Arrays.toString(cropMin))
+                .append(Arrays.toString(cropMax)).append(clipRegion).append(' ').append(ambientOcclusion);
+        if (modeFront == RaycastMode.SLICER) {
+            key.append(' ').append(volume.getMaximum());
+        } else if (modeFront == RaycastMode.TRANSFER2D || (cuttingPlaneMode && modeBack == RaycastMode.TRANSFER2D)) {
+            key.append(' ').append(gradients.getMaxGradientMagnitude());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Finds the tiles of the image the changed bricks project to. A brick
+     * is grown by two voxels, since the interpolated gradients of the voxels
+     * next to it read its voxels, and its bounding box is projected as the
+     * ray start points are, plus a pixel.
+     *
+     * @return The tiles, row by row, or null if every tile changed.
+     */
+    private boolean[] computeDirtyTiles(double[] viewMatrix) {
+        int imageW = image.getWidth();
+        tilesX = (imageW + TILE_SIZE - 1) / TILE_SIZE;
+        boolean[] tiles = new boolean[tilesX * tilesX];
+        int dimX = volume.getDimX(), dimY = volume.getDimY(), dimZ = volume.getDimZ();
+        int size = changedBrickSize;
+        int bricksX = (dimX + size - 1) / size, bricksY = (dimY + size - 1) / size;
+        double[] uVec = new double[]{viewMatrix[0], viewMatrix[4], viewMatrix[8]};
+        double[] vVec = new double[]{viewMatrix[1], viewMatrix[5], viewMatrix[9]};
+        double[] center = new double[]{dimX / 2.0, dimY / 2.0, dimZ / 2.0};
+        double[] corner = new double[3];
+        int marked = 0;
+        for (int b = changedBricks.nextSetBit(0); b >= 0; b = changedBricks.nextSetBit(b + 1)) {
+            int[] low = new int[]{(b % bricksX) * size - 2, (b / bricksX % bricksY) * size - 2,
+                (b / (bricksX * bricksY)) * size - 2};
+            int[] high = new int[]{Math.min(low[0] + size + 4, dimX), Math.min(low[1] + size + 4, dimY),
+                Math.min(low[2] + size + 4, dimZ)};
+            double minI = Double.MAX_VALUE, maxI = -Double.MAX_VALUE;
+            double minJ = Double.MAX_VALUE, maxJ = -Double.MAX_VALUE;
+            for (int c = 0; c < 8; c++) {
+                for (int k = 0; k < 3; k++) {
+                    corner[k] = ((c >> k & 1) == 0 ? Math.max(0, low[k]) : high[k]) - center[k];
+                }
+                double i = VectorMath.dotproduct(corner, uVec), j = VectorMath.dotproduct(corner, vVec);
+                minI = Math.min(minI, i);
+                maxI = Math.max(maxI, i);
+                minJ = Math.min(minJ, j);
+                maxJ = Math.max(maxJ, j);
+            }
+            int tileI0 = Math.max(0, (int) Math.floor(minI + imageW / 2 - 1) / TILE_SIZE);
+            int tileI1 = Math.min(tilesX - 1, (int) Math.ceil(maxI + imageW / 2 + 1) / TILE_SIZE);
+            int tileJ0 = Math.max(0, (int) Math.floor(minJ + imageW / 2 - 1) / TILE_SIZE);
+            int tileJ1 = Math.min(tilesX - 1, (int) Math.ceil(maxJ + imageW / 2 + 1) / TILE_SIZE);
+            for (int tj = tileJ0; tj <= tileJ1; tj++) {
+                for (int ti = tileI0; ti <= tileI1; ti++) {
+                    if (!tiles[tj * tilesX + ti]) {
+                        tiles[tj * tilesX + ti] = true;
+                        marked++;
+                    }
+                }
+            }
+        }
+        return marked == tiles.length ? null : tiles;
+    }
+
+    /**
+     * Resets the pixels of the tiles the current frame renders.
+     */
+    private void resetDirtyTiles() {
+        int imageW = image.getWidth(), imageH = image.getHeight();
+        for (int j = 0; j < imageH; j++) {
+            for (int i = 0; i < imageW; i++) {
+                if (dirtyTiles[(j / TILE_SIZE) * tilesX + i / TILE_SIZE]) {
+                    image.setRGB(i, j, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the volume for the given view matrix into {@link #image}
+     * without touching OpenGL. Used by {@link #visualize(GL2)} and by
+     * headless renderers.
+     *
+     * @param viewMatrix OpenGL View matrix.
+     * @return The rendered image. It is reused by the next call.
+     */
+    public BufferedImage renderImage(double[] viewMatrix) {
+        renderFrame(viewMatrix);
+        fireFrameRendered(statistics);
+        return image;
+    }
+
+    /**
+     * Renders a frame into {@link #image} and collects its statistics in
+     * {@link #statistics}, without notifying the listeners.
+     *
+     * @param viewMatrix OpenGL View matrix.
+     */
+    private void renderFrame(double[] viewMatrix) {
+        RenderStatistics stats = new RenderStatistics();
+        stats.frameNr = ++frameCount;
+        stats.mode = previewing ? RaycastMode.MIP : modeFront;
+        stats.interactive = interactiveMode;
+        stats.width = image.getWidth();
+        stats.height = image.getHeight();
+        frameStatistics = stats;
+        frameEvent = Telemetry.beginFrame();
+        shadingCalls = timedShadingCalls = timedShadingNanos = 0;
+        frameStart = System.nanoTime();
+        marchStart = frameStart;
+        selectLevelOfDetail();
+        stats.levelOfDetail = lodLevel;
+
+        // after a timestep, only the tiles of the changed bricks differ from
+        // the last frame if nothing else changed
+        String frameKey = timeVarying && !previewing ? computeFrameKey(viewMatrix) : null;
+        dirtyTiles = null;
+        // occlusion reaches beyond the changed bricks
+        if (changedBricks != null && frameKey != null && frameKey.equals(lastFrameKey) && !ambientOcclusion) {
+            dirtyTiles = computeDirtyTiles(viewMatrix);
+        }
+        changedBricks = null;
+        lastFrameKey = frameKey;
+        frameClip = computeFrameClip();
+
+        if (previewing) {
+            renderPreview(viewMatrix);
+        } else {
+            if (prefetcher != null && modeFront != RaycastMode.SLICER) {
+                prefetcher.viewChanged(viewMatrix);
+            }
+            switch (modeFront) {
+                case SLICER:
+                    slicer(viewMatrix);
+                    break;
+                default:
+                    // Default case raycast
+                    raycast(viewMatrix);
+                    break;
+            }
+        }
+
+        long end = System.nanoTime();
+        if (timedShadingCalls > 0) {
+            stats.shadingNanos = timedShadingNanos * shadingCalls / timedShadingCalls;
+        }
+        stats.setupNanos = marchStart - frameStart;
+        stats.marchNanos = Math.max(0, end - marchStart - stats.shadingNanos);
+        statistics = stats;
+        if (!previewing && modeFront != RaycastMode.SLICER && dirtyTiles == null) {
+            fullFrameNanos = (double) (end - frameStart) * frameSampleStep;
+        }
+        dirtyTiles = null;
+    }
+
+    /**
+     * Chooses the level of detail of the next frame. It is the coarsest level
+     * whose voxels are not larger than a screen pixel, and while
+     * interacting, the finest level that is expected to stay within the
+     * frame time budget. The time of a frame is taken to be proportional to
+     * the number of samples, so it halves with every level. When the
+     * interaction ends, the next frame is rendered at the finest level again.
+     */
+    private void selectLevelOfDetail() {
+        lodLevel = 0;
+        sampleVolume = volume;
+        sampleGradients = gradients;
+        if (pyramid == null || previewing || pyramid.getVolume(0) != volume) {
+            return;
+        }
+
+        int maxLevel = pyramid.getLevelCount() - 1;
+        int level = Math.min(footprintLevel, maxLevel);
+        if (interactiveMode && fullFrameNanos > 0) {
+            while (level < maxLevel && fullFrameNanos / (INTERACTIVE_SAMPLE_STEP << level) > frameTimeBudgetNanos) {
+                level++;
+            }
+        }
+        lodLevel = level;
+        sampleVolume = pyramid.getVolume(level);
+        sampleGradients = pyramid.getGradients(level);
+    }
+
+    /**
+     * Sets the levels of detail of the volume. Without levels the volume is
+     * always sampled at full resolution.
+     *
+     * @param pyramid Levels of the current volume, or null.
+     */
+    public void setPyramid(VolumePyramid pyramid) {
+        this.pyramid = pyramid;
+    }
+
+    public VolumePyramid getPyramid() {
+        return pyramid;
+    }
+
+    /**
+     * @param millis Frame time interactive frames should stay within.
+     */
+    public void setFrameTimeBudget(double millis) {
+        frameTimeBudgetNanos = (long) (millis * 1e6);
+    }
+
+    /**
+     * Renders a MIP of a volume that is still loading, whatever the modes.
+     */
+    private void renderPreview(double[] viewMatrix) {
+        RaycastMode front = modeFront;
+        boolean cutting = cuttingPlaneMode;
+        modeFront = RaycastMode.MIP;
+        cuttingPlaneMode = false;
+        try {
+            raycast(viewMatrix);
+        } finally {
+            modeFront = front;
+            cuttingPlaneMode = cutting;
+        }
+    }
+
+    private void fireFrameRendered(RenderStatistics stats) {
+        Telemetry.endFrame(frameEvent, stats);
+        frameEvent = null;
+        synchronized (statisticsListeners) {
+            for (RenderStatisticsListener l : statisticsListeners) {
+                l.frameRendered(stats);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that receives the statistics of every frame.
+     *
+     * @param l Listener.
+     */
+    public void addStatisticsListener(RenderStatisticsListener l) {
+        synchronized (statisticsListeners) {
+            if (!statisticsListeners.contains(l)) {
+                statisticsListeners.add(l);
+            }
+        }
+    }
+
+    public void removeStatisticsListener(RenderStatisticsListener l) {
+        synchronized (statisticsListeners) {
+            statisticsListeners.remove(l);
+        }
     }
 
     /**
@@ -1048,6 +1687,9 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         }
 
         drawBoundingBox(gl);
+        if (cropMin != null) {
+            drawCropBox(gl);
+        }
 
         // If mode is Cutting Plane, draw the cutting plane.
         if (cuttingPlaneMode) {
@@ -1055,23 +1697,19 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         }
 
         gl.glGetDoublev(GL2.GL_MODELVIEW_MATRIX, _viewMatrix, 0);
+        gl.glGetDoublev(GL2.GL_PROJECTION_MATRIX, _projectionMatrix, 0);
+        gl.glGetIntegerv(GL.GL_VIEWPORT, _viewport, 0);
+        footprintLevel = computeFootprintLevel(_projectionMatrix, _viewport);
 
         long startTime = System.currentTimeMillis();
 
-        switch (modeFront) {
-            case SLICER:
-                slicer(_viewMatrix);
-                break;
-            default:
-                // Default case raycast
-                raycast(_viewMatrix);
-                break;
-        }
+        renderFrame(_viewMatrix);
 
         long endTime = System.currentTimeMillis();
         double runningTime = (endTime - startTime);
         panelFront.setSpeedLabel(Double.toString(runningTime));
 
+        long uploadStart = System.nanoTime();
         Texture texture = AWTTextureIO.newTexture(gl.getGLProfile(), image, false);
 
         gl.glPushAttrib(GL2.GL_LIGHTING_BIT);
@@ -1102,11 +1740,36 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
 
         gl.glPopAttrib();
 
+        RenderStatistics stats = statistics;
+        stats.uploadNanos = System.nanoTime() - uploadStart;
+        fireFrameRendered(stats);
+
         if (gl.glGetError() > 0) {
             System.out.println("some OpenGL error: " + gl.glGetError());
         }
     }
 
+    /**
+     * Computes the coarsest level of detail whose voxels are not larger than
+     * a screen pixel. The image is drawn as a billboard of one unit per pixel, and a
+     * pixel of the image is a voxel.
+     *
+     * @param projection OpenGL projection matrix.
+     * @param viewport OpenGL viewport.
+     * @return 0 unless the image is drawn smaller than its size.
+     */
+    private static int computeFootprintLevel(double[] projection, int[] viewport) {
+        double screenPixelsPerVoxel = projection[0] / projection[15] * viewport[2] / 2;
+        if (!(screenPixelsPerVoxel > 0)) {
+            return 0;
+        }
+        int level = 0;
+        while (screenPixelsPerVoxel * (2 << level) <= 1) {
+            level++;
+        }
+        return level;
+    }
+
     public RaycastMode getRaycastMode() {
         return modeFront;
     }
@@ -1126,6 +1789,7 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
 
     @Override
     public void changed() {
+        settingsVersion++;
         for (int i = 0; i < listeners.size(); i++) {
             listeners.get(i).changed();
         }
@@ -1166,6 +1830,136 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         this.shadingMode = shadingMode;
     }
 
+    /**
+     * Sets a region of interest. Rays are clipped to it, so they only
+     * sample the box and rays that miss it are not cast, and the slicer
+     * leaves the rest of the plane empty. The box is dropped when another
+     * volume is set.
+     *
+     * @param min Lower corner in voxel coordinates, from 0.
+     * @param max Upper corner, up to the size of the volume.
+     */
+    public void setCropBox(double[] min, double[] max) {
+        for (int i = 0; i < 3; i++) {
+            if (!(min[i] < max[i])) {
+                throw new IllegalArgumentException("Empty crop box");
+            }
+        }
+        cropMin = min.clone();
+        cropMax = max.clone();
+    }
+
+    /**
+     * Renders the whole volume again.
+     */
+    public void clearCropBox() {
+        cropMin = null;
+        cropMax = null;
+    }
+
+    /**
+     * @return Lower and upper corner of the crop box, or null if there is
+     * none.
+     */
+    public double[][] getCropBox() {
+        return cropMin == null ? null : new double[][]{cropMin.clone(), cropMax.clone()};
+    }
+
+    /**
+     * Brings the ambient occlusion of the transfer functions in use up to
+     * date with them.
+     */
+    private void updateLighting() {
+        if (modeFront == RaycastMode.COMPOSITING) {
+            if (lightingFront == null || lightingFront.getVolume() != volume) {
+                lightingFront = new LightingVolume(volume);
+            }
+            lightingFront.update(tFuncFront);
+        }
+        if (cuttingPlaneMode && modeBack == RaycastMode.COMPOSITING) {
+            if (lightingBack == null || lightingBack.getVolume() != volume) {
+                lightingBack = new LightingVolume(volume);
+            }
+            lightingBack.update(tFuncBack);
+        }
+    }
+
+    /**
+     * Turns the ambient occlusion of compositing on or off. See
+     * {@link LightingVolume}.
+     */
+    public void setAmbientOcclusion(boolean ambientOcclusion) {
+        this.ambientOcclusion = ambientOcclusion;
+    }
+
+    public boolean isAmbientOcclusion() {
+        return ambientOcclusion;
+    }
+
+    /**
+     * Keeps the half-spaces of the user's clip planes and boxes, and of the
+     * faces of the crop box. Faces of the crop box on the faces of the volume
+     * do not clip, so the volume keeps the tolerance of its own intersection
+     * test.
+     *
+     * @return The region, or null if nothing is clipped.
+     */
+    private ClipRegion computeFrameClip() {
+        if (cropMin == null && clipRegion.isEmpty()) {
+            return null;
+        }
+        ClipRegion region = new ClipRegion(clipRegion);
+        if (cropMin != null) {
+            int[] dims = new int[]{volume.getDimX(), volume.getDimY(), volume.getDimZ()};
+            for (int k = 0; k < 3; k++) {
+                if (cropMin[k] > 0) {
+                    region.addAxisPlane(k, cropMin[k], true);
+                }
+                if (cropMax[k] < dims[k]) {
+                    region.addAxisPlane(k, cropMax[k], false);
+                }
+            }
+        }
+        return region;
+    }
+
+    /**
+     * Adds a clip plane. Only the half-space on the side its normal points
+     * to is rendered. Planes and boxes combine: what is rendered is inside
+     * all of them. They are dropped when another volume is set.
+     *
+     * @param point A point of the plane, in voxel coordinates.
+     * @param normal Normal of the plane.
+     */
+    public void addClipPlane(double[] point, double[] normal) {
+        clipRegion.addPlane(point, normal);
+    }
+
+    /**
+     * Adds a clip box, of which only the inside is rendered. See
+     * {@link #addClipPlane(double[], double[])}.
+     *
+     * @param min Lower corner in voxel coordinates.
+     * @param max Upper corner.
+     */
+    public void addClipBox(double[] min, double[] max) {
+        clipRegion.addBox(min, max);
+    }
+
+    /**
+     * Removes all clip planes and boxes. The crop box stays.
+     */
+    public void clearClipRegion() {
+        clipRegion.clear();
+    }
+
+    /**
+     * @return A copy of the clip planes and boxes.
+     */
+    public ClipRegion getClipRegion() {
+        return new ClipRegion(clipRegion);
+    }
+
     public RaycastRendererPanel getPanel() {
         return panelFront;
     }
@@ -1186,6 +1980,30 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         return tfEditorBack;
     }
 
+    /**
+     * @return Statistics of the last rendered frame, or null before the first
+     * frame.
+     */
+    public RenderStatistics getStatistics() {
+        return statistics;
+    }
+
+    public TransferFunction getTransferFunctionFront() {
+        return tFuncFront;
+    }
+
+    public TransferFunction getTransferFunctionBack() {
+        return tFuncBack;
+    }
+
+    public TransferFunction2D getTransferFunction2DFront() {
+        return tFunc2DFront;
+    }
+
+    public TransferFunction2D getTransferFunction2DBack() {
+        return tFunc2DBack;
+    }
+
     //////////////////////////////////////////////////////////////////////
     /////////////////// PRIVATE FUNCTIONS AND ATTRIBUTES /////////////////
     //////////////////////////////////////////////////////////////////////
@@ -1193,6 +2011,8 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
      * OpenGL View Matrix. The shape (4x4) remains constant.
      */
     private final double[] _viewMatrix = new double[4 * 4];
+    private final double[] _projectionMatrix = new double[4 * 4];
+    private final int[] _viewport = new int[4];
 
     /**
      * Vector used to draw the cutting plane.
@@ -1269,6 +2089,37 @@ public class RaycastRenderer extends Renderer implements TFChangeListener {
         gl.glPopAttrib();
     }
 
+    /**
+     * Draws the edges of the crop box, in the coordinates of
+     * {@link #drawBoundingBox(GL2)}.
+     *
+     * @param gl OpenGL API.
+     */
+    private void drawCropBox(GL2 gl) {
+        gl.glPushAttrib(GL2.GL_CURRENT_BIT);
+        gl.glDisable(GL2.GL_LIGHTING);
+        gl.glColor4d(1.0, 0.8, 0.0, 1.0);
+        gl.glLineWidth(1.5f);
+        double[] center = new double[]{volume.getDimX() / 2.0, volume.getDimY() / 2.0, volume.getDimZ() / 2.0};
+        gl.glBegin(GL.GL_LINES);
+        // the four edges along each axis
+        for (int axis = 0; axis < 3; axis++) {
+            int a = (axis + 1) % 3, b = (axis + 2) % 3;
+            for (int edge = 0; edge < 4; edge++) {
+                double[] from = new double[3], to = new double[3];
+                from[axis] = cropMin[axis] - center[axis];
+                to[axis] = cropMax[axis] - center[axis];
+                from[a] = to[a] = ((edge & 1) == 0 ? cropMin[a] : cropMax[a]) - center[a];
+                from[b] = to[b] = ((edge & 2) == 0 ? cropMin[b] : cropMax[b]) - center[b];
+                gl.glVertex3d(from[0], from[1], from[2]);
+                gl.glVertex3d(to[0], to[1], to[2]);
+            }
+        }
+        gl.glEnd();
+        gl.glEnable(GL2.GL_LIGHTING);
+        gl.glPopAttrib();
+    }
+
     /**
      * Do NOT modify.
      *
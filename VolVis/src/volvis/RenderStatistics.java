@@ -0,0 +1,93 @@
+package volvis;
+
+import java.util.Locale;
+
+/**
+ * Counters and timings of one frame rendered by {@link RaycastRenderer}.
+ * The renderer fills in a new instance for every frame, so an instance that
+ * was handed to a {@link RenderStatisticsListener} does not change anymore.
+ */
+public class RenderStatistics {
+
+    /**
+     * Header of the rows written by {@link #toCsv()}.
+     */
+    public static final String CSV_HEADER = "frame,mode,interactive,width,height,rays,samples,skipped_samples,"
+            + "early_terminated_rays,setup_ms,march_ms,shading_ms,upload_ms,total_ms,level";
+
+    public long frameNr;
+    public RaycastMode mode;
+    public boolean interactive;
+    public int width, height;
+    /**
+     * Level of detail that was sampled, 0 for full resolution.
+     */
+    public int levelOfDetail;
+
+    /**
+     * Rays that hit the volume.
+     */
+    public long raysCast;
+    /**
+     * Volume samples taken along the rays, or on the plane when slicing.
+     */
+    public long samplesTaken;
+    /**
+     * Samples along the rays that were not taken because an acceleration
+     * structure showed they could not contribute.
+     */
+    public long samplesSkipped;
+    /**
+     * Rays that stopped before their exit point.
+     */
+    public long earlyTerminatedRays;
+
+    /**
+     * Time to set up the frame: clearing the image and computing the view
+     * vectors.
+     */
+    public long setupNanos;
+    /**
+     * Time spent marching the rays, without the shading time.
+     */
+    public long marchNanos;
+    /**
+     * Time spent in Phong shading. Only a fraction of the calls is timed, so
+     * the timer itself does not slow the frame down, and the total is
+     * extrapolated.
+     */
+    public long shadingNanos;
+    /**
+     * Time to upload the image as a texture and draw it, 0 for headless
+     * frames.
+     */
+    public long uploadNanos;
+
+    public long getTotalNanos() {
+        return setupNanos + marchNanos + shadingNanos + uploadNanos;
+    }
+
+    /**
+     * @return Samples per second of the setup, march and shading time.
+     */
+    public double getSamplesPerSecond() {
+        long nanos = setupNanos + marchNanos + shadingNanos;
+        return nanos > 0 ? samplesTaken * 1e9 / nanos : 0;
+    }
+
+    /**
+     * @return The statistics as a row matching {@link #CSV_HEADER}.
+     */
+    public String toCsv() {
+        return String.format(Locale.ROOT, "%d,%s,%b,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d", frameNr, mode,
+                interactive, width, height, raysCast, samplesTaken, samplesSkipped, earlyTerminatedRays,
+                setupNanos / 1e6, marchNanos / 1e6, shadingNanos / 1e6, uploadNanos / 1e6, getTotalNanos() / 1e6,
+                levelOfDetail);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "frame %d: %.1f ms, %d rays, %d samples", frameNr, getTotalNanos() / 1e6,
+                raysCast, samplesTaken);
+    }
+}
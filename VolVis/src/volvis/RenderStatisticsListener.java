@@ -0,0 +1,10 @@
+package volvis;
+
+/**
+ * Receives the {@link RenderStatistics} of every frame of a
+ * {@link RaycastRenderer}. It is called on the rendering thread.
+ */
+public interface RenderStatisticsListener {
+
+    public void frameRendered(RenderStatistics statistics);
+}
@@ -0,0 +1,42 @@
+package volvis;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Writes the {@link RenderStatistics} of every frame as a row of a CSV file.
+ * Rows are flushed right away, so the log is complete even if the
+ * application is killed.
+ */
+public class RenderStatisticsLog implements RenderStatisticsListener {
+
+    private final PrintWriter out;
+
+    /**
+     * Opens the log. An existing file is appended to, without writing the
+     * header again.
+     *
+     * @param file CSV file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public RenderStatisticsLog(File file) throws IOException {
+        boolean exists = file.exists() && file.length() > 0;
+        out = new PrintWriter(new FileWriter(file, true));
+        if (!exists) {
+            out.println(RenderStatistics.CSV_HEADER);
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void frameRendered(RenderStatistics statistics) {
+        out.println(statistics.toCsv());
+        out.flush();
+    }
+
+    public synchronized void close() {
+        out.close();
+    }
+}
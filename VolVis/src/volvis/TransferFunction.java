@@ -16,7 +16,7 @@ public class TransferFunction {
 
     private ArrayList<TFChangeListener> listeners = new ArrayList<TFChangeListener>();
     
-    public TransferFunction(short min, short max) {
+    public TransferFunction(int min, int max) {
         sMin = min;
         sMax = max;
         sRange = sMax - sMin;
@@ -27,6 +27,9 @@ public class TransferFunction {
 
         LUTsize = sRange;
         LUT = new TFColor[LUTsize];
+        if (min >= 0 && max < BYTE_LUT_SIZE) {
+            byteLUT = new TFColor[BYTE_LUT_SIZE];
+        }
 
         buildLUT();
 
@@ -61,6 +64,10 @@ public class TransferFunction {
     }
 
     public TFColor getColor(int value) {
+        // values of bytes index their table directly, without the division
+        if (byteLUT != null && (value & ~0xFF) == 0) {
+            return byteLUT[value];
+        }
         return LUT[computeLUTindex(value)];
     }
 
@@ -142,6 +149,12 @@ public class TransferFunction {
 
         }
 
+        if (byteLUT != null) {
+            for (int k = sMin; k <= sMax; k++) {
+                byteLUT[k] = LUT[computeLUTindex(k)];
+            }
+        }
+
 
     }
 
@@ -166,9 +179,14 @@ public class TransferFunction {
         }
         
     }
-    private short sMin, sMax;
+    private int sMin, sMax;
     private int sRange;
     private TFColor[] LUT;
+    /**
+     * The colors of the values 0 to 255 for a volume of bytes, else null.
+     */
+    private TFColor[] byteLUT;
+    private static final int BYTE_LUT_SIZE = 256;
     private int LUTsize = 4095;
     private ArrayList<ControlPoint> controlPoints;
 }
@@ -1,7 +1,7 @@
 /*
  * Anna Vilanova: This class implements the basic interaction with the 2D Transfer
  * Function
- * 
+ *
  * YOU MIGHT WANT TO MODIFY IT FOR THE EXTENSIONS
  *
  * To change this template, choose Tools | Templates
@@ -9,27 +9,268 @@
  */
 package volvis;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
 /**
+ * A 2D transfer function over voxel value and gradient magnitude, made of
+ * any number of triangle widgets (Levoy). Each widget has its own color and
+ * opacity. The widgets are baked into a table of colors indexed by value and
+ * gradient magnitude, see {@link #getTable(int, int)}, so classifying a
+ * sample is one lookup however many widgets there are. The table is built
+ * again only when a widget changed since the last one.
+ *
+ * One widget is selected; {@link #SetBaseRadius(int, double)} and the editor
+ * change that one.
  *
  * @author Anna Vilanova
  */
 public class TransferFunction2D {
-    // base of the intensity of the triangle
-    public short baseIntensity;
-    // width of half of the triangle in intensity value units 
-    public double radius;
-    public TFColor color;
-        
-
-        public TransferFunction2D(short base, double r) {
+
+    /**
+     * Gradient magnitude bins of the table, from 0 to the maximum magnitude.
+     */
+    public static final int MAGNITUDE_BINS = 128;
+    /**
+     * Value bins of the table at most. Volumes with fewer values have one
+     * bin per value.
+     */
+    public static final int MAX_VALUE_BINS = 4096;
+
+    /**
+     * A triangle widget: a material of value baseIntensity, whose opacity
+     * falls off linearly with the distance in value, over a width that grows
+     * with the gradient magnitude up to radius at the maximum magnitude.
+     */
+    public static class TriangleWidget {
+
+        // base of the intensity of the triangle
+        public int baseIntensity;
+        // width of half of the triangle in intensity value units
+        public double radius;
+        public TFColor color;
+
+        public TriangleWidget(int base, double r) {
             this.baseIntensity = base;
             this.radius = r;
             this.color = new TFColor(0.0, 204.0/255.0, 153.0/255.0, 0.3);
         }
-        
-        public void SetBaseRadius(short base, double r)
-        {   
-            this.baseIntensity = base;
-            this.radius = r;
+
+        /**
+         * Opacity of a value, formula (3) of Levoy's paper.
+         *
+         * @param value Voxel value.
+         * @param magnitude Gradient magnitude, as a fraction of the maximum
+         * magnitude.
+         */
+        double computeOpacity(double value, double magnitude) {
+            double distance = Math.abs(value - baseIntensity);
+            if (magnitude == 0) {
+                return distance == 0 ? color.a : 0;
+            }
+            double width = radius * magnitude;
+            return distance <= width ? color.a * (1 - distance / width) : 0;
+        }
+    }
+
+    /**
+     * The widgets baked into colors over value and gradient magnitude.
+     */
+    public static final class Table {
+
+        private final int minValue, maxValue;
+        private final int valueBins;
+        /**
+         * Red, green, blue and opacity of every bin, magnitude bins of a
+         * value bin next to each other.
+         */
+        private final float[] rgba;
+
+        private Table(int minValue, int maxValue) {
+            this.minValue = minValue;
+            this.maxValue = Math.max(maxValue, minValue + 1);
+            valueBins = Math.min(this.maxValue - minValue + 1, MAX_VALUE_BINS);
+            rgba = new float[valueBins * MAGNITUDE_BINS * 4];
+        }
+
+        private int valueIndex(int value) {
+            if (value <= minValue) {
+                return 0;
+            }
+            if (value >= maxValue) {
+                return valueBins - 1;
+            }
+            return (int) ((long) (valueBins - 1) * (value - minValue) / (maxValue - minValue));
         }
+
+        /**
+         * Looks up the color of a sample, interpolated linearly between the
+         * two nearest magnitude bins.
+         *
+         * @param value Voxel value.
+         * @param magnitude Gradient magnitude, as a fraction of the maximum
+         * magnitude.
+         * @param color Receives the color and opacity.
+         */
+        public void lookup(int value, double magnitude, TFColor color) {
+            double position = magnitude * (MAGNITUDE_BINS - 1);
+            int m = (int) position;
+            if (m >= MAGNITUDE_BINS - 1) {
+                m = MAGNITUDE_BINS - 2;
+                position = MAGNITUDE_BINS - 1;
+            }
+            float f = (float) (position - m);
+            int i = (valueIndex(value) * MAGNITUDE_BINS + m) << 2;
+            color.r = rgba[i] + f * (rgba[i + 4] - rgba[i]);
+            color.g = rgba[i + 1] + f * (rgba[i + 5] - rgba[i + 1]);
+            color.b = rgba[i + 2] + f * (rgba[i + 6] - rgba[i + 2]);
+            color.a = rgba[i + 3] + f * (rgba[i + 7] - rgba[i + 3]);
+        }
+    }
+
+    private final ArrayList<TriangleWidget> widgets = new ArrayList<TriangleWidget>();
+    private int selected = 0;
+    private Table table;
+    /**
+     * The widgets the table was built from, 6 numbers per widget.
+     */
+    private double[] tableWidgets;
+
+    public TransferFunction2D(int base, double r) {
+        widgets.add(new TriangleWidget(base, r));
+    }
+
+    public synchronized void SetBaseRadius(int base, double r) {
+        TriangleWidget widget = getSelectedWidget();
+        widget.baseIntensity = base;
+        widget.radius = r;
+    }
+
+    public synchronized List<TriangleWidget> getWidgets() {
+        return new ArrayList<TriangleWidget>(widgets);
+    }
+
+    public synchronized TriangleWidget getSelectedWidget() {
+        return widgets.get(selected);
+    }
+
+    public synchronized int getSelectedIndex() {
+        return selected;
+    }
+
+    public synchronized void setSelectedIndex(int index) {
+        if (index < 0 || index >= widgets.size()) {
+            throw new IndexOutOfBoundsException("Widget " + index + " of " + widgets.size());
+        }
+        selected = index;
+    }
+
+    /**
+     * Adds a widget with the color of the selected one, and selects it.
+     *
+     * @param base Base intensity.
+     * @param r Radius in intensity units.
+     * @return The widget.
+     */
+    public synchronized TriangleWidget addWidget(int base, double r) {
+        TriangleWidget widget = new TriangleWidget(base, r);
+        TFColor color = getSelectedWidget().color;
+        widget.color = new TFColor(color.r, color.g, color.b, color.a);
+        widgets.add(widget);
+        selected = widgets.size() - 1;
+        return widget;
+    }
+
+    /**
+     * Removes a widget, unless it is the last one. The widget before it is
+     * selected.
+     *
+     * @param index Index of the widget.
+     * @return False if it is the last widget, which is kept.
+     */
+    public synchronized boolean removeWidget(int index) {
+        if (widgets.size() == 1) {
+            return false;
+        }
+        widgets.remove(index);
+        selected = Math.max(0, Math.min(index - 1, widgets.size() - 1));
+        return true;
+    }
+
+    /**
+     * Returns the table of the widgets, building it again if a widget
+     * changed since the last call. Where widgets overlap, their opacities
+     * combine as layers and their colors are weighted by opacity, so a
+     * single widget gives its own color and opacity.
+     *
+     * @param minValue Lowest voxel value of the volume.
+     * @param maxValue Highest voxel value of the volume.
+     * @return The table.
+     */
+    public synchronized Table getTable(int minValue, int maxValue) {
+        double[] current = new double[widgets.size() * 6];
+        for (int w = 0; w < widgets.size(); w++) {
+            TriangleWidget widget = widgets.get(w);
+            current[w * 6] = widget.baseIntensity;
+            current[w * 6 + 1] = widget.radius;
+            current[w * 6 + 2] = widget.color.r;
+            current[w * 6 + 3] = widget.color.g;
+            current[w * 6 + 4] = widget.color.b;
+            current[w * 6 + 5] = widget.color.a;
+        }
+        if (table != null && table.minValue == minValue && table.maxValue == Math.max(maxValue, minValue + 1)
+                && Arrays.equals(current, tableWidgets)) {
+            return table;
+        }
+        table = buildTable(current, minValue, maxValue);
+        tableWidgets = current;
+        return table;
+    }
+
+    private Table buildTable(double[] current, int minValue, int maxValue) {
+        Table t = new Table(minValue, maxValue);
+        TriangleWidget[] snapshot = widgets.toArray(new TriangleWidget[widgets.size()]);
+        float[] rgba = t.rgba;
+        IntStream.range(0, t.valueBins).parallel().forEach(v -> {
+            double value = t.valueBins == t.maxValue - minValue + 1 ? minValue + v
+                    : minValue + (double) v * (t.maxValue - minValue) / (t.valueBins - 1);
+            int first = -1;
+            for (int m = 0; m < MAGNITUDE_BINS; m++) {
+                double magnitude = (double) m / (MAGNITUDE_BINS - 1);
+                double transparency = 1, weight = 0, r = 0, g = 0, b = 0;
+                for (int w = 0; w < snapshot.length; w++) {
+                    double opacity = snapshot[w].computeOpacity(value, magnitude);
+                    if (opacity > 0) {
+                        transparency *= 1 - opacity;
+                        weight += opacity;
+                        r += opacity * current[w * 6 + 2];
+                        g += opacity * current[w * 6 + 3];
+                        b += opacity * current[w * 6 + 4];
+                    }
+                }
+                int i = (v * MAGNITUDE_BINS + m) << 2;
+                if (weight > 0) {
+                    rgba[i] = (float) (r / weight);
+                    rgba[i + 1] = (float) (g / weight);
+                    rgba[i + 2] = (float) (b / weight);
+                    rgba[i + 3] = (float) (1 - transparency);
+                    if (first < 0) {
+                        first = m;
+                    }
+                } else if (first >= 0) {
+                    System.arraycopy(rgba, i - 4, rgba, i, 3);
+                }
+            }
+            // transparent bins take the color of their neighbors, so the
+            // color does not fade to black between bins at the edge of a
+            // widget
+            int row = v * MAGNITUDE_BINS;
+            for (int m = 0; m < first; m++) {
+                System.arraycopy(rgba, (row + first) << 2, rgba, (row + m) << 2, 3);
+            }
+        });
+        return t;
+    }
 }